@@ -36,6 +36,7 @@
 package pitt.search.semanticvectors;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.logging.Logger;
 
@@ -75,47 +76,65 @@ public class ClusterResults {
     }
   }
 
+  /** Maximum number of assignment rounds of {@link #kMeansCluster(ObjectVector[], FlagConfig)}. */
+  public static final int MAX_KMEANS_ITERATIONS = 100;
+
   /** 
-   * Simple k-means clustering algorithm.
+   * Simple k-means clustering algorithm, into {@link FlagConfig#numclusters()} clusters.
    * 
    * @param objectVectors Array of object vectors to be clustered.
    * @return Integer array parallel to objectVectors saying which
    * cluster each vector belongs to.
    */
   public static Clusters kMeansCluster (ObjectVector[] objectVectors, FlagConfig flagConfig) {
+    return kMeansCluster(objectVectors, flagConfig.numclusters(), MAX_KMEANS_ITERATIONS, new Random(), flagConfig);
+  }
+
+  /**
+   * Simple k-means clustering algorithm.
+   *
+   * Centroids start as copies of distinct randomly chosen vectors. A centroid that loses all its
+   * members is restarted from another randomly chosen vector, so every centroid stays usable. Stops
+   * when no vector changes cluster, or after {@code maxIterations} rounds.
+   *
+   * @param objectVectors Array of object vectors to be clustered, which must not be empty.
+   * @param numClusters Number of clusters.
+   * @param maxIterations Maximum number of rounds of assigning vectors to their nearest centroid.
+   * @param random Source of the initial centroids, seed it for reproducible clusters.
+   * @return Integer array parallel to objectVectors saying which
+   * cluster each vector belongs to.
+   */
+  public static Clusters kMeansCluster(ObjectVector[] objectVectors, int numClusters, int maxIterations,
+                                       Random random, FlagConfig flagConfig) {
+    if (objectVectors.length == 0 || numClusters < 1 || maxIterations < 1) {
+      throw new IllegalArgumentException("Cannot cluster " + objectVectors.length + " vectors into "
+          + numClusters + " clusters in " + maxIterations + " iterations.");
+    }
     Clusters clusters = new Clusters();
     clusters.clusterMappings = new int[objectVectors.length];
-    clusters.centroids = new Vector[flagConfig.numclusters()];
-    Random rand = new Random();
+    clusters.centroids = new Vector[numClusters];
 
     logger.info("Initializing clusters ...");
 
-    // Initialize cluster mappings randomly.
-    for (int i = 0; i < objectVectors.length; ++i) {
-      int randInt = rand.nextInt();
-      while (randInt == Integer.MIN_VALUE) {
-        //fix strange result where abs(MIN_VALUE) returns a negative number
-        randInt = rand.nextInt();
-      }
-      clusters.clusterMappings[i] = Math.abs(randInt) % flagConfig.numclusters();
+    // Partial Fisher-Yates shuffle, so that centroids start from distinct vectors where possible.
+    int[] order = new int[objectVectors.length];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = i;
     }
+    for (int i = 0; i < numClusters; ++i) {
+      int j = i % order.length;
+      int swap = j + random.nextInt(order.length - j);
+      int tmp = order[j];
+      order[j] = order[swap];
+      order[swap] = tmp;
+      clusters.centroids[i] = objectVectors[order[j]].getVector().copy();
+    }
+    Arrays.fill(clusters.clusterMappings, -1);
 
     logger.info("Iterating k-means assignment ...");
 
-    // Loop that computes centroids and reassigns members.
-    while (true) {
-      // Clear centroid register.
-      for (int i = 0; i < clusters.centroids.length; ++i) {
-        clusters.centroids[i] = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension()); 
-      }
-      // Generate new cluster centroids.
-      for (int i = 0; i < objectVectors.length; ++i) {
-        clusters.centroids[clusters.clusterMappings[i]].superpose(objectVectors[i].getVector(), 1, null);
-      }
-      for (int i = 0; i < flagConfig.numclusters(); ++i) {
-        clusters.centroids[i].normalize();
-      }
-
+    int[] clusterSizes = new int[numClusters];
+    for (int iteration = 0; iteration < maxIterations; ++iteration) {
       boolean changeFlag = false;
       // Map items to clusters.
       for (int i = 0; i < objectVectors.length; i++) {
@@ -126,11 +145,29 @@ public class ClusterResults {
         }
       }
       if (changeFlag == false) {
-        break;
+        logger.info("Got to stable clusters ...");
+        return clusters;
+      }
+
+      // Clear centroid register.
+      Arrays.fill(clusterSizes, 0);
+      for (int i = 0; i < clusters.centroids.length; ++i) {
+        clusters.centroids[i] = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension());
+      }
+      // Generate new cluster centroids.
+      for (int i = 0; i < objectVectors.length; ++i) {
+        clusters.centroids[clusters.clusterMappings[i]].superpose(objectVectors[i].getVector(), 1, null);
+        ++clusterSizes[clusters.clusterMappings[i]];
+      }
+      for (int i = 0; i < numClusters; ++i) {
+        if (clusterSizes[i] == 0) {
+          clusters.centroids[i] = objectVectors[random.nextInt(objectVectors.length)].getVector().copy();
+        }
+        clusters.centroids[i].normalize();
       }
     }
 
-    logger.info("Got to stable clusters ...");
+    logger.warning("Clusters still changing after " + maxIterations + " iterations, stopping.");
     return clusters;
   }
 
@@ -0,0 +1,70 @@
+package pitt.search.semanticvectors;
+
+import org.apache.lucene.store.IndexInput;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * A {@link PackedVectorStore} of lossily compressed vectors, written by {@link VectorStoreQuantizer} from
+ * a {@link VectorStoreReaderLucene} file. Scores are approximate, so
+ * {@link VectorSearcher.VectorSearcherCompressed} re-ranks the best of them with the full precision
+ * vectors, which {@link #readSourceVector} reads back from the source file without searching for them.
+ */
+public interface CompressedVectorStore extends PackedVectorStore {
+
+	/**
+	 * Returns the full precision vector of the given object, read from the Lucene vector file this
+	 * store was compressed from, or {@code null} if the object is not in this store or its position in
+	 * the source file is unknown.
+	 *
+	 * @throws IOException if the source file does not have the object at the recorded position
+	 */
+	ObjectVector readSourceVector(VectorStoreReaderLucene source, Object object) throws IOException;
+
+	/**
+	 * Returns a new compressed store, read from a file written by {@link VectorStoreQuantizer}.
+	 * <p>
+	 * Dimension and vector type from store on disk overwrite any previous values in flagConfig.
+	 */
+	static CompressedVectorStore readFromFile(FlagConfig flagConfig, String vectorFile) throws IOException {
+		if (vectorFile.isEmpty()) {
+			throw new IllegalArgumentException("vectorFile argument cannot be empty.");
+		}
+		int magic;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(vectorFile))) {
+			magic = in.readInt();
+		}
+		switch (magic) {
+			case VectorStoreQuantizedReal.MAGIC:
+				return VectorStoreQuantizedReal.readFromFile(flagConfig, vectorFile);
+			case VectorStoreProductQuantized.MAGIC:
+				return VectorStoreProductQuantized.readFromFile(flagConfig, vectorFile);
+			default:
+				throw new IOException("Not a compressed vector store file: " + vectorFile);
+		}
+	}
+
+	/**
+	 * Reads the {@link VectorType#REAL} vector of the given object at {@code position} in the source file.
+	 *
+	 * @throws IOException if the source file has another object at this position
+	 */
+	static ObjectVector readSourceVector(VectorStoreReaderLucene source, long position, Object object, int dimension)
+			throws IOException {
+		IndexInput indexInput = source.getIndexInput();
+		indexInput.seek(position);
+		String sourceObject = indexInput.readString();
+		if (!sourceObject.equals(object.toString())) {
+			throw new IOException("Vector file " + source.getVectorFile() + " has '" + sourceObject
+					+ "' instead of '" + object + "', it changed since it was compressed.");
+		}
+		Vector vector = VectorFactory.createZeroVector(VectorType.REAL, dimension);
+		vector.readFromLuceneStream(indexInput);
+		return new ObjectVector(object, vector);
+	}
+}
@@ -0,0 +1,228 @@
+package pitt.search.semanticvectors;
+
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The search space of dual- and triple-predicate searches: the vectors of a store, followed by the products of each
+ * pair of them and, if triples are expanded, of each triple.
+ * <p>
+ * The products are not stored but made while the store is enumerated, and each product vector is only computed when
+ * a candidate is scored, so memory stays that of the underlying vectors however large the space is. Parallel
+ * searches ({@link FlagConfig#parallelsearch()}) compute the products on their workers. The product of the pair
+ * {@code a:b} is the vector of {@code b} released by that of {@code a}, and the product of the triple {@code a:b:c}
+ * is the vector of {@code a} released by that of {@code b} and then by that of {@code c}. Pairs and triples are
+ * taken in the order of the store, and for complex vectors in both directions.
+ */
+public class ExpandedVectorStore implements VectorStore {
+
+	private final List<ObjectVector> storeVectors = new ArrayList<>();
+	private final Map<String, Integer> indexes = new HashMap<>();
+	private final boolean bothDirections;
+	private final boolean expandTriples;
+
+	/**
+	 * @param expandTriples whether triples are expanded as well as pairs
+	 */
+	public ExpandedVectorStore(VectorStore searchVecStore, FlagConfig flagConfig, boolean expandTriples) {
+		Enumeration<ObjectVector> allVectors = searchVecStore.getAllVectors();
+		while (allVectors.hasMoreElements()) {
+			ObjectVector objectVector = allVectors.nextElement();
+			String object = objectVector.getObject().toString();
+			// Products of an object with itself are skipped, so repeated objects are only expanded once
+			if (indexes.putIfAbsent(object, storeVectors.size()) == null)
+				storeVectors.add(objectVector);
+		}
+		this.bothDirections = flagConfig.vectortype().equals(VectorType.COMPLEX);
+		this.expandTriples = expandTriples;
+	}
+
+	private Vector getPairVector(int a, int b) {
+		Vector vector = storeVectors.get(b).getVector().copy();
+		vector.release(storeVectors.get(a).getVector().copy());
+		return vector;
+	}
+
+	private Vector getTripleVector(int a, int b, int c) {
+		Vector vector = storeVectors.get(a).getVector().copy();
+		vector.release(storeVectors.get(b).getVector().copy());
+		vector.release(storeVectors.get(c).getVector().copy());
+		return vector;
+	}
+
+	private String getObject(int index) {
+		return storeVectors.get(index).getObject().toString();
+	}
+
+	/**
+	 * Returns the vector of an object of the store, or of a pair or triple of them joined by ":". Objects may contain
+	 * ":" themselves, so each way of splitting the name into objects of the store is tried.
+	 */
+	@Override
+	public Vector getVector(Object object) {
+		String name = object.toString();
+		Integer index = indexes.get(name);
+		if (index != null)
+			return storeVectors.get(index).getVector();
+		for (int i = name.indexOf(':'); i >= 0; i = name.indexOf(':', i + 1)) {
+			Integer a = indexes.get(name.substring(0, i));
+			if (a == null)
+				continue;
+			String rest = name.substring(i + 1);
+			Integer b = indexes.get(rest);
+			if (b != null && (b < a || (bothDirections && a < b)))
+				return getPairVector(a, b);
+			if (!expandTriples)
+				continue;
+			for (int j = rest.indexOf(':'); j >= 0; j = rest.indexOf(':', j + 1)) {
+				b = indexes.get(rest.substring(0, j));
+				Integer c = indexes.get(rest.substring(j + 1));
+				if (b != null && c != null && ((a < b && b < c) || (bothDirections && a > b && b > c)))
+					return getTripleVector(a, b, c);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean containsVector(Object object) {
+		return getVector(object) != null;
+	}
+
+	/**
+	 * Returns the vectors of the store, then the pairs and the triples. Their vectors are computed by the first call
+	 * to {@link ObjectVector#getVector()}.
+	 */
+	@Override
+	public Enumeration<ObjectVector> getAllVectors() {
+		return new ExpandedEnumeration();
+	}
+
+	/**
+	 * Returns the size of the expanded space, or {@link Integer#MAX_VALUE} if it is larger.
+	 */
+	@Override
+	public int getNumVectors() {
+		long n = storeVectors.size();
+		long directions = bothDirections ? 2 : 1;
+		long size = n + directions * n * (n - 1) / 2;
+		if (expandTriples)
+			size += directions * n * (n - 1) * (n - 2) / 6;
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * A pair or triple whose vector is computed when it is first needed.
+	 */
+	private class ProductObjectVector extends ObjectVector {
+		private final int a, b, c;
+		private volatile Vector vector;
+
+		/**
+		 * @param c the third object of a triple, or -1 for a pair
+		 */
+		ProductObjectVector(String object, int a, int b, int c) {
+			super(object, null);
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+
+		@Override
+		public Vector getVector() {
+			Vector result = vector;
+			if (result == null) {
+				result = c < 0 ? getPairVector(a, b) : getTripleVector(a, b, c);
+				vector = result;
+			}
+			return result;
+		}
+
+		@Override
+		public void setVector(Vector newVector) {
+			this.vector = newVector;
+		}
+	}
+
+	/**
+	 * Walks the store, then the pairs x < y and the triples x < y < z, each followed by its reverse if both
+	 * directions are expanded.
+	 */
+	private class ExpandedEnumeration implements Enumeration<ObjectVector> {
+		private final int n = storeVectors.size();
+		// The number of objects in the current candidates, 1 for those of the store
+		private int arity = 1;
+		private int x = 0, y = 1, z = 2;
+		private boolean reverse = false;
+
+		ExpandedEnumeration() {
+			skipExhausted();
+		}
+
+		/**
+		 * Moves on to the next arity while the current one has no candidates left.
+		 */
+		private void skipExhausted() {
+			while (arity <= (expandTriples ? 3 : 2) && x > n - arity) {
+				arity++;
+				x = 0;
+				y = 1;
+				z = 2;
+			}
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return arity <= (expandTriples ? 3 : 2);
+		}
+
+		@Override
+		public ObjectVector nextElement() {
+			if (!hasMoreElements())
+				throw new NoSuchElementException();
+			ObjectVector next;
+			if (arity == 1) {
+				next = storeVectors.get(x++);
+			} else if (arity == 2) {
+				next = reverse
+						? new ProductObjectVector(getObject(x) + ":" + getObject(y), x, y, -1)
+						: new ProductObjectVector(getObject(y) + ":" + getObject(x), y, x, -1);
+				advance();
+			} else {
+				next = reverse
+						? new ProductObjectVector(getObject(z) + ":" + getObject(y) + ":" + getObject(x), z, y, x)
+						: new ProductObjectVector(getObject(x) + ":" + getObject(y) + ":" + getObject(z), x, y, z);
+				advance();
+			}
+			skipExhausted();
+			return next;
+		}
+
+		/**
+		 * Steps to the next pair or triple, in the order of the loops x < y (< z).
+		 */
+		private void advance() {
+			if (bothDirections && !reverse) {
+				reverse = true;
+				return;
+			}
+			reverse = false;
+			if (arity == 3 && ++z < n)
+				return;
+			if (++y < n - (arity - 2)) {
+				z = y + 1;
+				return;
+			}
+			x++;
+			y = x + 1;
+			z = y + 1;
+		}
+	}
+}
@@ -40,10 +40,12 @@ import pitt.search.semanticvectors.CompoundVectorBuilder.VectorLookupSyntax;
 import pitt.search.semanticvectors.DocVectors.DocIndexingStrategy;
 import pitt.search.semanticvectors.ElementalVectorStore.ElementalGenerationMethod;
 import pitt.search.semanticvectors.LuceneUtils.TermWeight;
+import pitt.search.semanticvectors.Search.AnnIndex;
 import pitt.search.semanticvectors.Search.SearchType;
 import pitt.search.semanticvectors.TermTermVectorsFromLucene.EncodingMethod;
 import pitt.search.semanticvectors.TermTermVectorsFromLucene.PositionalMethod;
 import pitt.search.semanticvectors.VectorStoreUtils.VectorStoreFormat;
+import pitt.search.semanticvectors.lsh.LocalitySensitiveHash;
 import pitt.search.semanticvectors.utils.VerbatimLogger;
 import pitt.search.semanticvectors.vectors.RealVector;
 import pitt.search.semanticvectors.vectors.RealVector.RealBindMethod;
@@ -108,6 +110,31 @@ public class FlagConfig {
 		return lsh_max_bits_diff;
 	}
 
+	// Number of independent Locality-Sensitive hash tables, whose candidates are merged
+	private int lsh_tables = 1;
+	public int lsh_tables() {
+		return lsh_tables;
+	}
+
+	// Seed of the random vectors for Locality-Sensitive hashing, so that builds of the same store are identical
+	private int lsh_seed = 0;
+	public int lsh_seed() {
+		return lsh_seed;
+	}
+
+	// Memory budget in MB of the Locality-Sensitive hash stores kept open, the least recently used of which are closed
+	private int lsh_cache_mb = 1024;
+	public int lsh_cache_mb() {
+		return lsh_cache_mb;
+	}
+
+	// Build missing Locality-Sensitive hash stores before searching instead of scanning while they are built in the background.
+	// Single searches of Search always do.
+	private boolean lsh_blocking_build = false;
+	public boolean lsh_blocking_build() {
+		return lsh_blocking_build;
+	}
+
 
 	// Add new command line flags here. By convention, please use lower case.
 
@@ -235,6 +262,88 @@ public class FlagConfig {
 		return numthreads;
 	}
 
+	private boolean parallelsearch = false;
+
+	/**
+	 * If {@code true}, {@link VectorSearcher} scores candidates on {@link #numthreads()} worker threads
+	 * and merges the top results of each thread, default value {@code false}.
+	 */
+	public boolean parallelsearch() {
+		return parallelsearch;
+	}
+
+	private boolean packsearchvectors = false;
+
+	/**
+	 * If {@code true}, {@link VectorType#REAL}, {@link VectorType#BINARY} and {@link VectorType#COMPLEX} search
+	 * vectors are loaded into a {@link PackedVectorStore} before searching, default value {@code false}.
+	 * Only used by {@link SearchBatch} and {@link SearchSession}: a single {@link Search#runSearch} does not pack,
+	 * as packing reads the whole store once more than the search itself.
+	 */
+	public boolean packsearchvectors() {
+		return packsearchvectors;
+	}
+
+	private String quantizedvectorfile = "";
+
+	/**
+	 * File written by {@link VectorStoreQuantizer} to search instead of {@link #searchvectorfile()}, which is
+	 * then only read to re-rank the best {@link #rerankcandidates()} results, default value empty.
+	 */
+	public String quantizedvectorfile() {
+		return quantizedvectorfile;
+	}
+
+	private int pq_subspaces = 0;
+
+	/**
+	 * Number of sub-spaces, and so of bytes per vector, of the product quantized stores written by
+	 * {@link VectorStoreQuantizer}, at most {@link #dimension()}. Default value 0 writes one byte per
+	 * coordinate with {@link VectorStoreQuantizedReal} instead.
+	 */
+	public int pq_subspaces() {
+		return pq_subspaces;
+	}
+
+	private int rerankcandidates = 100;
+
+	/**
+	 * Number of best results of a search of compressed vectors that are scored again with the full
+	 * precision vectors, at least the number of results, default value 100. Set to 0 to skip re-ranking.
+	 */
+	public int rerankcandidates() {
+		return rerankcandidates;
+	}
+
+	private int thresholdspilllimit = 100000;
+
+	/**
+	 * Number of results of a sorted threshold search kept in memory, beyond which they are spilled to temporary
+	 * files, default value 100000. See {@link VectorSearcher#getAllAboveThresholdSorted}.
+	 */
+	public int thresholdspilllimit() {
+		return thresholdspilllimit;
+	}
+
+	private int resultcachesize = 0;
+
+	/**
+	 * Number of result lists of repeated searches kept by {@link SearchResultCache}, default value 0, which
+	 * disables the cache.
+	 */
+	public int resultcachesize() {
+		return resultcachesize;
+	}
+
+	private int resultcachemb = 64;
+
+	/**
+	 * Memory budget in MB of the result lists kept by {@link SearchResultCache}, default value 64.
+	 */
+	public int resultcachemb() {
+		return resultcachemb;
+	}
+
 	public int negsamples = 5;
 
 	/**
@@ -419,6 +528,74 @@ public class FlagConfig {
 		return searchtype;
 	}
 
+	private AnnIndex annindex = AnnIndex.NONE;
+
+	/**
+	 * Approximate nearest-neighbour index used by {@link SearchType#SUM} searches of vector stores in
+	 * Lucene format, default value {@link AnnIndex#NONE}.
+	 */
+	public AnnIndex annindex() {
+		return annindex;
+	}
+
+	private int hnsw_m = 16;
+
+	/**
+	 * Maximum number of neighbours of each node on the upper layers of an HNSW index, twice that on the
+	 * bottom layer, default value 16.
+	 */
+	public int hnsw_m() {
+		return hnsw_m;
+	}
+
+	private int hnsw_efconstruction = 200;
+
+	/**
+	 * Number of candidates considered when adding a vector to an HNSW index, default value 200.
+	 */
+	public int hnsw_efconstruction() {
+		return hnsw_efconstruction;
+	}
+
+	private int hnsw_efsearch = 64;
+
+	/**
+	 * Number of candidates kept while searching an HNSW index, at least the number of results,
+	 * default value 64.
+	 */
+	public int hnsw_efsearch() {
+		return hnsw_efsearch;
+	}
+
+	private int ivf_cells = 256;
+
+	/**
+	 * Number of k-means cells the search vectors are partitioned into by an IVF index, default value 256.
+	 */
+	public int ivf_cells() {
+		return ivf_cells;
+	}
+
+	private int ivf_nprobe = 8;
+
+	/**
+	 * Number of cells of an IVF index scanned per query, those whose centroids are most similar to the
+	 * query, default value 8.
+	 */
+	public int ivf_nprobe() {
+		return ivf_nprobe;
+	}
+
+	private int mih_substrings = 0;
+
+	/**
+	 * Number of substrings each binary vector is split into by a multi-index hashing index, default value 0, which
+	 * chooses about one bit per substring for each doubling of the number of search vectors.
+	 */
+	public int mih_substrings() {
+		return mih_substrings;
+	}
+
 	private boolean fieldweight = false;
 
 	/**
@@ -459,7 +636,7 @@ public class FlagConfig {
 
 	/**
 	 * Generate bound products from each pairwise element of the search space, default false.
-	 * Expands the size of the space to n-squared.
+	 * Expands the size of the space to n-squared, generating the products during the search, see {@link ExpandedVectorStore}.
 	 */
 	public boolean expandsearchspace() {
 		return expandsearchspace;
@@ -470,7 +647,7 @@ public class FlagConfig {
 
 	/**
 	 * Generate bound products from combinations of three elements of the search space, default false.
-	 * Expands the size of the space to n-cubed.
+	 * Expands the size of the space to n-cubed, generating the products during the search, see {@link ExpandedVectorStore}.
 	 */
 	public boolean expandsearchspace3() {
 		return expandsearchspace3;
@@ -1050,10 +1227,40 @@ public class FlagConfig {
 
 		if (lsh_max_bits_diff > lsh_hashes_num)
 			throw new RuntimeException("Invalid configuration. 'lsh_max_bits_diff' must be less than 'lsh_hashes_num'!");
-		if (lsh_hashes_num > 15)
-			throw new RuntimeException("Invalid configuration. 'lsh_hashes_num' must be less than 15!");
+		if (lsh_hashes_num > LocalitySensitiveHash.MAX_NUM_HASHES)
+			throw new RuntimeException("Invalid configuration. 'lsh_hashes_num' must be at most " + LocalitySensitiveHash.MAX_NUM_HASHES + "!");
+		if (lsh_tables < 1)
+			throw new RuntimeException("Invalid configuration. 'lsh_tables' must be positive!");
+		if (lsh_cache_mb < 0)
+			throw new RuntimeException("Invalid configuration. 'lsh_cache_mb' must not be negative!");
 		if (lsh_hashes_num < 0 || lsh_max_bits_diff < 0)
 			throw new RuntimeException("Invalid configuration. 'lsh_max_bits_diff' and 'lsh_hashes_num' must be positive!");
+		// Equal flags scan the whole store without looking up hashes
+		if (lsh_max_bits_diff < lsh_hashes_num
+				&& LocalitySensitiveHash.countSimilarHashes(lsh_hashes_num, lsh_max_bits_diff) > LocalitySensitiveHash.MAX_SIMILAR_HASHES)
+			throw new RuntimeException("Invalid configuration. 'lsh_max_bits_diff' " + lsh_max_bits_diff + " of 'lsh_hashes_num' "
+					+ lsh_hashes_num + " looks up more than " + LocalitySensitiveHash.MAX_SIMILAR_HASHES
+					+ " hashes per table: the sum of C(lsh_hashes_num, k) for k up to lsh_max_bits_diff must be at most that!");
+		if (hnsw_m < 2)
+			throw new RuntimeException("Invalid configuration. 'hnsw_m' must be at least 2!");
+		if (hnsw_efconstruction < 1 || hnsw_efsearch < 1)
+			throw new RuntimeException("Invalid configuration. 'hnsw_efconstruction' and 'hnsw_efsearch' must be positive!");
+		if (ivf_cells < 1 || ivf_cells > Short.MAX_VALUE)
+			throw new RuntimeException("Invalid configuration. 'ivf_cells' must be between 1 and " + Short.MAX_VALUE + "!");
+		if (ivf_nprobe < 1)
+			throw new RuntimeException("Invalid configuration. 'ivf_nprobe' must be positive!");
+		if (resultcachesize < 0 || resultcachemb < 0)
+			throw new RuntimeException("Invalid configuration. 'resultcachesize' and 'resultcachemb' must not be negative!");
+		if (thresholdspilllimit < 1)
+			throw new RuntimeException("Invalid configuration. 'thresholdspilllimit' must be positive!");
+		if (mih_substrings < 0)
+			throw new RuntimeException("Invalid configuration. 'mih_substrings' must not be negative!");
+		if (annindex == AnnIndex.MIH && vectortype != VectorType.BINARY)
+			throw new RuntimeException("Invalid configuration. 'annindex mih' needs 'vectortype binary'!");
+		if (pq_subspaces < 0)
+			throw new RuntimeException("Invalid configuration. 'pq_subspaces' must not be negative!");
+		if (rerankcandidates < 0)
+			throw new RuntimeException("Invalid configuration. 'rerankcandidates' must not be negative!");
 	}
 
 	//utility method to allow control of this option without
@@ -0,0 +1,53 @@
+package pitt.search.semanticvectors;
+
+import pitt.search.semanticvectors.vectors.Vector;
+
+/**
+ * An immutable in-memory vector store that keeps its vectors packed in primitive arrays, indexed by
+ * row, so that {@link VectorSearcher} can score all rows against a query without creating a
+ * {@link Vector} per candidate.
+ */
+public interface PackedVectorStore extends CloseableVectorStore {
+
+	/**
+	 * Scores rows of a packed store against one query.
+	 */
+	interface RowScorer {
+		/** Returns the same value as {@code query.measureOverlap(vector)} for the vector at {@code row}. */
+		double score(int row);
+	}
+
+	/**
+	 * Returns a scorer for the given query, or {@code null} if the query cannot be compared with the
+	 * vectors of this store. The scorer reads the query as it is now and is safe to share between threads.
+	 */
+	RowScorer getScorer(Vector query);
+
+	/** Returns the object stored at {@code row}, which is between 0 and {@link #getNumVectors()}. */
+	Object getObject(int row);
+
+	/** Returns a copy of the vector stored at {@code row}, along with its object. */
+	ObjectVector getObjectVector(int row);
+
+	/** Nothing to release, packed stores only hold memory. */
+	@Override
+	default void close() {
+	}
+
+	/**
+	 * Packs the vectors of the given store if there is a packed store for {@link FlagConfig#vectortype()},
+	 * returns {@code null} otherwise.
+	 */
+	static PackedVectorStore createFromVectorStore(VectorStore source, FlagConfig flagConfig) {
+		switch (flagConfig.vectortype()) {
+			case REAL:
+				return VectorStorePackedReal.createFromVectorStore(source, flagConfig);
+			case BINARY:
+				return VectorStorePackedBinary.createFromVectorStore(source, flagConfig);
+			case COMPLEX:
+				return VectorStorePackedComplex.createFromVectorStore(source, flagConfig);
+			default:
+				return null;
+		}
+	}
+}
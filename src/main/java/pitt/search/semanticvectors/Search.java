@@ -35,13 +35,9 @@
 
 package pitt.search.semanticvectors;
 
-import pitt.search.semanticvectors.ElementalVectorStore.ElementalGenerationMethod;
 import pitt.search.semanticvectors.utils.PsiUtils;
 import pitt.search.semanticvectors.utils.VerbatimLogger;
-import pitt.search.semanticvectors.vectors.BinaryVector;
 import pitt.search.semanticvectors.vectors.Vector;
-import pitt.search.semanticvectors.vectors.VectorType;
-import pitt.search.semanticvectors.vectors.ZeroVectorException;
 import pitt.search.semanticvectors.viz.PathFinder;
 
 import java.io.IOException;
@@ -185,7 +181,35 @@ public class Search {
 		PROXIMITY
 	}
 
-	private static LuceneUtils luceneUtils;
+	/**
+	 * Approximate nearest-neighbour indexes that {@link SearchType#SUM} searches can use instead of
+	 * scoring every search vector, set using {@link FlagConfig#annindex()}.
+	 */
+	public enum AnnIndex {
+		/**
+		 * Score every vector of the search store, or use LSH if {@link FlagConfig#lsh_hashes_num()} is set or the store
+		 * was tuned by {@link pitt.search.semanticvectors.lsh.LSHTuner}.
+		 */
+		NONE,
+
+		/**
+		 * Hierarchical navigable small-world graph, see {@link pitt.search.semanticvectors.hnsw.HnswIndex}.
+		 * Uses {@link VectorSearcher.VectorSearcherHnsw}.
+		 */
+		HNSW,
+
+		/**
+		 * Inverted file of k-means cells, see {@link pitt.search.semanticvectors.ivf.IvfStore}.
+		 * Uses {@link VectorSearcher.VectorSearcherIvf}.
+		 */
+		IVF,
+
+		/**
+		 * Exact Hamming search of binary vectors by multi-index hashing, see
+		 * {@link pitt.search.semanticvectors.mih.MihIndex}. Uses {@link VectorSearcher.VectorSearcherMih}.
+		 */
+		MIH
+	}
 
 	public static String usageMessage = "\nSearch class in package pitt.search.semanticvectors"
 			+ "\nUsage: java pitt.search.semanticvectors.Search [-queryvectorfile query_vector_file]"
@@ -229,232 +253,17 @@ public class Search {
 			throw new IllegalArgumentException("No query terms left after flag parsing!");
 		}
 
-		String[] queryArgs = flagConfig.remainingArgs;
-
-		/** Principal vector store for finding query vectors. */
-		CloseableVectorStore queryVecReader = null;
-		/** Auxiliary vector store used when searching for boundproducts. Used only in some searchtypes. */
-		CloseableVectorStore boundVecReader = null;
-
-		/** Auxiliary vector stores used when searching for boundproducts. Used only in some searchtypes. */
-		CloseableVectorStore elementalVecReader = null, semanticVecReader = null, predicateVecReader = null;
-
-		/**
-		 * Vector store for searching. Defaults to being the same as queryVecReader.
-		 * May be different from queryVecReader, e.g., when using terms to search for documents.
-		 */
-		CloseableVectorStore searchVecReader = null;
-
-		/**
-		 * Store of permutations
-		 */
-
-		VectorStoreRAM permutationCache = null;
-
 		// Stage ii. Open vector stores, and Lucene utils.
-		try {
-
-
-			if (!flagConfig.permutationcachefile().equals("permutationvectors") && flagConfig.searchtype().equals(SearchType.PERMUTATION)) {
-				VerbatimLogger.info("Opening permutation cache from file " + flagConfig.permutationcachefile() + "\n");
-				VectorType typeA = flagConfig.vectortype();
-				flagConfig.setVectortype(VectorType.PERMUTATION);
-				permutationCache = new VectorStoreRAM(flagConfig);
-				permutationCache.initFromFile(flagConfig.permutationcachefile());
-				flagConfig.setVectortype(typeA);
-			}
-
-			// Default VectorStore implementation is (Lucene) VectorStoreReader.
-			if (!flagConfig.elementalvectorfile().equals("elementalvectors") && !flagConfig.semanticvectorfile().equals("semanticvectors") && !flagConfig.elementalpredicatevectorfile().equals("predicatevectors")) {
-				//for PSI search
-
-				VerbatimLogger.info("Opening query vector store from file: " + flagConfig.queryvectorfile() + "\n");
-				if (flagConfig.elementalvectorfile().equals("deterministic")) {
-					if (flagConfig.elementalmethod().equals(ElementalGenerationMethod.ORTHOGRAPHIC))
-						elementalVecReader = new VectorStoreOrthographical(flagConfig);
-					else if (flagConfig.elementalmethod().equals(ElementalGenerationMethod.CONTENTHASH))
-						elementalVecReader = new VectorStoreDeterministic(flagConfig);
-					else
-						VerbatimLogger.info("Please select either -elementalmethod orthographic OR -elementalmethod contenthash depending upon the deterministic approach you would like used.");
-				} else
-					elementalVecReader = VectorStoreReader.openVectorStore(flagConfig.elementalvectorfile(), flagConfig);
-
-				VerbatimLogger.info("Opening elemental query vector store from file: " + flagConfig.elementalvectorfile() + "\n");
-				VerbatimLogger.info("Opening semantic query vector store from file: " + flagConfig.semanticvectorfile() + "\n");
-				VerbatimLogger.info("Opening predicate query vector store from file: " + flagConfig.elementalpredicatevectorfile() + "\n");
-
-				semanticVecReader = VectorStoreReader.openVectorStore(flagConfig.semanticvectorfile(), flagConfig);
-				predicateVecReader = VectorStoreReader.openVectorStore(flagConfig.elementalpredicatevectorfile(), flagConfig);
-			} else {
-				VerbatimLogger.info("Opening query vector store from file: " + flagConfig.queryvectorfile() + "\n");
-				if (flagConfig.queryvectorfile().equals("deterministic")) {
-					if (flagConfig.elementalmethod().equals(ElementalGenerationMethod.ORTHOGRAPHIC))
-						queryVecReader = new VectorStoreOrthographical(flagConfig);
-					else if (flagConfig.elementalmethod().equals(ElementalGenerationMethod.CONTENTHASH))
-						queryVecReader = new VectorStoreDeterministic(flagConfig);
-					else
-						VerbatimLogger.info("Please select either -elementalmethod orthographic OR -elementalmethod contenthash depending upon the deterministic approach you would like used.");
-				} else queryVecReader = VectorStoreReader.openVectorStore(flagConfig.queryvectorfile(), flagConfig);
-			}
-
-			if (flagConfig.boundvectorfile().length() > 0) {
-				VerbatimLogger.info("Opening second query vector store from file: " + flagConfig.boundvectorfile() + "\n");
-				boundVecReader = VectorStoreReader.openVectorStore(flagConfig.boundvectorfile(), flagConfig);
-			}
-
-			// Open second vector store if search vectors are different from query vectors.
-			if (flagConfig.queryvectorfile().equals(flagConfig.searchvectorfile())
-					|| flagConfig.searchvectorfile().isEmpty()) {
-				searchVecReader = queryVecReader;
-			} else {
-				VerbatimLogger.info("Opening search vector store from file: " + flagConfig.searchvectorfile() + "\n");
-				searchVecReader = VectorStoreReader.openVectorStore(flagConfig.searchvectorfile(), flagConfig);
-			}
-
-			if (!flagConfig.luceneindexpath().isEmpty()) {
-				try {
-					luceneUtils = new LuceneUtils(flagConfig);
-				} catch (IOException e) {
-					logger.warning("Couldn't open Lucene index at " + flagConfig.luceneindexpath()
-							+ ". Will continue without term weighting.");
-				}
-			}
+		// Stage iii. Based on search type, build query vector and perform search.
+		LinkedList<SearchResult> results;
+		try (SearchSession session = new SearchSession(flagConfig, true)) {
+			results = session.search(flagConfig.searchtype(), flagConfig.numsearchresults(), boostedTerms,
+					flagConfig.remainingArgs);
 		} catch (IOException e) {
 			e.printStackTrace();
-		}
-
-		// This takes the slice of args from argc to end.
-		if (!flagConfig.matchcase()) {
-			for (int i = 0; i < queryArgs.length; ++i) {
-				queryArgs[i] = queryArgs[i].toLowerCase();
-			}
-		}
-
-		// Stage iii. Perform search according to which searchType was selected.
-		// Most options have corresponding dedicated VectorSearcher subclasses.
-		VectorSearcher vecSearcher;
-		LinkedList<SearchResult> results;
-		VerbatimLogger.info("Searching term vectors, searchtype " + flagConfig.searchtype() + "\n");
-
-		try {
-			switch (flagConfig.searchtype()) {
-				case SUM:
-					// If there aren't boosted terms we just process empty map
-					if (boostedTerms != null && !boostedTerms.isEmpty()) {
-						Instant start = Instant.now();
-						Vector qv = CompoundVectorBuilder.getQueryVector(queryVecReader, luceneUtils, flagConfig, queryArgs, (term) -> {
-							Float boostFactor = boostedTerms.get(term);
-							return boostFactor != null ? boostFactor : 1f;
-						});
-						logger.fine("Found vector in : " + Duration.between(start, Instant.now()).toMillis());
-						vecSearcher = new VectorSearcher.VectorSearcherCosine(
-								queryVecReader, searchVecReader, luceneUtils, flagConfig, qv);
-					} else
-						vecSearcher = new VectorSearcher.VectorSearcherCosine(
-								queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
-					break;
-				case SUBSPACE:
-					vecSearcher = new VectorSearcher.VectorSearcherSubspaceSim(
-							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
-					break;
-				case MAXSIM:
-					vecSearcher = new VectorSearcher.VectorSearcherMaxSim(
-							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
-					break;
-				case MINSIM:
-					vecSearcher = new VectorSearcher.VectorSearcherMinSim(
-							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
-					break;
-				case BOUNDPRODUCT:
-					if (queryArgs.length == 2) {
-						vecSearcher = new VectorSearcher.VectorSearcherBoundProduct(
-								queryVecReader, boundVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0], queryArgs[1]);
-					} else {
-						vecSearcher = new VectorSearcher.VectorSearcherBoundProduct(
-								elementalVecReader, semanticVecReader, predicateVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0]);
-					}
-					break;
-				case BOUNDPRODUCTSUBSPACE:
-					if (queryArgs.length == 2) {
-						vecSearcher = new VectorSearcher.VectorSearcherBoundProductSubSpace(
-								queryVecReader, boundVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0], queryArgs[1]);
-					} else {
-						vecSearcher = new VectorSearcher.VectorSearcherBoundProductSubSpace(
-								elementalVecReader, semanticVecReader, predicateVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0]);
-					}
-					break;
-				case INTERSECTION: {
-					vecSearcher = new VectorSearcher.VectorSearcherIntersection(
-							elementalVecReader, semanticVecReader, predicateVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0]);
-				}
-				break;
-				case BOUNDMINIMUM:
-					if (queryArgs.length == 2) {
-						vecSearcher = new VectorSearcher.VectorSearcherBoundMinimum(
-								queryVecReader, boundVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0], queryArgs[1]);
-					} else {
-						vecSearcher = new VectorSearcher.VectorSearcherBoundMinimum(
-								elementalVecReader, semanticVecReader, predicateVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0]);
-					}
-					break;
-				case PERMUTATION:
-					vecSearcher = new VectorSearcher.VectorSearcherPerm(
-							queryVecReader, searchVecReader, permutationCache, luceneUtils, flagConfig, queryArgs);
-					break;
-				case BALANCEDPERMUTATION:
-					vecSearcher = new VectorSearcher.BalancedVectorSearcherPerm(
-							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
-					break;
-				case ANALOGY:
-					vecSearcher = new VectorSearcher.AnalogySearcher(
-							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
-					break;
-				case PROXIMITY:
-					vecSearcher = new VectorSearcher.VectorSearcherProximity(
-							queryVecReader, searchVecReader, boundVecReader, luceneUtils, flagConfig, queryArgs);
-					break;
-				case LUCENE:
-					vecSearcher = new VectorSearcher.VectorSearcherLucene(
-							luceneUtils, flagConfig, queryArgs);
-					break;
-				case PRINTQUERY:
-					Vector queryVector = CompoundVectorBuilder.getQueryVector(
-							queryVecReader, luceneUtils, flagConfig, queryArgs);
-					System.out.println(queryVector.toString());
-					return new LinkedList<>();
-				case PRINTPSIQUERY:
-					Vector psiQueryVector = CompoundVectorBuilder.getBoundProductQueryVectorFromString(flagConfig, elementalVecReader, semanticVecReader, predicateVecReader, luceneUtils, queryArgs[0]);
-					if (flagConfig.vectortype().equals(VectorType.BINARY))
-						BinaryVector.setDebugPrintLength(flagConfig.dimension());
-					System.out.println(psiQueryVector.toString());
-					return new LinkedList<>();
-				default:
-					throw new IllegalArgumentException("Unknown search type: " + flagConfig.searchtype());
-			}
-		} catch (ZeroVectorException zve) {
-			logger.info(zve.getMessage());
 			return new LinkedList<>();
 		}
 
-		Instant start = Instant.now();
-		results = vecSearcher.getNearestNeighbors(flagConfig.numsearchresults());
-		logger.fine("Found nearest vector in: " + Duration.between(start, Instant.now()).toMillis());
-
-		// Optional: Release filesystem resources. Temporarily removed because of errors in
-		// ThreadSafetyTest.
-		//
-		// This was not the cleanest control flow anyway, since these are
-		// opened in runSearch but also needed in getSearchResultsVectors.
-		// Really there should be a global variable for indexformat (text
-		// or lucene), and general "openIndexes" and "closeIndexes" methods.
-
-		VectorStoreUtils.closeVectorStores(queryVecReader, searchVecReader, boundVecReader,
-										   elementalVecReader, semanticVecReader, predicateVecReader);
-		// Lucene directory should be closed as well
-		if (luceneUtils != null) {
-			luceneUtils.closeLuceneDir();
-		}
-
 		logger.fine("Finished the compete search in : " + Duration.between(startSearch, Instant.now()).toMillis());
 		return results;
 	}
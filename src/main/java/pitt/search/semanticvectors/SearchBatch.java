@@ -47,6 +47,7 @@ import pitt.search.semanticvectors.vectors.ZeroVectorException;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -211,6 +212,9 @@ public class SearchBatch {
      */
     VectorStore searchVecReader = null;
 
+    /** Full precision vectors for re-ranking searches of a {@link FlagConfig#quantizedvectorfile()}. */
+    VectorStore rerankVecReader = null;
+
     // Stage ii. Open vector stores, and Lucene utils.
     try {
       // Default VectorStore implementation is (Lucene) VectorStoreReader.
@@ -268,6 +272,22 @@ public class SearchBatch {
         ((VectorStoreRAM) searchVecReader).initFromFile(flagConfig.searchvectorfile());
       }
 
+      if (flagConfig.packsearchvectors() && searchVecReader != null) {
+        PackedVectorStore packedVecReader = PackedVectorStore.createFromVectorStore(searchVecReader, flagConfig);
+        if (packedVecReader == null) {
+          logger.warning("No packed vector store for vector type " + flagConfig.vectortype() + ", searching unpacked vectors.");
+        } else {
+          VerbatimLogger.info("Packed search vectors into memory\n");
+          searchVecReader = packedVecReader;
+        }
+      }
+
+      if (!flagConfig.quantizedvectorfile().isEmpty()) {
+        VerbatimLogger.info("Opening quantized search vector store from file: " + flagConfig.quantizedvectorfile() + "\n");
+        rerankVecReader = searchVecReader;
+        searchVecReader = CompressedVectorStore.readFromFile(flagConfig, flagConfig.quantizedvectorfile());
+      }
+
       if (!flagConfig.luceneindexpath().isEmpty()) {
         try {
           luceneUtils = new LuceneUtils(flagConfig);
@@ -284,6 +304,7 @@ public class SearchBatch {
       BufferedReader queryReader = new BufferedReader(new FileReader(new File(queryArgs[0])));
       String queryString = queryReader.readLine();
       int qcnt = 0;
+      List<PendingQuery> pendingQueries = new ArrayList<PendingQuery>();
       while (queryString != null) {
         ArrayList<String> queryTerms = new ArrayList<String>();
         qcnt++;
@@ -316,7 +337,6 @@ public class SearchBatch {
         // Stage iii. Perform search according to which searchType was selected.
         // Most options have corresponding dedicated VectorSearcher subclasses.
         VectorSearcher vecSearcher = null;
-        LinkedList<SearchResult> results;
         String[] splitArgs = null;
         boolean allTermsRepresented = true;
         VerbatimLogger.info("Searching term vectors, searchtype " + flagConfig.searchtype() + "\n");
@@ -324,8 +344,18 @@ public class SearchBatch {
         try {
           switch (flagConfig.searchtype()) {
             case SUM:
-              vecSearcher = new VectorSearcher.VectorSearcherCosine(
-                  queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+              if (rerankVecReader != null)
+                vecSearcher = new VectorSearcher.VectorSearcherCompressed(
+                    queryVecReader, searchVecReader, rerankVecReader, luceneUtils, flagConfig, queryArgs);
+              else if (flagConfig.annindex() == Search.AnnIndex.HNSW)
+                vecSearcher = new VectorSearcher.VectorSearcherHnsw(
+                    queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+              else if (flagConfig.annindex() == Search.AnnIndex.IVF)
+                vecSearcher = new VectorSearcher.VectorSearcherIvf(
+                    queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+              else
+                vecSearcher = new VectorSearcher.VectorSearcherCosine(
+                    queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
               break;
             case SUBSPACE:
               vecSearcher = new VectorSearcher.VectorSearcherSubspaceSim(
@@ -398,58 +428,15 @@ public class SearchBatch {
           logger.info(zve.getMessage());
         }
 
-        results = new LinkedList<SearchResult>();
-
-        try {
-          if (!allTermsRepresented) System.out.println("0: Missing term(s)");
-          else results = vecSearcher.getNearestNeighbors(flagConfig.numsearchresults());
-
-        } catch (Exception e) {
-          //no search results returned
+        pendingQueries.add(new PendingQuery(qcnt, splitArgs, allTermsRepresented, vecSearcher));
+        if (pendingQueries.size() == QUERY_BATCH_SIZE) {
+          searchAndPrint(pendingQueries, flagConfig);
+          pendingQueries.clear();
         }
 
-        int cnt = 0;
-        // Print out results.
-        if (results.size() > 0) {
-          VerbatimLogger.info("Search output follows ...\n");
-
-          for (SearchResult result : results) {
-
-            boolean printResult = true;
-
-            if (flagConfig.searchtype() == Search.SearchType.ANALOGY) //don't output cue terms
-            {
-              for (String searchTerm : splitArgs) {
-                if (result.getObjectVector().getObject().toString().equals(searchTerm))
-                  printResult = false;
-              }
-            }
-            if (printResult) {
-              if (flagConfig.treceval() != -1) //results in trec_eval format
-              {
-                System.out.println(
-                    String.format("%s\t%s\t%s\t%s\t%f\t%s",
-                        qcnt,
-                        "Q0",
-                        result.getObjectVector().getObject().toString(),
-                        ++cnt,
-                        result.getScore(),
-                        "DEFAULT")
-                );
-              } else System.out.println(  //results in cosine:object format
-                  String.format("%f:%s",
-                      result.getScore(),
-                      result.getObjectVector().getObject().toString()));
-
-              if (flagConfig.searchtype() == Search.SearchType.ANALOGY) {
-                break;
-              }
-            }
-
-          }
-        }
         queryString = queryReader.readLine();
       }
+      searchAndPrint(pendingQueries, flagConfig);
       queryReader.close();
     } catch (FileNotFoundException e1) {
       // TODO Auto-generated catch block
@@ -463,6 +450,105 @@ public class SearchBatch {
   }
 
 
+  /** Number of queries whose searches share a single pass over the search vector store. */
+  private static final int QUERY_BATCH_SIZE = 1000;
+
+  /** A query that has been parsed, waiting for its batch to be searched. */
+  private static class PendingQuery {
+    final int qcnt;
+    final String[] splitArgs;
+    final boolean allTermsRepresented;
+    final VectorSearcher vecSearcher;
+
+    PendingQuery(int qcnt, String[] splitArgs, boolean allTermsRepresented, VectorSearcher vecSearcher) {
+      this.qcnt = qcnt;
+      this.splitArgs = splitArgs;
+      this.allTermsRepresented = allTermsRepresented;
+      this.vecSearcher = vecSearcher;
+    }
+  }
+
+  /**
+   * Searches for a batch of queries with {@link VectorSearcher#getNearestNeighbors(List, int)}, so
+   * that the search vector store is read once per batch, and prints the results in query order.
+   */
+  private static void searchAndPrint(List<PendingQuery> pendingQueries, FlagConfig flagConfig) {
+    List<VectorSearcher> searchers = new ArrayList<VectorSearcher>();
+    for (PendingQuery query : pendingQueries) {
+      if (query.allTermsRepresented && query.vecSearcher != null) searchers.add(query.vecSearcher);
+    }
+
+    List<LinkedList<SearchResult>> batchResults = null;
+    try {
+      batchResults = VectorSearcher.getNearestNeighbors(searchers, flagConfig.numsearchresults());
+    } catch (Exception e) {
+      logger.warning("Batch search failed, searching queries one at a time: " + e.getMessage());
+    }
+
+    int searched = 0;
+    for (PendingQuery query : pendingQueries) {
+      LinkedList<SearchResult> results = new LinkedList<SearchResult>();
+
+      if (!query.allTermsRepresented) System.out.println("0: Missing term(s)");
+      else if (query.vecSearcher != null) {
+        if (batchResults != null) results = batchResults.get(searched);
+        else {
+          try {
+            results = query.vecSearcher.getNearestNeighbors(flagConfig.numsearchresults());
+          } catch (Exception e) {
+            //no search results returned
+          }
+        }
+        searched++;
+      }
+
+      if (results != null) printResults(query, results, flagConfig);
+    }
+  }
+
+  private static void printResults(PendingQuery query, LinkedList<SearchResult> results, FlagConfig flagConfig) {
+    int cnt = 0;
+    // Print out results.
+    if (results.size() > 0) {
+      VerbatimLogger.info("Search output follows ...\n");
+
+      for (SearchResult result : results) {
+
+        boolean printResult = true;
+
+        if (flagConfig.searchtype() == Search.SearchType.ANALOGY) //don't output cue terms
+        {
+          for (String searchTerm : query.splitArgs) {
+            if (result.getObjectVector().getObject().toString().equals(searchTerm))
+              printResult = false;
+          }
+        }
+        if (printResult) {
+          if (flagConfig.treceval() != -1) //results in trec_eval format
+          {
+            System.out.println(
+                String.format("%s\t%s\t%s\t%s\t%f\t%s",
+                    query.qcnt,
+                    "Q0",
+                    result.getObjectVector().getObject().toString(),
+                    ++cnt,
+                    result.getScore(),
+                    "DEFAULT")
+            );
+          } else System.out.println(  //results in cosine:object format
+              String.format("%f:%s",
+                  result.getScore(),
+                  result.getObjectVector().getObject().toString()));
+
+          if (flagConfig.searchtype() == Search.SearchType.ANALOGY) {
+            break;
+          }
+        }
+
+      }
+    }
+  }
+
   /**
    * Takes a user's query, creates a query vector, and searches a vector store.
    * @param args See {@link #usageMessage}
@@ -0,0 +1,244 @@
+package pitt.search.semanticvectors;
+
+import org.apache.lucene.store.RAMOutputStream;
+import pitt.search.semanticvectors.lsh.LSHTuner;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Caches the results of nearest neighbour searches, so that repeated queries do not scan the search store again.
+ * <p>
+ * Results are looked up by the bytes of the query vector, the vector store file and its modification time, the class
+ * of the searcher, the number of results and the flags which change how candidates are chosen, so a store which is
+ * rewritten is searched again. Only searchers whose score is the overlap with a single query vector (see
+ * {@link VectorSearcher#getOverlapQuery()}) searching a {@link VectorStoreReaderLucene} store are cached, other
+ * searches always run.
+ * <p>
+ * The cache keeps at most {@link FlagConfig#resultcachesize()} result lists taking about
+ * {@link FlagConfig#resultcachemb()} MB, dropping the least recently used first. It is disabled while
+ * {@link FlagConfig#resultcachesize()} is 0.
+ */
+public enum SearchResultCache {
+
+	INSTANCE;
+
+	private static final Logger logger = Logger.getLogger(SearchResultCache.class.getCanonicalName());
+
+	// Approximate heap size of an entry besides its query and results, and of a result besides its object and vector
+	private static final int ENTRY_BYTES = 200;
+	private static final int RESULT_BYTES = 80;
+
+	// In access order, so that the eldest entry is the least recently used
+	private final LinkedHashMap<Key, CachedResults> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long sizeInBytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Returns the nearest neighbours of the searcher's query, from the cache if it was searched before.
+	 */
+	public LinkedList<SearchResult> getNearestNeighbors(VectorSearcher searcher, int numResults) {
+		Key key = searcher.flagConfig.resultcachesize() > 0 ? getKey(searcher, numResults) : null;
+		if (key == null)
+			return searcher.getNearestNeighbors(numResults);
+
+		CachedResults cached;
+		synchronized (this) {
+			cached = entries.get(key);
+		}
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached.copy();
+		}
+
+		misses.incrementAndGet();
+		LinkedList<SearchResult> results = searcher.getNearestNeighbors(numResults);
+		if (results != null)
+			put(key, new CachedResults(results, key, searcher.flagConfig), searcher.flagConfig);
+		return results;
+	}
+
+	private synchronized void put(Key key, CachedResults results, FlagConfig flagConfig) {
+		long budgetBytes = flagConfig.resultcachemb() * (1L << 20);
+		if (results.sizeInBytes > budgetBytes)
+			return;
+		CachedResults replaced = entries.put(key, results);
+		if (replaced != null)
+			sizeInBytes -= replaced.sizeInBytes;
+		sizeInBytes += results.sizeInBytes;
+
+		Iterator<CachedResults> eldest = entries.values().iterator();
+		while (entries.size() > flagConfig.resultcachesize() || sizeInBytes > budgetBytes) {
+			sizeInBytes -= eldest.next().sizeInBytes;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Returns the key of the searcher's query, or null if its results cannot be cached.
+	 */
+	private static Key getKey(VectorSearcher searcher, int numResults) {
+		Vector query = searcher.getOverlapQuery();
+		if (query == null || !(searcher.searchVecStore instanceof VectorStoreReaderLucene))
+			return null;
+		File vectorFile = ((VectorStoreReaderLucene) searcher.searchVecStore).getVectorFile().getAbsoluteFile();
+		try {
+			return new Key(vectorFile.getPath(), vectorFile.lastModified(), vectorFile.length(),
+					searcher.getClass().getName(), numResults, getParameters(vectorFile, searcher.flagConfig), toBytes(query));
+		} catch (IOException e) {
+			logger.warning("Not caching results of a query which cannot be written: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the flags which change which candidates a search scores, or how, and the modification time and length of
+	 * the setting {@link LSHTuner} chose for the store, which searches use unless {@link FlagConfig#lsh_hashes_num()}
+	 * is set.
+	 */
+	private static String getParameters(File vectorFile, FlagConfig flagConfig) {
+		File tunedFile = LSHTuner.getTunedFile(vectorFile, flagConfig);
+		return flagConfig.annindex() + " " + flagConfig.lsh_hashes_num() + " " + flagConfig.lsh_max_bits_diff()
+				+ " " + flagConfig.lsh_tables() + " " + flagConfig.lsh_seed() + " " + tunedFile.lastModified()
+				+ " " + tunedFile.length() + " " + flagConfig.hnsw_m() + " " + flagConfig.hnsw_efconstruction()
+				+ " " + flagConfig.hnsw_efsearch() + " " + flagConfig.ivf_cells() + " " + flagConfig.ivf_nprobe()
+				+ " " + flagConfig.mih_substrings() + " " + flagConfig.usetermweightsintermsearch()
+				+ " " + flagConfig.luceneindexpath() + " " + flagConfig.searchresultsminscore() + " " + flagConfig.stdev();
+	}
+
+	private static byte[] toBytes(Vector vector) throws IOException {
+		try (RAMOutputStream output = new RAMOutputStream()) {
+			vector.writeToLuceneStream(output);
+			byte[] bytes = new byte[(int) output.getFilePointer()];
+			output.writeTo(bytes, 0);
+			return bytes;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the estimated size of the cached results, in bytes.
+	 */
+	public synchronized long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	/**
+	 * Drops all results and resets the hit and miss counts.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		sizeInBytes = 0;
+		hits.set(0);
+		misses.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "Search result cache: " + size() + " entries, " + getSizeInBytes() + " bytes, "
+				+ getHits() + " hits, " + getMisses() + " misses";
+	}
+
+	private static class CachedResults {
+		final double[] scores;
+		final ObjectVector[] objectVectors;
+		final long sizeInBytes;
+
+		CachedResults(List<SearchResult> results, Key key, FlagConfig flagConfig) {
+			scores = new double[results.size()];
+			objectVectors = new ObjectVector[results.size()];
+			long vectorBytes = VectorFactory.getLuceneByteSize(flagConfig.vectortype(), flagConfig.dimension());
+			long size = ENTRY_BYTES + key.query.length + 2L * key.fileName.length() + key.parameters.length();
+			int i = 0;
+			for (SearchResult result : results) {
+				scores[i] = result.getScore();
+				objectVectors[i] = copy(result.getObjectVector());
+				size += RESULT_BYTES + vectorBytes + 2L * objectVectors[i].getObject().toString().length();
+				i++;
+			}
+			sizeInBytes = size;
+		}
+
+		/**
+		 * Returns new results with copies of the vectors, so that callers may change them.
+		 */
+		LinkedList<SearchResult> copy() {
+			LinkedList<SearchResult> results = new LinkedList<>();
+			for (int i = 0; i < scores.length; i++) {
+				results.add(new SearchResult(scores[i], copy(objectVectors[i])));
+			}
+			return results;
+		}
+
+		private static ObjectVector copy(ObjectVector objectVector) {
+			return new ObjectVector(objectVector.getObject(), objectVector.getVector().copy());
+		}
+	}
+
+	private static class Key {
+		final String fileName;
+		final long lastModified;
+		final long length;
+		final String searcherClass;
+		final int numResults;
+		final String parameters;
+		final byte[] query;
+		final int hashCode;
+
+		Key(String fileName, long lastModified, long length, String searcherClass, int numResults, String parameters,
+				byte[] query) {
+			this.fileName = fileName;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.searcherClass = searcherClass;
+			this.numResults = numResults;
+			this.parameters = parameters;
+			this.query = query;
+			this.hashCode = Objects.hash(fileName, lastModified, length, searcherClass, numResults, parameters)
+					* 31 + Arrays.hashCode(query);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			Key key = (Key) o;
+			return lastModified == key.lastModified &&
+					length == key.length &&
+					numResults == key.numResults &&
+					hashCode == key.hashCode &&
+					Objects.equals(fileName, key.fileName) &&
+					Objects.equals(searcherClass, key.searcherClass) &&
+					Objects.equals(parameters, key.parameters) &&
+					Arrays.equals(query, key.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package pitt.search.semanticvectors;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Collects the best scoring candidates of a search in a min-heap kept in parallel primitive arrays,
+ * so that offering a candidate allocates nothing. {@link SearchResult} objects are only created for
+ * the winners, when {@link #drainSorted} is called.
+ * <p>
+ * A bounded heap keeps the {@code capacity} highest scores seen: once full, a candidate is accepted
+ * only if its score is strictly greater than the lowest kept score. An unbounded heap (see
+ * {@link #unbounded()}) accepts every candidate and only serves to sort them.
+ * <p>
+ * Candidates with equal scores are returned in the order they were offered. Instances are not
+ * thread-safe, but can be reused for another search after {@link #reset()} or {@link #drainSorted}.
+ */
+public class SearchResultHeap {
+
+	private static final int UNBOUNDED_INITIAL_CAPACITY = 1024;
+
+	private final boolean bounded;
+	private int capacity;
+	private int size;
+	private long offered;
+
+	// Heap order is by score, then by arrival, so the root is the lowest score offered last
+	private double[] scores;
+	private long[] arrivals;
+	private int[] slots;
+	// Indexed by slot, a slot is reused when its candidate is evicted
+	private ObjectVector[] candidates;
+
+	/**
+	 * Creates a heap that keeps the {@code capacity} best candidates.
+	 */
+	public SearchResultHeap(int capacity) {
+		this(capacity, true);
+	}
+
+	private SearchResultHeap(int capacity, boolean bounded) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+		}
+		this.bounded = bounded;
+		allocate(capacity);
+	}
+
+	/**
+	 * Creates a heap that keeps every candidate offered.
+	 */
+	public static SearchResultHeap unbounded() {
+		return new SearchResultHeap(UNBOUNDED_INITIAL_CAPACITY, false);
+	}
+
+	private void allocate(int newCapacity) {
+		capacity = newCapacity;
+		scores = new double[newCapacity];
+		arrivals = new long[newCapacity];
+		slots = new int[newCapacity];
+		candidates = new ObjectVector[newCapacity];
+	}
+
+	/**
+	 * Empties the heap so it can be reused.
+	 */
+	public void reset() {
+		Arrays.fill(candidates, 0, size, null);
+		size = 0;
+		offered = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isFull() {
+		return bounded && size == capacity;
+	}
+
+	/**
+	 * Returns the score a candidate has to exceed to be accepted, or {@link Double#NEGATIVE_INFINITY}
+	 * while the heap is not full.
+	 */
+	public double minScore() {
+		return isFull() && size > 0 ? scores[0] : Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Offers a candidate to the heap.
+	 *
+	 * @return {@code true} if the candidate was kept
+	 */
+	public boolean offer(double score, ObjectVector candidate) {
+		long arrival = offered++;
+		if (size < capacity || !bounded) {
+			if (size == capacity) {
+				grow();
+			}
+			int position = size++;
+			candidates[position] = candidate;
+			siftUp(position, score, arrival, position);
+			return true;
+		}
+		if (capacity == 0 || !(score > scores[0])) {
+			return false;
+		}
+		int slot = slots[0];
+		candidates[slot] = candidate;
+		siftDown(0, score, arrival, slot);
+		return true;
+	}
+
+	/**
+	 * Offers all candidates kept by another heap to this one. The other heap is left unchanged.
+	 */
+	public void addAll(SearchResultHeap other) {
+		for (int i = 0; i < other.size; i++) {
+			offer(other.scores[i], other.candidates[other.slots[i]]);
+		}
+	}
+
+	/**
+	 * Empties the heap, returning its candidates as search results, best first.
+	 */
+	public LinkedList<SearchResult> drainSorted() {
+		double[] sortedScores = new double[size];
+		ObjectVector[] sortedCandidates = new ObjectVector[size];
+		for (int i = size - 1; i >= 0; i--) {
+			sortedScores[i] = scores[0];
+			sortedCandidates[i] = candidates[slots[0]];
+			candidates[slots[0]] = null;
+			removeRoot();
+		}
+
+		LinkedList<SearchResult> results = new LinkedList<>();
+		for (int i = 0; i < sortedScores.length; i++) {
+			results.add(new SearchResult(sortedScores[i], sortedCandidates[i]));
+		}
+		offered = 0;
+		return results;
+	}
+
+	private void removeRoot() {
+		int last = --size;
+		if (last > 0) {
+			siftDown(0, scores[last], arrivals[last], slots[last]);
+		}
+	}
+
+	private void grow() {
+		int newCapacity = Math.max(UNBOUNDED_INITIAL_CAPACITY, capacity * 2);
+		scores = Arrays.copyOf(scores, newCapacity);
+		arrivals = Arrays.copyOf(arrivals, newCapacity);
+		slots = Arrays.copyOf(slots, newCapacity);
+		candidates = Arrays.copyOf(candidates, newCapacity);
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Returns true if the first entry should be nearer the root than the second one.
+	 */
+	private static boolean isWorse(double score, long arrival, double otherScore, long otherArrival) {
+		return score < otherScore || (score == otherScore && arrival > otherArrival);
+	}
+
+	private void siftUp(int position, double score, long arrival, int slot) {
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (!isWorse(score, arrival, scores[parent], arrivals[parent])) {
+				break;
+			}
+			set(position, scores[parent], arrivals[parent], slots[parent]);
+			position = parent;
+		}
+		set(position, score, arrival, slot);
+	}
+
+	private void siftDown(int position, double score, long arrival, int slot) {
+		int half = size >>> 1;
+		while (position < half) {
+			int child = 2 * position + 1;
+			int right = child + 1;
+			if (right < size && isWorse(scores[right], arrivals[right], scores[child], arrivals[child])) {
+				child = right;
+			}
+			if (!isWorse(scores[child], arrivals[child], score, arrival)) {
+				break;
+			}
+			set(position, scores[child], arrivals[child], slots[child]);
+			position = child;
+		}
+		set(position, score, arrival, slot);
+	}
+
+	private void set(int position, double score, long arrival, int slot) {
+		scores[position] = score;
+		arrivals[position] = arrival;
+		slots[position] = slot;
+	}
+}
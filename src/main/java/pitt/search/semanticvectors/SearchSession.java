@@ -0,0 +1,467 @@
+package pitt.search.semanticvectors;
+
+import pitt.search.semanticvectors.ElementalVectorStore.ElementalGenerationMethod;
+import pitt.search.semanticvectors.Search.AnnIndex;
+import pitt.search.semanticvectors.Search.SearchType;
+import pitt.search.semanticvectors.hnsw.HnswIndexFactory;
+import pitt.search.semanticvectors.ivf.IvfStoreFactory;
+import pitt.search.semanticvectors.lsh.LSHStoreFactory;
+import pitt.search.semanticvectors.mih.MihIndexFactory;
+import pitt.search.semanticvectors.utils.VerbatimLogger;
+import pitt.search.semanticvectors.vectors.BinaryVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorType;
+import pitt.search.semanticvectors.vectors.ZeroVectorException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Opens the vector stores, Lucene index and approximate nearest-neighbour indexes named by a {@link FlagConfig}
+ * once, and runs any number of searches against them until it is closed. {@link Search#runSearch} opens a session
+ * for each search; services which search many times should keep one open instead.
+ * <p>
+ * Sessions are safe to search from many threads at once. Each search builds its own {@link VectorSearcher}, and
+ * {@link VectorStoreReaderLucene} stores give each thread its own input. Closing a session waits for the searches
+ * which are running, and searches started afterwards fail.
+ */
+public class SearchSession implements Closeable {
+	private static final Logger logger = Logger.getLogger(SearchSession.class.getCanonicalName());
+
+	private final FlagConfig flagConfig;
+
+	/** Principal vector store for finding query vectors. */
+	private CloseableVectorStore queryVecReader;
+	/** Auxiliary vector store used when searching for boundproducts. Used only in some searchtypes. */
+	private CloseableVectorStore boundVecReader;
+	/** Auxiliary vector stores used when searching for boundproducts. Used only in some searchtypes. */
+	private CloseableVectorStore elementalVecReader, semanticVecReader, predicateVecReader;
+	/**
+	 * Vector store for searching. Defaults to being the same as queryVecReader.
+	 * May be different from queryVecReader, e.g., when using terms to search for documents.
+	 */
+	private CloseableVectorStore searchVecReader;
+	/** Full precision vectors for re-ranking searches of a {@link FlagConfig#quantizedvectorfile()}. */
+	private CloseableVectorStore rerankVecReader;
+	/** Store of permutations. */
+	private volatile VectorStoreRAM permutationCache;
+	private LuceneUtils luceneUtils;
+
+	/** Keeps the LSH store of the search store from being evicted while the session is open. */
+	private volatile LSHStoreFactory.Handle lshHandle;
+	/** Whether the session is only opened for one search. */
+	private final boolean singleSearch;
+
+	// Searches hold the read lock, so that close() waits for them
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private boolean closed;
+
+	/**
+	 * Opens the stores named by the flags. The search type of the flags is the one {@link #search(String...)} uses,
+	 * and decides which index of the search vectors is prepared, but all search types can be run.
+	 *
+	 * @throws IOException if a vector store cannot be opened
+	 */
+	public SearchSession(FlagConfig flagConfig) throws IOException {
+		this(flagConfig, false);
+	}
+
+	/**
+	 * @param singleSearch whether the session is only opened for one search, as by {@link Search#runSearch}. Then the
+	 *                     search vectors are not packed, as packing reads the whole store once more than the search,
+	 *                     and a missing LSH store is built before the search: a background build would be stopped by
+	 *                     the exit of the JVM after the search, so it would never be persisted.
+	 */
+	SearchSession(FlagConfig flagConfig, boolean singleSearch) throws IOException {
+		if (flagConfig == null) {
+			throw new NullPointerException("flagConfig cannot be null");
+		}
+		this.flagConfig = flagConfig;
+		this.singleSearch = singleSearch;
+		try {
+			openVectorStores();
+
+			if (!flagConfig.luceneindexpath().isEmpty()) {
+				try {
+					luceneUtils = new LuceneUtils(flagConfig);
+				} catch (IOException e) {
+					logger.warning("Couldn't open Lucene index at " + flagConfig.luceneindexpath()
+							+ ". Will continue without term weighting.");
+				}
+			}
+
+			if (flagConfig.searchtype() == SearchType.SUM)
+				prepareAnnIndex();
+		} catch (IOException | RuntimeException e) {
+			closeResources();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the permutation cache of {@link FlagConfig#permutationcachefile()}, if it is set and was not read yet.
+	 */
+	private void readPermutationCache() throws IOException {
+		if (permutationCache != null || flagConfig.permutationcachefile().equals("permutationvectors"))
+			return;
+		VerbatimLogger.info("Opening permutation cache from file " + flagConfig.permutationcachefile() + "\n");
+		VectorType typeA = flagConfig.vectortype();
+		flagConfig.setVectortype(VectorType.PERMUTATION);
+		try {
+			VectorStoreRAM cache = new VectorStoreRAM(flagConfig);
+			cache.initFromFile(flagConfig.permutationcachefile());
+			permutationCache = cache;
+		} finally {
+			flagConfig.setVectortype(typeA);
+		}
+	}
+
+	/**
+	 * Reads the permutation cache on the first permutation search of a session opened for another search type. The
+	 * write lock keeps other searches from using the flags while their vector type is switched to read it.
+	 */
+	private void readPermutationCacheForSearch() {
+		lock.writeLock().lock();
+		try {
+			if (closed)
+				throw new IllegalStateException("Search session is closed");
+			readPermutationCache();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read permutation cache " + flagConfig.permutationcachefile(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void openVectorStores() throws IOException {
+		// Sessions for other search types read it on their first permutation search, if any
+		if (flagConfig.searchtype() == SearchType.PERMUTATION)
+			readPermutationCache();
+
+		// Default VectorStore implementation is (Lucene) VectorStoreReader.
+		if (!flagConfig.elementalvectorfile().equals("elementalvectors") && !flagConfig.semanticvectorfile().equals("semanticvectors") && !flagConfig.elementalpredicatevectorfile().equals("predicatevectors")) {
+			//for PSI search
+
+			VerbatimLogger.info("Opening query vector store from file: " + flagConfig.queryvectorfile() + "\n");
+			if (flagConfig.elementalvectorfile().equals("deterministic")) {
+				elementalVecReader = openDeterministicStore();
+			} else
+				elementalVecReader = VectorStoreReader.openVectorStore(flagConfig.elementalvectorfile(), flagConfig);
+
+			VerbatimLogger.info("Opening elemental query vector store from file: " + flagConfig.elementalvectorfile() + "\n");
+			VerbatimLogger.info("Opening semantic query vector store from file: " + flagConfig.semanticvectorfile() + "\n");
+			VerbatimLogger.info("Opening predicate query vector store from file: " + flagConfig.elementalpredicatevectorfile() + "\n");
+
+			semanticVecReader = VectorStoreReader.openVectorStore(flagConfig.semanticvectorfile(), flagConfig);
+			predicateVecReader = VectorStoreReader.openVectorStore(flagConfig.elementalpredicatevectorfile(), flagConfig);
+		} else {
+			VerbatimLogger.info("Opening query vector store from file: " + flagConfig.queryvectorfile() + "\n");
+			if (flagConfig.queryvectorfile().equals("deterministic")) {
+				queryVecReader = openDeterministicStore();
+			} else queryVecReader = VectorStoreReader.openVectorStore(flagConfig.queryvectorfile(), flagConfig);
+		}
+
+		if (flagConfig.boundvectorfile().length() > 0) {
+			VerbatimLogger.info("Opening second query vector store from file: " + flagConfig.boundvectorfile() + "\n");
+			boundVecReader = VectorStoreReader.openVectorStore(flagConfig.boundvectorfile(), flagConfig);
+		}
+
+		// Open second vector store if search vectors are different from query vectors.
+		if (flagConfig.queryvectorfile().equals(flagConfig.searchvectorfile())
+				|| flagConfig.searchvectorfile().isEmpty()) {
+			searchVecReader = queryVecReader;
+		} else {
+			VerbatimLogger.info("Opening search vector store from file: " + flagConfig.searchvectorfile() + "\n");
+			searchVecReader = VectorStoreReader.openVectorStore(flagConfig.searchvectorfile(), flagConfig);
+		}
+
+		if (flagConfig.packsearchvectors() && singleSearch) {
+			logger.fine("Not packing search vectors for a single search.");
+		} else if (flagConfig.packsearchvectors() && searchVecReader != null) {
+			PackedVectorStore packedVecReader = PackedVectorStore.createFromVectorStore(searchVecReader, flagConfig);
+			if (packedVecReader == null) {
+				logger.warning("No packed vector store for vector type " + flagConfig.vectortype() + ", searching unpacked vectors.");
+			} else {
+				VerbatimLogger.info("Packed search vectors into memory\n");
+				if (searchVecReader != queryVecReader) searchVecReader.close();
+				searchVecReader = packedVecReader;
+			}
+		}
+
+		if (!flagConfig.quantizedvectorfile().isEmpty()) {
+			VerbatimLogger.info("Opening quantized search vector store from file: " + flagConfig.quantizedvectorfile() + "\n");
+			rerankVecReader = searchVecReader;
+			searchVecReader = CompressedVectorStore.readFromFile(flagConfig, flagConfig.quantizedvectorfile());
+		}
+	}
+
+	private CloseableVectorStore openDeterministicStore() {
+		if (flagConfig.elementalmethod().equals(ElementalGenerationMethod.ORTHOGRAPHIC))
+			return new VectorStoreOrthographical(flagConfig);
+		else if (flagConfig.elementalmethod().equals(ElementalGenerationMethod.CONTENTHASH))
+			return new VectorStoreDeterministic(flagConfig);
+		VerbatimLogger.info("Please select either -elementalmethod orthographic OR -elementalmethod contenthash depending upon the deterministic approach you would like used.");
+		return null;
+	}
+
+	/**
+	 * Reads or builds the index that {@link SearchType#SUM} searches of the search store use, so that the first
+	 * search does not wait for it. A missing LSH store is built in the background unless
+	 * {@link FlagConfig#lsh_blocking_build()} is set or the session is for a single search, and is kept open once
+	 * built.
+	 */
+	private void prepareAnnIndex() {
+		if (rerankVecReader != null || !(searchVecReader instanceof VectorStoreReaderLucene))
+			return;
+		File vectorFile = ((VectorStoreReaderLucene) searchVecReader).getVectorFile();
+		switch (flagConfig.annindex()) {
+			case HNSW:
+				HnswIndexFactory.INSTANCE.getIndex(vectorFile, flagConfig);
+				break;
+			case IVF:
+				IvfStoreFactory.INSTANCE.acquire(vectorFile, flagConfig).close();
+				break;
+			case MIH:
+				if (flagConfig.vectortype() == VectorType.BINARY)
+					MihIndexFactory.INSTANCE.getIndex(vectorFile, flagConfig);
+				break;
+			default:
+				acquireLshStore();
+		}
+	}
+
+	private synchronized void acquireLshStore() {
+		if (lshHandle != null || !(searchVecReader instanceof VectorStoreReaderLucene))
+			return;
+		File vectorFile = ((VectorStoreReaderLucene) searchVecReader).getVectorFile();
+		if (LSHStoreFactory.INSTANCE.getSetting(vectorFile, flagConfig) == null)
+			return;
+		lshHandle = flagConfig.lsh_blocking_build() || singleSearch
+				? LSHStoreFactory.INSTANCE.acquire(vectorFile, flagConfig)
+				: LSHStoreFactory.INSTANCE.tryAcquire(vectorFile, flagConfig);
+	}
+
+	public FlagConfig getFlagConfig() {
+		return flagConfig;
+	}
+
+	/**
+	 * Searches for the query terms with the search type and number of results of the session's flags.
+	 */
+	public LinkedList<SearchResult> search(String... queryTerms) {
+		return search(flagConfig.searchtype(), flagConfig.numsearchresults(), null, queryTerms);
+	}
+
+	/**
+	 * Searches for the query terms, which are lower-cased unless {@link FlagConfig#matchcase()} is set.
+	 *
+	 * @param boostedTerms weights of query terms in {@link SearchType#SUM} searches (May be null.)
+	 * @return the results, or an empty list if the query vector is zero or the search type only prints the query
+	 * @throws IllegalStateException if the session was closed
+	 * @throws RuntimeException if the permutation cache of a permutation search cannot be read
+	 */
+	public LinkedList<SearchResult> search(
+			SearchType searchType, int numResults, Map<String, Float> boostedTerms, String... queryTerms) {
+		if (queryTerms == null) {
+			throw new IllegalArgumentException("No query terms left after flag parsing!");
+		}
+		// Copied, so that the caller's terms are not changed
+		String[] queryArgs = queryTerms.clone();
+		if (!flagConfig.matchcase()) {
+			for (int i = 0; i < queryArgs.length; ++i) {
+				queryArgs[i] = queryArgs[i].toLowerCase();
+			}
+		}
+
+		if (searchType == SearchType.PERMUTATION && permutationCache == null
+				&& !flagConfig.permutationcachefile().equals("permutationvectors"))
+			readPermutationCacheForSearch();
+		lock.readLock().lock();
+		try {
+			if (closed)
+				throw new IllegalStateException("Search session is closed");
+			if (searchType == SearchType.SUM && flagConfig.annindex() == AnnIndex.NONE && lshHandle == null)
+				acquireLshStore();
+
+			VerbatimLogger.info("Searching term vectors, searchtype " + searchType + "\n");
+			VectorSearcher vecSearcher;
+			try {
+				vecSearcher = getSearcher(searchType, boostedTerms, queryArgs);
+			} catch (ZeroVectorException zve) {
+				logger.info(zve.getMessage());
+				return new LinkedList<>();
+			}
+			if (vecSearcher == null)
+				return new LinkedList<>();
+
+			Instant start = Instant.now();
+			LinkedList<SearchResult> results = SearchResultCache.INSTANCE.getNearestNeighbors(vecSearcher, numResults);
+			logger.fine("Found nearest vector in: " + Duration.between(start, Instant.now()).toMillis());
+			if (flagConfig.resultcachesize() > 0)
+				logger.fine(SearchResultCache.INSTANCE.toString());
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the searcher for the search type, or null if the search type only prints the query vector.
+	 * Most options have corresponding dedicated VectorSearcher subclasses.
+	 */
+	private VectorSearcher getSearcher(SearchType searchType, Map<String, Float> boostedTerms, String[] queryArgs)
+			throws ZeroVectorException {
+		switch (searchType) {
+			case SUM:
+				// If there aren't boosted terms we just process empty map
+				if (boostedTerms != null && !boostedTerms.isEmpty()) {
+					Instant start = Instant.now();
+					Vector qv = CompoundVectorBuilder.getQueryVector(queryVecReader, luceneUtils, flagConfig, queryArgs, (term) -> {
+						Float boostFactor = boostedTerms.get(term);
+						return boostFactor != null ? boostFactor : 1f;
+					});
+					logger.fine("Found vector in : " + Duration.between(start, Instant.now()).toMillis());
+					if (rerankVecReader != null)
+						return new VectorSearcher.VectorSearcherCompressed(
+								queryVecReader, searchVecReader, rerankVecReader, luceneUtils, flagConfig, qv);
+					else if (flagConfig.annindex() == AnnIndex.HNSW)
+						return new VectorSearcher.VectorSearcherHnsw(
+								queryVecReader, searchVecReader, luceneUtils, flagConfig, qv);
+					else if (flagConfig.annindex() == AnnIndex.IVF)
+						return new VectorSearcher.VectorSearcherIvf(
+								queryVecReader, searchVecReader, luceneUtils, flagConfig, qv);
+					else if (flagConfig.annindex() == AnnIndex.MIH)
+						return new VectorSearcher.VectorSearcherMih(
+								queryVecReader, searchVecReader, luceneUtils, flagConfig, qv);
+					else
+						return new VectorSearcher.VectorSearcherCosine(
+								queryVecReader, searchVecReader, luceneUtils, flagConfig, qv);
+				} else if (rerankVecReader != null)
+					return new VectorSearcher.VectorSearcherCompressed(
+							queryVecReader, searchVecReader, rerankVecReader, luceneUtils, flagConfig, queryArgs);
+				else if (flagConfig.annindex() == AnnIndex.HNSW)
+					return new VectorSearcher.VectorSearcherHnsw(
+							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+				else if (flagConfig.annindex() == AnnIndex.IVF)
+					return new VectorSearcher.VectorSearcherIvf(
+							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+				else if (flagConfig.annindex() == AnnIndex.MIH)
+					return new VectorSearcher.VectorSearcherMih(
+							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+				else
+					return new VectorSearcher.VectorSearcherCosine(
+							queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+			case SUBSPACE:
+				return new VectorSearcher.VectorSearcherSubspaceSim(
+						queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+			case MAXSIM:
+				return new VectorSearcher.VectorSearcherMaxSim(
+						queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+			case MINSIM:
+				return new VectorSearcher.VectorSearcherMinSim(
+						queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+			case BOUNDPRODUCT:
+				if (queryArgs.length == 2) {
+					return new VectorSearcher.VectorSearcherBoundProduct(
+							queryVecReader, boundVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0], queryArgs[1]);
+				} else {
+					return new VectorSearcher.VectorSearcherBoundProduct(
+							elementalVecReader, semanticVecReader, predicateVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0]);
+				}
+			case BOUNDPRODUCTSUBSPACE:
+				if (queryArgs.length == 2) {
+					return new VectorSearcher.VectorSearcherBoundProductSubSpace(
+							queryVecReader, boundVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0], queryArgs[1]);
+				} else {
+					return new VectorSearcher.VectorSearcherBoundProductSubSpace(
+							elementalVecReader, semanticVecReader, predicateVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0]);
+				}
+			case INTERSECTION:
+				return new VectorSearcher.VectorSearcherIntersection(
+						elementalVecReader, semanticVecReader, predicateVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0]);
+			case BOUNDMINIMUM:
+				if (queryArgs.length == 2) {
+					return new VectorSearcher.VectorSearcherBoundMinimum(
+							queryVecReader, boundVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0], queryArgs[1]);
+				} else {
+					return new VectorSearcher.VectorSearcherBoundMinimum(
+							elementalVecReader, semanticVecReader, predicateVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs[0]);
+				}
+			case PERMUTATION:
+				return new VectorSearcher.VectorSearcherPerm(
+						queryVecReader, searchVecReader, permutationCache, luceneUtils, flagConfig, queryArgs);
+			case BALANCEDPERMUTATION:
+				return new VectorSearcher.BalancedVectorSearcherPerm(
+						queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+			case ANALOGY:
+				return new VectorSearcher.AnalogySearcher(
+						queryVecReader, searchVecReader, luceneUtils, flagConfig, queryArgs);
+			case PROXIMITY:
+				return new VectorSearcher.VectorSearcherProximity(
+						queryVecReader, searchVecReader, boundVecReader, luceneUtils, flagConfig, queryArgs);
+			case LUCENE:
+				return new VectorSearcher.VectorSearcherLucene(
+						luceneUtils, flagConfig, queryArgs);
+			case PRINTQUERY:
+				Vector queryVector = CompoundVectorBuilder.getQueryVector(
+						queryVecReader, luceneUtils, flagConfig, queryArgs);
+				System.out.println(queryVector.toString());
+				return null;
+			case PRINTPSIQUERY:
+				Vector psiQueryVector = CompoundVectorBuilder.getBoundProductQueryVectorFromString(flagConfig, elementalVecReader, semanticVecReader, predicateVecReader, luceneUtils, queryArgs[0]);
+				if (flagConfig.vectortype().equals(VectorType.BINARY))
+					BinaryVector.setDebugPrintLength(flagConfig.dimension());
+				System.out.println(psiQueryVector.toString());
+				return null;
+			default:
+				throw new IllegalArgumentException("Unknown search type: " + searchType);
+		}
+	}
+
+	public boolean isClosed() {
+		lock.readLock().lock();
+		try {
+			return closed;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Closes the vector stores and the Lucene index, once the searches which are running are done.
+	 */
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			closeResources();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private synchronized void closeResources() {
+		if (lshHandle != null) {
+			lshHandle.close();
+			lshHandle = null;
+		}
+		VectorStoreUtils.closeVectorStores(queryVecReader, searchVecReader != queryVecReader ? searchVecReader : null,
+				boundVecReader, elementalVecReader, semanticVecReader, predicateVecReader,
+				rerankVecReader != queryVecReader ? rerankVecReader : null);
+		// Lucene directory should be closed as well
+		if (luceneUtils != null) {
+			luceneUtils.closeLuceneDir();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package pitt.search.semanticvectors;
+
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * Sorts search results by descending score while keeping at most a given number of them in memory. Whenever that
+ * many are held and another is added, they are sorted with a {@link SearchResultHeap} and written to a run in a
+ * temporary directory. Each result of a run is its score, as the long of {@link Double#doubleToLongBits}, then its
+ * object, as a Lucene string, then the Lucene bytes of its vector; runs have no header. Iterating merges the runs
+ * with the results still in memory.
+ * <p>
+ * Results with equal scores are returned in the order they were added. The objects of results which were spilled
+ * come back as their {@link Object#toString()}, as they would from a vector store file. The temporary files are
+ * deleted once the results have all been iterated, or when the sorter is closed. Instances are not thread-safe.
+ */
+public class SpillingSearchResultSorter implements Iterator<SearchResult>, Closeable {
+
+	private final FlagConfig flagConfig;
+	private final int maxInMemory;
+	private final SearchResultHeap inMemory = SearchResultHeap.unbounded();
+	private Path spillDirectory;
+	private FSDirectory directory;
+	private final List<String> runNames = new ArrayList<>();
+	// The next result of each run, by descending score and then by run, as the runs were added in order
+	private PriorityQueue<Run> merge;
+
+	/**
+	 * @param maxInMemory number of results kept in memory before they are spilled to disk
+	 */
+	public SpillingSearchResultSorter(FlagConfig flagConfig, int maxInMemory) {
+		if (maxInMemory < 1)
+			throw new IllegalArgumentException("At least one result must be kept in memory, got " + maxInMemory);
+		this.flagConfig = flagConfig;
+		this.maxInMemory = maxInMemory;
+	}
+
+	/**
+	 * Adds a result. Results can only be added before the iteration starts.
+	 */
+	public void add(double score, ObjectVector objectVector) throws IOException {
+		if (merge != null)
+			throw new IllegalStateException("Results cannot be added once they are being iterated");
+		if (inMemory.size() >= maxInMemory)
+			spill();
+		inMemory.offer(score, objectVector);
+	}
+
+	/**
+	 * Returns the number of runs written to disk so far.
+	 */
+	public int getNumSpilledRuns() {
+		return runNames.size();
+	}
+
+	private void spill() throws IOException {
+		if (directory == null) {
+			spillDirectory = Files.createTempDirectory("searchresults");
+			directory = FSDirectory.open(spillDirectory);
+		}
+		String runName = "run" + runNames.size();
+		try (IndexOutput output = directory.createOutput(runName, IOContext.DEFAULT)) {
+			for (SearchResult result : inMemory.drainSorted()) {
+				output.writeLong(Double.doubleToLongBits(result.getScore()));
+				output.writeString(result.getObjectVector().getObject().toString());
+				result.getObjectVector().getVector().writeToLuceneStream(output);
+			}
+		}
+		runNames.add(runName);
+	}
+
+	private void startMerge() throws IOException {
+		merge = new PriorityQueue<>(Math.max(runNames.size() + 1, 1),
+				Comparator.comparingDouble((Run run) -> -run.next.getScore()).thenComparingInt(run -> run.number));
+		for (int number = 0; number < runNames.size(); number++) {
+			IndexInput input = directory.openInput(runNames.get(number), IOContext.READONCE);
+			Run run = new Run(number, input, null);
+			if (run.advance())
+				merge.add(run);
+		}
+		Run memoryRun = new Run(runNames.size(), null, inMemory.drainSorted().iterator());
+		if (memoryRun.advance())
+			merge.add(memoryRun);
+	}
+
+	@Override
+	public boolean hasNext() {
+		try {
+			if (merge == null)
+				startMerge();
+			if (merge.isEmpty()) {
+				close();
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public SearchResult next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Run run = merge.poll();
+		SearchResult result = run.next;
+		try {
+			if (run.advance())
+				merge.add(run);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes the runs written to disk. The results which have not been iterated yet are lost.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (merge != null) {
+			for (Run run : merge) {
+				run.close();
+			}
+			merge.clear();
+		}
+		if (directory != null) {
+			directory.close();
+			directory = null;
+			try (Stream<Path> files = Files.list(spillDirectory)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					Files.deleteIfExists(file);
+				}
+			}
+			Files.deleteIfExists(spillDirectory);
+		}
+	}
+
+	/**
+	 * A sorted run on disk, or the results which were kept in memory.
+	 */
+	private class Run {
+		final int number;
+		final IndexInput input;
+		final Iterator<SearchResult> results;
+		SearchResult next;
+
+		Run(int number, IndexInput input, Iterator<SearchResult> results) {
+			this.number = number;
+			this.input = input;
+			this.results = results;
+		}
+
+		/**
+		 * Reads the next result of the run, and returns false if there is none.
+		 */
+		boolean advance() throws IOException {
+			if (results != null) {
+				next = results.hasNext() ? results.next() : null;
+				return next != null;
+			}
+			if (input.getFilePointer() >= input.length()) {
+				input.close();
+				next = null;
+				return false;
+			}
+			double score = Double.longBitsToDouble(input.readLong());
+			String object = input.readString();
+			Vector vector = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension());
+			vector.readFromLuceneStream(input);
+			next = new SearchResult(score, new ObjectVector(object, vector));
+			return true;
+		}
+
+		void close() throws IOException {
+			if (input != null)
+				input.close();
+		}
+	}
+}
@@ -40,7 +40,14 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
+import pitt.search.semanticvectors.hnsw.HnswIndex;
+import pitt.search.semanticvectors.hnsw.HnswIndexFactory;
+import pitt.search.semanticvectors.ivf.IvfStore;
+import pitt.search.semanticvectors.ivf.IvfStoreFactory;
 import pitt.search.semanticvectors.lsh.LSHStoreFactory;
+import pitt.search.semanticvectors.mih.MihIndex;
+import pitt.search.semanticvectors.mih.MihIndexFactory;
 import pitt.search.semanticvectors.vectors.Vector;
 import pitt.search.semanticvectors.vectors.*;
 
@@ -48,6 +55,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -58,103 +67,33 @@ import java.util.logging.Logger;
 abstract public class VectorSearcher {
 	private static final Logger logger = Logger.getLogger(VectorSearcher.class.getCanonicalName());
 
+	/** Number of candidates handed to a worker at a time by a parallel search. */
+	private static final int PARALLEL_BATCH_SIZE = 1024;
+
+	/** Marks the end of the candidates for the workers of a parallel search. */
+	private static final List<ObjectVector> END_OF_SCAN = Collections.emptyList();
+
+	/** Daemon worker pools for parallel searches, shared between searchers and keyed by size. */
+	private static final ConcurrentHashMap<Integer, ExecutorService> searchExecutors = new ConcurrentHashMap<>();
+
 	protected FlagConfig flagConfig;
 	protected VectorStore searchVecStore;
 	protected LuceneUtils luceneUtils;
 
 	/**
-	 * Expand search space for dual-predicate searches
+	 * Expand search space for dual-predicate searches. The pairs are generated while the returned store is
+	 * enumerated, see {@link ExpandedVectorStore}.
 	 */
 	public static VectorStore expandSearchSpace(VectorStore searchVecStore, FlagConfig flagConfig) {
-		VectorStoreRAM nusearchspace = new VectorStoreRAM(flagConfig);
-		Enumeration<ObjectVector> allVectors = searchVecStore.getAllVectors();
-		ArrayList<ObjectVector> storeVectors = new ArrayList<ObjectVector>();
-
-		while (allVectors.hasMoreElements()) {
-			ObjectVector nextObjectVector = allVectors.nextElement();
-			nusearchspace.putVector(nextObjectVector.getObject(), nextObjectVector.getVector());
-			storeVectors.add(nextObjectVector);
-		}
-
-		for (int x = 0; x < storeVectors.size() - 2; x++) {
-			for (int y = x; y < storeVectors.size() - 1; y++) {
-				Vector vec1 = storeVectors.get(x).getVector().copy();
-				Vector vec2 = storeVectors.get(y).getVector().copy();
-
-				String obj1 = storeVectors.get(x).getObject().toString();
-				String obj2 = storeVectors.get(y).getObject().toString();
-
-				if (obj1.equals(obj2)) continue;
-
-				vec1.release(vec2);
-				nusearchspace.putVector(obj2 + ":" + obj1, vec1.copy());
-
-				if (flagConfig.vectortype().equals(VectorType.COMPLEX)) {
-					vec2.release(storeVectors.get(x).getVector().copy());
-					nusearchspace.putVector(obj1 + ":" + obj2, vec2);
-				}
-
-			}
-		}
-
-
-		// System.err.println("Expanding search space from "+storeVectors.size()+" to "+nusearchspace.getNumVectors());
-		return nusearchspace;
+		return new ExpandedVectorStore(searchVecStore, flagConfig, false);
 	}
 
 	/**
-	 * Expand search space for triple-predicate searches
+	 * Expand search space for triple-predicate searches. The pairs and triples are generated while the returned
+	 * store is enumerated, see {@link ExpandedVectorStore}.
 	 */
 	public static VectorStore expandSearchSpace3(VectorStore searchVecStore, FlagConfig flagConfig) {
-		VectorStoreRAM nusearchspace = new VectorStoreRAM(flagConfig);
-		Enumeration<ObjectVector> allVectors = searchVecStore.getAllVectors();
-		ArrayList<ObjectVector> storeVectors = new ArrayList<ObjectVector>();
-
-		while (allVectors.hasMoreElements()) {
-			ObjectVector nextObjectVector = allVectors.nextElement();
-			nusearchspace.putVector(nextObjectVector.getObject(), nextObjectVector.getVector());
-			storeVectors.add(nextObjectVector);
-		}
-
-		for (int x = 0; x < storeVectors.size() - 2; x++) {
-			for (int y = x; y < storeVectors.size() - 1; y++) {
-				for (int z = y; z < storeVectors.size(); z++) {
-					Vector vec1 = storeVectors.get(x).getVector().copy();
-					Vector vec2 = storeVectors.get(y).getVector().copy();
-					Vector vec3 = storeVectors.get(z).getVector().copy();
-
-					String obj1 = storeVectors.get(x).getObject().toString();
-					String obj2 = storeVectors.get(y).getObject().toString();
-					String obj3 = storeVectors.get(z).getObject().toString();
-
-					if (obj1.equals(obj2)) continue;
-
-					vec1.release(vec2);
-					nusearchspace.putVector(obj2 + ":" + obj1, vec1.copy());
-
-					if (flagConfig.vectortype().equals(VectorType.COMPLEX)) {
-						vec2.release(storeVectors.get(x).getVector().copy());
-						nusearchspace.putVector(obj1 + ":" + obj2, vec2);
-					}
-
-					if (obj3.equals(obj2) || obj3.equals(obj1)) continue;
-
-					vec1.release(vec3);
-					nusearchspace.putVector(obj1 + ":" + obj2 + ":" + obj3, vec1);
-
-					if (flagConfig.vectortype().equals(VectorType.COMPLEX)) {
-						vec3.release(vec2);
-						nusearchspace.putVector(obj3 + ":" + obj2 + ":" + obj1, vec2);
-					}
-
-
-				}
-			}
-		}
-
-
-		System.err.println("Expanding search space from " + storeVectors.size() + " to " + nusearchspace.getNumVectors());
-		return nusearchspace;
+		return new ExpandedVectorStore(searchVecStore, flagConfig, true);
 	}
 
 	/**
@@ -180,7 +119,6 @@ abstract public class VectorSearcher {
 			this.searchVecStore = expandSearchSpace(searchVecStore, flagConfig);
 		} else if (flagConfig.expandsearchspace3()) {
 			this.searchVecStore = expandSearchSpace3(searchVecStore, flagConfig);
-
 		}
 	}
 
@@ -195,38 +133,339 @@ abstract public class VectorSearcher {
 	 * @param numResults the number of results / length of the result list.
 	 */
 	public LinkedList<SearchResult> getNearestNeighbors(int numResults) {
-		Enumeration<ObjectVector> vecEnum = searchVecStore.getAllVectors();
-		return getNearest(numResults, vecEnum);
+		return scanStore(Collections.singletonList(this), numResults, searchVecStore).get(0);
+	}
+
+	/**
+	 * Runs the nearest neighbor searches of several searchers at once. Searchers that search the same
+	 * store with the default {@link #getNearestNeighbors(int)} scan are served by a single enumeration
+	 * of the store, scoring each candidate against every query before moving on to the next one.
+	 * Other searchers, e.g. ones using LSH or Lucene, run their own search.
+	 * <p>
+	 * The parallel mode ({@link FlagConfig#parallelsearch()}) is taken from the flags of the first
+	 * searcher of each store.
+	 *
+	 * @param searchers  the searchers whose queries to run
+	 * @param numResults the number of results / length of each result list.
+	 * @return one result list per searcher, in the order of {@code searchers}
+	 */
+	public static List<LinkedList<SearchResult>> getNearestNeighbors(
+			List<? extends VectorSearcher> searchers, int numResults) {
+		List<LinkedList<SearchResult>> results = new ArrayList<>(Collections.nCopies(searchers.size(), null));
+		Map<VectorStore, List<Integer>> searchersByStore = new IdentityHashMap<>();
+		for (int i = 0; i < searchers.size(); i++) {
+			VectorSearcher searcher = searchers.get(i);
+			if (searcher.scansWholeStore()) {
+				searchersByStore.computeIfAbsent(searcher.searchVecStore, store -> new ArrayList<>()).add(i);
+			} else {
+				results.set(i, searcher.getNearestNeighbors(numResults));
+			}
+		}
+
+		for (Map.Entry<VectorStore, List<Integer>> entry : searchersByStore.entrySet()) {
+			List<VectorSearcher> storeSearchers = new ArrayList<>(entry.getValue().size());
+			for (int i : entry.getValue()) {
+				storeSearchers.add(searchers.get(i));
+			}
+			List<LinkedList<SearchResult>> storeResults =
+					scanStore(storeSearchers, numResults, entry.getKey());
+			for (int i = 0; i < storeResults.size(); i++) {
+				results.set(entry.getValue().get(i), storeResults.get(i));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Returns {@code true} if {@link #getNearestNeighbors(int)} scores every vector of the search store
+	 * with {@link #getScore}, so that the search can be shared with other queries by
+	 * {@link #getNearestNeighbors(List, int)}. Subclasses that search differently must override this.
+	 */
+	protected boolean scansWholeStore() {
+		return true;
+	}
+
+	/**
+	 * Returns the query vector if {@link #getScore} is {@code query.measureOverlap(testVector)}, so
+	 * that a {@link PackedVectorStore} can score its rows without going through {@link Vector} objects.
+	 * Returns {@code null} otherwise.
+	 */
+	protected Vector getOverlapQuery() {
+		return null;
 	}
 
 	protected LinkedList<SearchResult> getNearest(int numResults, Enumeration<ObjectVector> vecEnum) {
-		final double unsetScore = -Math.PI;
-		LinkedList<SearchResult> results = new LinkedList<SearchResult>();
+		return scan(Collections.singletonList(this), numResults, vecEnum).get(0);
+	}
+
+	/**
+	 * Scores all vectors of the store against the queries of all given searchers, scoring the rows of
+	 * a {@link PackedVectorStore} directly when every searcher supports it.
+	 */
+	private static List<LinkedList<SearchResult>> scanStore(
+			List<? extends VectorSearcher> searchers, int numResults, VectorStore store) {
+		if (store instanceof PackedVectorStore) {
+			PackedVectorStore packedStore = (PackedVectorStore) store;
+			PackedVectorStore.RowScorer[] scorers = new PackedVectorStore.RowScorer[searchers.size()];
+			for (int i = 0; i < scorers.length; i++) {
+				Vector query = searchers.get(i).getOverlapQuery();
+				scorers[i] = query == null ? null : packedStore.getScorer(query);
+				if (scorers[i] == null) {
+					return scan(searchers, numResults, store.getAllVectors());
+				}
+			}
+			return collectResults(scanPacked(searchers, numResults, packedStore, scorers));
+		}
+		return scan(searchers, numResults, store.getAllVectors());
+	}
+
+	/**
+	 * Scores each candidate against the queries of all given searchers, returning the results of each.
+	 */
+	private static List<LinkedList<SearchResult>> scan(
+			List<? extends VectorSearcher> searchers, int numResults, Enumeration<ObjectVector> vecEnum) {
+		FlagConfig flagConfig = searchers.get(0).flagConfig;
+		ScanShard[] scan;
+		if (flagConfig.parallelsearch() && flagConfig.numthreads() > 1) {
+			scan = scanInParallel(searchers, numResults, vecEnum, flagConfig.numthreads());
+		} else {
+			scan = newShards(searchers, numResults);
+			while (vecEnum.hasMoreElements()) {
+				offerToAll(scan, vecEnum.nextElement());
+			}
+		}
+		return collectResults(scan);
+	}
+
+	private static List<LinkedList<SearchResult>> collectResults(ScanShard[] scan) {
+		List<LinkedList<SearchResult>> results = new ArrayList<>(scan.length);
+		for (ScanShard shard : scan) {
+			LinkedList<SearchResult> shardResults = shard.getResults();
+			VectorSearcher searcher = shard.searcher();
+			if (searcher.flagConfig.stdev()) {
+				// Results are only kept above the minimum score once recast, but raw scores below it are dropped first
+				double minScore = searcher.flagConfig.searchresultsminscore();
+				shardResults.removeIf(result -> result.getScore() < minScore);
+				shardResults = searcher.transformToStats(shardResults, shard.count, shard.sum, shard.sumsquared);
+			}
+			results.add(shardResults);
+		}
+		return results;
+	}
 
-		double score = -1;
-		double threshold = flagConfig.searchresultsminscore();
-		if (flagConfig.stdev()) threshold = 0;
-//		Counters for statistics to calculate standard deviation
-		double sum = 0, sumsquared = 0;
-		int count = 0;
+	private static ScanShard[] newShards(List<? extends VectorSearcher> searchers, int numResults) {
+		ScanShard[] shards = new ScanShard[searchers.size()];
+		for (int i = 0; i < shards.length; i++) {
+			VectorSearcher searcher = searchers.get(i);
+			shards[i] = searcher.new ScanShard(numResults);
+		}
+		return shards;
+	}
 
-		TreeSet<SearchResult> tmpResults = new TreeSet<>();
-		for (int i = 0; i < numResults; i++) {
-			tmpResults.add(new SearchResult(unsetScore, null));
+	private static void offerToAll(ScanShard[] shards, ObjectVector candidate) {
+		for (ScanShard shard : shards) {
+			shard.offer(candidate);
 		}
+	}
 
-		while (vecEnum.hasMoreElements()) {
-			// Test this element.
-			ObjectVector testElement = vecEnum.nextElement();
-			score = getScore(testElement.getVector());
+	/**
+	 * Splits the candidates into batches of {@link #PARALLEL_BATCH_SIZE} and scores them on
+	 * {@code numWorkers} workers, each of which keeps its own top results. The calling
+	 * thread reads the enumeration, so stores whose enumerations are not thread-safe can still be
+	 * searched this way. Relies only on {@link #getScore} being safe to call concurrently once the
+	 * query has been compared against a first candidate.
+	 */
+	private static ScanShard[] scanInParallel(List<? extends VectorSearcher> searchers, int numResults,
+											  Enumeration<ObjectVector> vecEnum, int numWorkers) {
+		ScanShard[] mainShards = newShards(searchers, numResults);
+		// Scoring the first candidate on this thread lets query vectors switch to their comparison
+		// representation (e.g. sparse to dense) before they are shared read-only with the workers.
+		if (vecEnum.hasMoreElements()) {
+			offerToAll(mainShards, vecEnum.nextElement());
+		}
+		if (!vecEnum.hasMoreElements()) {
+			return mainShards;
+		}
+
+		ExecutorService executor = getSearchExecutor(numWorkers);
+		BlockingQueue<List<ObjectVector>> batches = new ArrayBlockingQueue<>(2 * numWorkers);
+		List<Future<ScanShard[]>> workers = new ArrayList<>(numWorkers);
+		for (int i = 0; i < numWorkers; i++) {
+			workers.add(executor.submit(() -> scanBatches(searchers, numResults, batches)));
+		}
 
+		try {
+			try {
+				List<ObjectVector> batch = new ArrayList<>(PARALLEL_BATCH_SIZE);
+				while (vecEnum.hasMoreElements()) {
+					batch.add(vecEnum.nextElement());
+					if (batch.size() == PARALLEL_BATCH_SIZE) {
+						batches.put(batch);
+						batch = new ArrayList<>(PARALLEL_BATCH_SIZE);
+					}
+				}
+				if (!batch.isEmpty()) {
+					batches.put(batch);
+				}
+			} finally {
+				for (int i = 0; i < numWorkers; i++) {
+					batches.put(END_OF_SCAN);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw interrupted(workers);
+		}
+
+		mergeWorkers(mainShards, workers);
+		return mainShards;
+	}
+
+	/**
+	 * Scores the rows of a packed store, split into one contiguous range per worker when
+	 * {@link FlagConfig#parallelsearch()} is set. As with {@link #scanInParallel}, the first row is
+	 * scored on the calling thread.
+	 */
+	private static ScanShard[] scanPacked(List<? extends VectorSearcher> searchers, int numResults,
+										  PackedVectorStore store, PackedVectorStore.RowScorer[] scorers) {
+		ScanShard[] mainShards = newShards(searchers, numResults);
+		int numRows = store.getNumVectors();
+		if (numRows == 0) {
+			return mainShards;
+		}
+		offerRows(mainShards, store, 0, 1, scorers);
+
+		FlagConfig flagConfig = searchers.get(0).flagConfig;
+		int numWorkers = Math.min(flagConfig.numthreads(), (numRows - 1) / PARALLEL_BATCH_SIZE + 1);
+		if (!flagConfig.parallelsearch() || numWorkers <= 1) {
+			offerRows(mainShards, store, 1, numRows, scorers);
+			return mainShards;
+		}
+
+		ExecutorService executor = getSearchExecutor(flagConfig.numthreads());
+		List<Future<ScanShard[]>> workers = new ArrayList<>(numWorkers);
+		for (int i = 0; i < numWorkers; i++) {
+			int from = 1 + (int) ((long) (numRows - 1) * i / numWorkers);
+			int to = 1 + (int) ((long) (numRows - 1) * (i + 1) / numWorkers);
+			workers.add(executor.submit(() -> {
+				ScanShard[] shards = newShards(searchers, numResults);
+				offerRows(shards, store, from, to, scorers);
+				return shards;
+			}));
+		}
+		mergeWorkers(mainShards, workers);
+		return mainShards;
+	}
+
+	private static void offerRows(ScanShard[] shards, PackedVectorStore store, int from, int to,
+								  PackedVectorStore.RowScorer[] scorers) {
+		for (int row = from; row < to; row++) {
+			for (int i = 0; i < shards.length; i++) {
+				shards[i].offer(store, scorers[i], row);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the workers of a parallel search and merges their results, in submission order, into
+	 * {@code mainShards}.
+	 */
+	private static void mergeWorkers(ScanShard[] mainShards, List<Future<ScanShard[]>> workers) {
+		try {
+			for (Future<ScanShard[]> worker : workers) {
+				ScanShard[] workerShards = worker.get();
+				for (int i = 0; i < mainShards.length; i++) {
+					mainShards[i].merge(workerShards[i]);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw interrupted(workers);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Parallel search failed", e.getCause());
+		}
+	}
+
+	private static QueryInterruptedException interrupted(List<Future<ScanShard[]>> workers) {
+		for (Future<ScanShard[]> worker : workers) {
+			worker.cancel(true);
+		}
+		Thread.currentThread().interrupt();
+		return new QueryInterruptedException("Search was interrupted");
+	}
+
+	/**
+	 * Worker loop for {@link #scanInParallel}. After a failure the worker keeps draining the queue so
+	 * that the reading thread never blocks on a full queue.
+	 */
+	private static ScanShard[] scanBatches(List<? extends VectorSearcher> searchers, int numResults,
+										   BlockingQueue<List<ObjectVector>> batches) throws InterruptedException {
+		ScanShard[] shards = newShards(searchers, numResults);
+		RuntimeException failure = null;
+		List<ObjectVector> batch;
+		while ((batch = batches.take()) != END_OF_SCAN) {
+			if (failure != null) continue;
+			try {
+				for (ObjectVector candidate : batch) {
+					offerToAll(shards, candidate);
+				}
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) throw failure;
+		return shards;
+	}
+
+	private static ExecutorService getSearchExecutor(int numThreads) {
+		return searchExecutors.computeIfAbsent(numThreads, n -> Executors.newFixedThreadPool(n, runnable -> {
+			Thread thread = new Thread(runnable, "semanticvectors-search");
+			thread.setDaemon(true);
+			return thread;
+		}));
+	}
+
+	/**
+	 * The best results, and score statistics, over one portion of the candidates of a search.
+	 */
+	private class ScanShard {
+		private final SearchResultHeap heap;
+		private final double minScore;
+		// Counters for statistics to calculate standard deviation
+		private double sum = 0, sumsquared = 0;
+		private int count = 0;
+
+		ScanShard(int numResults) {
+			this.heap = new SearchResultHeap(numResults);
+			this.minScore = flagConfig.stdev() ? 0 : flagConfig.searchresultsminscore();
+		}
+
+		void offer(ObjectVector testElement) {
+			double score = weigh(getScore(testElement.getVector()), testElement.getObject());
+			if (accepts(score)) {
+				heap.offer(score, testElement);
+			}
+		}
+
+		/**
+		 * Offers a row of a packed store, only copying its vector out of the store if it is kept.
+		 */
+		void offer(PackedVectorStore store, PackedVectorStore.RowScorer scorer, int row) {
+			double score = weigh(scorer.score(row), store.getObject(row));
+			if (accepts(score)) {
+				heap.offer(score, store.getObjectVector(row));
+			}
+		}
+
+		private double weigh(double score, Object object) {
 			// This is a way of using the Lucene Index to get term and
 			// document frequency information to reweight all results. It
 			// seems to be good at moving excessively common terms further
 			// down the results. Note that using this means that scores
 			// returned are no longer just cosine similarities.
-			if (this.luceneUtils != null && flagConfig.usetermweightsintermsearch()) {
-				score = score * luceneUtils.getGlobalTermWeightFromString((String) testElement.getObject());
+			if (luceneUtils != null && flagConfig.usetermweightsintermsearch()) {
+				score = score * luceneUtils.getGlobalTermWeightFromString((String) object);
 			}
 
 			if (flagConfig.stdev()) {
@@ -234,36 +473,30 @@ abstract public class VectorSearcher {
 				if (!Double.isNaN(susq)) {
 					count++;
 					sum += score;
-					sumsquared += Math.pow(score, 2);
+					sumsquared += susq;
 				}
 			}
-
-			if (score > threshold) {
-				// set existing object in buffer space
-				if (score > tmpResults.last().getScore()) {
-					tmpResults.pollLast();
-					tmpResults.add(new SearchResult(score, testElement));
-
-					threshold = tmpResults.last().getScore();
-				}
-			}
-
+			return score;
 		}
 
-		Iterator<SearchResult> searchResultIterator = tmpResults.iterator();
-		while (searchResultIterator.hasNext()) {
-			SearchResult result = searchResultIterator.next();
-			if (result.getScore() == unsetScore || result.getScore() < flagConfig.searchresultsminscore())
-				break;
+		private boolean accepts(double score) {
+			return score > minScore && score > heap.minScore();
+		}
 
-			results.add(result);
-			if (results.size() == numResults)
-				break;
+		VectorSearcher searcher() {
+			return VectorSearcher.this;
 		}
 
-		if (flagConfig.stdev()) results = transformToStats(results, count, sum, sumsquared);
+		void merge(ScanShard other) {
+			heap.addAll(other.heap);
+			count += other.count;
+			sum += other.sum;
+			sumsquared += other.sumsquared;
+		}
 
-		return results;
+		LinkedList<SearchResult> getResults() {
+			return heap.drainSorted();
+		}
 	}
 
 	/**
@@ -281,30 +514,75 @@ abstract public class VectorSearcher {
 	 * @param threshold minimum score required to get into results list.
 	 */
 	public LinkedList<SearchResult> getAllAboveThreshold(float threshold) {
-		LinkedList<SearchResult> results = new LinkedList<SearchResult>();
-		double score;
-
-		Enumeration<ObjectVector> vecEnum = null;
-		vecEnum = searchVecStore.getAllVectors();
-
-		while (vecEnum.hasMoreElements()) {
-			// Test this element.
-			ObjectVector testElement = vecEnum.nextElement();
-			if (testElement == null) score = Float.MIN_VALUE;
-			else {
+		SearchResultHeap matches = SearchResultHeap.unbounded();
+		iterateAllAboveThreshold(threshold).forEachRemaining(
+				result -> matches.offer(result.getScore(), result.getObjectVector()));
+		return matches.drainSorted();
+	}
 
-				Vector testVector = testElement.getVector();
-				score = getScore(testVector);
+	/**
+	 * Returns the results above the threshold, as {@link #getAllAboveThreshold(float)} does, but in the order of the
+	 * search store and without keeping them: each vector is scored when the iterator gets to it, so memory does not
+	 * grow with the number of results.
+	 *
+	 * @param threshold minimum score required to get into results list.
+	 */
+	public Iterator<SearchResult> iterateAllAboveThreshold(float threshold) {
+		Enumeration<ObjectVector> vecEnum = searchVecStore.getAllVectors();
+		return new Iterator<SearchResult>() {
+			SearchResult next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && vecEnum.hasMoreElements()) {
+					ObjectVector testElement = vecEnum.nextElement();
+					double score = testElement == null ? Float.MIN_VALUE : getScore(testElement.getVector());
+					if (score > threshold || threshold == Float.MIN_VALUE)
+						next = new SearchResult(score, testElement);
+				}
+				return next != null;
+			}
 
+			@Override
+			public SearchResult next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				SearchResult result = next;
+				next = null;
+				return result;
 			}
+		};
+	}
+
+	/**
+	 * Passes each result above the threshold to the consumer as it is found, in the order of the search store.
+	 *
+	 * @param threshold minimum score required to get into results list.
+	 */
+	public void getAllAboveThreshold(float threshold, Consumer<SearchResult> consumer) {
+		iterateAllAboveThreshold(threshold).forEachRemaining(consumer);
+	}
 
-			if (score > threshold || threshold == Float.MIN_VALUE) {
-				results.add(new SearchResult(score, testElement));
+	/**
+	 * Returns the results above the threshold sorted by descending score, as {@link #getAllAboveThreshold(float)}
+	 * does, keeping at most {@link FlagConfig#thresholdspilllimit()} of them in memory and spilling the others to
+	 * temporary files. The sorter should be closed if it is not iterated to the end.
+	 *
+	 * @param threshold minimum score required to get into results list.
+	 */
+	public SpillingSearchResultSorter getAllAboveThresholdSorted(float threshold) throws IOException {
+		SpillingSearchResultSorter sorter = new SpillingSearchResultSorter(flagConfig, flagConfig.thresholdspilllimit());
+		try {
+			Iterator<SearchResult> results = iterateAllAboveThreshold(threshold);
+			while (results.hasNext()) {
+				SearchResult result = results.next();
+				sorter.add(result.getScore(), result.getObjectVector());
 			}
+		} catch (IOException | RuntimeException e) {
+			sorter.close();
+			throw e;
 		}
-
-		Collections.sort(results);
-		return results;
+		return sorter;
 	}
 
 	/**
@@ -325,11 +603,18 @@ abstract public class VectorSearcher {
 		public double getScore(Vector testVector) {
 			return queryVector.measureOverlap(testVector);
 		}
+
+		@Override
+		protected Vector getOverlapQuery() {
+			return queryVector;
+		}
 	}
 
 	/**
 	 * Class for searching a vector store using cosine similarity.
 	 * Takes a sum of positive query terms and optionally negates some terms.
+	 * When LSH is enabled, candidates come from the LSH store of the search store. Until a missing LSH store has been
+	 * built in the background, the whole store is scanned, unless {@link FlagConfig#lsh_blocking_build()} is set.
 	 */
 	static public class VectorSearcherCosine extends VectorSearcher {
 		Vector queryVector;
@@ -375,29 +660,306 @@ abstract public class VectorSearcher {
 
 
 		@Override
-		public LinkedList<SearchResult> getNearestNeighbors(int numResults) {
-			// If the number of allowed different bits equals the number of hash vectors we skip the whole LSH logic
-			if (flagConfig.lsh_hashes_num() == flagConfig.lsh_max_bits_diff())
-				return super.getNearestNeighbors(numResults);
+		protected boolean scansWholeStore() {
 			// LSH is supported only for VectorStoreReaderLucene vector stores
 			if (!(searchVecStore instanceof VectorStoreReaderLucene))
+				return true;
+			// If the number of allowed different bits equals the number of hash vectors we skip the whole LSH logic,
+			// unless the store was tuned by LSHTuner
+			return LSHStoreFactory.INSTANCE.getSetting(
+					((VectorStoreReaderLucene) searchVecStore).getVectorFile(), flagConfig) == null;
+		}
+
+		@Override
+		public LinkedList<SearchResult> getNearestNeighbors(int numResults) {
+			if (scansWholeStore())
 				return super.getNearestNeighbors(numResults);
 
+			File vecStoreFile = ((VectorStoreReaderLucene) searchVecStore).getVectorFile();
+			LSHStoreFactory.Handle lshHandle = flagConfig.lsh_blocking_build()
+					? LSHStoreFactory.INSTANCE.acquire(vecStoreFile, flagConfig)
+					: LSHStoreFactory.INSTANCE.tryAcquire(vecStoreFile, flagConfig);
+			if (lshHandle == null) {
+				logger.fine("LSH store is being built, scanning the whole store");
+				return super.getNearestNeighbors(numResults);
+			}
+
 			logger.fine("Getting vector candidates from vector cache");
-			Enumeration<ObjectVector> vecs = null;
-			try {
-				vecs = LSHStoreFactory.INSTANCE.getStore(((VectorStoreReaderLucene) searchVecStore).getVectorFile(), flagConfig).getSimilar(queryVector);
+			// The handle keeps the store open while its candidates are read
+			try (LSHStoreFactory.Handle handle = lshHandle) {
+				Enumeration<ObjectVector> vecs = handle.getStore().getSimilar(queryVector);
+				return super.getNearest(numResults, vecs);
 			} catch (IOException e) {
 				logger.severe(e.getMessage());
 				return null;
 			}
-			return super.getNearest(numResults, vecs);
 		}
 
 		@Override
 		public double getScore(Vector testVector) {
 			return this.queryVector.measureOverlap(testVector);
 		}
+
+		@Override
+		protected Vector getOverlapQuery() {
+			return queryVector;
+		}
+	}
+
+	/**
+	 * Cosine similarity searcher that takes its candidates from an {@link HnswIndex} of the search
+	 * vectors instead of scoring the whole store. The index is read or built on first use by
+	 * {@link HnswIndexFactory}, which only supports stores in Lucene format; other stores are searched
+	 * exhaustively, as by {@link VectorSearcherCosine}.
+	 */
+	static public class VectorSearcherHnsw extends VectorSearcherCosine {
+
+		/**
+		 * @param queryVecStore  Vector store to use for query generation.
+		 * @param searchVecStore The vector store to search.
+		 * @param luceneUtils    LuceneUtils object to use for query weighting. (May be null.)
+		 * @param queryTerms     Terms that will be parsed into a query
+		 *                       expression. If the string "NOT" appears, terms after this will be negated.
+		 */
+		public VectorSearcherHnsw(
+				VectorStore queryVecStore, VectorStore searchVecStore,
+				LuceneUtils luceneUtils, FlagConfig flagConfig, String[] queryTerms)
+				throws ZeroVectorException {
+			super(queryVecStore, searchVecStore, luceneUtils, flagConfig, queryTerms);
+		}
+
+		/**
+		 * @param queryVecStore  Vector store to use for query generation.
+		 * @param searchVecStore The vector store to search.
+		 * @param luceneUtils    LuceneUtils object to use for query weighting. (May be null.)
+		 * @param queryVector    Vector representing query expression.
+		 */
+		public VectorSearcherHnsw(
+				VectorStore queryVecStore, VectorStore searchVecStore,
+				LuceneUtils luceneUtils, FlagConfig flagConfig, Vector queryVector)
+				throws ZeroVectorException {
+			super(queryVecStore, searchVecStore, luceneUtils, flagConfig, queryVector);
+		}
+
+		@Override
+		protected boolean scansWholeStore() {
+			return !(searchVecStore instanceof VectorStoreReaderLucene);
+		}
+
+		@Override
+		public LinkedList<SearchResult> getNearestNeighbors(int numResults) {
+			if (scansWholeStore())
+				return super.getNearestNeighbors(numResults);
+
+			HnswIndex index = HnswIndexFactory.INSTANCE.getIndex(
+					((VectorStoreReaderLucene) searchVecStore).getVectorFile(), flagConfig);
+			// The index finds the ef most similar vectors, which are then weighted and ranked as usual.
+			List<ObjectVector> candidates = new ArrayList<>();
+			for (SearchResult result : index.search(queryVector,
+					Math.max(flagConfig.hnsw_efsearch(), numResults), flagConfig.hnsw_efsearch())) {
+				candidates.add(result.getObjectVector());
+			}
+			return getNearest(numResults, Collections.enumeration(candidates));
+		}
+	}
+
+	/**
+	 * Cosine similarity searcher that only scores the vectors in the cells of an {@link IvfStore} whose
+	 * centroids are nearest to the query. The cells are read or trained on first use by
+	 * {@link IvfStoreFactory}, which only supports stores in Lucene format; other stores are searched
+	 * exhaustively, as by {@link VectorSearcherCosine}.
+	 */
+	static public class VectorSearcherIvf extends VectorSearcherCosine {
+
+		/**
+		 * @param queryVecStore  Vector store to use for query generation.
+		 * @param searchVecStore The vector store to search.
+		 * @param luceneUtils    LuceneUtils object to use for query weighting. (May be null.)
+		 * @param queryTerms     Terms that will be parsed into a query
+		 *                       expression. If the string "NOT" appears, terms after this will be negated.
+		 */
+		public VectorSearcherIvf(
+				VectorStore queryVecStore, VectorStore searchVecStore,
+				LuceneUtils luceneUtils, FlagConfig flagConfig, String[] queryTerms)
+				throws ZeroVectorException {
+			super(queryVecStore, searchVecStore, luceneUtils, flagConfig, queryTerms);
+		}
+
+		/**
+		 * @param queryVecStore  Vector store to use for query generation.
+		 * @param searchVecStore The vector store to search.
+		 * @param luceneUtils    LuceneUtils object to use for query weighting. (May be null.)
+		 * @param queryVector    Vector representing query expression.
+		 */
+		public VectorSearcherIvf(
+				VectorStore queryVecStore, VectorStore searchVecStore,
+				LuceneUtils luceneUtils, FlagConfig flagConfig, Vector queryVector)
+				throws ZeroVectorException {
+			super(queryVecStore, searchVecStore, luceneUtils, flagConfig, queryVector);
+		}
+
+		@Override
+		protected boolean scansWholeStore() {
+			return !(searchVecStore instanceof VectorStoreReaderLucene);
+		}
+
+		@Override
+		public LinkedList<SearchResult> getNearestNeighbors(int numResults) {
+			if (scansWholeStore())
+				return super.getNearestNeighbors(numResults);
+
+			logger.fine("Getting vector candidates from IVF cells");
+			// The handle keeps the store open while its cells are scanned
+			try (IvfStoreFactory.Handle handle = IvfStoreFactory.INSTANCE.acquire(
+					((VectorStoreReaderLucene) searchVecStore).getVectorFile(), flagConfig)) {
+				return getNearest(numResults, handle.getStore().getSimilar(queryVector));
+			} catch (IOException e) {
+				logger.severe(e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Cosine similarity searcher for binary vectors that takes the vectors nearest to the query in Hamming distance
+	 * from a {@link MihIndex} of the search vectors. The candidates are exactly the nearest, so results are those of
+	 * an exhaustive search. The index is built on first use by {@link MihIndexFactory}, which only supports stores in
+	 * Lucene format; other stores are searched exhaustively, as by {@link VectorSearcherCosine}.
+	 */
+	static public class VectorSearcherMih extends VectorSearcherCosine {
+
+		/**
+		 * @param queryVecStore  Vector store to use for query generation.
+		 * @param searchVecStore The vector store to search.
+		 * @param luceneUtils    LuceneUtils object to use for query weighting. (May be null.)
+		 * @param queryTerms     Terms that will be parsed into a query
+		 *                       expression. If the string "NOT" appears, terms after this will be negated.
+		 */
+		public VectorSearcherMih(
+				VectorStore queryVecStore, VectorStore searchVecStore,
+				LuceneUtils luceneUtils, FlagConfig flagConfig, String[] queryTerms)
+				throws ZeroVectorException {
+			super(queryVecStore, searchVecStore, luceneUtils, flagConfig, queryTerms);
+		}
+
+		/**
+		 * @param queryVecStore  Vector store to use for query generation.
+		 * @param searchVecStore The vector store to search.
+		 * @param luceneUtils    LuceneUtils object to use for query weighting. (May be null.)
+		 * @param queryVector    Vector representing query expression.
+		 */
+		public VectorSearcherMih(
+				VectorStore queryVecStore, VectorStore searchVecStore,
+				LuceneUtils luceneUtils, FlagConfig flagConfig, Vector queryVector)
+				throws ZeroVectorException {
+			super(queryVecStore, searchVecStore, luceneUtils, flagConfig, queryVector);
+		}
+
+		@Override
+		protected boolean scansWholeStore() {
+			return !(searchVecStore instanceof VectorStoreReaderLucene) || queryVector.getVectorType() != VectorType.BINARY;
+		}
+
+		@Override
+		public LinkedList<SearchResult> getNearestNeighbors(int numResults) {
+			if (scansWholeStore())
+				return super.getNearestNeighbors(numResults);
+
+			MihIndex index = MihIndexFactory.INSTANCE.getIndex(
+					((VectorStoreReaderLucene) searchVecStore).getVectorFile(), flagConfig);
+			// The index finds the nearest vectors, which are then weighted and ranked as usual.
+			List<ObjectVector> candidates = new ArrayList<>();
+			for (SearchResult result : index.search(queryVector, numResults)) {
+				candidates.add(result.getObjectVector());
+			}
+			return getNearest(numResults, Collections.enumeration(candidates));
+		}
+	}
+
+	/**
+	 * Cosine similarity searcher for a store of compressed vectors, such as a
+	 * {@link VectorStoreQuantizedReal} or a {@link VectorStoreProductQuantized}, whose scores are approximate. The best
+	 * {@link FlagConfig#rerankcandidates()} results are scored again with their full precision vectors
+	 * from a second store, usually the one the compressed store was made from.
+	 */
+	static public class VectorSearcherCompressed extends VectorSearcherCosine {
+		private final VectorStore rerankVecStore;
+
+		/**
+		 * @param queryVecStore  Vector store to use for query generation.
+		 * @param searchVecStore The store of compressed vectors to search.
+		 * @param rerankVecStore The store of full precision vectors to re-rank with. (May be null.)
+		 * @param luceneUtils    LuceneUtils object to use for query weighting. (May be null.)
+		 * @param queryTerms     Terms that will be parsed into a query
+		 *                       expression. If the string "NOT" appears, terms after this will be negated.
+		 */
+		public VectorSearcherCompressed(
+				VectorStore queryVecStore, VectorStore searchVecStore, VectorStore rerankVecStore,
+				LuceneUtils luceneUtils, FlagConfig flagConfig, String[] queryTerms)
+				throws ZeroVectorException {
+			super(queryVecStore, searchVecStore, luceneUtils, flagConfig, queryTerms);
+			this.rerankVecStore = rerankVecStore;
+		}
+
+		/**
+		 * @param queryVecStore  Vector store to use for query generation.
+		 * @param searchVecStore The store of compressed vectors to search.
+		 * @param rerankVecStore The store of full precision vectors to re-rank with. (May be null.)
+		 * @param luceneUtils    LuceneUtils object to use for query weighting. (May be null.)
+		 * @param queryVector    Vector representing query expression.
+		 */
+		public VectorSearcherCompressed(
+				VectorStore queryVecStore, VectorStore searchVecStore, VectorStore rerankVecStore,
+				LuceneUtils luceneUtils, FlagConfig flagConfig, Vector queryVector)
+				throws ZeroVectorException {
+			super(queryVecStore, searchVecStore, luceneUtils, flagConfig, queryVector);
+			this.rerankVecStore = rerankVecStore;
+		}
+
+		private boolean reranks() {
+			return rerankVecStore != null && flagConfig.rerankcandidates() > 0;
+		}
+
+		@Override
+		protected boolean scansWholeStore() {
+			return !reranks() && super.scansWholeStore();
+		}
+
+		@Override
+		public LinkedList<SearchResult> getNearestNeighbors(int numResults) {
+			if (!reranks())
+				return super.getNearestNeighbors(numResults);
+
+			LinkedList<SearchResult> shortlist = scanStore(Collections.singletonList(this),
+					Math.max(numResults, flagConfig.rerankcandidates()), searchVecStore).get(0);
+			List<ObjectVector> fullVectors = new ArrayList<>(shortlist.size());
+			try {
+				for (SearchResult result : shortlist) {
+					ObjectVector fullVector = getFullPrecisionVector(result.getObjectVector().getObject());
+					if (fullVector != null)
+						fullVectors.add(fullVector);
+				}
+			} catch (IOException e) {
+				logger.severe(e.getMessage());
+				return null;
+			}
+			return getNearest(numResults, Collections.enumeration(fullVectors));
+		}
+
+		/**
+		 * Reads the vector of a compressed store from its recorded position in the source file where
+		 * possible, otherwise looks it up in the re-ranking store.
+		 */
+		private ObjectVector getFullPrecisionVector(Object object) throws IOException {
+			if (searchVecStore instanceof CompressedVectorStore && rerankVecStore instanceof VectorStoreReaderLucene) {
+				ObjectVector fullVector = ((CompressedVectorStore) searchVecStore)
+						.readSourceVector((VectorStoreReaderLucene) rerankVecStore, object);
+				if (fullVector != null)
+					return fullVector;
+			}
+			Vector vector = rerankVecStore.getVector(object);
+			return vector == null ? null : new ObjectVector(object, vector);
+		}
 	}
 
 	/**
@@ -1011,6 +1573,11 @@ abstract public class VectorSearcher {
 			}
 		}
 
+		@Override
+		protected boolean scansWholeStore() {
+			return false;
+		}
+
 		/**
 		 * This overrides the nearest neighbor class implemented in the abstract
 		 * {@code VectorSearcher} class.
@@ -1138,6 +1705,11 @@ abstract public class VectorSearcher {
 
 		}
 
+		@Override
+		protected boolean scansWholeStore() {
+			return false;
+		}
+
 		/**
 		 * This overrides the nearest neighbor class implemented in the abstract
 		 * {@code VectorSearcher} class.
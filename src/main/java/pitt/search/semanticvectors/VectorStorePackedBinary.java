@@ -0,0 +1,205 @@
+package pitt.search.semanticvectors;
+
+import pitt.search.semanticvectors.vectors.BinaryVector;
+import pitt.search.semanticvectors.vectors.IncompatibleVectorsException;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Immutable in-memory store of {@link VectorType#BINARY} vectors, with the bits of all vectors packed
+ * row by row into a single {@code long[]}.
+ * <p>
+ * {@link VectorSearcher} scores this store with {@link #overlap}, which counts the differing bits
+ * with one {@link Long#bitCount} of {@code a ^ b} per word, instead of the two
+ * {@code andNotCount} passes over separate bit sets made by {@link BinaryVector#measureOverlap}.
+ * Through the {@link VectorStore} interface the store behaves like any other: {@link #getVector}
+ * and {@link #getAllVectors} return copies of the packed bits.
+ */
+public class VectorStorePackedBinary implements PackedVectorStore {
+	private static final Logger logger = Logger.getLogger(VectorStorePackedBinary.class.getCanonicalName());
+
+	private final int dimension;
+	private final int words;
+	private final int numVectors;
+	private final Object[] objects;
+	private final long[] bits;
+	private final boolean[] zeroVectors;
+	private final HashMap<Object, Integer> rows;
+
+	private VectorStorePackedBinary(int dimension, int numVectors, Object[] objects, long[] bits,
+									boolean[] zeroVectors) {
+		this.dimension = dimension;
+		this.words = dimension / 64;
+		this.numVectors = numVectors;
+		this.objects = objects;
+		this.bits = bits;
+		this.zeroVectors = zeroVectors;
+		this.rows = new HashMap<>(2 * numVectors);
+		for (int row = 0; row < numVectors; row++) {
+			rows.put(objects[row], row);
+		}
+	}
+
+	/**
+	 * Packs the vectors of the given store, which must be of {@link VectorType#BINARY} vectors of
+	 * {@link FlagConfig#dimension()}. Votes that have not been tallied are ignored, as they are by
+	 * {@link BinaryVector#measureOverlap}.
+	 */
+	public static VectorStorePackedBinary createFromVectorStore(VectorStore source, FlagConfig flagConfig) {
+		if (flagConfig.vectortype() != VectorType.BINARY) {
+			throw new IllegalArgumentException("Packed binary vector stores only work with VectorType.BINARY vectors.");
+		}
+		int dimension = flagConfig.dimension();
+		int words = dimension / 64;
+		int capacity = Math.max(source.getNumVectors(), 1);
+		checkSize(capacity, words);
+		Object[] objects = new Object[capacity];
+		long[] bits = new long[capacity * words];
+		boolean[] zeroVectors = new boolean[capacity];
+
+		int numVectors = 0;
+		Enumeration<ObjectVector> vectorEnumeration = source.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			ObjectVector objectVector = vectorEnumeration.nextElement();
+			Vector vector = objectVector.getVector();
+			if (vector.getVectorType() != VectorType.BINARY || vector.getDimension() != dimension) {
+				throw new IncompatibleVectorsException("Cannot pack vector of type " + vector.getVectorType()
+						+ " and dimension " + vector.getDimension() + " into a store of dimension " + dimension);
+			}
+			if (numVectors == capacity) {
+				capacity = 2 * capacity;
+				checkSize(capacity, words);
+				objects = Arrays.copyOf(objects, capacity);
+				bits = Arrays.copyOf(bits, capacity * words);
+				zeroVectors = Arrays.copyOf(zeroVectors, capacity);
+			}
+			System.arraycopy(((BinaryVector) vector).getBits(), 0, bits, numVectors * words, words);
+			zeroVectors[numVectors] = vector.isZeroVector();
+			objects[numVectors++] = objectVector.getObject();
+		}
+
+		logger.fine("Packed " + numVectors + " vectors of dimension " + dimension);
+		return new VectorStorePackedBinary(dimension, numVectors, objects, bits, zeroVectors);
+	}
+
+	/**
+	 * Returns a new packed store, read from the given vector file in the format of
+	 * {@link FlagConfig#indexfileformat()}.
+	 * <p>
+	 * Dimension and vector type from store on disk may overwrite any previous values in flagConfig.
+	 */
+	public static VectorStorePackedBinary readFromFile(FlagConfig flagConfig, String vectorFile) throws IOException {
+		if (vectorFile.isEmpty()) {
+			throw new IllegalArgumentException("vectorFile argument cannot be empty.");
+		}
+		CloseableVectorStore vectorReaderDisk = VectorStoreReader.openVectorStore(vectorFile, flagConfig);
+		try {
+			return createFromVectorStore(vectorReaderDisk, flagConfig);
+		} finally {
+			vectorReaderDisk.close();
+		}
+	}
+
+	private static void checkSize(long numVectors, int words) {
+		if (numVectors * words > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many words to pack in one array: "
+					+ numVectors + " vectors of " + words + " words");
+		}
+	}
+
+	/**
+	 * Returns the number of bits in which the vector at {@code row} differs from the given query bits.
+	 */
+	public long hammingDistance(int row, long[] query) {
+		int offset = row * words;
+		long distance = 0;
+		for (int i = 0; i < words; i++) {
+			distance += Long.bitCount(query[i] ^ bits[offset + i]);
+		}
+		return distance;
+	}
+
+	/**
+	 * Returns the overlap of the vector at {@code row} with the given query bits, as computed by
+	 * {@link BinaryVector#measureOverlap}, or 0 if either of them is a zero vector.
+	 */
+	public double overlap(int row, long[] query, boolean queryIsZero) {
+		if (queryIsZero || zeroVectors[row]) {
+			return 0;
+		}
+		double hammingDistance = hammingDistance(row, query);
+		return 2 * (0.5 - (hammingDistance / (double) dimension));
+	}
+
+	@Override
+	public RowScorer getScorer(Vector query) {
+		if (query.getVectorType() != VectorType.BINARY || query.getDimension() != dimension) {
+			return null;
+		}
+		long[] queryBits = Arrays.copyOf(((BinaryVector) query).getBits(), words);
+		boolean queryIsZero = query.isZeroVector();
+		return row -> overlap(row, queryBits, queryIsZero);
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	@Override
+	public Object getObject(int row) {
+		return objects[row];
+	}
+
+	@Override
+	public ObjectVector getObjectVector(int row) {
+		return new ObjectVector(objects[row], copyRow(row));
+	}
+
+	private BinaryVector copyRow(int row) {
+		int offset = row * words;
+		return new BinaryVector(Arrays.copyOfRange(bits, offset, offset + words), dimension);
+	}
+
+	@Override
+	public Vector getVector(Object object) {
+		Integer row = rows.get(object);
+		return row == null ? null : copyRow(row);
+	}
+
+	@Override
+	public boolean containsVector(Object object) {
+		return rows.containsKey(object);
+	}
+
+	@Override
+	public Enumeration<ObjectVector> getAllVectors() {
+		return new Enumeration<ObjectVector>() {
+			private int row = 0;
+
+			@Override
+			public boolean hasMoreElements() {
+				return row < numVectors;
+			}
+
+			@Override
+			public ObjectVector nextElement() {
+				if (row >= numVectors) {
+					throw new NoSuchElementException();
+				}
+				return getObjectVector(row++);
+			}
+		};
+	}
+
+	@Override
+	public int getNumVectors() {
+		return numVectors;
+	}
+}
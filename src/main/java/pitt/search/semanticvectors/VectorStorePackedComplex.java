@@ -0,0 +1,236 @@
+package pitt.search.semanticvectors;
+
+import pitt.search.semanticvectors.vectors.CircleLookupTable;
+import pitt.search.semanticvectors.vectors.ComplexVector;
+import pitt.search.semanticvectors.vectors.IncompatibleVectorsException;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Immutable in-memory store of {@link VectorType#COMPLEX} vectors, with the
+ * {@link ComplexVector.Mode#POLAR_DENSE} phase angles of all vectors packed row by row into a single
+ * {@code short[]}.
+ * <p>
+ * {@link VectorSearcher} scores this store with {@link #overlap}, the mean cosine of the phase angle
+ * differences that {@link ComplexVector#measureOverlap} computes in {@link ComplexVector.Mode#POLAR_DENSE}
+ * mode. Unlike {@link ComplexVector#measureOverlap}, which converts both vectors to that mode in
+ * place, scoring neither changes the query nor allocates per candidate, so several threads can share
+ * a query. Rows are only scored this way while {@link ComplexVector#getDominantMode()} is
+ * {@link ComplexVector.Mode#POLAR_DENSE}; for other modes searches enumerate the store as usual.
+ */
+public class VectorStorePackedComplex implements PackedVectorStore {
+	private static final Logger logger = Logger.getLogger(VectorStorePackedComplex.class.getCanonicalName());
+
+	private final int dimension;
+	private final int numVectors;
+	private final Object[] objects;
+	private final short[] phaseAngles;
+	private final boolean[] zeroVectors;
+	private final HashMap<Object, Integer> rows;
+	/** Cosine of each phase angle difference, as given by {@link CircleLookupTable#getRealEntry}. */
+	private final float[] cosines;
+
+	private VectorStorePackedComplex(int dimension, int numVectors, Object[] objects, short[] phaseAngles,
+									 boolean[] zeroVectors) {
+		this.dimension = dimension;
+		this.numVectors = numVectors;
+		this.objects = objects;
+		this.phaseAngles = phaseAngles;
+		this.zeroVectors = zeroVectors;
+		this.rows = new HashMap<>(2 * numVectors);
+		for (int row = 0; row < numVectors; row++) {
+			rows.put(objects[row], row);
+		}
+		this.cosines = new float[CircleLookupTable.PHASE_RESOLUTION];
+		for (short i = 0; i < CircleLookupTable.PHASE_RESOLUTION; i++) {
+			cosines[i] = CircleLookupTable.getRealEntry(i);
+		}
+	}
+
+	/**
+	 * Packs the vectors of the given store, which must be of {@link VectorType#COMPLEX} vectors of
+	 * {@link FlagConfig#dimension()}. The vectors of the source store are left in their current mode.
+	 */
+	public static VectorStorePackedComplex createFromVectorStore(VectorStore source, FlagConfig flagConfig) {
+		if (flagConfig.vectortype() != VectorType.COMPLEX) {
+			throw new IllegalArgumentException("Packed complex vector stores only work with VectorType.COMPLEX vectors.");
+		}
+		int dimension = flagConfig.dimension();
+		int capacity = Math.max(source.getNumVectors(), 1);
+		checkSize(capacity, dimension);
+		Object[] objects = new Object[capacity];
+		short[] phaseAngles = new short[capacity * dimension];
+		boolean[] zeroVectors = new boolean[capacity];
+
+		int numVectors = 0;
+		Enumeration<ObjectVector> vectorEnumeration = source.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			ObjectVector objectVector = vectorEnumeration.nextElement();
+			Vector vector = objectVector.getVector();
+			if (vector.getVectorType() != VectorType.COMPLEX || vector.getDimension() != dimension) {
+				throw new IncompatibleVectorsException("Cannot pack vector of type " + vector.getVectorType()
+						+ " and dimension " + vector.getDimension() + " into a store of dimension " + dimension);
+			}
+			if (numVectors == capacity) {
+				capacity = 2 * capacity;
+				checkSize(capacity, dimension);
+				objects = Arrays.copyOf(objects, capacity);
+				phaseAngles = Arrays.copyOf(phaseAngles, capacity * dimension);
+				zeroVectors = Arrays.copyOf(zeroVectors, capacity);
+			}
+			zeroVectors[numVectors] = vector.isZeroVector();
+			System.arraycopy(getDensePhaseAngles((ComplexVector) vector), 0, phaseAngles, numVectors * dimension, dimension);
+			objects[numVectors++] = objectVector.getObject();
+		}
+
+		logger.fine("Packed " + numVectors + " vectors of dimension " + dimension);
+		return new VectorStorePackedComplex(dimension, numVectors, objects, phaseAngles, zeroVectors);
+	}
+
+	/**
+	 * Returns a new packed store, read from the given vector file in the format of
+	 * {@link FlagConfig#indexfileformat()}.
+	 * <p>
+	 * Dimension and vector type from store on disk may overwrite any previous values in flagConfig.
+	 */
+	public static VectorStorePackedComplex readFromFile(FlagConfig flagConfig, String vectorFile) throws IOException {
+		if (vectorFile.isEmpty()) {
+			throw new IllegalArgumentException("vectorFile argument cannot be empty.");
+		}
+		CloseableVectorStore vectorReaderDisk = VectorStoreReader.openVectorStore(vectorFile, flagConfig);
+		try {
+			return createFromVectorStore(vectorReaderDisk, flagConfig);
+		} finally {
+			vectorReaderDisk.close();
+		}
+	}
+
+	private static void checkSize(long numVectors, int dimension) {
+		if (numVectors * dimension > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many phase angles to pack in one array: "
+					+ numVectors + " vectors of dimension " + dimension);
+		}
+	}
+
+	/**
+	 * Returns the phase angles of the vector in {@link ComplexVector.Mode#POLAR_DENSE} mode, converting a
+	 * copy if the vector is in another mode.
+	 */
+	private static short[] getDensePhaseAngles(ComplexVector vector) {
+		if (vector.getPhaseAngles() == null) {
+			if (vector.isZeroVector()) {
+				short[] zeroAngles = new short[vector.getDimension()];
+				Arrays.fill(zeroAngles, CircleLookupTable.ZERO_INDEX);
+				return zeroAngles;
+			}
+			vector = vector.copy();
+			vector.toDensePolar();
+		}
+		return vector.getPhaseAngles();
+	}
+
+	/**
+	 * Returns the overlap of the vector at {@code row} with the given query phase angles, as computed by
+	 * {@link ComplexVector#measureOverlap} in {@link ComplexVector.Mode#POLAR_DENSE} mode, or 0 if either
+	 * of them is a zero vector.
+	 *
+	 * @param queryEntries the number of query phase angles that are not {@link CircleLookupTable#ZERO_INDEX}
+	 */
+	public double overlap(int row, short[] query, int queryEntries, boolean queryIsZero) {
+		if (queryIsZero || zeroVectors[row]) {
+			return 0;
+		}
+		int offset = row * dimension;
+		float sum = 0.0f;
+		for (int i = 0; i < dimension; i++) {
+			short queryAngle = query[i];
+			short angle = phaseAngles[offset + i];
+			if (queryAngle != CircleLookupTable.ZERO_INDEX && angle != CircleLookupTable.ZERO_INDEX) {
+				sum += cosines[Math.abs(queryAngle - angle)];
+			}
+		}
+		return sum / queryEntries;
+	}
+
+	@Override
+	public RowScorer getScorer(Vector query) {
+		if (query.getVectorType() != VectorType.COMPLEX || query.getDimension() != dimension
+				|| ComplexVector.getDominantMode() != ComplexVector.Mode.POLAR_DENSE) {
+			return null;
+		}
+		boolean queryIsZero = query.isZeroVector();
+		short[] queryAngles = Arrays.copyOf(getDensePhaseAngles((ComplexVector) query), dimension);
+		int queryEntries = 0;
+		for (short angle : queryAngles) {
+			if (angle != CircleLookupTable.ZERO_INDEX) ++queryEntries;
+		}
+		int entries = queryEntries;
+		return row -> overlap(row, queryAngles, entries, queryIsZero);
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	@Override
+	public Object getObject(int row) {
+		return objects[row];
+	}
+
+	@Override
+	public ObjectVector getObjectVector(int row) {
+		return new ObjectVector(objects[row], copyRow(row));
+	}
+
+	private Vector copyRow(int row) {
+		if (zeroVectors[row]) {
+			return VectorFactory.createZeroVector(VectorType.COMPLEX, dimension);
+		}
+		int offset = row * dimension;
+		return new ComplexVector(Arrays.copyOfRange(phaseAngles, offset, offset + dimension));
+	}
+
+	@Override
+	public Vector getVector(Object object) {
+		Integer row = rows.get(object);
+		return row == null ? null : copyRow(row);
+	}
+
+	@Override
+	public boolean containsVector(Object object) {
+		return rows.containsKey(object);
+	}
+
+	@Override
+	public Enumeration<ObjectVector> getAllVectors() {
+		return new Enumeration<ObjectVector>() {
+			private int row = 0;
+
+			@Override
+			public boolean hasMoreElements() {
+				return row < numVectors;
+			}
+
+			@Override
+			public ObjectVector nextElement() {
+				if (row >= numVectors) {
+					throw new NoSuchElementException();
+				}
+				return getObjectVector(row++);
+			}
+		};
+	}
+
+	@Override
+	public int getNumVectors() {
+		return numVectors;
+	}
+}
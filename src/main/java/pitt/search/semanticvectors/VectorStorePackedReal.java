@@ -0,0 +1,206 @@
+package pitt.search.semanticvectors;
+
+import pitt.search.semanticvectors.vectors.IncompatibleVectorsException;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Immutable in-memory store of {@link VectorType#REAL} vectors, packed row by row into a single
+ * {@code float[]} with the norm of each vector computed once on loading.
+ * <p>
+ * {@link VectorSearcher} scores this store with {@link #cosine}, which streams through the packed
+ * coordinates instead of calling {@link RealVector#measureOverlap} per candidate. Through the
+ * {@link VectorStore} interface the store behaves like any other: {@link #getVector} and
+ * {@link #getAllVectors} return copies of the packed coordinates, so changing them leaves the store
+ * unchanged.
+ */
+public class VectorStorePackedReal implements PackedVectorStore {
+	private static final Logger logger = Logger.getLogger(VectorStorePackedReal.class.getCanonicalName());
+
+	private final int dimension;
+	private final int numVectors;
+	private final Object[] objects;
+	private final float[] coordinates;
+	private final float[] norms;
+	private final HashMap<Object, Integer> rows;
+
+	private VectorStorePackedReal(int dimension, int numVectors, Object[] objects, float[] coordinates) {
+		this.dimension = dimension;
+		this.numVectors = numVectors;
+		this.objects = objects;
+		this.coordinates = coordinates;
+		this.norms = new float[numVectors];
+		this.rows = new HashMap<>(2 * numVectors);
+		for (int row = 0; row < numVectors; row++) {
+			norms[row] = (float) norm(coordinates, row * dimension, dimension);
+			rows.put(objects[row], row);
+		}
+	}
+
+	/**
+	 * Packs the vectors of the given store, which must be of {@link VectorType#REAL} vectors of
+	 * {@link FlagConfig#dimension()}.
+	 */
+	public static VectorStorePackedReal createFromVectorStore(VectorStore source, FlagConfig flagConfig) {
+		if (flagConfig.vectortype() != VectorType.REAL) {
+			throw new IllegalArgumentException("Packed vector stores only work with VectorType.REAL vectors.");
+		}
+		int dimension = flagConfig.dimension();
+		int capacity = Math.max(source.getNumVectors(), 1);
+		checkSize(capacity, dimension);
+		Object[] objects = new Object[capacity];
+		float[] coordinates = new float[capacity * dimension];
+
+		int numVectors = 0;
+		Enumeration<ObjectVector> vectorEnumeration = source.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			ObjectVector objectVector = vectorEnumeration.nextElement();
+			Vector vector = objectVector.getVector();
+			if (vector.getVectorType() != VectorType.REAL || vector.getDimension() != dimension) {
+				throw new IncompatibleVectorsException("Cannot pack vector of type " + vector.getVectorType()
+						+ " and dimension " + vector.getDimension() + " into a store of dimension " + dimension);
+			}
+			if (numVectors == capacity) {
+				capacity = 2 * capacity;
+				checkSize(capacity, dimension);
+				objects = Arrays.copyOf(objects, capacity);
+				coordinates = Arrays.copyOf(coordinates, capacity * dimension);
+			}
+			System.arraycopy(((RealVector) vector).getCoordinates(), 0, coordinates, numVectors * dimension, dimension);
+			objects[numVectors++] = objectVector.getObject();
+		}
+
+		logger.fine("Packed " + numVectors + " vectors of dimension " + dimension);
+		return new VectorStorePackedReal(dimension, numVectors, objects, coordinates);
+	}
+
+	/**
+	 * Returns a new packed store, read from the given vector file in the format of
+	 * {@link FlagConfig#indexfileformat()}.
+	 * <p>
+	 * Dimension and vector type from store on disk may overwrite any previous values in flagConfig.
+	 */
+	public static VectorStorePackedReal readFromFile(FlagConfig flagConfig, String vectorFile) throws IOException {
+		if (vectorFile.isEmpty()) {
+			throw new IllegalArgumentException("vectorFile argument cannot be empty.");
+		}
+		CloseableVectorStore vectorReaderDisk = VectorStoreReader.openVectorStore(vectorFile, flagConfig);
+		try {
+			return createFromVectorStore(vectorReaderDisk, flagConfig);
+		} finally {
+			vectorReaderDisk.close();
+		}
+	}
+
+	private static void checkSize(long numVectors, int dimension) {
+		if (numVectors * dimension > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many coordinates to pack in one array: "
+					+ numVectors + " vectors of dimension " + dimension);
+		}
+	}
+
+	/**
+	 * Returns the Euclidean norm of {@code length} coordinates, summed in the same way as
+	 * {@link RealVector#measureOverlap}.
+	 */
+	static double norm(float[] coordinates, int offset, int length) {
+		double norm = 0;
+		for (int i = offset; i < offset + length; i++) {
+			norm += coordinates[i] * coordinates[i];
+		}
+		return Math.sqrt(norm);
+	}
+
+	/**
+	 * Returns the cosine similarity of the vector at {@code row} with the given query coordinates, or 0
+	 * if either of them is a zero vector.
+	 *
+	 * @param query     dense coordinates of {@link #getDimension()} length
+	 * @param queryNorm the Euclidean norm of {@code query}
+	 */
+	public double cosine(int row, float[] query, double queryNorm) {
+		double rowNorm = norms[row];
+		if (rowNorm == 0 || queryNorm == 0) {
+			return 0;
+		}
+		int offset = row * dimension;
+		double result = 0;
+		for (int i = 0; i < dimension; i++) {
+			result += query[i] * coordinates[offset + i];
+		}
+		return result / (queryNorm * rowNorm);
+	}
+
+	@Override
+	public RowScorer getScorer(Vector query) {
+		if (query.getVectorType() != VectorType.REAL || query.getDimension() != dimension) {
+			return null;
+		}
+		float[] queryCoordinates = ((RealVector) query).getCoordinates();
+		double queryNorm = norm(queryCoordinates, 0, dimension);
+		return row -> cosine(row, queryCoordinates, queryNorm);
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	@Override
+	public Object getObject(int row) {
+		return objects[row];
+	}
+
+	@Override
+	public ObjectVector getObjectVector(int row) {
+		return new ObjectVector(objects[row], copyRow(row));
+	}
+
+	private RealVector copyRow(int row) {
+		int offset = row * dimension;
+		return new RealVector(Arrays.copyOfRange(coordinates, offset, offset + dimension));
+	}
+
+	@Override
+	public Vector getVector(Object object) {
+		Integer row = rows.get(object);
+		return row == null ? null : copyRow(row);
+	}
+
+	@Override
+	public boolean containsVector(Object object) {
+		return rows.containsKey(object);
+	}
+
+	@Override
+	public Enumeration<ObjectVector> getAllVectors() {
+		return new Enumeration<ObjectVector>() {
+			private int row = 0;
+
+			@Override
+			public boolean hasMoreElements() {
+				return row < numVectors;
+			}
+
+			@Override
+			public ObjectVector nextElement() {
+				if (row >= numVectors) {
+					throw new NoSuchElementException();
+				}
+				return getObjectVector(row++);
+			}
+		};
+	}
+
+	@Override
+	public int getNumVectors() {
+		return numVectors;
+	}
+}
@@ -0,0 +1,551 @@
+package pitt.search.semanticvectors;
+
+import org.apache.lucene.store.IndexInput;
+import pitt.search.semanticvectors.vectors.IncompatibleVectorsException;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Immutable in-memory store of {@link VectorType#REAL} vectors compressed by product quantization.
+ * <p>
+ * The coordinates are split into {@link FlagConfig#pq_subspaces()} contiguous sub-spaces, and each
+ * sub-space has a codebook of up to 256 centroids, learned by k-means clustering of a sample of the
+ * normalized vectors. A vector is stored as the number of the nearest centroid in each sub-space, one
+ * byte per sub-space instead of four bytes per coordinate.
+ * <p>
+ * Queries are not quantized: {@link #getScorer} computes the dot product of each sub-space of the query
+ * with every centroid of that sub-space once, after which scoring a row is a sum of one table lookup per
+ * sub-space. Scores are approximate; {@link VectorSearcher.VectorSearcherCompressed} re-ranks the best of
+ * them with the full precision vectors.
+ */
+public class VectorStoreProductQuantized implements CompressedVectorStore {
+	private static final Logger logger = Logger.getLogger(VectorStoreProductQuantized.class.getCanonicalName());
+
+	static final int MAGIC = 0x50515643;
+	private static final int VERSION = 1;
+
+	/** Largest number of centroids per sub-space, so that centroid numbers fit in a byte. */
+	public static final int MAX_CENTROIDS = 256;
+	/** Number of vectors sampled per centroid to train the codebooks. */
+	public static final int TRAINING_VECTORS_PER_CENTROID = 32;
+	/** Number of k-means iterations for each codebook, unless the assignments converge sooner. */
+	public static final int KMEANS_ITERATIONS = 25;
+	/** Seed for sampling and clustering, fixed so that the same store always gives the same codebooks. */
+	private static final long SEED = 0;
+	/** Rows are kept in slabs of at most this many bytes, so that stores are not limited by array sizes. */
+	private static final int SLAB_BYTES = 1 << 30;
+
+	private final int dimension;
+	private final int numSubspaces;
+	private final int numCentroids;
+	/** Sub-space {@code j} has the coordinates from {@code subspaceStarts[j]} to {@code subspaceStarts[j + 1]}. */
+	private final int[] subspaceStarts;
+	/** Centroid {@code c} of sub-space {@code j} starts at {@code c} times the size of the sub-space in {@code codebooks[j]}. */
+	private final float[][] codebooks;
+	private final int numVectors;
+	private final int rowsPerSlab;
+	private final Object[] objects;
+	private final byte[][] slabs;
+	/** Norm of the quantized approximation of each vector, 0 for zero vectors. */
+	private final float[] norms;
+	/** Position of each vector in the source vector file, or {@code null} if unknown. */
+	private final long[] sourcePositions;
+	private final HashMap<Object, Integer> rows;
+
+	private VectorStoreProductQuantized(float[][] codebooks, int dimension, int numVectors, boolean withSourcePositions) {
+		this.dimension = dimension;
+		this.numSubspaces = codebooks.length;
+		this.subspaceStarts = getSubspaceStarts(dimension, numSubspaces);
+		this.codebooks = codebooks;
+		this.numCentroids = codebooks[0].length / (subspaceStarts[1] - subspaceStarts[0]);
+		this.numVectors = numVectors;
+		this.rowsPerSlab = SLAB_BYTES / numSubspaces;
+		this.objects = new Object[numVectors];
+		this.slabs = new byte[(numVectors + rowsPerSlab - 1) / rowsPerSlab][];
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = new byte[Math.min(rowsPerSlab, numVectors - i * rowsPerSlab) * numSubspaces];
+		}
+		this.norms = new float[numVectors];
+		this.sourcePositions = withSourcePositions ? new long[numVectors] : null;
+		this.rows = new HashMap<>(2 * numVectors);
+	}
+
+	/**
+	 * Splits the dimensions into sub-spaces whose sizes differ by at most one.
+	 */
+	private static int[] getSubspaceStarts(int dimension, int numSubspaces) {
+		if (numSubspaces < 1 || numSubspaces > dimension) {
+			throw new IllegalArgumentException("Cannot split " + dimension + " dimensions into " + numSubspaces
+					+ " sub-spaces for product quantization.");
+		}
+		int[] starts = new int[numSubspaces + 1];
+		for (int j = 0; j <= numSubspaces; j++) {
+			starts[j] = (int) ((long) j * dimension / numSubspaces);
+		}
+		return starts;
+	}
+
+	private static float[] getCoordinates(Vector vector, int dimension) {
+		if (vector.getVectorType() != VectorType.REAL || vector.getDimension() != dimension) {
+			throw new IncompatibleVectorsException("Cannot quantize vector of type " + vector.getVectorType()
+					+ " and dimension " + vector.getDimension() + " into a store of dimension " + dimension);
+		}
+		return vector.isZeroVector() ? new float[dimension] : ((RealVector) vector).getCoordinates();
+	}
+
+	/**
+	 * Returns a normalized copy of the coordinates, or {@code null} for a zero vector.
+	 */
+	private static float[] normalize(float[] coordinates) {
+		double norm = 0;
+		for (float coordinate : coordinates) {
+			norm += coordinate * coordinate;
+		}
+		if (norm == 0) {
+			return null;
+		}
+		float[] normalized = new float[coordinates.length];
+		float scale = (float) (1 / Math.sqrt(norm));
+		for (int i = 0; i < coordinates.length; i++) {
+			normalized[i] = coordinates[i] * scale;
+		}
+		return normalized;
+	}
+
+	/**
+	 * Accumulates a reservoir sample of the normalized non-zero vectors.
+	 */
+	private static class Sampler {
+		final List<float[]> sample = new ArrayList<>();
+		final int sampleSize;
+		final Random random;
+		int seen = 0;
+
+		Sampler(int sampleSize, Random random) {
+			this.sampleSize = sampleSize;
+			this.random = random;
+		}
+
+		void offer(float[] coordinates) {
+			float[] normalized = normalize(coordinates);
+			if (normalized == null) {
+				return;
+			}
+			if (sample.size() < sampleSize) {
+				sample.add(normalized);
+			} else {
+				int slot = random.nextInt(seen + 1);
+				if (slot < sampleSize) sample.set(slot, normalized);
+			}
+			seen++;
+		}
+	}
+
+	/**
+	 * Learns the codebook of each sub-space by k-means clustering of the sample.
+	 */
+	private static float[][] trainCodebooks(List<float[]> sample, int dimension, int numSubspaces, Random random) {
+		if (sample.isEmpty()) {
+			throw new IllegalArgumentException("Cannot train product quantization codebooks without non-zero vectors.");
+		}
+		int[] starts = getSubspaceStarts(dimension, numSubspaces);
+		int numCentroids = Math.min(MAX_CENTROIDS, sample.size());
+		float[][] codebooks = new float[numSubspaces][];
+		for (int j = 0; j < numSubspaces; j++) {
+			codebooks[j] = kMeans(sample, starts[j], starts[j + 1] - starts[j], numCentroids, random);
+		}
+		return codebooks;
+	}
+
+	/**
+	 * Clusters the coordinates from {@code start} to {@code start + length} of the sample by Euclidean
+	 * distance and returns the centroids, one after the other.
+	 */
+	private static float[] kMeans(List<float[]> sample, int start, int length, int numCentroids, Random random) {
+		float[] centroids = new float[numCentroids * length];
+		// Forgy initialization with distinct sample points, by partial Fisher-Yates shuffle.
+		int[] order = new int[sample.size()];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		for (int c = 0; c < numCentroids; c++) {
+			int swap = c + random.nextInt(order.length - c);
+			int chosen = order[swap];
+			order[swap] = order[c];
+			order[c] = chosen;
+			System.arraycopy(sample.get(chosen), start, centroids, c * length, length);
+		}
+
+		int[] assignments = new int[sample.size()];
+		Arrays.fill(assignments, -1);
+		int[] counts = new int[numCentroids];
+		for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+			boolean changed = false;
+			for (int i = 0; i < assignments.length; i++) {
+				int nearest = nearestCentroid(sample.get(i), start, centroids, length, numCentroids);
+				if (nearest != assignments[i]) {
+					assignments[i] = nearest;
+					changed = true;
+				}
+			}
+			if (!changed) {
+				break;
+			}
+
+			Arrays.fill(centroids, 0);
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < assignments.length; i++) {
+				float[] coordinates = sample.get(i);
+				int offset = assignments[i] * length;
+				for (int d = 0; d < length; d++) {
+					centroids[offset + d] += coordinates[start + d];
+				}
+				counts[assignments[i]]++;
+			}
+			for (int c = 0; c < numCentroids; c++) {
+				if (counts[c] == 0) {
+					// Reseeds an empty cluster with a random sample point.
+					System.arraycopy(sample.get(random.nextInt(sample.size())), start, centroids, c * length, length);
+					continue;
+				}
+				for (int d = 0; d < length; d++) {
+					centroids[c * length + d] /= counts[c];
+				}
+			}
+		}
+		return centroids;
+	}
+
+	/**
+	 * Returns the number of the centroid nearest to the coordinates from {@code start} to
+	 * {@code start + length}.
+	 */
+	private static int nearestCentroid(float[] coordinates, int start, float[] centroids, int length, int numCentroids) {
+		int nearest = 0;
+		float nearestDistance = Float.MAX_VALUE;
+		for (int c = 0, offset = 0; c < numCentroids; c++, offset += length) {
+			float distance = 0;
+			for (int d = 0; d < length; d++) {
+				float difference = coordinates[start + d] - centroids[offset + d];
+				distance += difference * difference;
+			}
+			if (distance < nearestDistance) {
+				nearestDistance = distance;
+				nearest = c;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Writes the codes of the coordinates into {@code codes} at {@code offset}, returning the norm of
+	 * their quantized approximation, or 0 for a zero vector.
+	 */
+	private float encode(float[] coordinates, byte[] codes, int offset) {
+		float[] normalized = normalize(coordinates);
+		if (normalized == null) {
+			Arrays.fill(codes, offset, offset + numSubspaces, (byte) 0);
+			return 0;
+		}
+		double squaredNorm = 0;
+		for (int j = 0; j < numSubspaces; j++) {
+			int length = subspaceStarts[j + 1] - subspaceStarts[j];
+			int centroid = nearestCentroid(normalized, subspaceStarts[j], codebooks[j], length, numCentroids);
+			codes[offset + j] = (byte) centroid;
+			for (int d = centroid * length; d < (centroid + 1) * length; d++) {
+				squaredNorm += codebooks[j][d] * codebooks[j][d];
+			}
+		}
+		return (float) Math.sqrt(squaredNorm);
+	}
+
+	private void setRow(int row, Object object, float norm, long sourcePosition) {
+		objects[row] = object;
+		norms[row] = norm;
+		if (sourcePositions != null) {
+			sourcePositions[row] = sourcePosition;
+		}
+		rows.put(object, row);
+	}
+
+	/**
+	 * Trains codebooks on the vectors of the given store, which must be of {@link VectorType#REAL} vectors
+	 * of {@link FlagConfig#dimension()}, and encodes them with {@link FlagConfig#pq_subspaces()} bytes each.
+	 * The result has no source positions for {@link #readSourceVector}.
+	 */
+	public static VectorStoreProductQuantized createFromVectorStore(VectorStore source, FlagConfig flagConfig) {
+		if (flagConfig.vectortype() != VectorType.REAL) {
+			throw new IllegalArgumentException("Product quantized vector stores only work with VectorType.REAL vectors.");
+		}
+		int dimension = flagConfig.dimension();
+		Random random = new Random(SEED);
+		Sampler sampler = new Sampler(MAX_CENTROIDS * TRAINING_VECTORS_PER_CENTROID, random);
+		Enumeration<ObjectVector> vectorEnumeration = source.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			sampler.offer(getCoordinates(vectorEnumeration.nextElement().getVector(), dimension));
+		}
+		float[][] codebooks = trainCodebooks(sampler.sample, dimension, flagConfig.pq_subspaces(), random);
+
+		VectorStoreProductQuantized store = new VectorStoreProductQuantized(codebooks, dimension, source.getNumVectors(), false);
+		int row = 0;
+		vectorEnumeration = source.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			ObjectVector objectVector = vectorEnumeration.nextElement();
+			float norm = store.encode(getCoordinates(objectVector.getVector(), dimension),
+					store.slabs[row / store.rowsPerSlab], (row % store.rowsPerSlab) * store.numSubspaces);
+			store.setRow(row++, objectVector.getObject(), norm, -1);
+		}
+		if (row != store.numVectors) {
+			throw new IllegalStateException("Vector store announced " + store.numVectors + " vectors but had " + row);
+		}
+		return store;
+	}
+
+	/**
+	 * Trains codebooks on a sample of the given Lucene vector file and writes its vectors to
+	 * {@code outputFile} encoded with {@link FlagConfig#pq_subspaces()} bytes each, along with their
+	 * positions in the source file. Vectors are streamed, so the source may be larger than memory.
+	 *
+	 * @return the number of vectors written
+	 */
+	public static int writeProductQuantized(VectorStoreReaderLucene source, File outputFile, FlagConfig flagConfig)
+			throws IOException {
+		if (flagConfig.vectortype() != VectorType.REAL) {
+			throw new IllegalArgumentException("Product quantized vector stores only work with VectorType.REAL vectors.");
+		}
+		int dimension = flagConfig.dimension();
+		int numVectors = source.getNumVectors();
+		Random random = new Random(SEED);
+		Sampler sampler = new Sampler(MAX_CENTROIDS * TRAINING_VECTORS_PER_CENTROID, random);
+		Enumeration<ObjectVector> vectorEnumeration = source.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			sampler.offer(getCoordinates(vectorEnumeration.nextElement().getVector(), dimension));
+		}
+		logger.info("Training " + flagConfig.pq_subspaces() + " product quantization codebooks on "
+				+ sampler.sample.size() + " vectors ...");
+		float[][] codebooks = trainCodebooks(sampler.sample, dimension, flagConfig.pq_subspaces(), random);
+		// Only used to encode, the codes are written straight out.
+		VectorStoreProductQuantized encoder = new VectorStoreProductQuantized(codebooks, dimension, 0, false);
+
+		byte[] codes = new byte[encoder.numSubspaces];
+		IndexInput indexInput = source.getIndexInput();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(dimension);
+			out.writeInt(encoder.numSubspaces);
+			out.writeInt(encoder.numCentroids);
+			out.writeInt(numVectors);
+			for (float[] codebook : codebooks) {
+				for (float coordinate : codebook) {
+					out.writeFloat(coordinate);
+				}
+			}
+			indexInput.seek(0);
+			// Skip header line.
+			indexInput.readString();
+			int written = 0;
+			long position;
+			while ((position = indexInput.getFilePointer()) < indexInput.length()) {
+				String object = indexInput.readString();
+				Vector vector = VectorFactory.createZeroVector(VectorType.REAL, dimension);
+				vector.readFromLuceneStream(indexInput);
+				if (written == numVectors) {
+					throw new IOException("Vector file " + source.getVectorFile() + " has more than " + numVectors + " vectors");
+				}
+				float norm = encoder.encode(getCoordinates(vector, dimension), codes, 0);
+				out.writeUTF(object);
+				out.writeLong(position);
+				out.writeFloat(norm);
+				out.write(codes);
+				written++;
+			}
+			if (written != numVectors) {
+				throw new IOException("Vector file " + source.getVectorFile() + " has " + written
+						+ " vectors instead of " + numVectors);
+			}
+			return written;
+		}
+	}
+
+	/**
+	 * Returns a new product quantized store, read from a file written by {@link #writeProductQuantized}.
+	 * <p>
+	 * Dimension and vector type from store on disk overwrite any previous values in flagConfig.
+	 */
+	public static VectorStoreProductQuantized readFromFile(FlagConfig flagConfig, String vectorFile) throws IOException {
+		if (vectorFile.isEmpty()) {
+			throw new IllegalArgumentException("vectorFile argument cannot be empty.");
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(vectorFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a product quantized vector store file: " + vectorFile);
+			}
+			int dimension = in.readInt();
+			int numSubspaces = in.readInt();
+			int numCentroids = in.readInt();
+			int numVectors = in.readInt();
+			int[] starts = getSubspaceStarts(dimension, numSubspaces);
+			float[][] codebooks = new float[numSubspaces][];
+			for (int j = 0; j < numSubspaces; j++) {
+				codebooks[j] = new float[numCentroids * (starts[j + 1] - starts[j])];
+				for (int d = 0; d < codebooks[j].length; d++) {
+					codebooks[j][d] = in.readFloat();
+				}
+			}
+			flagConfig.setVectortype(VectorType.REAL);
+			flagConfig.setDimension(dimension);
+			VectorStoreProductQuantized store = new VectorStoreProductQuantized(codebooks, dimension, numVectors, true);
+			for (int row = 0; row < numVectors; row++) {
+				String object = in.readUTF();
+				long sourcePosition = in.readLong();
+				float norm = in.readFloat();
+				in.readFully(store.slabs[row / store.rowsPerSlab], (row % store.rowsPerSlab) * numSubspaces, numSubspaces);
+				store.setRow(row, object, norm, sourcePosition);
+			}
+			logger.fine("Read " + numVectors + " product quantized vectors of dimension " + dimension + " from " + vectorFile);
+			return store;
+		}
+	}
+
+	/**
+	 * Returns the table of the dot products of each sub-space of the query with each centroid of that
+	 * sub-space, {@link #MAX_CENTROIDS} entries per sub-space.
+	 */
+	private float[] getLookupTable(float[] query) {
+		float[] table = new float[numSubspaces * MAX_CENTROIDS];
+		for (int j = 0; j < numSubspaces; j++) {
+			int start = subspaceStarts[j];
+			int length = subspaceStarts[j + 1] - start;
+			for (int c = 0; c < numCentroids; c++) {
+				float dot = 0;
+				for (int d = 0; d < length; d++) {
+					dot += query[start + d] * codebooks[j][c * length + d];
+				}
+				table[j * MAX_CENTROIDS + c] = dot;
+			}
+		}
+		return table;
+	}
+
+	@Override
+	public RowScorer getScorer(Vector query) {
+		if (query.getVectorType() != VectorType.REAL || query.getDimension() != dimension) {
+			return null;
+		}
+		float[] normalized = normalize(getCoordinates(query, dimension));
+		if (normalized == null) {
+			return row -> 0;
+		}
+		float[] table = getLookupTable(normalized);
+		return row -> {
+			if (norms[row] == 0) {
+				return 0;
+			}
+			byte[] slab = slabs[row / rowsPerSlab];
+			int offset = (row % rowsPerSlab) * numSubspaces;
+			float dot = 0;
+			for (int j = 0, tableOffset = 0; j < numSubspaces; j++, tableOffset += MAX_CENTROIDS) {
+				dot += table[tableOffset + (slab[offset + j] & 0xFF)];
+			}
+			return dot / norms[row];
+		};
+	}
+
+	@Override
+	public ObjectVector readSourceVector(VectorStoreReaderLucene source, Object object) throws IOException {
+		Integer row = rows.get(object);
+		if (row == null || sourcePositions == null || sourcePositions[row] < 0) {
+			return null;
+		}
+		return CompressedVectorStore.readSourceVector(source, sourcePositions[row], object, dimension);
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	public int getNumSubspaces() {
+		return numSubspaces;
+	}
+
+	@Override
+	public Object getObject(int row) {
+		return objects[row];
+	}
+
+	@Override
+	public ObjectVector getObjectVector(int row) {
+		return new ObjectVector(objects[row], decodeRow(row));
+	}
+
+	/**
+	 * Returns the quantized approximation of the normalized vector at {@code row}.
+	 */
+	private Vector decodeRow(int row) {
+		if (norms[row] == 0) {
+			return VectorFactory.createZeroVector(VectorType.REAL, dimension);
+		}
+		byte[] slab = slabs[row / rowsPerSlab];
+		int offset = (row % rowsPerSlab) * numSubspaces;
+		float[] coordinates = new float[dimension];
+		for (int j = 0; j < numSubspaces; j++) {
+			int length = subspaceStarts[j + 1] - subspaceStarts[j];
+			System.arraycopy(codebooks[j], (slab[offset + j] & 0xFF) * length, coordinates, subspaceStarts[j], length);
+		}
+		return new RealVector(coordinates);
+	}
+
+	@Override
+	public Vector getVector(Object object) {
+		Integer row = rows.get(object);
+		return row == null ? null : decodeRow(row);
+	}
+
+	@Override
+	public boolean containsVector(Object object) {
+		return rows.containsKey(object);
+	}
+
+	@Override
+	public Enumeration<ObjectVector> getAllVectors() {
+		return new Enumeration<ObjectVector>() {
+			private int row = 0;
+
+			@Override
+			public boolean hasMoreElements() {
+				return row < numVectors;
+			}
+
+			@Override
+			public ObjectVector nextElement() {
+				if (row >= numVectors) {
+					throw new NoSuchElementException();
+				}
+				return getObjectVector(row++);
+			}
+		};
+	}
+
+	@Override
+	public int getNumVectors() {
+		return numVectors;
+	}
+}
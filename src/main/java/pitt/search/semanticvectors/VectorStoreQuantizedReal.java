@@ -0,0 +1,331 @@
+package pitt.search.semanticvectors;
+
+import org.apache.lucene.store.IndexInput;
+import pitt.search.semanticvectors.vectors.IncompatibleVectorsException;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Immutable in-memory store of {@link VectorType#REAL} vectors quantized to one byte per coordinate,
+ * a quarter of the memory of {@link VectorStorePackedReal}.
+ * <p>
+ * Each vector is stored as {@code scale * q} with {@code q} a vector of integers between -127 and 127
+ * and {@code scale} its largest absolute coordinate divided by 127. Since the scale of both vectors
+ * cancels out of the cosine, {@link VectorSearcher} scores this store with {@link #cosine}, which only
+ * needs the integer dot product of the quantized query with each row and the squared norms of the
+ * rows precomputed on loading. Scores are approximate; {@link VectorSearcher.VectorSearcherCompressed}
+ * re-ranks the best of them with the full precision vectors.
+ * <p>
+ * Quantized stores are written by {@link VectorStoreQuantizer}, which records where each vector is
+ * in its source {@link VectorStoreReaderLucene} file so that {@link #readSourceVector} can read it back
+ * without searching for it. See {@link VectorStoreProductQuantized} for a smaller, coarser alternative.
+ */
+public class VectorStoreQuantizedReal implements CompressedVectorStore {
+	private static final Logger logger = Logger.getLogger(VectorStoreQuantizedReal.class.getCanonicalName());
+
+	static final int MAGIC = 0x51564543;
+	private static final int VERSION = 1;
+
+	/** Largest dimension for which integer dot products of quantized vectors cannot overflow. */
+	public static final int MAX_DIMENSION = Integer.MAX_VALUE / (127 * 127);
+	/** Rows are kept in slabs of at most this many bytes, so that stores are not limited by array sizes. */
+	private static final int SLAB_BYTES = 1 << 30;
+
+	private final int dimension;
+	private final int numVectors;
+	private final int rowsPerSlab;
+	private final Object[] objects;
+	private final byte[][] slabs;
+	private final float[] scales;
+	private final int[] squaredNorms;
+	/** Position of each vector in the source vector file, or {@code null} if unknown. */
+	private final long[] sourcePositions;
+	private final HashMap<Object, Integer> rows;
+
+	private VectorStoreQuantizedReal(int dimension, int numVectors, boolean withSourcePositions) {
+		if (dimension > MAX_DIMENSION) {
+			throw new IllegalArgumentException("Quantized vector stores support dimensions up to " + MAX_DIMENSION);
+		}
+		this.dimension = dimension;
+		this.numVectors = numVectors;
+		this.rowsPerSlab = Math.max(1, SLAB_BYTES / Math.max(dimension, 1));
+		this.objects = new Object[numVectors];
+		this.slabs = new byte[(numVectors + rowsPerSlab - 1) / rowsPerSlab][];
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = new byte[Math.min(rowsPerSlab, numVectors - i * rowsPerSlab) * dimension];
+		}
+		this.scales = new float[numVectors];
+		this.squaredNorms = new int[numVectors];
+		this.sourcePositions = withSourcePositions ? new long[numVectors] : null;
+		this.rows = new HashMap<>(2 * numVectors);
+	}
+
+	/**
+	 * Quantizes the coordinates into {@code quantized} at {@code offset}, returning the scale.
+	 */
+	static float quantize(float[] coordinates, byte[] quantized, int offset) {
+		float maxAbs = 0;
+		for (float coordinate : coordinates) {
+			maxAbs = Math.max(maxAbs, Math.abs(coordinate));
+		}
+		if (maxAbs == 0) {
+			return 0;
+		}
+		float scale = maxAbs / 127;
+		for (int i = 0; i < coordinates.length; i++) {
+			quantized[offset + i] = (byte) Math.max(-127, Math.min(127, Math.round(coordinates[i] / scale)));
+		}
+		return scale;
+	}
+
+	private static int squaredNorm(byte[] quantized, int offset, int length) {
+		int norm = 0;
+		for (int i = offset; i < offset + length; i++) {
+			norm += quantized[i] * quantized[i];
+		}
+		return norm;
+	}
+
+	private void setRow(int row, Object object, float[] coordinates, long sourcePosition) {
+		byte[] slab = slabs[row / rowsPerSlab];
+		int offset = (row % rowsPerSlab) * dimension;
+		scales[row] = quantize(coordinates, slab, offset);
+		setRow(row, object, scales[row], sourcePosition);
+	}
+
+	private void setRow(int row, Object object, float scale, long sourcePosition) {
+		objects[row] = object;
+		scales[row] = scale;
+		squaredNorms[row] = squaredNorm(slabs[row / rowsPerSlab], (row % rowsPerSlab) * dimension, dimension);
+		if (sourcePositions != null) {
+			sourcePositions[row] = sourcePosition;
+		}
+		rows.put(object, row);
+	}
+
+	private static float[] getCoordinates(Vector vector, int dimension) {
+		if (vector.getVectorType() != VectorType.REAL || vector.getDimension() != dimension) {
+			throw new IncompatibleVectorsException("Cannot quantize vector of type " + vector.getVectorType()
+					+ " and dimension " + vector.getDimension() + " into a store of dimension " + dimension);
+		}
+		return vector.isZeroVector() ? new float[dimension] : ((RealVector) vector).getCoordinates();
+	}
+
+	/**
+	 * Quantizes the vectors of the given store, which must be of {@link VectorType#REAL} vectors of
+	 * {@link FlagConfig#dimension()}. The result has no source positions for {@link #readSourceVector}.
+	 */
+	public static VectorStoreQuantizedReal createFromVectorStore(VectorStore source, FlagConfig flagConfig) {
+		if (flagConfig.vectortype() != VectorType.REAL) {
+			throw new IllegalArgumentException("Quantized vector stores only work with VectorType.REAL vectors.");
+		}
+		VectorStoreQuantizedReal store = new VectorStoreQuantizedReal(flagConfig.dimension(), source.getNumVectors(), false);
+		int row = 0;
+		Enumeration<ObjectVector> vectorEnumeration = source.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			ObjectVector objectVector = vectorEnumeration.nextElement();
+			store.setRow(row++, objectVector.getObject(), getCoordinates(objectVector.getVector(), store.dimension), -1);
+		}
+		if (row != store.numVectors) {
+			throw new IllegalStateException("Vector store announced " + store.numVectors + " vectors but had " + row);
+		}
+		return store;
+	}
+
+	/**
+	 * Writes the vectors of the given Lucene vector file to {@code outputFile} in quantized form, along with
+	 * their positions in the source file. Vectors are streamed, so the source may be larger than memory.
+	 *
+	 * @return the number of vectors written
+	 */
+	public static int writeQuantized(VectorStoreReaderLucene source, File outputFile, FlagConfig flagConfig)
+			throws IOException {
+		if (flagConfig.vectortype() != VectorType.REAL) {
+			throw new IllegalArgumentException("Quantized vector stores only work with VectorType.REAL vectors.");
+		}
+		int dimension = flagConfig.dimension();
+		int numVectors = source.getNumVectors();
+		byte[] quantized = new byte[dimension];
+		IndexInput indexInput = source.getIndexInput();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(dimension);
+			out.writeInt(numVectors);
+			indexInput.seek(0);
+			// Skip header line.
+			indexInput.readString();
+			int written = 0;
+			long position;
+			while ((position = indexInput.getFilePointer()) < indexInput.length()) {
+				String object = indexInput.readString();
+				Vector vector = VectorFactory.createZeroVector(VectorType.REAL, dimension);
+				vector.readFromLuceneStream(indexInput);
+				if (written == numVectors) {
+					throw new IOException("Vector file " + source.getVectorFile() + " has more than " + numVectors + " vectors");
+				}
+				float scale = quantize(getCoordinates(vector, dimension), quantized, 0);
+				out.writeUTF(object);
+				out.writeLong(position);
+				out.writeFloat(scale);
+				out.write(quantized);
+				written++;
+			}
+			if (written != numVectors) {
+				throw new IOException("Vector file " + source.getVectorFile() + " has " + written
+						+ " vectors instead of " + numVectors);
+			}
+			return written;
+		}
+	}
+
+	/**
+	 * Returns a new quantized store, read from a file written by {@link #writeQuantized}.
+	 * <p>
+	 * Dimension and vector type from store on disk overwrite any previous values in flagConfig.
+	 */
+	public static VectorStoreQuantizedReal readFromFile(FlagConfig flagConfig, String vectorFile) throws IOException {
+		if (vectorFile.isEmpty()) {
+			throw new IllegalArgumentException("vectorFile argument cannot be empty.");
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(vectorFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a quantized vector store file: " + vectorFile);
+			}
+			int dimension = in.readInt();
+			int numVectors = in.readInt();
+			flagConfig.setVectortype(VectorType.REAL);
+			flagConfig.setDimension(dimension);
+			VectorStoreQuantizedReal store = new VectorStoreQuantizedReal(dimension, numVectors, true);
+			for (int row = 0; row < numVectors; row++) {
+				String object = in.readUTF();
+				long sourcePosition = in.readLong();
+				float scale = in.readFloat();
+				in.readFully(store.slabs[row / store.rowsPerSlab], (row % store.rowsPerSlab) * dimension, dimension);
+				store.setRow(row, object, scale, sourcePosition);
+			}
+			logger.fine("Read " + numVectors + " quantized vectors of dimension " + dimension + " from " + vectorFile);
+			return store;
+		}
+	}
+
+	/**
+	 * Returns the cosine of the vector at {@code row} with the given quantized query, or 0 if either of
+	 * them is a zero vector.
+	 *
+	 * @param querySquaredNorm the sum of the squares of the query coordinates
+	 */
+	public double cosine(int row, byte[] query, int querySquaredNorm) {
+		if (querySquaredNorm == 0 || squaredNorms[row] == 0) {
+			return 0;
+		}
+		byte[] slab = slabs[row / rowsPerSlab];
+		int offset = (row % rowsPerSlab) * dimension;
+		int dot = 0;
+		for (int i = 0; i < dimension; i++) {
+			dot += query[i] * slab[offset + i];
+		}
+		return dot / Math.sqrt((double) querySquaredNorm * squaredNorms[row]);
+	}
+
+	@Override
+	public RowScorer getScorer(Vector query) {
+		if (query.getVectorType() != VectorType.REAL || query.getDimension() != dimension) {
+			return null;
+		}
+		byte[] quantizedQuery = new byte[dimension];
+		quantize(getCoordinates(query, dimension), quantizedQuery, 0);
+		int querySquaredNorm = squaredNorm(quantizedQuery, 0, dimension);
+		return row -> cosine(row, quantizedQuery, querySquaredNorm);
+	}
+
+	@Override
+	public ObjectVector readSourceVector(VectorStoreReaderLucene source, Object object) throws IOException {
+		Integer row = rows.get(object);
+		if (row == null || sourcePositions == null || sourcePositions[row] < 0) {
+			return null;
+		}
+		return CompressedVectorStore.readSourceVector(source, sourcePositions[row], object, dimension);
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	@Override
+	public Object getObject(int row) {
+		return objects[row];
+	}
+
+	@Override
+	public ObjectVector getObjectVector(int row) {
+		return new ObjectVector(objects[row], dequantizeRow(row));
+	}
+
+	/**
+	 * Returns the quantized approximation of the vector at {@code row}.
+	 */
+	private Vector dequantizeRow(int row) {
+		if (squaredNorms[row] == 0) {
+			return VectorFactory.createZeroVector(VectorType.REAL, dimension);
+		}
+		byte[] slab = slabs[row / rowsPerSlab];
+		int offset = (row % rowsPerSlab) * dimension;
+		float[] coordinates = new float[dimension];
+		for (int i = 0; i < dimension; i++) {
+			coordinates[i] = scales[row] * slab[offset + i];
+		}
+		return new RealVector(coordinates);
+	}
+
+	@Override
+	public Vector getVector(Object object) {
+		Integer row = rows.get(object);
+		return row == null ? null : dequantizeRow(row);
+	}
+
+	@Override
+	public boolean containsVector(Object object) {
+		return rows.containsKey(object);
+	}
+
+	@Override
+	public Enumeration<ObjectVector> getAllVectors() {
+		return new Enumeration<ObjectVector>() {
+			private int row = 0;
+
+			@Override
+			public boolean hasMoreElements() {
+				return row < numVectors;
+			}
+
+			@Override
+			public ObjectVector nextElement() {
+				if (row >= numVectors) {
+					throw new NoSuchElementException();
+				}
+				return getObjectVector(row++);
+			}
+		};
+	}
+
+	@Override
+	public int getNumVectors() {
+		return numVectors;
+	}
+}
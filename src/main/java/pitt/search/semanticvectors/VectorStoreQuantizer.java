@@ -0,0 +1,48 @@
+package pitt.search.semanticvectors;
+
+import pitt.search.semanticvectors.utils.VerbatimLogger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Command line interface for converting a {@link pitt.search.semanticvectors.vectors.VectorType#REAL}
+ * vector store in Lucene format into a {@link VectorStoreQuantizedReal} file, which keeps one byte per
+ * coordinate, or with {@link FlagConfig#pq_subspaces()} set into a {@link VectorStoreProductQuantized}
+ * file, which keeps one byte per sub-space.
+ * <p>
+ * Search the quantized file by passing it as {@link FlagConfig#quantizedvectorfile()}, along with the
+ * original file as {@link FlagConfig#searchvectorfile()} for re-ranking.
+ */
+public class VectorStoreQuantizer {
+	public static String usageMessage = "VectorStoreQuantizer class in pitt.search.semanticvectors"
+			+ "\nUsage: java pitt.search.semanticvectors.VectorStoreQuantizer INFILE OUTFILE"
+			+ "\nINFILE must be a vector store of real vectors in Lucene format."
+			+ "\nSet -pq_subspaces to write product quantized vectors with that many bytes each.";
+
+	/**
+	 * Command line method for quantizing a vector store.
+	 * @throws IOException if the vector store on disk cannot be opened or the output cannot be written.
+	 * @see #usageMessage
+	 */
+	public static void main(String[] args) throws IOException {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(args);
+		args = flagConfig.remainingArgs;
+		if (args.length != 2) {
+			VerbatimLogger.info("You gave " + args.length + " arguments aside from the command line flags, there must be 2.\n");
+			System.err.println(usageMessage);
+			throw new IllegalArgumentException();
+		}
+
+		VectorStoreReaderLucene vecReader = new VectorStoreReaderLucene(args[0], flagConfig);
+		try {
+			VerbatimLogger.info("Writing quantized vectors to " + args[1] + "\n");
+			int numVectors = flagConfig.pq_subspaces() > 0
+					? VectorStoreProductQuantized.writeProductQuantized(vecReader, new File(args[1]), flagConfig)
+					: VectorStoreQuantizedReal.writeQuantized(vecReader, new File(args[1]), flagConfig);
+			VerbatimLogger.info("Quantized " + numVectors + " vectors of dimension " + flagConfig.dimension() + "\n");
+		} finally {
+			vecReader.close();
+		}
+	}
+}
@@ -76,6 +76,8 @@ public class VectorStoreReaderLucene implements CloseableVectorStore {
   private FlagConfig flagConfig;
   
   private ThreadLocal<IndexInput> threadLocalIndexInput;
+  // Each thread reads a clone of this input, which shares its mapping and is released when it is closed
+  private IndexInput masterIndexInput;
 
   public IndexInput getIndexInput() {
     return threadLocalIndexInput.get();
@@ -90,14 +92,17 @@ public class VectorStoreReaderLucene implements CloseableVectorStore {
       if (parentPath == null) parentPath = "";
       this.directory = FSDirectory.open(FileSystems.getDefault().getPath(parentPath));  // Old from FSDirectory impl.
       // Read number of dimension from header information.
+      try {
+        this.masterIndexInput = directory.openInput(vectorFile.getName(), IOContext.READ);
+      } catch (IOException e) {
+        // Thrown as it was when each thread opened its own input
+        directory.close();
+        throw new RuntimeException(e.getMessage(), e);
+      }
       this.threadLocalIndexInput = new ThreadLocal<IndexInput>() {
         @Override
         protected IndexInput initialValue() {
-          try {
-            return directory.openInput(vectorFile.getName(), IOContext.READ);
-          } catch (IOException e) {
-            throw new RuntimeException(e.getMessage(), e);
-          }
+          return masterIndexInput.clone();
         }
       };
       readHeadersFromIndexInput(flagConfig);
@@ -128,8 +133,20 @@ public class VectorStoreReaderLucene implements CloseableVectorStore {
     FlagConfig.mergeWriteableFlagsFromString(header, flagConfig);
   }
 
+  /**
+   * Closes the input of the store, which releases the clones read by all threads, and the directory.
+   */
   public void close() {
-    this.closeIndexInput();
+    if (masterIndexInput == null) {
+      this.closeIndexInput();
+    } else {
+      try {
+        masterIndexInput.close();
+      } catch (IOException e) {
+        logger.info("Cannot close resources from file: " + this.vectorFile
+            + "\n" + e.getMessage());
+      }
+    }
     try {
       this.directory.close();
     } catch (IOException e) {
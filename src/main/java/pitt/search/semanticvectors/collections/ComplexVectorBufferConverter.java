@@ -0,0 +1,48 @@
+package pitt.search.semanticvectors.collections;
+
+import pitt.search.semanticvectors.vectors.ComplexVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts complex vectors to and from their Cartesian coordinates, a real and an imaginary float per dimension.
+ */
+public class ComplexVectorBufferConverter implements VectorBufferConverter {
+
+	private static final int BITS_IN_BYTE = 8;
+
+	VectorType type;
+	int dimension;
+	int bufferSizeInBytes;
+
+	public ComplexVectorBufferConverter(VectorType type, int dimension) {
+		this.type = type;
+		this.dimension = dimension;
+		this.bufferSizeInBytes = 2 * dimension * Float.SIZE / BITS_IN_BYTE;
+	}
+
+	@Override
+	public Vector readFromBuffer(ByteBuffer byteBuffer) {
+		Vector vector = VectorFactory.createZeroVector(type, dimension);
+		// Reads from a duplicate so that, as for the other converters, the position of the buffer does not move.
+		vector.readFromByteBuffer(byteBuffer.duplicate());
+		return vector;
+	}
+
+	@Override
+	public ByteBuffer writeToBuffer(Vector vector) {
+		ComplexVector complexVector = (ComplexVector) vector.copy();
+		complexVector.toCartesian();
+		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bufferSizeInBytes);
+		byteBuffer.asFloatBuffer().put(complexVector.getCoordinates());
+		return byteBuffer;
+	}
+
+	@Override
+	public int getBufferSizeInBytes() {
+		return bufferSizeInBytes;
+	}
+}
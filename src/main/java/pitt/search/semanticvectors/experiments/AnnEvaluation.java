@@ -0,0 +1,301 @@
+package pitt.search.semanticvectors.experiments;
+
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.Search.AnnIndex;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorSearcher;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.VectorStoreWriter;
+import pitt.search.semanticvectors.hnsw.HnswIndexFactory;
+import pitt.search.semanticvectors.ivf.IvfStoreFactory;
+import pitt.search.semanticvectors.lsh.LSHStoreFactory;
+import pitt.search.semanticvectors.mih.MihIndexFactory;
+import pitt.search.semanticvectors.utils.VerbatimLogger;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+import pitt.search.semanticvectors.vectors.ZeroVectorException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures what an approximate search path gives up against an exact scan of the same store: the recall of its top
+ * {@link FlagConfig#numsearchresults()} results, the number of candidates it scores, and the latency of both.
+ * <p>
+ * The approximate path is the one {@link pitt.search.semanticvectors.Search} would use for the flags: the index of
+ * {@link FlagConfig#annindex()}, or LSH if {@link FlagConfig#lsh_hashes_num()} is set or the store was tuned by
+ * {@link pitt.search.semanticvectors.lsh.LSHTuner}. The queries are vectors sampled from the store, so each query
+ * finds at least itself.
+ */
+public class AnnEvaluation {
+
+	public static String usageMessage = "\nAnnEvaluation class in package pitt.search.semanticvectors.experiments"
+			+ "\nUsage: java pitt.search.semanticvectors.experiments.AnnEvaluation [flags] VECTOR_FILE [NUM_QUERIES]"
+			+ "\n   or: java pitt.search.semanticvectors.experiments.AnnEvaluation [flags] random NUM_VECTORS [NUM_QUERIES]"
+			+ "\nThe second form evaluates a store of random vectors of -vectortype and -dimension."
+			+ "\nSearch flags such as -annindex, -lsh_hashes_num and -numsearchresults choose the path evaluated.";
+
+	/** Number of queries when none is given. */
+	public static final int DEFAULT_NUM_QUERIES = 100;
+
+	/**
+	 * The measures of an evaluation. Latencies are in nanoseconds.
+	 */
+	public static class Report {
+		public final int numQueries;
+		public final int numResults;
+		public final double recall;
+		/** Mean number of candidates scored per query, or -1 if the path does not report them. */
+		public final double meanCandidates;
+		public final long[] exactNanos;
+		public final long[] approximateNanos;
+
+		Report(int numResults, double recall, double meanCandidates, long[] exactNanos, long[] approximateNanos) {
+			this.numQueries = exactNanos.length;
+			this.numResults = numResults;
+			this.recall = recall;
+			this.meanCandidates = meanCandidates;
+			this.exactNanos = exactNanos.clone();
+			this.approximateNanos = approximateNanos.clone();
+			Arrays.sort(this.exactNanos);
+			Arrays.sort(this.approximateNanos);
+		}
+
+		/**
+		 * Returns the nearest-rank percentile of the sorted latencies, in milliseconds.
+		 */
+		public static double percentileMillis(long[] sortedNanos, double percentile) {
+			if (sortedNanos.length == 0)
+				return 0;
+			int rank = (int) Math.ceil(percentile / 100 * sortedNanos.length);
+			return sortedNanos[Math.max(rank - 1, 0)] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Queries: %d%nRecall@%d: %.4f%nCandidates per query: %s%n"
+							+ "Exact latency ms (p50/p90/p99): %.3f / %.3f / %.3f%n"
+							+ "Approximate latency ms (p50/p90/p99): %.3f / %.3f / %.3f%n",
+					numQueries, numResults, recall, meanCandidates < 0 ? "n/a" : String.format("%.1f", meanCandidates),
+					percentileMillis(exactNanos, 50), percentileMillis(exactNanos, 90), percentileMillis(exactNanos, 99),
+					percentileMillis(approximateNanos, 50), percentileMillis(approximateNanos, 90),
+					percentileMillis(approximateNanos, 99));
+		}
+	}
+
+	/**
+	 * Evaluates the approximate search path of the flags on a sample of queries from the store.
+	 *
+	 * @param seed seed of the sample, so that evaluations of different settings use the same queries
+	 */
+	public static Report evaluate(VectorStoreReaderLucene store, FlagConfig flagConfig, int numQueries, long seed)
+			throws IOException, ZeroVectorException {
+		int numResults = flagConfig.numsearchresults();
+		List<Vector> queries = sampleQueries(store, numQueries, seed);
+		prepareIndex(store, flagConfig);
+		long[] exactNanos = new long[queries.size()];
+		long[] approximateNanos = new long[queries.size()];
+		long found = 0;
+		long expected = 0;
+		long candidates = 0;
+
+		for (int q = 0; q < queries.size(); q++) {
+			Vector query = queries.get(q);
+
+			long start = System.nanoTime();
+			List<SearchResult> exact =
+					new VectorSearcher.VectorSearcherPlain(store, query.copy(), flagConfig).getNearestNeighbors(numResults);
+			exactNanos[q] = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			List<SearchResult> approximate = createSearcher(store, flagConfig, query.copy()).getNearestNeighbors(numResults);
+			approximateNanos[q] = System.nanoTime() - start;
+
+			Set<Object> exactObjects = new HashSet<>();
+			for (SearchResult result : exact) {
+				exactObjects.add(result.getObjectVector().getObject());
+			}
+			for (SearchResult result : approximate) {
+				if (exactObjects.contains(result.getObjectVector().getObject()))
+					found++;
+			}
+			expected += exactObjects.size();
+
+			long queryCandidates = countCandidates(store, flagConfig, query.copy());
+			if (queryCandidates < 0 || candidates < 0)
+				candidates = -1;
+			else
+				candidates += queryCandidates;
+		}
+
+		double recall = expected == 0 ? 1 : (double) found / expected;
+		double meanCandidates = candidates < 0 || queries.isEmpty() ? -1 : (double) candidates / queries.size();
+		return new Report(numResults, recall, meanCandidates, exactNanos, approximateNanos);
+	}
+
+	/**
+	 * Reads or builds the index of the approximate path before the queries are timed, so that the first query does
+	 * not pay for it and no query scans the whole store while an LSH store is built in the background.
+	 */
+	static void prepareIndex(VectorStoreReaderLucene store, FlagConfig flagConfig) {
+		File vectorFile = store.getVectorFile();
+		switch (flagConfig.annindex()) {
+			case HNSW:
+				HnswIndexFactory.INSTANCE.getIndex(vectorFile, flagConfig);
+				break;
+			case IVF:
+				IvfStoreFactory.INSTANCE.acquire(vectorFile, flagConfig).close();
+				break;
+			case MIH:
+				if (flagConfig.vectortype() == VectorType.BINARY)
+					MihIndexFactory.INSTANCE.getIndex(vectorFile, flagConfig);
+				break;
+			default:
+				if (LSHStoreFactory.INSTANCE.getSetting(vectorFile, flagConfig) != null)
+					LSHStoreFactory.INSTANCE.acquire(vectorFile, flagConfig).close();
+		}
+	}
+
+	/**
+	 * Returns the searcher {@link pitt.search.semanticvectors.Search} uses for a query vector and the flags.
+	 */
+	static VectorSearcher createSearcher(VectorStoreReaderLucene store, FlagConfig flagConfig, Vector query)
+			throws ZeroVectorException {
+		if (flagConfig.annindex() == AnnIndex.HNSW)
+			return new VectorSearcher.VectorSearcherHnsw(store, store, null, flagConfig, query);
+		if (flagConfig.annindex() == AnnIndex.IVF)
+			return new VectorSearcher.VectorSearcherIvf(store, store, null, flagConfig, query);
+		if (flagConfig.annindex() == AnnIndex.MIH)
+			return new VectorSearcher.VectorSearcherMih(store, store, null, flagConfig, query);
+		return new VectorSearcher.VectorSearcherCosine(store, store, null, flagConfig, query);
+	}
+
+	/**
+	 * Returns the number of candidates the approximate path scores for the query: the whole store for an exact scan,
+	 * or -1 if the path does not tell.
+	 */
+	static long countCandidates(VectorStoreReaderLucene store, FlagConfig flagConfig, Vector query) throws IOException {
+		if (flagConfig.annindex() == AnnIndex.HNSW)
+			return -1;
+		if (flagConfig.annindex() == AnnIndex.IVF) {
+			try (IvfStoreFactory.Handle handle = IvfStoreFactory.INSTANCE.acquire(store.getVectorFile(), flagConfig)) {
+				return count(handle.getStore().getSimilar(query));
+			}
+		}
+		if (flagConfig.annindex() == AnnIndex.MIH)
+			return MihIndexFactory.INSTANCE.getIndex(store.getVectorFile(), flagConfig)
+					.countCandidates(query, flagConfig.numsearchresults());
+		if (LSHStoreFactory.INSTANCE.getSetting(store.getVectorFile(), flagConfig) == null)
+			return store.getNumVectors();
+		try (LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.acquire(store.getVectorFile(), flagConfig)) {
+			return count(handle.getStore().getSimilar(query));
+		}
+	}
+
+	private static long count(Enumeration<ObjectVector> candidates) {
+		long count = 0;
+		while (candidates.hasMoreElements()) {
+			candidates.nextElement();
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a uniform sample of the vectors of the store, in the order of the store.
+	 */
+	static List<Vector> sampleQueries(VectorStoreReaderLucene store, int numQueries, long seed) {
+		Random random = new Random(seed);
+		List<ObjectVector> sample = new ArrayList<>(numQueries);
+		int seen = 0;
+		Enumeration<ObjectVector> vectors = store.getAllVectors();
+		while (vectors.hasMoreElements()) {
+			ObjectVector objectVector = vectors.nextElement();
+			seen++;
+			if (sample.size() < numQueries) {
+				sample.add(objectVector);
+			} else {
+				int replaced = random.nextInt(seen);
+				if (replaced < numQueries)
+					sample.set(replaced, objectVector);
+			}
+		}
+		List<Vector> queries = new ArrayList<>(sample.size());
+		for (ObjectVector objectVector : sample) {
+			queries.add(objectVector.getVector());
+		}
+		return queries;
+	}
+
+	/**
+	 * Writes a store of random vectors of {@link FlagConfig#vectortype()} and {@link FlagConfig#dimension()}, made by
+	 * {@link VectorFactory#generateRandomVector}, so that evaluations need no external data.
+	 */
+	public static void writeRandomStore(File vectorFile, FlagConfig flagConfig, int numVectors, long seed)
+			throws IOException {
+		Random random = new Random(seed);
+		VectorStoreRAM store = new VectorStoreRAM(flagConfig);
+		for (int i = 0; i < numVectors; i++) {
+			store.putVector("vector" + i, VectorFactory.generateRandomVector(
+					flagConfig.vectortype(), flagConfig.dimension(), flagConfig.seedlength(), random));
+		}
+		VectorStoreWriter.writeVectors(vectorFile.getAbsolutePath(), flagConfig, store);
+	}
+
+	public static void main(String[] args) throws IOException, ZeroVectorException {
+		FlagConfig flagConfig;
+		try {
+			flagConfig = FlagConfig.getFlagConfig(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(usageMessage);
+			throw e;
+		}
+		String[] remainingArgs = flagConfig.remainingArgs;
+		boolean random = remainingArgs.length > 0 && remainingArgs[0].equals("random");
+		int firstArg = random ? 1 : 0;
+		if (remainingArgs.length <= firstArg) {
+			System.out.println(usageMessage);
+			return;
+		}
+		int numQueries = remainingArgs.length > firstArg + 1
+				? Integer.parseInt(remainingArgs[firstArg + 1]) : DEFAULT_NUM_QUERIES;
+
+		File tmpDir = null;
+		File vectorFile;
+		if (random) {
+			tmpDir = Files.createTempDirectory("annevaluation").toFile();
+			vectorFile = new File(tmpDir, "randomvectors.bin");
+			writeRandomStore(vectorFile, flagConfig, Integer.parseInt(remainingArgs[1]), 0);
+		} else {
+			vectorFile = new File(remainingArgs[0]);
+		}
+
+		VectorStoreReaderLucene store = new VectorStoreReaderLucene(vectorFile.getAbsolutePath(), flagConfig);
+		try {
+			Report report = evaluate(store, flagConfig, numQueries, 0);
+			VerbatimLogger.info(report.toString());
+		} finally {
+			store.close();
+			if (tmpDir != null) {
+				LSHStoreFactory.INSTANCE.clearStoresForIndex(tmpDir);
+				IvfStoreFactory.INSTANCE.clearStoresForIndex(tmpDir);
+				HnswIndexFactory.INSTANCE.clearIndexesForIndex(tmpDir);
+				MihIndexFactory.INSTANCE.clearIndexesForIndex(tmpDir);
+				Files.walk(tmpDir.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+}
@@ -0,0 +1,433 @@
+package pitt.search.semanticvectors.hnsw;
+
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorStore;
+import pitt.search.semanticvectors.vectors.Vector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small-world graph over the vectors of a {@link VectorStore}, as described by
+ * Malkov and Yashunin, "Efficient and robust approximate nearest neighbor search using Hierarchical
+ * Navigable Small World graphs".
+ * <p>
+ * Nodes are compared with {@link Vector#measureOverlap}, so any vector type can be indexed and
+ * results are scored exactly as an exhaustive search would score them. Every node lives on layer 0 and on
+ * each layer up to a randomly drawn level; upper layers are sparse and let a search descend greedily
+ * to the right region of layer 0, where a best-first search keeps the {@code ef} best candidates.
+ * <p>
+ * Searches may run concurrently once the index has been built or read, but not while
+ * {@link #add} is running.
+ */
+public class HnswIndex {
+
+	private static final int MAGIC = 0x484e5357;
+	private static final int VERSION = 1;
+
+	private final int m;
+	private final int maxConnections0;
+	private final int efConstruction;
+	private final double levelMultiplier;
+	private final Random random;
+
+	private Object[] objects = new Object[16];
+	private Vector[] vectors = new Vector[16];
+	/** For each node and each of its layers, the number of neighbours followed by the neighbours. */
+	private int[][][] links = new int[16][][];
+	private int size = 0;
+	private int entryPoint = -1;
+	private int maxLevel = -1;
+
+	private final ThreadLocal<VisitedNodes> visitedNodes = ThreadLocal.withInitial(VisitedNodes::new);
+
+	/**
+	 * @param m              maximum number of neighbours of a node on the upper layers, twice that on layer 0
+	 * @param efConstruction number of candidates considered when connecting a new node
+	 * @param seed           seed for drawing node levels, so that builds are reproducible
+	 */
+	public HnswIndex(int m, int efConstruction, long seed) {
+		if (m < 2 || efConstruction < 1) {
+			throw new IllegalArgumentException("HNSW indexes need m >= 2 and efConstruction >= 1, got m = "
+					+ m + ", efConstruction = " + efConstruction);
+		}
+		this.m = m;
+		this.maxConnections0 = 2 * m;
+		this.efConstruction = efConstruction;
+		this.levelMultiplier = 1 / Math.log(m);
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Returns a new index of all the vectors of the given store.
+	 */
+	public static HnswIndex build(VectorStore vectorStore, int m, int efConstruction, long seed) {
+		HnswIndex index = new HnswIndex(m, efConstruction, seed);
+		Enumeration<ObjectVector> vectorEnumeration = vectorStore.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			ObjectVector objectVector = vectorEnumeration.nextElement();
+			index.add(objectVector.getObject(), objectVector.getVector());
+		}
+		return index;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getM() {
+		return m;
+	}
+
+	public int getEfConstruction() {
+		return efConstruction;
+	}
+
+	private int maxConnections(int level) {
+		return level == 0 ? maxConnections0 : m;
+	}
+
+	/**
+	 * Brings the vector into the representation {@link Vector#measureOverlap} works with, such as dense
+	 * coordinates or the dominant mode of complex vectors, so that concurrent searches only ever read it.
+	 */
+	private static Vector prepare(Vector vector) {
+		vector.measureOverlap(vector);
+		return vector;
+	}
+
+	private double score(Vector query, int node) {
+		return query.measureOverlap(vectors[node]);
+	}
+
+	/**
+	 * Adds a vector to the graph, connecting it to its nearest neighbours on each of its layers.
+	 */
+	public void add(Object object, Vector vector) {
+		if (size == objects.length) {
+			objects = Arrays.copyOf(objects, 2 * size);
+			vectors = Arrays.copyOf(vectors, 2 * size);
+			links = Arrays.copyOf(links, 2 * size);
+		}
+		int node = size;
+		int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+		objects[node] = object;
+		vectors[node] = prepare(vector);
+		links[node] = new int[level + 1][];
+		for (int l = 0; l <= level; l++) {
+			links[node][l] = new int[maxConnections(l) + 1];
+		}
+		size++;
+
+		if (entryPoint < 0) {
+			entryPoint = node;
+			maxLevel = level;
+			return;
+		}
+
+		int nearest = entryPoint;
+		double nearestScore = score(vector, nearest);
+		for (int l = maxLevel; l > level; l--) {
+			nearest = greedySearch(vector, nearest, nearestScore, l);
+			nearestScore = score(vector, nearest);
+		}
+
+		for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+			NodeHeap candidates = searchLayer(vector, nearest, nearestScore, efConstruction, l);
+			int numCandidates = candidates.size();
+			int[] candidateNodes = new int[numCandidates];
+			double[] candidateScores = new double[numCandidates];
+			// The farthest-first heap pops candidates from worst to best.
+			for (int i = numCandidates - 1; i >= 0; i--) {
+				candidateScores[i] = candidates.peekScore();
+				candidateNodes[i] = candidates.pop();
+			}
+			nearest = candidateNodes[0];
+			nearestScore = candidateScores[0];
+
+			int[] nodeLinks = links[node][l];
+			nodeLinks[0] = selectNeighbors(candidateNodes, candidateScores, numCandidates, m, nodeLinks);
+			for (int i = 1; i <= nodeLinks[0]; i++) {
+				connect(nodeLinks[i], node, l);
+			}
+		}
+
+		if (level > maxLevel) {
+			entryPoint = node;
+			maxLevel = level;
+		}
+	}
+
+	/**
+	 * Adds {@code node} to the neighbours of {@code neighbor} on the given layer, pruning them again with
+	 * the selection heuristic if there are too many.
+	 */
+	private void connect(int neighbor, int node, int level) {
+		int[] neighborLinks = links[neighbor][level];
+		int count = neighborLinks[0];
+		if (count < maxConnections(level)) {
+			neighborLinks[++count] = node;
+			neighborLinks[0] = count;
+			return;
+		}
+		Vector neighborVector = vectors[neighbor];
+		NodeHeap ordered = NodeHeap.nearestFirst();
+		ordered.push(node, neighborVector.measureOverlap(vectors[node]));
+		for (int i = 1; i <= count; i++) {
+			ordered.push(neighborLinks[i], neighborVector.measureOverlap(vectors[neighborLinks[i]]));
+		}
+		int[] candidateNodes = new int[count + 1];
+		double[] candidateScores = new double[count + 1];
+		for (int i = 0; i <= count; i++) {
+			candidateScores[i] = ordered.peekScore();
+			candidateNodes[i] = ordered.pop();
+		}
+		neighborLinks[0] = selectNeighbors(candidateNodes, candidateScores, count + 1, maxConnections(level), neighborLinks);
+	}
+
+	/**
+	 * Keeps candidates, taken from best to worst, that are more similar to the base node than to any
+	 * candidate kept so far, so that links spread out in different directions rather than all into the
+	 * same cluster. The selected nodes are written to {@code selected} from index 1.
+	 *
+	 * @param candidateNodes  candidates in decreasing order of similarity to the base node
+	 * @param candidateScores similarity of each candidate to the base node
+	 * @return the number of selected nodes
+	 */
+	private int selectNeighbors(int[] candidateNodes, double[] candidateScores, int numCandidates,
+								int maxSelected, int[] selected) {
+		int numSelected = 0;
+		for (int i = 0; i < numCandidates && numSelected < maxSelected; i++) {
+			Vector candidate = vectors[candidateNodes[i]];
+			boolean diverse = true;
+			for (int j = 1; j <= numSelected; j++) {
+				if (candidate.measureOverlap(vectors[selected[j]]) > candidateScores[i]) {
+					diverse = false;
+					break;
+				}
+			}
+			if (diverse) {
+				selected[++numSelected] = candidateNodes[i];
+			}
+		}
+		return numSelected;
+	}
+
+	/**
+	 * Follows the most similar neighbours on the given layer until no neighbour improves on the current node.
+	 */
+	private int greedySearch(Vector query, int start, double startScore, int level) {
+		int current = start;
+		double currentScore = startScore;
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			int[] currentLinks = links[current][level];
+			for (int i = 1; i <= currentLinks[0]; i++) {
+				double neighborScore = score(query, currentLinks[i]);
+				if (neighborScore > currentScore) {
+					current = currentLinks[i];
+					currentScore = neighborScore;
+					improved = true;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Best-first search of one layer, returning the {@code ef} most similar nodes found in a
+	 * {@link NodeHeap#farthestFirst()} heap.
+	 */
+	private NodeHeap searchLayer(Vector query, int start, double startScore, int ef, int level) {
+		VisitedNodes visited = visitedNodes.get();
+		visited.reset(size);
+		visited.visit(start);
+		NodeHeap candidates = NodeHeap.nearestFirst();
+		NodeHeap results = NodeHeap.farthestFirst();
+		candidates.push(start, startScore);
+		results.push(start, startScore);
+
+		while (!candidates.isEmpty()) {
+			if (candidates.peekScore() < results.peekScore() && results.size() >= ef) {
+				break;
+			}
+			int current = candidates.pop();
+			int[] currentLinks = links[current][level];
+			for (int i = 1; i <= currentLinks[0]; i++) {
+				int neighbor = currentLinks[i];
+				if (!visited.visit(neighbor)) {
+					continue;
+				}
+				double neighborScore = score(query, neighbor);
+				if (results.size() < ef || neighborScore > results.peekScore()) {
+					candidates.push(neighbor, neighborScore);
+					results.push(neighbor, neighborScore);
+					if (results.size() > ef) {
+						results.pop();
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the approximate nearest neighbours of the query, most similar first.
+	 *
+	 * @param numResults maximum number of results
+	 * @param ef         number of candidates to keep while searching layer 0, raised to {@code numResults}
+	 *                   if lower; larger values give better recall and slower searches
+	 */
+	public LinkedList<SearchResult> search(Vector query, int numResults, int ef) {
+		LinkedList<SearchResult> results = new LinkedList<>();
+		if (entryPoint < 0 || numResults <= 0) {
+			return results;
+		}
+		int nearest = entryPoint;
+		double nearestScore = score(query, nearest);
+		for (int l = maxLevel; l > 0; l--) {
+			nearest = greedySearch(query, nearest, nearestScore, l);
+			nearestScore = score(query, nearest);
+		}
+		NodeHeap candidates = searchLayer(query, nearest, nearestScore, Math.max(ef, numResults), 0);
+		while (candidates.size() > numResults) {
+			candidates.pop();
+		}
+		while (!candidates.isEmpty()) {
+			double score = candidates.peekScore();
+			int node = candidates.pop();
+			// Copied, so that callers cannot change the vectors of the graph
+			results.addFirst(new SearchResult(score, new ObjectVector(objects[node], vectors[node].copy())));
+		}
+		return results;
+	}
+
+	/**
+	 * Writes the graph to the given file. Vectors are not written, {@link #readFromFile} takes them from
+	 * the store the index was built from.
+	 */
+	public void writeToFile(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(m);
+			out.writeInt(efConstruction);
+			out.writeInt(size);
+			out.writeInt(entryPoint);
+			out.writeInt(maxLevel);
+			for (int node = 0; node < size; node++) {
+				out.writeUTF(objects[node].toString());
+				int[][] nodeLinks = links[node];
+				out.writeInt(nodeLinks.length - 1);
+				for (int[] layerLinks : nodeLinks) {
+					out.writeInt(layerLinks[0]);
+					for (int i = 1; i <= layerLinks[0]; i++) {
+						out.writeInt(layerLinks[i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a graph written by {@link #writeToFile}, taking the vectors of its nodes from the given store.
+	 *
+	 * @throws IOException if the file is not an HNSW index or does not match the vectors in the store
+	 */
+	public static HnswIndex readFromFile(File file, VectorStore vectorStore) throws IOException {
+		HnswIndex index;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an HNSW index file: " + file);
+			}
+			int m = in.readInt();
+			int efConstruction = in.readInt();
+			int size = in.readInt();
+			if (size != vectorStore.getNumVectors()) {
+				throw new IOException("HNSW index " + file + " has " + size + " nodes but the vector store has "
+						+ vectorStore.getNumVectors() + " vectors");
+			}
+			index = new HnswIndex(m, efConstruction, 0);
+			index.objects = new Object[Math.max(size, 1)];
+			index.vectors = new Vector[Math.max(size, 1)];
+			index.links = new int[Math.max(size, 1)][][];
+			index.size = size;
+			index.entryPoint = in.readInt();
+			index.maxLevel = in.readInt();
+			for (int node = 0; node < size; node++) {
+				index.objects[node] = in.readUTF();
+				int level = in.readInt();
+				int[][] nodeLinks = new int[level + 1][];
+				for (int l = 0; l <= level; l++) {
+					int count = in.readInt();
+					nodeLinks[l] = new int[index.maxConnections(l) + 1];
+					nodeLinks[l][0] = count;
+					for (int i = 1; i <= count; i++) {
+						nodeLinks[l][i] = in.readInt();
+					}
+				}
+				index.links[node] = nodeLinks;
+			}
+		}
+
+		Map<String, Integer> nodes = new HashMap<>(2 * index.size);
+		for (int node = 0; node < index.size; node++) {
+			if (nodes.put((String) index.objects[node], node) != null) {
+				throw new IOException("HNSW index " + file + " has more than one node for " + index.objects[node]);
+			}
+		}
+		Enumeration<ObjectVector> vectorEnumeration = vectorStore.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			ObjectVector objectVector = vectorEnumeration.nextElement();
+			Integer node = nodes.get(objectVector.getObject().toString());
+			if (node == null) {
+				throw new IOException("HNSW index " + file + " has no node for " + objectVector.getObject());
+			}
+			index.objects[node] = objectVector.getObject();
+			index.vectors[node] = prepare(objectVector.getVector());
+		}
+		return index;
+	}
+
+	/**
+	 * Marks nodes visited by one search, reset in constant time by moving to the next epoch.
+	 */
+	private static class VisitedNodes {
+		private int[] marks = new int[0];
+		private int epoch = 0;
+
+		void reset(int size) {
+			if (marks.length < size) {
+				marks = new int[Math.max(size, 2 * marks.length)];
+				epoch = 0;
+			}
+			if (++epoch == Integer.MAX_VALUE) {
+				Arrays.fill(marks, 0);
+				epoch = 1;
+			}
+		}
+
+		/** Returns {@code true} if the node had not been visited yet. */
+		boolean visit(int node) {
+			if (marks[node] == epoch) {
+				return false;
+			}
+			marks[node] = epoch;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package pitt.search.semanticvectors.hnsw;
+
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * Ensures there is a single {@link HnswIndex} in memory for each indexed vector store and set of
+ * build parameters.
+ * <p>
+ * Indexes are persisted next to the vector store, in a file named after it with the suffix
+ * {@link #INDEX_SUFFIX} and the build parameters. An index file is only reused while it is newer than
+ * the vector store, otherwise the index is rebuilt and the file overwritten.
+ */
+public enum HnswIndexFactory {
+
+	INSTANCE;
+
+	private static final Logger logger = Logger.getLogger(HnswIndexFactory.class.getCanonicalName());
+
+	public static final String INDEX_SUFFIX = ".hnsw";
+
+	/** Seed for the node levels, fixed so that the same store always gives the same graph. */
+	private static final long SEED = 0;
+
+	// Indexes are read or built by the first caller, outside of the map, while others wait for the same task
+	private final Map<HnswConfig, FutureTask<HnswIndex>> indexes = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the index of the given {@link VectorStoreReaderLucene} vector file for
+	 * {@link FlagConfig#hnsw_m()} and {@link FlagConfig#hnsw_efconstruction()}, reading or building it if
+	 * it is not in memory yet.
+	 */
+	public HnswIndex getIndex(File vecStoreFile, FlagConfig flagConfig) {
+		HnswConfig config =
+				new HnswConfig(vecStoreFile.getAbsolutePath(), flagConfig.hnsw_m(), flagConfig.hnsw_efconstruction());
+		FutureTask<HnswIndex> task = new FutureTask<>(() -> loadOrBuild(vecStoreFile, flagConfig));
+		FutureTask<HnswIndex> existing = indexes.putIfAbsent(config, task);
+		if (existing == null) {
+			task.run();
+		} else {
+			task = existing;
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			// Failed builds are forgotten, so that the next search tries again
+			indexes.remove(config, task);
+			throw new RuntimeException("Could not init HNSW index for " + vecStoreFile, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the HNSW index of " + vecStoreFile, e);
+		}
+	}
+
+	/**
+	 * Returns the file the index of the given vector store is persisted to.
+	 */
+	public static File getIndexFile(File vecStoreFile, int m, int efConstruction) {
+		return new File(vecStoreFile.getAbsoluteFile().getParentFile(),
+				vecStoreFile.getName() + INDEX_SUFFIX + m + "_" + efConstruction);
+	}
+
+	private static HnswIndex loadOrBuild(File vecStoreFile, FlagConfig flagConfig) throws IOException {
+		File indexFile = getIndexFile(vecStoreFile, flagConfig.hnsw_m(), flagConfig.hnsw_efconstruction());
+		VectorStoreReaderLucene vectorStore = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
+		try {
+			if (indexFile.exists() && indexFile.lastModified() >= vecStoreFile.lastModified()) {
+				try {
+					HnswIndex index = HnswIndex.readFromFile(indexFile, vectorStore);
+					logger.fine("Read HNSW index of " + index.size() + " vectors from " + indexFile);
+					return index;
+				} catch (IOException e) {
+					logger.warning("Rebuilding HNSW index: " + e.getMessage());
+				}
+			}
+			logger.info("Building HNSW index of " + vecStoreFile + " ...");
+			HnswIndex index = HnswIndex.build(vectorStore, flagConfig.hnsw_m(), flagConfig.hnsw_efconstruction(), SEED);
+			index.writeToFile(indexFile);
+			logger.info("Wrote HNSW index of " + index.size() + " vectors to " + indexFile);
+			return index;
+		} finally {
+			vectorStore.close();
+		}
+	}
+
+	/**
+	 * Drops the indexes of the vector stores under the given path from memory. This should be called once
+	 * a vector store is deleted or recreated, because otherwise searches keep using the outdated index.
+	 */
+	public void clearIndexesForIndex(File indexHome) {
+		indexes.keySet().removeIf(config -> config.fileName.startsWith(indexHome.getAbsolutePath()));
+	}
+
+	private static class HnswConfig {
+		final String fileName;
+		final int m;
+		final int efConstruction;
+
+		HnswConfig(String fileName, int m, int efConstruction) {
+			this.fileName = fileName;
+			this.m = m;
+			this.efConstruction = efConstruction;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			HnswConfig that = (HnswConfig) o;
+			return m == that.m &&
+					efConstruction == that.efConstruction &&
+					Objects.equals(fileName, that.fileName);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fileName, m, efConstruction);
+		}
+	}
+}
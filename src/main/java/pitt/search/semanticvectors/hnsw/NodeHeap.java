@@ -0,0 +1,101 @@
+package pitt.search.semanticvectors.hnsw;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of graph nodes and their similarity to a query, kept in primitive arrays. The root is
+ * the most similar node of a {@link #nearestFirst()} heap, and the least similar one of a
+ * {@link #farthestFirst()} heap.
+ */
+class NodeHeap {
+
+	private final boolean nearestFirst;
+	private int[] nodes = new int[16];
+	private double[] scores = new double[16];
+	private int size;
+
+	private NodeHeap(boolean nearestFirst) {
+		this.nearestFirst = nearestFirst;
+	}
+
+	static NodeHeap nearestFirst() {
+		return new NodeHeap(true);
+	}
+
+	static NodeHeap farthestFirst() {
+		return new NodeHeap(false);
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	int peekNode() {
+		return nodes[0];
+	}
+
+	double peekScore() {
+		return scores[0];
+	}
+
+	void push(int node, double score) {
+		if (size == nodes.length) {
+			nodes = Arrays.copyOf(nodes, 2 * size);
+			scores = Arrays.copyOf(scores, 2 * size);
+		}
+		int position = size++;
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (!isAbove(score, scores[parent])) {
+				break;
+			}
+			nodes[position] = nodes[parent];
+			scores[position] = scores[parent];
+			position = parent;
+		}
+		nodes[position] = node;
+		scores[position] = score;
+	}
+
+	/**
+	 * Removes the root, returning its node.
+	 */
+	int pop() {
+		int root = nodes[0];
+		int last = --size;
+		if (last > 0) {
+			int node = nodes[last];
+			double score = scores[last];
+			int position = 0;
+			int half = size >>> 1;
+			while (position < half) {
+				int child = 2 * position + 1;
+				int right = child + 1;
+				if (right < size && isAbove(scores[right], scores[child])) {
+					child = right;
+				}
+				if (!isAbove(scores[child], score)) {
+					break;
+				}
+				nodes[position] = nodes[child];
+				scores[position] = scores[child];
+				position = child;
+			}
+			nodes[position] = node;
+			scores[position] = score;
+		}
+		return root;
+	}
+
+	private boolean isAbove(double score, double otherScore) {
+		return nearestFirst ? score > otherScore : score < otherScore;
+	}
+}
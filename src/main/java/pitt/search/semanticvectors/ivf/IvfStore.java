@@ -0,0 +1,222 @@
+package pitt.search.semanticvectors.ivf;
+
+import org.apache.lucene.store.IndexInput;
+import pitt.search.semanticvectors.ClusterResults;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.VectorStoreUtils;
+import pitt.search.semanticvectors.VectorStoreWriter;
+import pitt.search.semanticvectors.lsh.LongIterator;
+import pitt.search.semanticvectors.lsh.MappedVectorReader;
+import pitt.search.semanticvectors.lsh.PersistedHashMap;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Inverted-file index of a {@link VectorStoreReaderLucene} vector store. The vectors are partitioned into
+ * {@link FlagConfig#ivf_cells()} cells by k-means clustering, and {@link #getSimilar} only returns the
+ * vectors of the {@link FlagConfig#ivf_nprobe()} cells whose centroids are most similar to the query, so a
+ * search scans about {@code ivf_nprobe / ivf_cells} of the store.
+ * <p>
+ * Like {@link pitt.search.semanticvectors.lsh.PersistedLSHStore}, the file positions of the vectors in
+ * each cell are persisted with a {@link PersistedHashMap}, keyed by cell number, and read from the vector store
+ * by a {@link MappedVectorReader}. The centroids are written to a vector store file next to it. Both are rebuilt
+ * when the vector store is newer.
+ */
+public class IvfStore {
+	private static final Logger logger = Logger.getLogger(IvfStore.class.getCanonicalName());
+
+	// Stores the file positions of the vectors in each cell
+	public static final String CELLS_SUFFIX = ".ivfcells";
+	// Stores the centroids of the cells
+	public static final String CENTROIDS_SUFFIX = ".ivfcentroids";
+
+	/** Number of vectors sampled per cell to train the centroids. */
+	public static final int TRAINING_VECTORS_PER_CELL = 64;
+	/** Seed for sampling and clustering, fixed so that the same store always gives the same cells. */
+	private static final long SEED = 0;
+
+	File vecStoreFile;
+	FlagConfig flagConfig;
+	Vector[] centroids;
+	PersistedHashMap phm;
+	private final MappedVectorReader vectorReader = new MappedVectorReader();
+
+	public IvfStore(File vecStoreFile, FlagConfig flagConfig) {
+		this.vecStoreFile = vecStoreFile;
+		this.flagConfig = flagConfig;
+	}
+
+	/**
+	 * If the index exists and is newer than the vector store it gets reinitialized, otherwise a new one is
+	 * trained and persisted.
+	 */
+	public void initCache() throws IOException {
+		File homeDir = new File(vecStoreFile.getAbsoluteFile().getParentFile(), "ivf");
+		if (!homeDir.exists())
+			Files.createDirectories(homeDir.toPath());
+
+		File cellsFile = new File(homeDir, vecStoreFile.getName() + CELLS_SUFFIX + flagConfig.ivf_cells());
+		// Vector store writers add the .bin extension if it is missing.
+		File centroidsFile = new File(homeDir, vecStoreFile.getName() + CENTROIDS_SUFFIX + flagConfig.ivf_cells() + ".bin");
+
+		if (!cellsFile.exists() || !centroidsFile.exists() || cellsFile.lastModified() < vecStoreFile.lastModified()) {
+			Files.deleteIfExists(cellsFile.toPath());
+			VectorStoreRAM centroidStore = new VectorStoreRAM(flagConfig);
+			TreeMap<Long, Collection<Long>> cells = train(centroidStore);
+			VectorStoreWriter.writeVectors(centroidsFile.getAbsolutePath(), flagConfig, centroidStore);
+			phm = new PersistedHashMap(cellsFile);
+			phm.persist(cells);
+		} else {
+			phm = new PersistedHashMap(cellsFile);
+			phm.init();
+		}
+
+		VectorStoreRAM centroidStore = VectorStoreRAM.readFromFile(flagConfig, centroidsFile.getAbsolutePath());
+		centroids = new Vector[centroidStore.getNumVectors()];
+		for (int i = 0; i < centroids.length; i++) {
+			centroids[i] = centroidStore.getVector(Integer.toString(i));
+			if (centroids[i] == null)
+				throw new IOException("Missing centroid " + i + " in " + centroidsFile);
+			// Brings complex centroids into the dominant mode once, so queries only read them.
+			centroids[i].measureOverlap(centroids[i]);
+		}
+	}
+
+	/**
+	 * Trains the centroids on a sample of the store, adds them to the given store and returns the file
+	 * positions of the vectors nearest to each of them.
+	 */
+	private TreeMap<Long, Collection<Long>> train(VectorStoreRAM centroidStore) throws IOException {
+		Random random = new Random(SEED);
+		VectorStoreReaderLucene vecStore = null;
+		try {
+			vecStore = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
+
+			// Reservoir sample of the vectors to cluster.
+			int sampleSize = Math.min(vecStore.getNumVectors(), flagConfig.ivf_cells() * TRAINING_VECTORS_PER_CELL);
+			List<ObjectVector> sample = new ArrayList<>(sampleSize);
+			Enumeration<ObjectVector> vecEnum = vecStore.getAllVectors();
+			for (int seen = 0; vecEnum.hasMoreElements(); seen++) {
+				ObjectVector objectVector = vecEnum.nextElement();
+				if (sample.size() < sampleSize) {
+					sample.add(objectVector);
+				} else {
+					int slot = random.nextInt(seen + 1);
+					if (slot < sampleSize) sample.set(slot, objectVector);
+				}
+			}
+			if (sample.isEmpty())
+				throw new IOException("Cannot build an IVF index of the empty vector store " + vecStoreFile);
+
+			logger.info("Training " + flagConfig.ivf_cells() + " IVF cells on " + sample.size() + " vectors ...");
+			ClusterResults.Clusters clusters = ClusterResults.kMeansCluster(sample.toArray(new ObjectVector[0]),
+					flagConfig.ivf_cells(), ClusterResults.MAX_KMEANS_ITERATIONS, random, flagConfig);
+			for (int i = 0; i < clusters.centroids.length; i++) {
+				centroidStore.putVector(Integer.toString(i), clusters.centroids[i]);
+			}
+
+			TreeMap<Long, Collection<Long>> cells = new TreeMap<>();
+			IndexInput indexInput = vecStore.getIndexInput();
+			indexInput.seek(0);
+			indexInput.readString();
+
+			long currentPosition;
+			while ((currentPosition = indexInput.getFilePointer()) < indexInput.length()) {
+				indexInput.readString();
+				Vector vector = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension());
+				vector.readFromLuceneStream(indexInput);
+
+				short cell = (short) VectorUtils.getNearestVector(vector, clusters.centroids);
+				cells.computeIfAbsent((long) cell, c -> new LinkedList<>()).add(currentPosition);
+			}
+			return cells;
+		} finally {
+			VectorStoreUtils.closeVectorStores(vecStore);
+		}
+	}
+
+	/**
+	 * Returns the numbers of the {@code nprobe} cells whose centroids are most similar to the vector, most
+	 * similar first.
+	 */
+	short[] getNearestCells(Vector vector, int nprobe) {
+		int numCells = Math.min(nprobe, centroids.length);
+		short[] cells = new short[numCells];
+		double[] scores = new double[numCells];
+		int found = 0;
+		for (int i = 0; i < centroids.length; i++) {
+			double score = vector.measureOverlap(centroids[i]);
+			if (found == numCells && score <= scores[numCells - 1])
+				continue;
+			// Insertion into the short sorted list of best cells so far.
+			int position = found < numCells ? found++ : numCells - 1;
+			while (position > 0 && scores[position - 1] < score) {
+				cells[position] = cells[position - 1];
+				scores[position] = scores[position - 1];
+				position--;
+			}
+			cells[position] = (short) i;
+			scores[position] = score;
+		}
+		return cells;
+	}
+
+	/**
+	 * Returns the vectors of the {@link FlagConfig#ivf_nprobe()} cells nearest to the vector. The enumeration must not
+	 * be used after the store is closed.
+	 */
+	public Enumeration<ObjectVector> getSimilar(Vector vector) throws IOException {
+		short[] cells = getNearestCells(vector, flagConfig.ivf_nprobe());
+
+		Iterator<Long> iter = new Iterator<Long>() {
+			int nextCell = 0;
+			LongIterator cellIter;
+
+			@Override
+			public boolean hasNext() {
+				while (cellIter == null || !cellIter.hasNext()) {
+					if (nextCell == cells.length)
+						return false;
+					cellIter = phm.get(cells[nextCell++]);
+				}
+				return true;
+			}
+
+			@Override
+			public Long next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return cellIter.next();
+			}
+		};
+
+		return vectorReader.getObjectVectorEnum(iter, vecStoreFile, flagConfig);
+	}
+
+	public int getNumCells() {
+		return centroids.length;
+	}
+
+	public void close() {
+		vectorReader.close();
+		phm.close();
+	}
+}
@@ -0,0 +1,168 @@
+package pitt.search.semanticvectors.ivf;
+
+import pitt.search.semanticvectors.FlagConfig;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Ensures there are single instances of the {@link IvfStore}'s for each indexed vector store and number of cells.
+ * Each store is read or trained once, outside of the map, while other threads asking for it wait for the same task.
+ * <p>
+ * Like the stores of {@link pitt.search.semanticvectors.lsh.LSHStoreFactory}, stores are used through
+ * reference-counted {@link Handle}s, so that {@link #clearStoresForIndex} does not close a store which is still read.
+ */
+public enum IvfStoreFactory {
+
+	INSTANCE;
+
+	private final Map<IvfConfig, Entry> ivfStores = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns a handle to the {@link IvfStore} with {@link FlagConfig#ivf_cells()} cells for a given
+	 * {@link pitt.search.semanticvectors.VectorStoreReaderLucene} store. If such is not already present one
+	 * gets read or trained. The store stays open until the handle is closed.
+	 */
+	public Handle acquire(File vecStoreFile, FlagConfig flagConfig) {
+		IvfConfig config = new IvfConfig(vecStoreFile.getAbsolutePath(), flagConfig.ivf_cells());
+		while (true) {
+			Entry entry = new Entry(new FutureTask<>(() -> {
+				IvfStore store = new IvfStore(vecStoreFile, flagConfig);
+				store.initCache();
+				return store;
+			}));
+			Entry existing = ivfStores.putIfAbsent(config, entry);
+			if (existing == null) {
+				entry.task.run();
+			} else {
+				entry = existing;
+			}
+
+			IvfStore store;
+			try {
+				store = entry.task.get();
+			} catch (ExecutionException e) {
+				// Failed stores are forgotten, so that the next search tries again
+				ivfStores.remove(config, entry);
+				throw new RuntimeException("Could not init IVF index", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for the IVF index of " + vecStoreFile, e);
+			}
+			synchronized (entry) {
+				// The entry was cleared while the store was read or trained
+				if (entry.cleared) {
+					entry.closeIfUnused();
+					continue;
+				}
+				entry.references++;
+			}
+			return new Handle(entry, store);
+		}
+	}
+
+	/**
+	 * Closes and forgets the stores related to a certain vector store or directory. This should be called once a
+	 * vector store is deleted or recreated because otherwise you can end-up with outdated cells. Stores which still
+	 * have handles are closed once their last handle is closed.
+	 */
+	public void clearStoresForIndex(File indexHome) {
+		ivfStores.entrySet().removeIf(mapEntry -> {
+			if (!mapEntry.getKey().fileName.startsWith(indexHome.getAbsolutePath()))
+				return false;
+			Entry entry = mapEntry.getValue();
+			synchronized (entry) {
+				entry.cleared = true;
+				entry.closeIfUnused();
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * A reference to an open store, which keeps it from being closed until the handle is closed.
+	 */
+	public static class Handle implements AutoCloseable {
+		private final Entry entry;
+		private final IvfStore store;
+		private boolean released;
+
+		private Handle(Entry entry, IvfStore store) {
+			this.entry = entry;
+			this.store = store;
+		}
+
+		public IvfStore getStore() {
+			return store;
+		}
+
+		@Override
+		public void close() {
+			synchronized (entry) {
+				if (released)
+					return;
+				released = true;
+				entry.references--;
+				// The store was cleared while this handle was open
+				if (entry.cleared)
+					entry.closeIfUnused();
+			}
+		}
+	}
+
+	/**
+	 * The task reading or training a store and the references to the store, guarded by the entry itself.
+	 */
+	private static class Entry {
+		final FutureTask<IvfStore> task;
+		int references;
+		boolean cleared;
+		boolean closed;
+
+		Entry(FutureTask<IvfStore> task) {
+			this.task = task;
+		}
+
+		/**
+		 * Closes the store once it has been read or trained and has no handles left.
+		 */
+		void closeIfUnused() {
+			if (closed || references > 0 || !task.isDone())
+				return;
+			closed = true;
+			try {
+				task.get().close();
+			} catch (ExecutionException | InterruptedException e) {
+				// There is no store to close
+			}
+		}
+	}
+
+	private static class IvfConfig {
+		final String fileName;
+		final int numCells;
+
+		IvfConfig(String fileName, int numCells) {
+			this.fileName = fileName;
+			this.numCells = numCells;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			IvfConfig ivfConfig = (IvfConfig) o;
+			return numCells == ivfConfig.numCells &&
+					Objects.equals(fileName, ivfConfig.fileName);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fileName, numCells);
+		}
+	}
+}
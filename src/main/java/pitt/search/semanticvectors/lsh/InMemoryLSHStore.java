@@ -1,6 +1,7 @@
 package pitt.search.semanticvectors.lsh;
 
 import org.apache.lucene.store.IndexInput;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
 import pitt.search.semanticvectors.*;
 import pitt.search.semanticvectors.vectors.Vector;
 import pitt.search.semanticvectors.vectors.VectorFactory;
@@ -8,28 +9,125 @@ import pitt.search.semanticvectors.vectors.VectorFactory;
 import java.io.IOException;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * A {@link LSHStore} which stores the vectors in a {@link HashMap} in-memory
+ * A {@link LSHStore} which stores the vectors in a {@link HashMap} in-memory. There is one hash table for each of the
+ * {@link FlagConfig#lsh_tables()} independent hashes, and similar vectors are looked up in all of them. Updates only
+ * change the tables in memory.<b>
+ * The tables are built on {@link FlagConfig#numthreads()} threads, each hashing a range of the vector store, and each
+ * bucket holds the positions of its vectors in an array. The random vectors of each table are generated from
+ * {@link FlagConfig#lsh_seed()}, so two builds of the same store give the same tables. A build started by
+ * {@link LSHStoreFactory#build} reports its progress to it and stops when it is cancelled.
  */
 public class InMemoryLSHStore extends LSHStore {
 
-	LocalitySensitiveHash lsh;
+	// Approximate heap size of a bucket besides its positions: the tree map entry, the boxed hash and the array header
+	private static final int BUCKET_BYTES = 80;
+	// Number of vectors hashed between checks for cancellation and progress reports
+	private static final int PROGRESS_INTERVAL = 1024;
+
+	LocalitySensitiveHash[] lshs;
 	FlagConfig flagConfig;
-	TreeMap<Short, Collection<Long>> storeHash;
+	List<TreeMap<Long, long[]>> storeHashes;
 	File vecStoreFile;
-
+	// The background build this store is made by, if any
+	LSHStoreFactory.Build build;
 
 	InMemoryLSHStore(File vecStoreFile, FlagConfig flagConfig) {
+		this(vecStoreFile, flagConfig, flagConfig.lsh_hashes_num(), flagConfig.lsh_max_bits_diff());
+	}
+
+	/**
+	 * Hashes with the given number of hashes and allowed different bits instead of those of the flags.
+	 */
+	InMemoryLSHStore(File vecStoreFile, FlagConfig flagConfig, int numHashes, int maxBitsDiff) {
 		this.vecStoreFile = vecStoreFile;
 		this.flagConfig = flagConfig;
-		this.lsh = new LocalitySensitiveHash(flagConfig);
+		this.lshs = new LocalitySensitiveHash[flagConfig.lsh_tables()];
+		for (int table = 0; table < lshs.length; table++) {
+			lshs[table] = new LocalitySensitiveHash(flagConfig.vectortype(), flagConfig.dimension(), numHashes, maxBitsDiff,
+					getTableSeed(flagConfig.lsh_seed(), table));
+		}
 	}
 
+	/**
+	 * Returns a different seed for each table of the same {@link FlagConfig#lsh_seed()}.
+	 */
+	static long getTableSeed(int seed, int table) {
+		return ((long) seed << 32) | table;
+	}
 
 	@Override
 	public void initCache() throws IOException {
-		storeHash = new TreeMap<>();
+		long[] positions = readPositions();
+		int numVectors = positions.length;
+		if (build != null)
+			build.numVectors = numVectors;
+		long[][] hashes = new long[lshs.length][numVectors];
+
+		int numThreads = Math.max(1, Math.min(flagConfig.numthreads(), numVectors));
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		MappedVectorFile vectorFile = new MappedVectorFile(vecStoreFile);
+		try {
+			List<Future<?>> hashing = new ArrayList<>(numThreads);
+			for (int thread = 0; thread < numThreads; thread++) {
+				int from = (int) ((long) numVectors * thread / numThreads);
+				int to = (int) ((long) numVectors * (thread + 1) / numThreads);
+				hashing.add(executor.submit(() -> {
+					for (int i = from; i < to; i++) {
+						if (build != null && (i - from) % PROGRESS_INTERVAL == 0) {
+							if (build.isCancelled())
+								throw new QueryInterruptedException("LSH store creation was aborted by the user");
+							if (i > from)
+								build.numHashed.addAndGet(PROGRESS_INTERVAL);
+						}
+						Vector vector = vectorFile.readObjectVector(positions[i], flagConfig).getVector();
+						for (int table = 0; table < lshs.length; table++) {
+							hashes[table][i] = lshs[table].getHash(vector);
+						}
+					}
+					if (build != null && to > from)
+						build.numHashed.addAndGet((to - from - 1) % PROGRESS_INTERVAL + 1);
+					return null;
+				}));
+			}
+			for (Future<?> range : hashing) {
+				range.get();
+			}
+
+			List<Future<TreeMap<Long, long[]>>> merging = new ArrayList<>(lshs.length);
+			for (int table = 0; table < lshs.length; table++) {
+				long[] tableHashes = hashes[table];
+				merging.add(executor.submit(() -> toBuckets(tableHashes, positions)));
+			}
+			storeHashes = new ArrayList<>(lshs.length);
+			for (Future<TreeMap<Long, long[]>> table : merging) {
+				storeHashes.add(table.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while hashing " + vecStoreFile, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof QueryInterruptedException)
+				throw (QueryInterruptedException) e.getCause();
+			throw new IOException("Could not hash " + vecStoreFile, e.getCause());
+		} finally {
+			executor.shutdown();
+			vectorFile.close();
+		}
+	}
+
+	/**
+	 * Returns the position of each vector in the vector store file, without reading the vectors.
+	 */
+	private long[] readPositions() throws IOException {
+		long[] positions = new long[1024];
+		int numVectors = 0;
+		int vectorBytes = VectorFactory.getLuceneByteSize(flagConfig.vectortype(), flagConfig.dimension());
 		VectorStoreReaderLucene vecStore = null;
 		try {
 			vecStore = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
@@ -39,37 +137,144 @@ public class InMemoryLSHStore extends LSHStore {
 
 			long currentPosition;
 			while ((currentPosition = indexInput.getFilePointer()) < indexInput.length()) {
+				if (numVectors == positions.length)
+					positions = Arrays.copyOf(positions, 2 * numVectors);
+				positions[numVectors++] = currentPosition;
 				indexInput.readString();
-				Vector vector = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension());
-				vector.readFromLuceneStream(indexInput);
-
-				short hash = lsh.getHash(vector);
-				storeHash.computeIfAbsent(hash, h -> new LinkedList<>()).add(currentPosition);
+				indexInput.seek(indexInput.getFilePointer() + vectorBytes);
 			}
 		} finally {
 			VectorStoreUtils.closeVectorStores(vecStore);
 		}
+		return Arrays.copyOf(positions, numVectors);
+	}
+
+	/**
+	 * Groups the positions by hash. Each bucket keeps the positions in the order they are given.
+	 */
+	static TreeMap<Long, long[]> toBuckets(long[] hashes, long[] positions) {
+		long[] keys = hashes.clone();
+		Arrays.sort(keys);
+		int numKeys = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (numKeys == 0 || keys[i] != keys[numKeys - 1])
+				keys[numKeys++] = keys[i];
+		}
+
+		int[] sizes = new int[numKeys];
+		for (long hash : hashes) {
+			sizes[Arrays.binarySearch(keys, 0, numKeys, hash)]++;
+		}
+		long[][] buckets = new long[numKeys][];
+		for (int key = 0; key < numKeys; key++) {
+			buckets[key] = new long[sizes[key]];
+			sizes[key] = 0;
+		}
+		for (int i = 0; i < hashes.length; i++) {
+			int key = Arrays.binarySearch(keys, 0, numKeys, hashes[i]);
+			buckets[key][sizes[key]++] = positions[i];
+		}
+
+		TreeMap<Long, long[]> storeHash = new TreeMap<>();
+		for (int key = 0; key < numKeys; key++) {
+			storeHash.put(keys[key], buckets[key]);
+		}
+		return storeHash;
 	}
 
 	@Override
 	public Enumeration<ObjectVector> getSimilar(Vector vector) throws IOException {
-		if (storeHash == null) {
+		if (storeHashes == null) {
 			throw new RuntimeException("There is no cached data");
 		}
 
-		VectorStoreReaderLucene vecStore = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
-		try {
-			short[] potentialHashes = lsh.getSimilarHashes(vector);
-			Set<Long> allVecPositions = new HashSet<>();
-			for (short potentialHash : potentialHashes) {
-				if (storeHash.containsKey(potentialHash))
-					allVecPositions.addAll(storeHash.get(potentialHash));
+		// Hashing the query takes most of the lookup and does not read the buckets, so it is done outside the lock
+		long[][] similarHashes = new long[lshs.length][];
+		for (int table = 0; table < lshs.length; table++) {
+			similarHashes[table] = lshs[table].getSimilarHashes(vector);
+		}
+		Set<Long> allVecPositions = new HashSet<>();
+		synchronized (this) {
+			for (int table = 0; table < lshs.length; table++) {
+				TreeMap<Long, long[]> storeHash = storeHashes.get(table);
+				for (long potentialHash : similarHashes[table]) {
+					long[] bucket = storeHash.get(potentialHash);
+					if (bucket == null)
+						continue;
+					for (long position : bucket) {
+						allVecPositions.add(position);
+					}
+				}
 			}
-			Iterator<Long> iter = allVecPositions.iterator();
-			return getObjectVectorEnum(iter, vecStore, flagConfig);
-		} finally {
-			VectorStoreUtils.closeVectorStores(vecStore);
 		}
+		Iterator<Long> iter = allVecPositions.iterator();
+		return getObjectVectorEnum(iter, vecStoreFile, flagConfig);
+	}
+
+	@Override
+	public void add(long position, Vector vector) {
+		long[] hashes = new long[lshs.length];
+		for (int table = 0; table < lshs.length; table++) {
+			hashes[table] = lshs[table].getHash(vector);
+		}
+		synchronized (this) {
+			for (int table = 0; table < lshs.length; table++) {
+				long hash = hashes[table];
+				long[] bucket = storeHashes.get(table).get(hash);
+				if (bucket == null) {
+					bucket = new long[] {position};
+				} else {
+					bucket = Arrays.copyOf(bucket, bucket.length + 1);
+					bucket[bucket.length - 1] = position;
+				}
+				storeHashes.get(table).put(hash, bucket);
+			}
+		}
+	}
+
+	@Override
+	public void remove(long position, Vector vector) {
+		long[] hashes = new long[lshs.length];
+		for (int table = 0; table < lshs.length; table++) {
+			hashes[table] = lshs[table].getHash(vector);
+		}
+		synchronized (this) {
+			for (int table = 0; table < lshs.length; table++) {
+				long hash = hashes[table];
+				long[] bucket = storeHashes.get(table).get(hash);
+				if (bucket == null)
+					continue;
+				for (int i = 0; i < bucket.length; i++) {
+					if (bucket[i] != position)
+						continue;
+					if (bucket.length == 1) {
+						storeHashes.get(table).remove(hash);
+					} else {
+						long[] remaining = new long[bucket.length - 1];
+						System.arraycopy(bucket, 0, remaining, 0, i);
+						System.arraycopy(bucket, i + 1, remaining, i, bucket.length - i - 1);
+						storeHashes.get(table).put(hash, remaining);
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized long getSizeInBytes() {
+		long size = 0;
+		for (TreeMap<Long, long[]> storeHash : storeHashes) {
+			for (long[] bucket : storeHash.values()) {
+				size += BUCKET_BYTES + (long) bucket.length * Long.BYTES;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long addAppended(long fromPosition) throws IOException {
+		return addAppended(vecStoreFile, fromPosition, flagConfig);
 	}
 
 }
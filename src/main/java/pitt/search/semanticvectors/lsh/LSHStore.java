@@ -1,6 +1,5 @@
 package pitt.search.semanticvectors.lsh;
 
-import org.apache.lucene.store.DataInput;
 import org.apache.lucene.store.IndexInput;
 import pitt.search.semanticvectors.FlagConfig;
 import pitt.search.semanticvectors.ObjectVector;
@@ -11,115 +10,115 @@ import pitt.search.semanticvectors.vectors.VectorFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.Iterator;
 
 /**
  * A store which uses Locality-Sensitive Hashing for storing and retrieving vectors. The vector store which should be
  * indexed is passed in the constructor of the concrete class.
+ * <p>
+ * Stores which support updates index vectors added to the vector store without being rebuilt: each vector is
+ * identified by its position in the vector store file, and hashed by its value.
  */
 public abstract class LSHStore {
 
+	private final MappedVectorReader vectorReader = new MappedVectorReader();
+
 	public abstract void initCache() throws IOException;
 
 	public abstract Enumeration<ObjectVector> getSimilar(Vector vector) throws IOException;
 
-	public void close() {
+	/**
+	 * Adds the vector found at the given position of the vector store file.
+	 * @throws UnsupportedOperationException if the store does not support updates
+	 */
+	public void add(long position, Vector vector) throws IOException {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support updates");
+	}
+
+	/**
+	 * Removes the vector found at the given position of the vector store file. The vector is needed to find its hashes.
+	 * @throws UnsupportedOperationException if the store does not support updates
+	 */
+	public void remove(long position, Vector vector) throws IOException {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support updates");
+	}
+
+	/**
+	 * Replaces a vector by a new version of it, usually appended at the end of the vector store file.
+	 * @throws UnsupportedOperationException if the store does not support updates
+	 */
+	public void replace(long oldPosition, Vector oldVector, long newPosition, Vector newVector) throws IOException {
+		remove(oldPosition, oldVector);
+		add(newPosition, newVector);
 	}
 
 	/**
-	 * Returns an Enumeration of vectors given an iterator containing their position in a vector store
-	 * @param iter iterator of vector file positions
-	 * @param vecStore the vector store containing the vectors
-	 * @param flagConfig
-	 * @return
-	 * @throws IOException
+	 * Adds all vectors which were appended to the vector store file from the given position, which is the length of
+	 * the file when it was last indexed.
+	 * @return the number of vectors added
+	 * @throws UnsupportedOperationException if the store does not support updates
 	 */
-	protected Enumeration<ObjectVector> getObjectVectorEnum(Iterator<Long> iter, VectorStoreReaderLucene vecStore, FlagConfig flagConfig) throws IOException {
-		Enumeration<ObjectVector> vecs;
-		File storeFile = vecStore.getVectorFile();
-
-		// The MappedByteBuffer is faster than the IndexInput but supports only smaller files. Creating a class which uses
-		// an array of mapped buffers to cover a big file and have better performance than the InputIndex is IMPOSSIBLE!!!
-		if (storeFile.length() < Integer.MAX_VALUE) {
-			MappedByteBuffer byteBuffer = FileChannel.open(storeFile.toPath()).map(FileChannel.MapMode.READ_ONLY, 0, storeFile.length());
-			DataInput di = new DataInput() {
-				@Override
-				public byte readByte() throws IOException {
-					return byteBuffer.get();
-				}
-
-				@Override
-				public void readBytes(byte[] b, int offset, int len) throws IOException {
-					byteBuffer.get(b, offset, len);
-				}
-			};
-
-			vecs = new Enumeration<ObjectVector>() {
-
-				@Override
-				public boolean hasMoreElements() {
-					if (iter.hasNext())
-						return true;
-					else {
-						DirectByteBufferCleaner.closeDirectByteBuffer(byteBuffer);
-						VectorStoreUtils.closeVectorStores(vecStore);
-						return false;
-					}
-				}
-
-				@Override
-				public ObjectVector nextElement() {
-					if (!hasMoreElements())
-						return null;
-					String object;
-					Vector vector = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension());
-					try {
-						long position = iter.next();
-						byteBuffer.position((int) position);
-						object = di.readString();
-						vector.readFromByteBuffer(byteBuffer);
-					} catch (IOException e) {
-						throw new RuntimeException("Could not read vector", e);
-					}
-					return new ObjectVector(object, vector);
-				}
-			};
-		} else {
+	public long addAppended(long fromPosition) throws IOException {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support updates");
+	}
+
+	/**
+	 * Merges the updates into the persisted store, if there is one.
+	 */
+	public void compact() throws IOException {
+	}
+
+	/**
+	 * Returns an estimate of the memory used by the hash tables, in bytes, not counting the vector store file.
+	 */
+	public long getSizeInBytes() {
+		return 0;
+	}
+
+	/**
+	 * Reads the vectors of the vector store file from the given position to its end, and {@link #add}s each of them.
+	 * @return the number of vectors added
+	 */
+	protected long addAppended(File vecStoreFile, long fromPosition, FlagConfig flagConfig) throws IOException {
+		long numAdded = 0;
+		VectorStoreReaderLucene vecStore = null;
+		try {
+			vecStore = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
 			IndexInput indexInput = vecStore.getIndexInput();
-			vecs = new Enumeration<ObjectVector>() {
-
-				@Override
-				public boolean hasMoreElements() {
-					if (iter.hasNext())
-						return true;
-					else {
-						VectorStoreUtils.closeVectorStores(vecStore);
-						return false;
-					}
-				}
-
-				@Override
-				public ObjectVector nextElement() {
-					if (!hasMoreElements())
-						return null;
-					String object;
-					Vector vector = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension());
-					try {
-						long position = iter.next();
-						indexInput.seek(position);
-						object = indexInput.readString();
-						vector.readFromLuceneStream(indexInput);
-					} catch (IOException e) {
-						throw new RuntimeException("Could not read vector", e);
-					}
-					return new ObjectVector(object, vector);
-				}
-			};
+			indexInput.seek(fromPosition);
+
+			long currentPosition;
+			while ((currentPosition = indexInput.getFilePointer()) < indexInput.length()) {
+				indexInput.readString();
+				Vector vector = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension());
+				vector.readFromLuceneStream(indexInput);
+				add(currentPosition, vector);
+				numAdded++;
+			}
+		} finally {
+			VectorStoreUtils.closeVectorStores(vecStore);
 		}
-		return vecs;
+
+		// The current mapping ends before the appended vectors
+		vectorReader.remap();
+		return numAdded;
+	}
+
+	/**
+	 * Releases the mapping of the vector store file. Enumerations returned by {@link #getSimilar} must not be used after
+	 * the store is closed.
+	 */
+	public void close() {
+		vectorReader.close();
+	}
+
+	/**
+	 * Returns an Enumeration of vectors given an iterator containing their position in a vector store, read by the
+	 * {@link MappedVectorReader} of the store.
+	 */
+	protected Enumeration<ObjectVector> getObjectVectorEnum(Iterator<Long> iter, File vecStoreFile, FlagConfig flagConfig) throws IOException {
+		return vectorReader.getObjectVectorEnum(iter, vecStoreFile, flagConfig);
 	}
 
 }
@@ -5,60 +5,467 @@ import pitt.search.semanticvectors.FlagConfig;
 import java.io.IOException;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
 /**
- * Ensures there are single instances of the {@link LSHStore}'s for each indexes vector store.
+ * Ensures there are single instances of the {@link LSHStore}'s for each indexes vector store. Each store is built
+ * once, even when several threads ask for it at the same time.<b>
+ * Stores are used through reference-counted {@link Handle}s. When the stores which are open take more than
+ * {@link FlagConfig#lsh_cache_mb()}, the least recently used of those without handles are closed, and get reopened
+ * from their files when they are needed again.<b>
+ * Stores of flags which do not set {@link FlagConfig#lsh_hashes_num()} use the setting chosen by {@link LSHTuner},
+ * if the store was tuned.<b>
+ * Searches get their stores through {@link #tryAcquire}, which does not wait for stores that have not been persisted
+ * yet: they are built and persisted by a background {@link Build}, and the searches scan the vector store until it
+ * is done. A build which failed is started again by the first search after {@link #failedBuildRetryMillis}.
  */
 public enum LSHStoreFactory {
 
 	INSTANCE;
 
-	private static Map<LSHConfig, LSHStore> hashStores = new HashMap<>();
+	private static final Logger logger = Logger.getLogger(LSHStoreFactory.class.getCanonicalName());
+
+	private final Map<LSHConfig, Entry> hashStores = new ConcurrentHashMap<>();
+	// Orders the entries by their last use
+	private final AtomicLong clock = new AtomicLong();
+	// Background builds, which are kept once done so that cancelled builds are not restarted by searches, and failed
+	// builds only after failedBuildRetryMillis
+	private final Map<LSHConfig, Build> builds = new ConcurrentHashMap<>();
+	// How long searches scan the vector store after a build failed before they start it again
+	volatile long failedBuildRetryMillis = TimeUnit.MINUTES.toMillis(1);
+	// Builds one store at a time, so that builds do not compete with searches for more than one core. Its thread does
+	// not keep the JVM alive, and a build stopped by the exit of the JVM leaves no persisted store, so it starts again
+	private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "LSH store build");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// Handles of the stores returned by getStore, which keep them open until they are released
+	private final Map<LSHConfig, Handle> pinnedHandles = new ConcurrentHashMap<>();
+	// Settings read from the files of LSHTuner, by file name. They are read again when the file changes, as it does
+	// when the tuner runs in another process
+	private final Map<String, TunedSetting> tunedSettings = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the number of hashes and allowed different bits searches of the store use: those of the flags if
+	 * {@link FlagConfig#lsh_hashes_num()} is set, otherwise the tuned setting of the store. Returns null if the
+	 * search should scan the whole store, as it does when both flags are equal, or when the tuned setting cannot be
+	 * read.
+	 */
+	public LSHTuner.Setting getSetting(File vecStoreFile, FlagConfig flagConfig) {
+		if (flagConfig.lsh_hashes_num() > 0) {
+			if (flagConfig.lsh_hashes_num() == flagConfig.lsh_max_bits_diff())
+				return null;
+			return new LSHTuner.Setting(flagConfig.lsh_hashes_num(), flagConfig.lsh_max_bits_diff());
+		}
+		File tunedFile = LSHTuner.getTunedFile(vecStoreFile, flagConfig);
+		long lastModified = tunedFile.lastModified();
+		long length = tunedFile.length();
+		return tunedSettings.compute(tunedFile.getAbsolutePath(), (fileName, cached) -> {
+			if (cached != null && cached.lastModified == lastModified && cached.length == length)
+				return cached;
+			LSHTuner.Setting setting = null;
+			try {
+				setting = LSHTuner.readSetting(tunedFile);
+			} catch (IOException e) {
+				logger.warning("Ignoring tuned LSH setting which cannot be read: " + e.getMessage());
+			}
+			return new TunedSetting(lastModified, length, setting);
+		}).setting;
+	}
 
 	/**
-	 * Returns a {@link PersistedLSHStore} for a given {@link pitt.search.semanticvectors.VectorStoreReaderLucene} store.
-	 * If such is not already present one gets created.<b>
+	 * Makes the setting of the file be read again when it is next needed.
+	 */
+	void forgetTunedSetting(File tunedFile) {
+		tunedSettings.remove(tunedFile.getAbsolutePath());
+	}
+
+	/**
+	 * Returns a handle to the {@link PersistedLSHStore} of a given
+	 * {@link pitt.search.semanticvectors.VectorStoreReaderLucene} store. If such is not already present one gets
+	 * created. The store stays open until the handle is closed.<b>
 	 * Initially my idea was to be able to choose between {@link PersistedLSHStore} and {@link InMemoryLSHStore} but as
 	 * there is no performance difference between the 2 there is no real benefit of the in-memory one.
+	 *
+	 * @throws IllegalArgumentException if {@link #getSetting} is null, as there is no store to search
 	 */
-	public LSHStore getStore(File vecStoreFile, FlagConfig flagConfig) {
-		return hashStores.computeIfAbsent(new LSHConfig(vecStoreFile.getAbsolutePath(), flagConfig.lsh_hashes_num(), flagConfig.lsh_max_bits_diff()),
-				config -> {
+	public Handle acquire(File vecStoreFile, FlagConfig flagConfig) {
+		return acquire(vecStoreFile, flagConfig, null);
+	}
+
+	private LSHTuner.Setting getRequiredSetting(File vecStoreFile, FlagConfig flagConfig) {
+		LSHTuner.Setting setting = getSetting(vecStoreFile, flagConfig);
+		if (setting == null)
+			throw new IllegalArgumentException("No LSH setting for " + vecStoreFile + ": set -lsh_hashes_num or run LSHTuner");
+		return setting;
+	}
+
+	private static LSHConfig getConfig(File vecStoreFile, FlagConfig flagConfig, LSHTuner.Setting setting) {
+		return new LSHConfig(vecStoreFile.getAbsolutePath(), setting.numHashes, setting.maxBitsDiff, flagConfig.lsh_tables());
+	}
+
+	/**
+	 * Returns a handle to the store like {@link #acquire}, or null if the store has not been persisted yet. Then a
+	 * {@link Build} of the store is started, unless one was already started, and the caller should scan the vector
+	 * store instead. Once the build is done the store is returned. A build which failed is started again after
+	 * {@link #failedBuildRetryMillis}, while a cancelled one is only started again by {@link #build}.
+	 *
+	 * @throws IllegalArgumentException if {@link #getSetting} is null, as there is no store to search
+	 */
+	public Handle tryAcquire(File vecStoreFile, FlagConfig flagConfig) {
+		LSHTuner.Setting setting = getRequiredSetting(vecStoreFile, flagConfig);
+		LSHConfig lshConfig = getConfig(vecStoreFile, flagConfig, setting);
+		Build build = builds.get(lshConfig);
+		if (build != null) {
+			if (!build.isDone() || build.isCancelled())
+				return null;
+			Throwable error = build.getError();
+			if (error == null)
+				return acquire(vecStoreFile, flagConfig, null);
+			if (System.currentTimeMillis() - build.failedAt < failedBuildRetryMillis) {
+				logger.info("Scanning " + vecStoreFile + " as its LSH store could not be built: " + error.getMessage());
+				return null;
+			}
+			logger.info("Retrying the failed build of the LSH store of " + vecStoreFile);
+			build(vecStoreFile, flagConfig, build.isCreationInterruptedByUser);
+			return null;
+		}
+
+		Entry entry = hashStores.get(lshConfig);
+		if ((entry != null && entry.store != null)
+				|| new PersistedLSHStore(vecStoreFile, flagConfig, setting.numHashes, setting.maxBitsDiff).isPersisted())
+			return acquire(vecStoreFile, flagConfig, null);
+		build(vecStoreFile, flagConfig, new AtomicBoolean());
+		return null;
+	}
+
+	/**
+	 * Starts building and persisting the store in the background, unless a build of it is running, and returns the
+	 * build. The build stops, like the creation of the other indexes, when isCreationInterruptedByUser is set.
+	 */
+	public Build build(File vecStoreFile, FlagConfig flagConfig, AtomicBoolean isCreationInterruptedByUser) {
+		LSHConfig lshConfig = getConfig(vecStoreFile, flagConfig, getRequiredSetting(vecStoreFile, flagConfig));
+		return builds.compute(lshConfig, (config, running) -> {
+			if (running != null && !running.isDone())
+				return running;
+			Build build = new Build(isCreationInterruptedByUser);
+			build.future = buildExecutor.submit(() -> {
+				logger.info("Building LSH store of " + vecStoreFile + " in the background ...");
+				try {
+					acquire(vecStoreFile, flagConfig, build).close();
+					logger.info("Built LSH store of " + vecStoreFile);
+				} catch (RuntimeException e) {
+					logger.warning("Could not build LSH store of " + vecStoreFile + ": " + e.getMessage());
+					build.failedAt = System.currentTimeMillis();
+					throw e;
+				}
+				return null;
+			});
+			return build;
+		});
+	}
+
+	/**
+	 * Returns the last build of the store started by {@link #build} or {@link #tryAcquire}, or null if there was none.
+	 */
+	public Build getBuild(File vecStoreFile, FlagConfig flagConfig) {
+		return builds.get(getConfig(vecStoreFile, flagConfig, getRequiredSetting(vecStoreFile, flagConfig)));
+	}
+
+	private Handle acquire(File vecStoreFile, FlagConfig flagConfig, Build build) {
+		LSHTuner.Setting setting = getRequiredSetting(vecStoreFile, flagConfig);
+		LSHConfig lshConfig = getConfig(vecStoreFile, flagConfig, setting);
+		while (true) {
+			Entry entry = hashStores.computeIfAbsent(lshConfig, config -> new Entry(config));
+			synchronized (entry) {
+				// The entry was evicted or cleared after it was looked up
+				if (entry.closed)
+					continue;
+				if (entry.store == null) {
 					try {
-						LSHStore store = new PersistedLSHStore(vecStoreFile, flagConfig);
+						PersistedLSHStore store = new PersistedLSHStore(vecStoreFile, flagConfig, setting.numHashes, setting.maxBitsDiff);
+						store.build = build;
 						store.initCache();
-						return store;
+						entry.sizeInBytes = store.getSizeInBytes();
+						entry.store = store;
 					} catch (IOException e) {
+						entry.closed = true;
+						hashStores.remove(lshConfig, entry);
 						throw new RuntimeException("Could not init vector store cache", e);
 					}
-				});
+				}
+				entry.references++;
+				entry.lastUsed = clock.incrementAndGet();
+			}
+			long budgetBytes = flagConfig.lsh_cache_mb() * (1L << 20);
+			evict(budgetBytes);
+			return new Handle(entry, budgetBytes);
+		}
+	}
+
+	/**
+	 * Returns the store, which stays pinned open until {@link #releaseStore} or {@link #clearStoresForIndex} is called
+	 * for it. Pinned stores are never evicted, so {@link #acquire} should be preferred.
+	 *
+	 * @deprecated use {@link #acquire}, and close the handle once the store is no longer used
+	 */
+	@Deprecated
+	public LSHStore getStore(File vecStoreFile, FlagConfig flagConfig) {
+		LSHConfig lshConfig = getConfig(vecStoreFile, flagConfig, getRequiredSetting(vecStoreFile, flagConfig));
+		Handle pinned = pinnedHandles.get(lshConfig);
+		if (pinned != null)
+			return pinned.getStore();
+		Handle handle = acquire(vecStoreFile, flagConfig);
+		pinned = pinnedHandles.putIfAbsent(lshConfig, handle);
+		if (pinned != null) {
+			handle.close();
+			return pinned.getStore();
+		}
+		return handle.getStore();
+	}
+
+	/**
+	 * Releases the store pinned by {@link #getStore}, which may then be evicted. Does nothing if it is not pinned.
+	 *
+	 * @deprecated use {@link #acquire}, and close the handle once the store is no longer used
+	 */
+	@Deprecated
+	public void releaseStore(File vecStoreFile, FlagConfig flagConfig) {
+		Handle handle = pinnedHandles.remove(getConfig(vecStoreFile, flagConfig, getRequiredSetting(vecStoreFile, flagConfig)));
+		if (handle != null)
+			handle.close();
+	}
+
+	/**
+	 * Returns the estimated size of the stores which are open, in bytes.
+	 */
+	public long getSizeInBytes() {
+		long size = 0;
+		for (Entry entry : hashStores.values()) {
+			size += entry.sizeInBytes;
+		}
+		return size;
+	}
+
+	/**
+	 * Closes the least recently used stores without handles until the open stores fit in the budget.
+	 */
+	synchronized void evict(long budgetBytes) {
+		long size = getSizeInBytes();
+		if (size <= budgetBytes)
+			return;
+
+		List<Entry> entries = new ArrayList<>(hashStores.values());
+		entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+		for (Entry entry : entries) {
+			if (size <= budgetBytes)
+				break;
+			if (entry.references > 0 || entry.store == null)
+				continue;
+			synchronized (entry) {
+				if (entry.references > 0 || entry.closed || entry.store == null)
+					continue;
+				size -= entry.sizeInBytes;
+				hashStores.remove(entry.lshConfig, entry);
+				entry.close();
+			}
+		}
 	}
 
 	/**
 	 * This is used (although not in this code-base). It deletes the stores related to a certain similarity index. This
-	 * should be called once an index is deleted/recreated because otherwise you can end-up with outdated cache.
+	 * should be called once an index is deleted/recreated because otherwise you can end-up with outdated cache. Stores
+	 * which still have handles are closed once their last handle is closed.
 	 */
 	public void clearStoresForIndex(File indexHome) {
-		List<LSHConfig> toDelete = new LinkedList<>();
-		for (LSHConfig lshConfig : hashStores.keySet()) {
-			if (lshConfig.fileName.startsWith(indexHome.getAbsolutePath()))
-				toDelete.add(lshConfig);
+		tunedSettings.keySet().removeIf(fileName -> fileName.startsWith(indexHome.getAbsolutePath()));
+		builds.keySet().removeIf(config -> config.fileName.startsWith(indexHome.getAbsolutePath()));
+		pinnedHandles.entrySet().removeIf(mapEntry -> {
+			if (!mapEntry.getKey().fileName.startsWith(indexHome.getAbsolutePath()))
+				return false;
+			mapEntry.getValue().close();
+			return true;
+		});
+		hashStores.entrySet().removeIf(mapEntry -> {
+			if (!mapEntry.getKey().fileName.startsWith(indexHome.getAbsolutePath()))
+				return false;
+			Entry entry = mapEntry.getValue();
+			synchronized (entry) {
+				if (entry.references == 0)
+					entry.close();
+				else
+					entry.closed = true;
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * A reference to an open store, which keeps it from being closed until the handle is closed.
+	 */
+	public static class Handle implements AutoCloseable {
+		private final Entry entry;
+		private final long budgetBytes;
+		private boolean released;
+
+		private Handle(Entry entry, long budgetBytes) {
+			this.entry = entry;
+			this.budgetBytes = budgetBytes;
+		}
+
+		public LSHStore getStore() {
+			return entry.store;
+		}
+
+		@Override
+		public void close() {
+			synchronized (entry) {
+				if (released)
+					return;
+				released = true;
+				entry.references--;
+				// Updates through the handle may have changed the size of the store
+				if (entry.store != null)
+					entry.sizeInBytes = entry.store.getSizeInBytes();
+				// The store was cleared while this handle was open
+				if (entry.references == 0 && entry.closed && entry.store != null)
+					entry.close();
+			}
+			INSTANCE.evict(budgetBytes);
+		}
+	}
+
+	/**
+	 * A build of a store in the background, started by {@link #build} or {@link #tryAcquire}.
+	 */
+	public static class Build {
+		private final AtomicBoolean isCreationInterruptedByUser;
+		// Progress of the hashing of the vectors, which takes most of the build
+		final AtomicLong numHashed = new AtomicLong();
+		volatile long numVectors = -1;
+		// When the build failed, in milliseconds since the epoch
+		private volatile long failedAt;
+		private volatile Future<?> future;
+
+		private Build(AtomicBoolean isCreationInterruptedByUser) {
+			this.isCreationInterruptedByUser = isCreationInterruptedByUser;
+		}
+
+		/**
+		 * Returns the fraction of the vectors which have been hashed, between 0 and 1.
+		 */
+		public double getProgress() {
+			if (isDone() && getError() == null)
+				return 1;
+			long total = numVectors;
+			return total <= 0 ? 0 : Math.min(1, (double) numHashed.get() / total);
+		}
+
+		/**
+		 * Stops the build. The store is not persisted, and searches keep scanning the vector store.
+		 */
+		public void cancel() {
+			isCreationInterruptedByUser.set(true);
+		}
+
+		public boolean isCancelled() {
+			return isCreationInterruptedByUser.get();
+		}
+
+		public boolean isDone() {
+			return future != null && future.isDone();
+		}
+
+		/**
+		 * Returns the error the build failed with, or null if it did not fail or is not done.
+		 */
+		public Throwable getError() {
+			if (!isDone())
+				return null;
+			try {
+				future.get();
+				return null;
+			} catch (ExecutionException e) {
+				return e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return e;
+			}
 		}
-		for (LSHConfig lshConfig : toDelete) {
-			hashStores.remove(lshConfig).close();
+
+		/**
+		 * Waits for the build to be done.
+		 *
+		 * @throws IOException if it failed or was cancelled
+		 */
+		public void await() throws IOException, InterruptedException {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				throw new IOException("LSH store build failed", e.getCause());
+			}
 		}
+	}
 
+	/**
+	 * A setting read from a file of {@link LSHTuner}, or null if there was none, and the state of the file it was read
+	 * from.
+	 */
+	private static class TunedSetting {
+		final long lastModified;
+		final long length;
+		final LSHTuner.Setting setting;
+
+		TunedSetting(long lastModified, long length, LSHTuner.Setting setting) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.setting = setting;
+		}
+	}
+
+	/**
+	 * A store and its references, guarded by the entry itself.
+	 */
+	private static class Entry {
+		final LSHConfig lshConfig;
+		volatile LSHStore store;
+		volatile int references;
+		volatile long lastUsed;
+		volatile long sizeInBytes;
+		boolean closed;
+
+		Entry(LSHConfig lshConfig) {
+			this.lshConfig = lshConfig;
+		}
+
+		void close() {
+			closed = true;
+			store.close();
+			store = null;
+			sizeInBytes = 0;
+		}
 	}
 
 	private static class LSHConfig {
 		String fileName;
 		int numOfHashes;
 		int maxBitsDiff;
+		int numOfTables;
 
-		public LSHConfig(String fileName, int numOfHashes, int maxBitsDiff) {
+		public LSHConfig(String fileName, int numOfHashes, int maxBitsDiff, int numOfTables) {
 			this.fileName = fileName;
 			this.numOfHashes = numOfHashes;
 			this.maxBitsDiff = maxBitsDiff;
+			this.numOfTables = numOfTables;
 		}
 
 		@Override
@@ -68,12 +475,13 @@ public enum LSHStoreFactory {
 			LSHConfig lshConfig = (LSHConfig) o;
 			return numOfHashes == lshConfig.numOfHashes &&
 					maxBitsDiff == lshConfig.maxBitsDiff &&
+					numOfTables == lshConfig.numOfTables &&
 					Objects.equals(fileName, lshConfig.fileName);
 		}
 
 		@Override
 		public int hashCode() {
-			return Objects.hash(fileName, numOfHashes, maxBitsDiff);
+			return Objects.hash(fileName, numOfHashes, maxBitsDiff, numOfTables);
 		}
 	}
 
@@ -0,0 +1,329 @@
+package pitt.search.semanticvectors.lsh;
+
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.utils.VerbatimLogger;
+import pitt.search.semanticvectors.vectors.Vector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Chooses the number of hashes and allowed different bits of the LSH tables of a store, as the cheapest setting
+ * whose candidates contain a target fraction of the nearest neighbours.<b>
+ * Each setting is measured on a sample of the store: the neighbours of sampled queries among the sample are found
+ * exactly, and a neighbour is recalled if its hash is within the allowed different bits of the query's hash in any of
+ * the {@link FlagConfig#lsh_tables()} tables. The neighbours of a query in the whole store are closer than those in
+ * the sample, so the recall of searches is usually higher than measured. The cost of a setting is the number of
+ * candidates it scores in the whole store, plus the bucket lookups of {@link LocalitySensitiveHash#getSimilarHashes}.
+ * <b>
+ * The chosen setting is written next to the persisted tables, and {@link LSHStoreFactory} uses it for searches of
+ * the store which do not set {@link FlagConfig#lsh_hashes_num()}.
+ */
+public class LSHTuner {
+
+	public static String usageMessage = "\nLSHTuner class in package pitt.search.semanticvectors.lsh"
+			+ "\nUsage: java pitt.search.semanticvectors.lsh.LSHTuner [flags] VECTOR_FILE [TARGET_RECALL]"
+			+ "\nThe recall is of the -numsearchresults nearest neighbours, default " + LSHTuner.DEFAULT_TARGET_RECALL + ".";
+
+	// Stores the chosen setting
+	public static final String TUNED_SUFFIX = ".lshtuned";
+
+	public static final double DEFAULT_TARGET_RECALL = 0.9;
+
+	// Number of sampled vectors, and of queries among them
+	static final int SAMPLE_SIZE = 2000;
+	static final int NUM_QUERIES = 100;
+	// Largest number of different bits tried, as the bucket lookups grow with its power
+	static final int MAX_BITS_DIFF = 3;
+	// Cost of a bucket lookup, relative to scoring a candidate
+	static final double PROBE_COST = 0.25;
+	// Seed of the sample
+	private static final long SEED = 0;
+
+	/**
+	 * A number of hashes and allowed different bits, with the measures of its tables on the sample.
+	 */
+	public static class Setting {
+		public final int numHashes;
+		public final int maxBitsDiff;
+		/** Fraction of the neighbours of the queries among their candidates. */
+		public double recall;
+		/** Fraction of the store scored per query. */
+		public double candidateFraction;
+		/** Number of buckets looked up per query, in all tables. */
+		public long probes;
+		/** Mean and largest number of sampled vectors in a bucket. */
+		public double meanBucketSize;
+		public int maxBucketSize;
+
+		public Setting(int numHashes, int maxBitsDiff) {
+			this.numHashes = numHashes;
+			this.maxBitsDiff = maxBitsDiff;
+		}
+
+		/**
+		 * Returns the estimated cost of a query of a store of the given size.
+		 */
+		public double getCost(long numVectors) {
+			return candidateFraction * numVectors + PROBE_COST * probes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("lsh_hashes_num %d, lsh_max_bits_diff %d: recall %.3f, candidates %.4f, probes %d, bucket size %.1f (max %d)",
+					numHashes, maxBitsDiff, recall, candidateFraction, probes, meanBucketSize, maxBucketSize);
+		}
+	}
+
+	/**
+	 * Returns the file the tuned setting of the store is written to, which depends on the number of tables.
+	 */
+	public static File getTunedFile(File vecStoreFile, FlagConfig flagConfig) {
+		File homeDir = new File(vecStoreFile.getAbsoluteFile().getParentFile(), "lsh");
+		return new File(homeDir, vecStoreFile.getName() + TUNED_SUFFIX + flagConfig.lsh_tables());
+	}
+
+	/**
+	 * Measures the settings, writes the cheapest one which meets the target recall and returns it. If none does,
+	 * the one with the best recall is chosen.
+	 */
+	public static Setting tune(VectorStoreReaderLucene store, FlagConfig flagConfig, double targetRecall) throws IOException {
+		long[] numVectors = new long[1];
+		List<Setting> settings = measure(store, flagConfig, numVectors);
+		Setting chosen = choose(settings, targetRecall, numVectors[0]);
+		writeSetting(getTunedFile(store.getVectorFile(), flagConfig), chosen);
+		return chosen;
+	}
+
+	/**
+	 * Returns the cheapest of the settings which meet the target recall, or the one with the best recall.
+	 */
+	static Setting choose(List<Setting> settings, double targetRecall, long numVectors) {
+		Setting chosen = null;
+		for (Setting setting : settings) {
+			if (setting.recall >= targetRecall && (chosen == null || setting.getCost(numVectors) < chosen.getCost(numVectors)))
+				chosen = setting;
+		}
+		if (chosen != null)
+			return chosen;
+
+		for (Setting setting : settings) {
+			if (chosen == null || setting.recall > chosen.recall)
+				chosen = setting;
+		}
+		return chosen;
+	}
+
+	/**
+	 * Returns the numbers of hashes tried for a store of the given size. More than about twice the bits needed to give
+	 * each vector a bucket of its own leaves most buckets empty.
+	 */
+	static List<Integer> getCandidateHashes(long numVectors) {
+		int bits = 64 - Long.numberOfLeadingZeros(Math.max(numVectors - 1, 1));
+		int maxHashes = Math.min(LocalitySensitiveHash.MAX_NUM_HASHES, Math.max(2 * bits, 4));
+		List<Integer> candidates = new ArrayList<>();
+		for (int numHashes = 2; numHashes <= maxHashes; numHashes += numHashes < 16 ? 2 : 4) {
+			candidates.add(numHashes);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Measures all candidate settings on a sample of the store.
+	 *
+	 * @param numVectors receives the number of vectors of the store
+	 */
+	static List<Setting> measure(VectorStoreReaderLucene store, FlagConfig flagConfig, long[] numVectors) {
+		List<Vector> sample = new ArrayList<>(SAMPLE_SIZE);
+		numVectors[0] = sample(store, sample);
+		int numQueries = Math.min(NUM_QUERIES, sample.size());
+		int[][] neighbours = getNeighbours(sample, numQueries, Math.min(flagConfig.numsearchresults(), sample.size() - 1));
+
+		List<Setting> settings = new ArrayList<>();
+		for (int numHashes : getCandidateHashes(numVectors[0])) {
+			long[][] hashes = new long[flagConfig.lsh_tables()][sample.size()];
+			for (int table = 0; table < hashes.length; table++) {
+				LocalitySensitiveHash lsh = new LocalitySensitiveHash(flagConfig.vectortype(), flagConfig.dimension(),
+						numHashes, 0, InMemoryLSHStore.getTableSeed(flagConfig.lsh_seed(), table));
+				for (int i = 0; i < sample.size(); i++) {
+					hashes[table][i] = lsh.getHash(sample.get(i));
+				}
+			}
+
+			double meanBucketSize = 0;
+			int maxBucketSize = 0;
+			for (long[] tableHashes : hashes) {
+				long[] sorted = tableHashes.clone();
+				Arrays.sort(sorted);
+				int numBuckets = 0;
+				int bucketSize = 0;
+				for (int i = 0; i < sorted.length; i++) {
+					if (i > 0 && sorted[i] == sorted[i - 1]) {
+						bucketSize++;
+					} else {
+						numBuckets++;
+						bucketSize = 1;
+					}
+					maxBucketSize = Math.max(maxBucketSize, bucketSize);
+				}
+				meanBucketSize += (double) sorted.length / Math.max(numBuckets, 1) / hashes.length;
+			}
+
+			for (int maxBitsDiff = 0; maxBitsDiff <= Math.min(MAX_BITS_DIFF, numHashes - 1); maxBitsDiff++) {
+				Setting setting = new Setting(numHashes, maxBitsDiff);
+				setting.probes = LocalitySensitiveHash.countSimilarHashes(numHashes, maxBitsDiff) * hashes.length;
+				setting.meanBucketSize = meanBucketSize;
+				setting.maxBucketSize = maxBucketSize;
+				measureRecall(setting, hashes, neighbours, numQueries);
+				settings.add(setting);
+			}
+		}
+		return settings;
+	}
+
+	private static void measureRecall(Setting setting, long[][] hashes, int[][] neighbours, int numQueries) {
+		int sampleSize = hashes[0].length;
+		long found = 0;
+		long expected = 0;
+		long candidates = 0;
+		for (int q = 0; q < numQueries; q++) {
+			boolean[] isCandidate = new boolean[sampleSize];
+			for (int i = 0; i < sampleSize; i++) {
+				for (long[] tableHashes : hashes) {
+					if (i != q && Long.bitCount(tableHashes[q] ^ tableHashes[i]) <= setting.maxBitsDiff) {
+						isCandidate[i] = true;
+						candidates++;
+						break;
+					}
+				}
+			}
+			for (int neighbour : neighbours[q]) {
+				if (isCandidate[neighbour])
+					found++;
+			}
+			expected += neighbours[q].length;
+		}
+		setting.recall = expected == 0 ? 1 : (double) found / expected;
+		setting.candidateFraction = sampleSize <= 1 ? 1 : (double) candidates / numQueries / (sampleSize - 1);
+	}
+
+	/**
+	 * Fills the list with a uniform sample of the store and returns the number of vectors of the store.
+	 */
+	private static long sample(VectorStoreReaderLucene store, List<Vector> sample) {
+		Random random = new Random(SEED);
+		long seen = 0;
+		Enumeration<ObjectVector> vectors = store.getAllVectors();
+		while (vectors.hasMoreElements()) {
+			Vector vector = vectors.nextElement().getVector();
+			seen++;
+			if (sample.size() < SAMPLE_SIZE) {
+				sample.add(vector);
+			} else {
+				long replaced = (long) (random.nextDouble() * seen);
+				if (replaced < SAMPLE_SIZE)
+					sample.set((int) replaced, vector);
+			}
+		}
+		return seen;
+	}
+
+	/**
+	 * Returns the indexes of the nearest neighbours of each query among the other vectors of the sample.
+	 */
+	private static int[][] getNeighbours(List<Vector> sample, int numQueries, int numNeighbours) {
+		int[][] neighbours = new int[numQueries][];
+		for (int q = 0; q < numQueries; q++) {
+			double[] scores = new double[sample.size()];
+			Integer[] order = new Integer[sample.size()];
+			for (int i = 0; i < sample.size(); i++) {
+				scores[i] = i == q ? Double.NEGATIVE_INFINITY : sample.get(q).measureOverlap(sample.get(i));
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+			neighbours[q] = new int[numNeighbours];
+			for (int n = 0; n < numNeighbours; n++) {
+				neighbours[q][n] = order[n];
+			}
+		}
+		return neighbours;
+	}
+
+	public static void writeSetting(File tunedFile, Setting setting) throws IOException {
+		Files.createDirectories(tunedFile.getAbsoluteFile().getParentFile().toPath());
+		Properties properties = new Properties();
+		properties.setProperty("lsh_hashes_num", Integer.toString(setting.numHashes));
+		properties.setProperty("lsh_max_bits_diff", Integer.toString(setting.maxBitsDiff));
+		properties.setProperty("recall", Double.toString(setting.recall));
+		properties.setProperty("candidates", Double.toString(setting.candidateFraction));
+		try (OutputStream out = new FileOutputStream(tunedFile)) {
+			properties.store(out, "Chosen by " + LSHTuner.class.getName());
+		}
+		LSHStoreFactory.INSTANCE.forgetTunedSetting(tunedFile);
+	}
+
+	/**
+	 * Returns the setting written to the file, or null if there is no such file.
+	 */
+	public static Setting readSetting(File tunedFile) throws IOException {
+		if (!tunedFile.exists())
+			return null;
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(tunedFile)) {
+			properties.load(in);
+		}
+		try {
+			Setting setting = new Setting(Integer.parseInt(properties.getProperty("lsh_hashes_num")),
+					Integer.parseInt(properties.getProperty("lsh_max_bits_diff")));
+			setting.recall = Double.parseDouble(properties.getProperty("recall", "0"));
+			setting.candidateFraction = Double.parseDouble(properties.getProperty("candidates", "1"));
+			return setting;
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid LSH setting in " + tunedFile, e);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		FlagConfig flagConfig;
+		try {
+			flagConfig = FlagConfig.getFlagConfig(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(usageMessage);
+			throw e;
+		}
+		if (flagConfig.remainingArgs.length == 0) {
+			System.out.println(usageMessage);
+			return;
+		}
+		double targetRecall = flagConfig.remainingArgs.length > 1
+				? Double.parseDouble(flagConfig.remainingArgs[1]) : DEFAULT_TARGET_RECALL;
+
+		VectorStoreReaderLucene store = new VectorStoreReaderLucene(flagConfig.remainingArgs[0], flagConfig);
+		try {
+			long[] numVectors = new long[1];
+			List<Setting> settings = measure(store, flagConfig, numVectors);
+			for (Setting setting : settings) {
+				VerbatimLogger.info(setting + "\n");
+			}
+			Setting chosen = choose(settings, targetRecall, numVectors[0]);
+			File tunedFile = getTunedFile(store.getVectorFile(), flagConfig);
+			writeSetting(tunedFile, chosen);
+			VerbatimLogger.info("Chose " + chosen + "\nWrote " + tunedFile + "\n");
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -3,8 +3,10 @@ package pitt.search.semanticvectors.lsh;
 import org.netlib.blas.BLAS;
 import pitt.search.semanticvectors.FlagConfig;
 import pitt.search.semanticvectors.collections.BinaryVectorBufferConverter;
+import pitt.search.semanticvectors.collections.ComplexVectorBufferConverter;
 import pitt.search.semanticvectors.collections.RealVectorBufferConverter;
 import pitt.search.semanticvectors.collections.VectorBufferConverter;
+import pitt.search.semanticvectors.vectors.ComplexVector;
 import pitt.search.semanticvectors.vectors.Vector;
 import pitt.search.semanticvectors.vectors.VectorFactory;
 import pitt.search.semanticvectors.vectors.VectorType;
@@ -18,16 +20,23 @@ import java.util.*;
 /**
  * Implementation of Locality-Sensitive Hashing.<b>
  * The idea is that we can give a certain "hash" to a vector by comparing it to a set of random orthogonal vectors. In
- * our case we can generate up to 15 random vectors which are used to generate that hash. <b>
+ * our case we can generate up to 64 random vectors which are used to generate that hash. <b>
  * We can expect that 2 vectors are similar if they have similar hashes. The similarity between the hashes is measured
- * by allowed number of different bits.
+ * by allowed number of different bits.<b>
+ * Complex vectors are hashed by the sign of the real part of their hermitian scalar product with random Gaussian
+ * vectors, computed from their Cartesian coordinates. For vectors of unit circle coordinates, as in the POLAR_DENSE
+ * mode, this real part is proportional to their mean phase angle cosine, so similar vectors get similar hashes in
+ * all modes.
  */
 public class LocalitySensitiveHash {
 
-	private static final int MAX_NUM_HASHES = 15;
+	public static final int MAX_NUM_HASHES = Long.SIZE;
+	/** Largest number of similar hashes a query may look up in each table, as they grow with the power of the bits. */
+	public static final int MAX_SIMILAR_HASHES = 1 << 20;
 
 	private int numOfHashes;
 	private int numBitsDifference;
+	private int numSimilarHashes;
 
 	List<Vector> randomVectors;
 	BLAS blas;
@@ -36,56 +45,137 @@ public class LocalitySensitiveHash {
 	}
 
 	public LocalitySensitiveHash(FlagConfig flagConfig) {
-		numOfHashes = Math.min(flagConfig.lsh_hashes_num(), MAX_NUM_HASHES);
-		numBitsDifference = Math.min(flagConfig.lsh_max_bits_diff(), numOfHashes);
+		this(flagConfig, flagConfig.lsh_seed());
+	}
+
+	/**
+	 * Generates the random vectors from the given seed, so that the same seed and configuration always give the same
+	 * hashes.
+	 */
+	public LocalitySensitiveHash(FlagConfig flagConfig, long seed) {
+		this(flagConfig.vectortype(), flagConfig.dimension(), flagConfig.lsh_hashes_num(), flagConfig.lsh_max_bits_diff(), seed);
+	}
 
-		randomVectors = new ArrayList<>(numOfHashes);
+	/**
+	 * Like {@link #LocalitySensitiveHash(FlagConfig, long)}, for a number of hashes and allowed different bits which
+	 * may differ from the flags, e.g. when they are tuned by {@link LSHTuner}.
+	 */
+	public LocalitySensitiveHash(VectorType vectorType, int dimension, int numOfHashes, int numBitsDifference, long seed) {
+		this.numOfHashes = Math.min(numOfHashes, MAX_NUM_HASHES);
+		this.numBitsDifference = Math.min(numBitsDifference, this.numOfHashes);
+		this.numSimilarHashes = getNumSimilarHashes(this.numOfHashes, this.numBitsDifference);
+
+		randomVectors = new ArrayList<>(this.numOfHashes);
 		blas = BLAS.getInstance();
 
-		Random random = new Random();
-		for (int i = 0; i < numOfHashes; i++) {
-			randomVectors.add(VectorFactory.generateRandomVector(flagConfig.vectortype(), flagConfig.dimension(), flagConfig.dimension() / 2, random));
+		Random random = new Random(seed);
+		if (isComplex(vectorType)) {
+			// Random Gaussian vectors are close enough to orthogonal in high dimensions.
+			for (int i = 0; i < this.numOfHashes; i++) {
+				randomVectors.add(generateGaussianComplexVector(vectorType, dimension, random));
+			}
+			return;
+		}
+		for (int i = 0; i < this.numOfHashes; i++) {
+			randomVectors.add(VectorFactory.generateRandomVector(vectorType, dimension, dimension / 2, random));
 		}
 
-		VectorUtils.orthogonalizeVectors(randomVectors);
+		// There cannot be more orthogonal vectors than dimensions.
+		if (this.numOfHashes > 0 && this.numOfHashes <= dimension)
+			VectorUtils.orthogonalizeVectors(randomVectors);
+	}
+
+	private static boolean isComplex(VectorType type) {
+		return type == VectorType.COMPLEX || type == VectorType.COMPLEXFLAT;
 	}
 
 	/**
-	 * Returns a short representing the "hash" of the vector. Each bit of the hash (up to the number of random vectors)
+	 * Returns a complex vector in Cartesian form whose coordinates are drawn from the standard normal distribution.
+	 * Unlike {@link VectorFactory#generateRandomVector}, this does not change the dominant mode of complex vectors.
+	 */
+	private static Vector generateGaussianComplexVector(VectorType type, int dimension, Random random) {
+		ComplexVector vector = (ComplexVector) VectorFactory.createZeroVector(type, dimension);
+		vector.toCartesian();
+		float[] coordinates = vector.getCoordinates();
+		for (int i = 0; i < coordinates.length; i++) {
+			coordinates[i] = (float) random.nextGaussian();
+		}
+		return vector;
+	}
+
+	/**
+	 * Returns the vector itself, or for complex vectors which are not in Cartesian form a Cartesian copy, leaving the
+	 * mode of the original unchanged.
+	 */
+	private static Vector toHashable(Vector vector) {
+		if (vector instanceof ComplexVector && ((ComplexVector) vector).getCoordinates() == null) {
+			ComplexVector cartesian = ((ComplexVector) vector).copy();
+			cartesian.toCartesian();
+			return cartesian;
+		}
+		return vector;
+	}
+
+	/**
+	 * Returns a long representing the "hash" of the vector. Each bit of the hash (up to the number of random vectors)
 	 * represents whether the scalar product of the vector and one of the random vectors is positive.
 	 */
-	public short getHash(Vector vector) {
-		short hash = 0;
+	public long getHash(Vector vector) {
+		vector = toHashable(vector);
+		long hash = 0;
 
 		for (int i = 0; i < numOfHashes; i++) {
 			if (VectorUtils.scalarProduct(vector, randomVectors.get(i), null, blas) > 0)
-				hash |= (1 << i);
+				hash |= (1L << i);
 		}
 
 		return hash;
 	}
 
 	/**
-	 * Calculates the hash of the vector and returns all similar hashes.
+	 * Calculates the hash of the vector and returns all similar hashes, the hash itself first.
 	 */
-	public short[] getSimilarHashes(Vector vector) {
-		short hash = getHash(vector);
+	public long[] getSimilarHashes(Vector vector) {
+		long hash = getHash(vector);
+
+		// Each set of flipped bits is visited once, so there are no duplicates to remove
+		long[] candidates = new long[numSimilarHashes];
+		candidates[0] = hash;
+		collectCandidates(hash, candidates, 1, numBitsDifference, 0);
+		return candidates;
+	}
 
-		Set<Short> candidates = new HashSet<>();
-		candidates.add(hash);
-		collectCandidates(hash, candidates, numBitsDifference);
+	/**
+	 * Returns {@link #countSimilarHashes}, the length of the arrays returned by {@link #getSimilarHashes}.
+	 *
+	 * @throws IllegalArgumentException if the number is larger than {@link #MAX_SIMILAR_HASHES}
+	 */
+	private static int getNumSimilarHashes(int numHashes, int maxBitsDiff) {
+		long numSimilarHashes = countSimilarHashes(numHashes, maxBitsDiff);
+		if (numSimilarHashes > MAX_SIMILAR_HASHES)
+			throw new IllegalArgumentException("Looking up the hashes within " + maxBitsDiff + " bits of " + numHashes
+					+ " bit hashes takes more than " + MAX_SIMILAR_HASHES + " lookups per table");
+		return (int) numSimilarHashes;
+	}
 
-		short[] result = new short[candidates.size()];
-		int size = 0;
-		for (Short candidate : candidates) {
-			result[size++] = candidate;
+	/**
+	 * Returns the number of hashes which differ from a hash of the given number of bits in at most the given number of
+	 * bits, that is the sum of the binomial coefficients C(numHashes, k) for k up to maxBitsDiff. Stops counting once
+	 * there are more than {@link #MAX_SIMILAR_HASHES}, so the result does not overflow.
+	 */
+	public static long countSimilarHashes(int numHashes, int maxBitsDiff) {
+		long count = 0;
+		long binomial = 1;
+		for (int k = 0; k <= maxBitsDiff && count <= MAX_SIMILAR_HASHES; k++) {
+			count += binomial;
+			binomial = binomial * (numHashes - k) / (k + 1);
 		}
-
-		return result;
+		return count;
 	}
 
 	/**
-	 * Serializes the config. The serialization in includes the configuration and all random vectors.
+	 * Serializes the config. The serialization in includes the configuration and all random vectors. The file is forced
+	 * to the disk before this returns.
 	 */
 	public void writeToFile(File file) throws IOException {
 		if (randomVectors.size() == 0)
@@ -111,7 +201,8 @@ public class LocalitySensitiveHash {
 			for (Vector randomVector : randomVectors) {
 				fc.write(converter.writeToBuffer(randomVector));
 			}
-
+			// Persisted stores are only moved into place once their files are on the disk
+			fc.force(true);
 		}
 	}
 
@@ -127,6 +218,7 @@ public class LocalitySensitiveHash {
 
 			lsh.numOfHashes = dis.readInt();
 			lsh.numBitsDifference = dis.readInt();
+			lsh.numSimilarHashes = getNumSimilarHashes(lsh.numOfHashes, lsh.numBitsDifference);
 			VectorType type = VectorType.valueOf(dis.readUTF());
 			int dimension = dis.readInt();
 
@@ -152,22 +244,30 @@ public class LocalitySensitiveHash {
 			converter = new RealVectorBufferConverter(dimension);
 		} else if (type == VectorType.BINARY) {
 			converter = new BinaryVectorBufferConverter(dimension);
+		} else if (isComplex(type)) {
+			converter = new ComplexVectorBufferConverter(type, dimension);
 		} else {
 			throw new RuntimeException("Unsupported vector type " + type);
 		}
 		return converter;
 	}
 
-	private void collectCandidates(short hash, Set<Short> candidates, int numBitsDifference) {
+	/**
+	 * Writes the hashes with up to {@code numBitsDifference} more flipped bits into the array from {@code size} on, and
+	 * returns the new size. Flips only bits from {@code fromBit} upwards, so that each set of flipped bits is visited
+	 * once.
+	 */
+	private int collectCandidates(long hash, long[] candidates, int size, int numBitsDifference, int fromBit) {
 		if (numBitsDifference == 0)
-			return;
+			return size;
 
-		for (short i = 0; i < numOfHashes; i++) {
-			short modified = (short) (hash ^ (1 << i));
-			candidates.add(modified);
+		for (int i = fromBit; i < numOfHashes; i++) {
+			long modified = hash ^ (1L << i);
+			candidates[size++] = modified;
 
-			collectCandidates(modified, candidates, numBitsDifference - 1);
+			size = collectCandidates(modified, candidates, size, numBitsDifference - 1, i + 1);
 		}
+		return size;
 	}
 
 }
@@ -0,0 +1,113 @@
+package pitt.search.semanticvectors.lsh;
+
+import org.apache.lucene.store.DataInput;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a whole vector store file, in segments of at most {@link #SEGMENT_BYTES} bytes so that
+ * files larger than 2GB can be mapped too. Vectors are read at absolute positions, without moving the position of
+ * the shared segments, so one mapping can serve concurrent queries for as long as it is open.
+ */
+class MappedVectorFile {
+
+	static final int SEGMENT_BYTES = 1 << 30;
+
+	private final MappedByteBuffer[] segments;
+	private final int segmentBytes;
+
+	MappedVectorFile(File file) throws IOException {
+		this(file, SEGMENT_BYTES);
+	}
+
+	/**
+	 * Maps the file in segments of the given size. Available for testing with small segments.
+	 */
+	MappedVectorFile(File file, int segmentBytes) throws IOException {
+		this.segmentBytes = segmentBytes;
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			long length = channel.size();
+			segments = new MappedByteBuffer[(int) ((length + segmentBytes - 1) / segmentBytes)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i * segmentBytes;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentBytes, length - start));
+			}
+		}
+	}
+
+	/**
+	 * Returns a buffer of its own for reading the segment, starting at the given offset.
+	 */
+	private ByteBuffer getSegment(int segment, int offset) {
+		ByteBuffer buffer = segments[segment].duplicate();
+		buffer.position(offset);
+		return buffer;
+	}
+
+	/**
+	 * Reads the object and vector written by {@link pitt.search.semanticvectors.VectorStoreWriter} at the given position.
+	 */
+	ObjectVector readObjectVector(long position, FlagConfig flagConfig) throws IOException {
+		Cursor cursor = new Cursor(position);
+		String object = cursor.readString();
+
+		Vector vector = VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension());
+		int vectorBytes = VectorFactory.getLuceneByteSize(flagConfig.vectortype(), flagConfig.dimension());
+		int segment = (int) (cursor.position / segmentBytes);
+		int offset = (int) (cursor.position % segmentBytes);
+		if (offset + vectorBytes <= segments[segment].limit()) {
+			vector.readFromByteBuffer(getSegment(segment, offset));
+		} else {
+			// The vector crosses into the next segment.
+			byte[] bytes = new byte[vectorBytes];
+			cursor.readBytes(bytes, 0, vectorBytes);
+			vector.readFromByteBuffer(ByteBuffer.wrap(bytes));
+		}
+		return new ObjectVector(object, vector);
+	}
+
+	void close() {
+		for (MappedByteBuffer segment : segments) {
+			DirectByteBufferCleaner.closeDirectByteBuffer(segment);
+		}
+	}
+
+	/**
+	 * Reads the mapped segments from a position of its own.
+	 */
+	private class Cursor extends DataInput {
+		long position;
+
+		Cursor(long position) {
+			this.position = position;
+		}
+
+		@Override
+		public byte readByte() {
+			byte b = segments[(int) (position / segmentBytes)].get((int) (position % segmentBytes));
+			position++;
+			return b;
+		}
+
+		@Override
+		public void readBytes(byte[] b, int offset, int len) {
+			while (len > 0) {
+				int segment = (int) (position / segmentBytes);
+				int segmentOffset = (int) (position % segmentBytes);
+				int chunk = Math.min(len, segments[segment].limit() - segmentOffset);
+				getSegment(segment, segmentOffset).get(b, offset, chunk);
+				position += chunk;
+				offset += chunk;
+				len -= chunk;
+			}
+		}
+	}
+}
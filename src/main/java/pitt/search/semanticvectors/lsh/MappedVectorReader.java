@@ -0,0 +1,74 @@
+package pitt.search.semanticvectors.lsh;
+
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.ObjectVector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Iterator;
+
+/**
+ * Reads the candidates of an index from the memory mapping of its vector store file. The mapping is created on first
+ * use and then shared by all queries until the reader is closed. Used by the {@link LSHStore}s and by
+ * {@link pitt.search.semanticvectors.ivf.IvfStore}.
+ */
+public class MappedVectorReader {
+
+	private MappedVectorFile mappedVectorFile;
+
+	private synchronized MappedVectorFile getMappedVectorFile(File vecStoreFile) throws IOException {
+		if (mappedVectorFile == null)
+			mappedVectorFile = new MappedVectorFile(vecStoreFile);
+		return mappedVectorFile;
+	}
+
+	/**
+	 * Returns an Enumeration of vectors given an iterator containing their position in a vector store
+	 * @param iter iterator of vector file positions
+	 * @param vecStoreFile the {@link pitt.search.semanticvectors.VectorStoreReaderLucene} file containing the vectors
+	 * @param flagConfig
+	 * @return
+	 * @throws IOException
+	 */
+	public Enumeration<ObjectVector> getObjectVectorEnum(Iterator<Long> iter, File vecStoreFile, FlagConfig flagConfig) throws IOException {
+		MappedVectorFile vectorFile = getMappedVectorFile(vecStoreFile);
+
+		return new Enumeration<ObjectVector>() {
+
+			@Override
+			public boolean hasMoreElements() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public ObjectVector nextElement() {
+				if (!hasMoreElements())
+					return null;
+				try {
+					return vectorFile.readObjectVector(iter.next(), flagConfig);
+				} catch (IOException e) {
+					throw new RuntimeException("Could not read vector", e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Makes the next enumeration map the file again, after vectors were appended to it. Enumerations which still use
+	 * the current mapping keep it until they are garbage collected, so it is not unmapped here.
+	 */
+	public synchronized void remap() {
+		mappedVectorFile = null;
+	}
+
+	/**
+	 * Releases the mapping of the vector store file. Enumerations must not be used after the reader is closed.
+	 */
+	public synchronized void close() {
+		if (mappedVectorFile != null) {
+			mappedVectorFile.close();
+			mappedVectorFile = null;
+		}
+	}
+}
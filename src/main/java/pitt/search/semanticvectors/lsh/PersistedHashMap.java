@@ -1,23 +1,58 @@
 package pitt.search.semanticvectors.lsh;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
- * This is a {@link TreeMap} stored on the hard-drive. It supports keys {@link Short} and values list of longs ONLY.
- * It is quite fast - the performance is comparable to the {@link HashMap} java collection (if not better).
+ * This is a {@link TreeMap} stored on the hard-drive. It supports keys {@link Long} and values list of longs ONLY.
+ * It is quite fast - the performance is comparable to the {@link HashMap} java collection (if not better).<b>
+ * The header is a directory of the sorted keys, each followed by the position of its values, so keys are found by
+ * binary search. All reads use absolute indices and never move the position of the shared buffer, so one map can
+ * serve concurrent queries.<b>
+ * Values added or removed after the map was written are kept in memory on top of the file, and appended to a change
+ * log next to it so that they survive a restart. {@link #compact()} merges them into a new file.
  */
 public class PersistedHashMap {
 
+	// Stores the changes made since the map was written
+	public static final String LOG_SUFFIX = ".log";
+
+	// Each header entry is a key and the position of its values
+	private static final int ENTRY_BYTES = Long.BYTES + Long.BYTES;
+
+	// Each change log record is an operation, a key and a value
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	// Approximate heap size of a change kept in memory, with its boxed value and its share of the collections
+	private static final int CHANGE_BYTES = 48;
+
 	File cacheFile;
-	MappedByteBuffer mbb;
+	File logFile;
+	volatile MappedByteBuffer mbb;
+
+	// Changes on top of the file, guarded by this
+	private final Map<Long, List<Long>> added = new HashMap<>();
+	private final Map<Long, Set<Long>> removed = new HashMap<>();
+	private volatile boolean hasChanges;
+	private long numChanges;
+	private DataOutputStream log;
 
 	public PersistedHashMap(File file) {
 		this.cacheFile = file;
+		this.logFile = new File(file.getPath() + LOG_SUFFIX);
 	}
 
 	public void init() throws IOException {
@@ -26,21 +61,35 @@ public class PersistedHashMap {
 				mbb = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, cacheFile.length());
 			}
 		}
+		replayLog();
 	}
 
-	public void persist(TreeMap<Short, Collection<Long>> map) throws IOException {
+	public void persist(TreeMap<Long, Collection<Long>> map) throws IOException {
+		TreeMap<Long, long[]> buckets = new TreeMap<>();
+		for (Map.Entry<Long, Collection<Long>> entry : map.entrySet()) {
+			long[] values = new long[entry.getValue().size()];
+			int i = 0;
+			for (long value : entry.getValue()) {
+				values[i++] = value;
+			}
+			buckets.put(entry.getKey(), values);
+		}
+		persistBuckets(buckets);
+	}
+
+	/**
+	 * Like {@link #persist}, for a map whose values are already in arrays.
+	 */
+	public void persistBuckets(TreeMap<Long, long[]> map) throws IOException {
 		long size = calculateSize(map);
 
 		if (!cacheFile.exists() || cacheFile.length() == 0) {
-			try (FileChannel fileChannel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
-				MappedByteBuffer wmbb = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
-
-				writeHeader(wmbb, map);
-				writeData(wmbb, map);
-
-				wmbb.clear();
-				DirectByteBufferCleaner.closeDirectByteBuffer(wmbb);
-			}
+			// The changes of a previous map of the same file do not apply to the new one
+			Files.deleteIfExists(logFile.toPath());
+			// The map only appears under its name once it is complete
+			File tmpFile = Files.createTempFile(cacheFile.getAbsoluteFile().getParentFile().toPath(), cacheFile.getName(), ".tmp").toFile();
+			writeBuckets(tmpFile, map);
+			Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 		} else {
 			if (size != cacheFile.length())
 				throw new IOException("The file does not match the map length");
@@ -49,110 +98,365 @@ public class PersistedHashMap {
 		try (FileChannel fileChannel = FileChannel.open(cacheFile.toPath())) {
 			mbb = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
 		}
+		replayLog();
 	}
 
-	public LongIterator get(short key) {
-		mbb.position(0);
-		long headerSizeInBytes = mbb.getLong();
-
-		while (mbb.position() < headerSizeInBytes) {
-			long bucketId = mbb.getShort();
-			if (bucketId == key) {
-				long start = mbb.getLong();
-				long end;
-				if (mbb.position() == headerSizeInBytes) {
-					end = mbb.limit();
-				} else {
-					end = mbb.getLong(mbb.position() + Short.BYTES);
-				}
-				return new Range(start, end).iterator();
+	/**
+	 * Returns the values of the key, or no values if the key is not in the map. Reads the map with absolute indices
+	 * only, so this and the returned iterators are safe to use from several threads at once.
+	 */
+	public LongIterator get(long key) {
+		if (hasChanges) {
+			synchronized (this) {
+				return getWithChanges(key);
 			}
-			mbb.position(mbb.position() + Long.BYTES);
 		}
+		return getPersisted(key);
+	}
+
+	/**
+	 * Returns a copy of the values of the key in the file, without those removed since, followed by those added since.
+	 */
+	private LongIterator getWithChanges(long key) {
+		Set<Long> removedValues = removed.getOrDefault(key, Collections.emptySet());
+		List<Long> addedValues = added.getOrDefault(key, Collections.emptyList());
 
+		long[] values = new long[16];
+		int size = 0;
+		LongIterator persisted = getPersisted(key);
+		while (persisted.hasNext()) {
+			long value = persisted.next();
+			if (removedValues.contains(value))
+				continue;
+			if (size == values.length)
+				values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+		for (long value : addedValues) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+
+		long[] allValues = values;
+		int numValues = size;
 		return new LongIterator() {
+			int next = 0;
+
 			@Override
 			public boolean hasNext() {
-				return false;
+				return next < numValues;
 			}
 
 			@Override
 			public long next() {
-				return 0;
+				return allValues[next++];
 			}
 		};
 	}
 
+	private LongIterator getPersisted(long key) {
+		MappedByteBuffer buffer = mbb;
+		if (buffer == null)
+			return EMPTY;
+		int numEntries = getNumEntries(buffer);
+
+		int low = 0;
+		int high = numEntries - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int entryPosition = Long.BYTES + middle * ENTRY_BYTES;
+			long bucketId = buffer.getLong(entryPosition);
+			if (bucketId < key) {
+				low = middle + 1;
+			} else if (bucketId > key) {
+				high = middle - 1;
+			} else {
+				long start = buffer.getLong(entryPosition + Long.BYTES);
+				long end;
+				if (middle == numEntries - 1) {
+					end = buffer.limit();
+				} else {
+					end = buffer.getLong(entryPosition + ENTRY_BYTES + Long.BYTES);
+				}
+				return new Range(buffer, start, end);
+			}
+		}
+
+		return EMPTY;
+	}
+
+	private static int getNumEntries(MappedByteBuffer buffer) {
+		return (int) ((buffer.getLong(0) - Long.BYTES) / ENTRY_BYTES);
+	}
+
+	/**
+	 * Adds the value to the key. The change is written to the change log before this returns.
+	 */
+	public synchronized void add(long key, long value) throws IOException {
+		writeChange(ADD, key, value);
+		applyChange(ADD, key, value);
+	}
+
+	/**
+	 * Removes the value from the key, if it is there. The change is written to the change log before this returns.
+	 */
+	public synchronized void remove(long key, long value) throws IOException {
+		writeChange(REMOVE, key, value);
+		applyChange(REMOVE, key, value);
+	}
+
+	/**
+	 * Returns the number of changes in the change log, which are not yet part of the file.
+	 */
+	public synchronized long getNumChanges() {
+		return numChanges;
+	}
+
+	/**
+	 * Returns the number of values in the file, not counting the changes since it was written.
+	 */
+	public long getNumPersistedValues() {
+		MappedByteBuffer buffer = mbb;
+		if (buffer == null)
+			return 0;
+		return (buffer.limit() - buffer.getLong(0)) / Long.BYTES;
+	}
+
+	/**
+	 * Returns an estimate of the memory used by the map, in bytes: the size of the file, and of the changes kept on top
+	 * of it.
+	 */
+	public synchronized long getSizeInBytes() {
+		MappedByteBuffer buffer = mbb;
+		return (buffer == null ? 0 : buffer.limit()) + numChanges * CHANGE_BYTES;
+	}
+
+	/**
+	 * Writes the map with all its changes to a new file, which then replaces the old one, and deletes the change log.
+	 * The old file stays mapped for iterators which are still reading it.
+	 */
+	public synchronized void compact() throws IOException {
+		if (!hasChanges && numChanges == 0)
+			return;
+
+		TreeMap<Long, long[]> map = new TreeMap<>();
+		for (long key : keys()) {
+			long[] values = new long[16];
+			int size = 0;
+			LongIterator iter = get(key);
+			while (iter.hasNext()) {
+				if (size == values.length)
+					values = Arrays.copyOf(values, 2 * size);
+				values[size++] = iter.next();
+			}
+			map.put(key, Arrays.copyOf(values, size));
+		}
+
+		File compactFile = new File(cacheFile.getPath() + ".compact");
+		long size = calculateSize(map);
+		writeBuckets(compactFile, map);
+		Files.move(compactFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// Old readers keep their reference to the old buffer, which is released once they are garbage collected
+		try (FileChannel fileChannel = FileChannel.open(cacheFile.toPath())) {
+			mbb = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+
+		added.clear();
+		removed.clear();
+		hasChanges = false;
+		numChanges = 0;
+		closeLog();
+		Files.deleteIfExists(logFile.toPath());
+	}
+
 	public void close() {
-		mbb.clear();
-		DirectByteBufferCleaner.closeDirectByteBuffer(mbb);
+		synchronized (this) {
+			try {
+				closeLog();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not close the change log " + logFile, e);
+			}
+		}
+		if (mbb != null) {
+			DirectByteBufferCleaner.closeDirectByteBuffer(mbb);
+			mbb = null;
+		}
+	}
+
+	public List<Long> keys() {
+		List<Long> keys = new ArrayList<>();
+		MappedByteBuffer buffer = mbb;
+		if (buffer != null) {
+			int numEntries = getNumEntries(buffer);
+			for (int i = 0; i < numEntries; i++) {
+				keys.add(buffer.getLong(Long.BYTES + i * ENTRY_BYTES));
+			}
+		}
+		if (!hasChanges)
+			return keys;
+
+		synchronized (this) {
+			TreeSet<Long> allKeys = new TreeSet<>(keys);
+			allKeys.addAll(added.keySet());
+			List<Long> nonEmptyKeys = new ArrayList<>();
+			for (long key : allKeys) {
+				if (getWithChanges(key).hasNext())
+					nonEmptyKeys.add(key);
+			}
+			return nonEmptyKeys;
+		}
+	}
+
+	/**
+	 * Applies a change to the in-memory changes. Adding a value which was removed since the file was written, or
+	 * removing one which was added, cancels the earlier change.
+	 */
+	private void applyChange(byte operation, long key, long value) {
+		if (operation == ADD) {
+			Set<Long> removedValues = removed.get(key);
+			if (removedValues != null && removedValues.remove(value)) {
+				if (removedValues.isEmpty())
+					removed.remove(key);
+			} else {
+				added.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+			}
+		} else {
+			List<Long> addedValues = added.get(key);
+			if (addedValues != null && addedValues.remove(value)) {
+				if (addedValues.isEmpty())
+					added.remove(key);
+			} else {
+				removed.computeIfAbsent(key, k -> new HashSet<>()).add(value);
+			}
+		}
+		numChanges++;
+		hasChanges = !added.isEmpty() || !removed.isEmpty();
+	}
+
+	private void writeChange(byte operation, long key, long value) throws IOException {
+		if (log == null)
+			log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+		log.writeByte(operation);
+		log.writeLong(key);
+		log.writeLong(value);
+		log.flush();
+	}
+
+	private synchronized void replayLog() throws IOException {
+		if (!logFile.exists())
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+			while (true) {
+				byte operation;
+				long key;
+				long value;
+				try {
+					operation = in.readByte();
+					key = in.readLong();
+					value = in.readLong();
+				} catch (EOFException e) {
+					// A record which was cut short by a crash was never applied either
+					break;
+				}
+				if (operation != ADD && operation != REMOVE)
+					throw new IOException("Invalid change log record in " + logFile);
+				applyChange(operation, key, value);
+			}
+		}
 	}
 
-	public List<Short> keys() {
-		List<Short> keys = new LinkedList<>();
+	private void closeLog() throws IOException {
+		if (log != null) {
+			log.close();
+			log = null;
+		}
+	}
 
-		mbb.position(0);
-		long headerSize = mbb.getLong();
-		while (mbb.position() < headerSize) {
-			keys.add(mbb.getShort());
-			mbb.position(mbb.position() + Long.BYTES);
+	/**
+	 * Writes the map to the given file, replacing it, and forces it to the disk before this returns, so that the file
+	 * can be moved into place as a complete map.
+	 */
+	static void writeBuckets(File file, TreeMap<Long, long[]> map) throws IOException {
+		Files.deleteIfExists(file.toPath());
+		long size = calculateSize(map);
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			MappedByteBuffer wmbb = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			writeHeader(wmbb, map);
+			writeData(wmbb, map);
+			wmbb.force();
+			DirectByteBufferCleaner.closeDirectByteBuffer(wmbb);
 		}
-		return keys;
 	}
 
-	private long calculateSize(TreeMap<Short, Collection<Long>> map) {
+	private static long calculateSize(TreeMap<Long, long[]> map) {
 		long size = 0;
 		size += Long.BYTES;
-		for (Collection<Long> value : map.values()) {
-			size += Short.BYTES + Long.BYTES;
-			size += value.size() * Long.BYTES;
+		for (long[] value : map.values()) {
+			size += ENTRY_BYTES;
+			size += (long) value.length * Long.BYTES;
 		}
 		return size;
 	}
 
-	private void writeHeader(MappedByteBuffer wmbb, TreeMap<Short, Collection<Long>> storeHash) {
-		long headerSizeInBytes = storeHash.size() * (Short.BYTES + Long.BYTES) + Long.BYTES;
+	private static void writeHeader(MappedByteBuffer wmbb, TreeMap<Long, long[]> storeHash) {
+		long headerSizeInBytes = storeHash.size() * ENTRY_BYTES + Long.BYTES;
 		wmbb.putLong(headerSizeInBytes);
 
 		long prevBucketEnd = headerSizeInBytes;
-		for (Map.Entry<Short, Collection<Long>> integerListEntry : storeHash.entrySet()) {
-			wmbb.putShort(integerListEntry.getKey());
+		for (Map.Entry<Long, long[]> integerListEntry : storeHash.entrySet()) {
+			wmbb.putLong(integerListEntry.getKey());
 			wmbb.putLong(prevBucketEnd);
-			prevBucketEnd += integerListEntry.getValue().size() * Long.BYTES;
+			prevBucketEnd += (long) integerListEntry.getValue().length * Long.BYTES;
 		}
 	}
 
-	private void writeData(MappedByteBuffer wmbb, TreeMap<Short, Collection<Long>> storeHash) {
-		for (Collection<Long> value : storeHash.values()) {
-			for (Long aLong : value) {
+	private static void writeData(MappedByteBuffer wmbb, TreeMap<Long, long[]> storeHash) {
+		for (long[] value : storeHash.values()) {
+			for (long aLong : value) {
 				wmbb.putLong(aLong);
 			}
 		}
 	}
 
 
-	private class Range {
-		long start, end;
+	private static final LongIterator EMPTY = new LongIterator() {
+		@Override
+		public boolean hasNext() {
+			return false;
+		}
 
-		public Range(long start, long end) {
-			this.start = start;
-			this.end = end;
+		@Override
+		public long next() {
+			return 0;
 		}
+	};
 
-		public LongIterator iterator() {
-			mbb.position((int) start);
+	/**
+	 * Iterates over the values between two positions of the map, with its own cursor rather than the buffer's.
+	 */
+	private static class Range implements LongIterator {
+		final MappedByteBuffer buffer;
+		final long end;
+		long position;
 
-			return new LongIterator() {
-				@Override
-				public boolean hasNext() {
-					return mbb.position() < end;
-				}
+		Range(MappedByteBuffer buffer, long start, long end) {
+			this.buffer = buffer;
+			this.position = start;
+			this.end = end;
+		}
 
-				@Override
-				public long next() {
-					return mbb.getLong();
-				}
-			};
+		@Override
+		public boolean hasNext() {
+			return position < end;
+		}
+
+		@Override
+		public long next() {
+			long value = buffer.getLong((int) position);
+			position += Long.BYTES;
+			return value;
 		}
 	}
 
@@ -2,21 +2,21 @@ package pitt.search.semanticvectors.lsh;
 
 import pitt.search.semanticvectors.FlagConfig;
 import pitt.search.semanticvectors.ObjectVector;
-import pitt.search.semanticvectors.VectorStoreReaderLucene;
 import pitt.search.semanticvectors.vectors.Vector;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Iterator;
-import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Implementation of the {@link LSHStore} which is stored on the hard-drive. It uses the {@link PersistedHashMap} class
- * to do so.
+ * to do so, with one map and one hashing configuration file for each of the {@link FlagConfig#lsh_tables()} tables.
+ * Updates are written to the change logs of the maps, which are merged into the maps by {@link #compact()}, or when
+ * the store is reopened with many changes.
  */
 public class PersistedLSHStore extends LSHStore {
 
@@ -24,18 +24,55 @@ public class PersistedLSHStore extends LSHStore {
 	public static final String STORE_SUFFIX = ".lshstore";
 	// Stores the hashing configuration
 	public static final String LSH_SUFFIX = ".lsh";
+	// A map is compacted when it is opened with more changes than this fraction of its values
+	static final double COMPACTION_RATIO = 0.1;
 
 	protected File homeDir;
 
-	LocalitySensitiveHash lsh;
+	LocalitySensitiveHash[] lshs;
 	File vecStoreFile;
 	FlagConfig flagConfig;
-	File cacheFile;
-	PersistedHashMap phm;
+	File[] cacheFiles;
+	PersistedHashMap[] phms;
+	int numHashes;
+	int maxBitsDiff;
+	// The background build this store is made by, if any
+	LSHStoreFactory.Build build;
 
 	public PersistedLSHStore(File vecStoreFile, FlagConfig flagConfig) {
+		this(vecStoreFile, flagConfig, flagConfig.lsh_hashes_num(), flagConfig.lsh_max_bits_diff());
+	}
+
+	/**
+	 * Hashes with the given number of hashes and allowed different bits instead of those of the flags, e.g. those
+	 * chosen by {@link LSHTuner}.
+	 */
+	public PersistedLSHStore(File vecStoreFile, FlagConfig flagConfig, int numHashes, int maxBitsDiff) {
 		this.vecStoreFile = vecStoreFile;
 		this.flagConfig = flagConfig;
+		this.numHashes = numHashes;
+		this.maxBitsDiff = maxBitsDiff;
+	}
+
+	/**
+	 * Returns the name of a file of the given table, which depends on the hashing configuration.
+	 */
+	private String getTableFileName(String suffix, int table) {
+		return vecStoreFile.getName() + suffix + numHashes + "_" + maxBitsDiff + "_" + table;
+	}
+
+	/**
+	 * Returns true if the tables of the store have been persisted, so that {@link #initCache()} only opens them
+	 * instead of building them.
+	 */
+	public boolean isPersisted() {
+		File lshDir = new File(vecStoreFile.getParentFile(), "lsh");
+		for (int table = 0; table < flagConfig.lsh_tables(); table++) {
+			if (!new File(lshDir, getTableFileName(STORE_SUFFIX, table)).exists()
+					|| !new File(lshDir, getTableFileName(LSH_SUFFIX, table)).exists())
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -48,52 +85,102 @@ public class PersistedLSHStore extends LSHStore {
 		if (!homeDir.exists())
 			Files.createDirectories(homeDir.toPath());
 
-		cacheFile = new File(homeDir,vecStoreFile.getName() + STORE_SUFFIX + flagConfig.lsh_hashes_num() + flagConfig.lsh_max_bits_diff());
-		File lshFile = new File(homeDir, vecStoreFile.getName() + LSH_SUFFIX + flagConfig.lsh_hashes_num() + flagConfig.lsh_max_bits_diff());
-
-		phm = new PersistedHashMap(cacheFile);
-
-		if (cacheFile.exists()) {
-			phm.init();
-			lsh = LocalitySensitiveHash.initFromFile(lshFile);
+		int numTables = flagConfig.lsh_tables();
+		cacheFiles = new File[numTables];
+		File[] lshFiles = new File[numTables];
+		for (int table = 0; table < numTables; table++) {
+			cacheFiles[table] = new File(homeDir, getTableFileName(STORE_SUFFIX, table));
+			lshFiles[table] = new File(homeDir, getTableFileName(LSH_SUFFIX, table));
+		}
+		boolean exists = isPersisted();
+
+		phms = new PersistedHashMap[numTables];
+		lshs = new LocalitySensitiveHash[numTables];
+		if (exists) {
+			for (int table = 0; table < numTables; table++) {
+				phms[table] = new PersistedHashMap(cacheFiles[table]);
+				phms[table].init();
+				if (phms[table].getNumChanges() > COMPACTION_RATIO * phms[table].getNumPersistedValues())
+					phms[table].compact();
+				lshs[table] = LocalitySensitiveHash.initFromFile(lshFiles[table]);
+			}
 		} else {
 			// We create an in-memory store and once it's been initialized we basically persist it. Makes our lives easier
-			InMemoryLSHStore inMemoryStore = new InMemoryLSHStore(vecStoreFile, flagConfig);
+			InMemoryLSHStore inMemoryStore = new InMemoryLSHStore(vecStoreFile, flagConfig, numHashes, maxBitsDiff);
+			inMemoryStore.build = build;
 			inMemoryStore.initCache();
-			this.lsh = inMemoryStore.lsh;
-			lsh.writeToFile(lshFile);
-			phm.persist(inMemoryStore.storeHash);
+			// The tables are written to temporary files, which are only moved into place once all of them are complete
+			// and on the disk, so that a build which is stopped half-way, e.g. by the exit of the JVM, is never taken for
+			// a persisted store
+			File[] tmpCacheFiles = new File[numTables];
+			File[] tmpLshFiles = new File[numTables];
+			try {
+				for (int table = 0; table < numTables; table++) {
+					lshs[table] = inMemoryStore.lshs[table];
+					tmpLshFiles[table] = Files.createTempFile(homeDir.toPath(), lshFiles[table].getName(), ".tmp").toFile();
+					lshs[table].writeToFile(tmpLshFiles[table]);
+					tmpCacheFiles[table] = Files.createTempFile(homeDir.toPath(), cacheFiles[table].getName(), ".tmp").toFile();
+					PersistedHashMap.writeBuckets(tmpCacheFiles[table], inMemoryStore.storeHashes.get(table));
+				}
+				for (int table = 0; table < numTables; table++) {
+					// The changes of a previous store do not apply to the new one
+					Files.deleteIfExists(new File(cacheFiles[table].getPath() + PersistedHashMap.LOG_SUFFIX).toPath());
+					Files.move(tmpCacheFiles[table].toPath(), cacheFiles[table].toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					Files.move(tmpLshFiles[table].toPath(), lshFiles[table].toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+			} finally {
+				for (int table = 0; table < numTables; table++) {
+					if (tmpCacheFiles[table] != null)
+						Files.deleteIfExists(tmpCacheFiles[table].toPath());
+					if (tmpLshFiles[table] != null)
+						Files.deleteIfExists(tmpLshFiles[table].toPath());
+				}
+			}
+			for (int table = 0; table < numTables; table++) {
+				phms[table] = new PersistedHashMap(cacheFiles[table]);
+				phms[table].init();
+			}
 		}
 	}
 
 
+	/**
+	 * Returns the vectors in the buckets of all tables whose hashes are similar to the vector's hash. Vectors found in
+	 * more than one table are only returned once, and in the order of the vector store file.
+	 */
 	@Override
 	public Enumeration<ObjectVector> getSimilar(Vector vector) throws IOException {
-		// get all hashes which are similar to the vector's hash
-		short[] similarHashes = lsh.getSimilarHashes(vector);
-		Arrays.sort(similarHashes);
+		long[] positions = new long[16];
+		int numPositions = 0;
+		for (int table = 0; table < phms.length; table++) {
+			// get all hashes which are similar to the vector's hash
+			for (long similarHash : lshs[table].getSimilarHashes(vector)) {
+				LongIterator bucketIter = phms[table].get(similarHash);
+				while (bucketIter.hasNext()) {
+					if (numPositions == positions.length)
+						positions = Arrays.copyOf(positions, 2 * numPositions);
+					positions[numPositions++] = bucketIter.next();
+				}
+			}
+		}
 
-		// filter the hashes which are not present in the LSH store
-		List<Short> keys = phm.keys();
-		List<Short> toCheck = keys.stream().filter(aShort -> Arrays.binarySearch(similarHashes, aShort) >= 0).collect(Collectors.toList());
-		Iterator<Short> buckets = toCheck.iterator();
+		Arrays.sort(positions, 0, numPositions);
+		int numUnique = 0;
+		for (int i = 0; i < numPositions; i++) {
+			if (numUnique == 0 || positions[i] != positions[numUnique - 1])
+				positions[numUnique++] = positions[i];
+		}
 
+		long[] uniquePositions = positions;
+		int size = numUnique;
 		Iterator<Long> iter = new Iterator<Long>() {
-			LongIterator bucketIter;
+			int next = 0;
 
 			@Override
 			public boolean hasNext() {
-				if (bucketIter == null && buckets.hasNext()) {
-					bucketIter = phm.get(buckets.next());
-				}
-				if (!bucketIter.hasNext()) {
-					if (buckets.hasNext()) {
-						bucketIter = phm.get(buckets.next());
-					} else {
-						return false;
-					}
-				}
-				return true;
+				return next < size;
 			}
 
 			@Override
@@ -101,15 +188,53 @@ public class PersistedLSHStore extends LSHStore {
 				if (!hasNext())
 					return null;
 
-				return bucketIter.next();
+				return uniquePositions[next++];
 			}
 		};
 
-		return getObjectVectorEnum(iter, new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig), flagConfig);
+		return getObjectVectorEnum(iter, vecStoreFile, flagConfig);
+	}
+
+	@Override
+	public synchronized void add(long position, Vector vector) throws IOException {
+		for (int table = 0; table < phms.length; table++) {
+			phms[table].add(lshs[table].getHash(vector), position);
+		}
+	}
+
+	@Override
+	public synchronized void remove(long position, Vector vector) throws IOException {
+		for (int table = 0; table < phms.length; table++) {
+			phms[table].remove(lshs[table].getHash(vector), position);
+		}
+	}
+
+	@Override
+	public long addAppended(long fromPosition) throws IOException {
+		return addAppended(vecStoreFile, fromPosition, flagConfig);
+	}
+
+	@Override
+	public long getSizeInBytes() {
+		long size = 0;
+		for (PersistedHashMap phm : phms) {
+			size += phm.getSizeInBytes();
+		}
+		return size;
+	}
+
+	@Override
+	public synchronized void compact() throws IOException {
+		for (PersistedHashMap phm : phms) {
+			phm.compact();
+		}
 	}
 
 	@Override
 	public void close() {
-		phm.close();
+		super.close();
+		for (PersistedHashMap phm : phms) {
+			phm.close();
+		}
 	}
 }
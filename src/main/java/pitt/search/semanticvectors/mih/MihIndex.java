@@ -0,0 +1,301 @@
+package pitt.search.semanticvectors.mih;
+
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorStore;
+import pitt.search.semanticvectors.vectors.BinaryVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Multi-index hashing of the {@link BinaryVector}s of a {@link VectorStore}, as described by Norouzi, Punjani and
+ * Fleet, "Fast Exact Search in Hamming Space with Multi-Index Hashing".
+ * <p>
+ * Each code is split into m disjoint substrings of at most 64 bits, and each substring is indexed in a table of its
+ * own. If two codes differ in fewer than {@code m * (r + 1)} bits, at least one of their substrings differs in at
+ * most r bits, so probing every table with the substrings within r bits of the query's finds all of them. A search
+ * grows r until the k nearest codes found cannot be beaten by any code not found yet, so its results are exactly the
+ * k codes with the smallest Hamming distances, as an exhaustive search would rank them with
+ * {@link Vector#measureOverlap}. When probing would cost more than comparing the remaining codes, they are compared
+ * instead.
+ * <p>
+ * Searches may run concurrently once the index has been built.
+ */
+public class MihIndex {
+
+	private final int dimension;
+	private final int wordsPerCode;
+	private final int size;
+	private final Object[] objects;
+	/** The words of all codes, one code after the other. */
+	private final long[] codes;
+	private final int[] substringStarts;
+	private final int[] substringLengths;
+	/** For each substring, the distinct values in ascending order. */
+	private final long[][] keys;
+	/** For each substring, where the codes with each value start in {@link #ids}, and one past the last. */
+	private final int[][] offsets;
+	/** For each substring, the codes grouped by value. */
+	private final int[][] ids;
+
+	/**
+	 * Returns a new index of all the vectors of the given store, which must be binary.
+	 *
+	 * @param numSubstrings number of substrings, or 0 to choose it from the size of the store
+	 */
+	public static MihIndex build(VectorStore vectorStore, int dimension, int numSubstrings) {
+		List<Object> objects = new ArrayList<>();
+		List<long[]> codes = new ArrayList<>();
+		Enumeration<ObjectVector> vectorEnumeration = vectorStore.getAllVectors();
+		while (vectorEnumeration.hasMoreElements()) {
+			ObjectVector objectVector = vectorEnumeration.nextElement();
+			objects.add(objectVector.getObject());
+			codes.add(getBits(objectVector.getVector(), dimension));
+		}
+		return new MihIndex(objects.toArray(), codes, dimension, numSubstrings);
+	}
+
+	/**
+	 * @param numSubstrings number of substrings, or 0 to choose it from the number of codes
+	 */
+	MihIndex(Object[] objects, List<long[]> codes, int dimension, int numSubstrings) {
+		if (dimension % Long.SIZE != 0)
+			throw new IllegalArgumentException("Binary dimension should be a multiple of 64: " + dimension);
+		this.dimension = dimension;
+		this.wordsPerCode = dimension / Long.SIZE;
+		this.size = objects.length;
+		this.objects = objects;
+		this.codes = new long[size * wordsPerCode];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(codes.get(i), 0, this.codes, i * wordsPerCode, wordsPerCode);
+		}
+
+		int numTables = numSubstrings > 0 ? numSubstrings : getDefaultNumSubstrings(dimension, size);
+		numTables = Math.max(Math.min(numTables, dimension), (dimension + Long.SIZE - 1) / Long.SIZE);
+		substringStarts = new int[numTables];
+		substringLengths = new int[numTables];
+		for (int table = 0; table < numTables; table++) {
+			substringStarts[table] = (int) ((long) dimension * table / numTables);
+			substringLengths[table] = (int) ((long) dimension * (table + 1) / numTables) - substringStarts[table];
+		}
+
+		keys = new long[numTables][];
+		offsets = new int[numTables][];
+		ids = new int[numTables][];
+		long[] substrings = new long[size];
+		for (int table = 0; table < numTables; table++) {
+			for (int i = 0; i < size; i++) {
+				substrings[i] = getSubstring(this.codes, i * wordsPerCode, table);
+			}
+			buildTable(table, substrings);
+		}
+	}
+
+	/**
+	 * Returns about as many substrings as make each substring value as frequent as a single code, which is where
+	 * probing a table costs about as much as the codes it finds.
+	 */
+	static int getDefaultNumSubstrings(int dimension, int size) {
+		int bitsPerSubstring = Math.max(1, Math.min(Long.SIZE, 64 - Long.numberOfLeadingZeros(Math.max(size - 1, 1))));
+		return (dimension + bitsPerSubstring - 1) / bitsPerSubstring;
+	}
+
+	private void buildTable(int table, long[] substrings) {
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(substrings[a], substrings[b]));
+
+		long[] tableKeys = new long[size];
+		int[] tableOffsets = new int[size + 1];
+		int[] tableIds = new int[size];
+		int numKeys = 0;
+		for (int i = 0; i < size; i++) {
+			long key = substrings[order[i]];
+			if (numKeys == 0 || tableKeys[numKeys - 1] != key) {
+				tableKeys[numKeys] = key;
+				tableOffsets[numKeys++] = i;
+			}
+			tableIds[i] = order[i];
+		}
+		tableOffsets[numKeys] = size;
+		keys[table] = Arrays.copyOf(tableKeys, numKeys);
+		offsets[table] = Arrays.copyOf(tableOffsets, numKeys + 1);
+		ids[table] = tableIds;
+	}
+
+	private static long[] getBits(Vector vector, int dimension) {
+		if (vector.getVectorType() != VectorType.BINARY)
+			throw new IllegalArgumentException("Multi-index hashing needs binary vectors, got " + vector.getVectorType());
+		if (vector.getDimension() != dimension)
+			throw new IllegalArgumentException("Expected dimension " + dimension + ", got " + vector.getDimension());
+		return ((BinaryVector) vector).getBits();
+	}
+
+	/**
+	 * Returns the bits of the substring of the code starting at the given word, lowest bit first.
+	 */
+	private long getSubstring(long[] words, int from, int table) {
+		int start = substringStarts[table];
+		int length = substringLengths[table];
+		int word = from + start / Long.SIZE;
+		int shift = start % Long.SIZE;
+		long bits = words[word] >>> shift;
+		if (shift + length > Long.SIZE)
+			bits |= words[word + 1] << (Long.SIZE - shift);
+		return length == Long.SIZE ? bits : bits & ((1L << length) - 1);
+	}
+
+	private int getDistance(long[] query, int id) {
+		int distance = 0;
+		int from = id * wordsPerCode;
+		for (int word = 0; word < wordsPerCode; word++) {
+			distance += Long.bitCount(query[word] ^ codes[from + word]);
+		}
+		return distance;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getNumSubstrings() {
+		return keys.length;
+	}
+
+	/**
+	 * Returns the k codes nearest to the query, most similar first, scored with {@link Vector#measureOverlap}.
+	 */
+	public LinkedList<SearchResult> search(Vector query, int k) {
+		return new Search(query, k).run().getResults();
+	}
+
+	/**
+	 * Returns the number of codes compared with the query by {@link #search}.
+	 */
+	public int countCandidates(Vector query, int k) {
+		return new Search(query, k).run().numCompared;
+	}
+
+	/**
+	 * The state of a single search.
+	 */
+	private class Search {
+		final long[] query;
+		final int k;
+		final long[] querySubstrings;
+		final boolean[] compared = new boolean[size];
+		// The k nearest codes so far, farthest first, as distance and id
+		final PriorityQueue<long[]> nearest;
+		int numCompared;
+		// Number of substring values looked up or codes compared, against which a scan is weighed
+		long cost;
+
+		Search(Vector queryVector, int k) {
+			this.query = getBits(queryVector, dimension);
+			this.k = Math.min(k, size);
+			this.querySubstrings = new long[keys.length];
+			for (int table = 0; table < keys.length; table++) {
+				querySubstrings[table] = getSubstring(query, 0, table);
+			}
+			this.nearest = new PriorityQueue<>(Math.max(this.k, 1), (a, b) -> Long.compare(b[0], a[0]));
+		}
+
+		Search run() {
+			if (k == 0)
+				return this;
+			for (int radius = 0; radius <= Long.SIZE; radius++) {
+				for (int table = 0; table < keys.length; table++) {
+					if (radius > substringLengths[table])
+						continue;
+					long probes = binomial(substringLengths[table], radius);
+					if (cost + probes > size) {
+						scan();
+						return this;
+					}
+					cost += probes;
+					probe(table, querySubstrings[table], radius, 0);
+					// Codes not compared yet differ in more than radius bits in the tables up to this one, and in at
+					// least radius bits in the others
+					if (nearest.size() == k && nearest.peek()[0] <= (long) keys.length * radius + table + 1)
+						return this;
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Looks up the values which differ from the given one in exactly {@code flips} bits at or above the lowest.
+		 */
+		private void probe(int table, long value, int flips, int lowest) {
+			if (flips == 0) {
+				lookup(table, value);
+				return;
+			}
+			for (int bit = lowest; bit <= substringLengths[table] - flips; bit++) {
+				probe(table, value ^ (1L << bit), flips - 1, bit + 1);
+			}
+		}
+
+		private void lookup(int table, long value) {
+			int key = Arrays.binarySearch(keys[table], value);
+			if (key < 0)
+				return;
+			for (int i = offsets[table][key]; i < offsets[table][key + 1]; i++) {
+				compare(ids[table][i]);
+			}
+		}
+
+		private void compare(int id) {
+			if (compared[id])
+				return;
+			compared[id] = true;
+			numCompared++;
+			cost++;
+			long distance = getDistance(query, id);
+			if (nearest.size() < k) {
+				nearest.add(new long[] {distance, id});
+			} else if (distance < nearest.peek()[0]) {
+				nearest.poll();
+				nearest.add(new long[] {distance, id});
+			}
+		}
+
+		private void scan() {
+			for (int id = 0; id < size; id++) {
+				compare(id);
+			}
+		}
+
+		LinkedList<SearchResult> getResults() {
+			LinkedList<SearchResult> results = new LinkedList<>();
+			while (!nearest.isEmpty()) {
+				long[] entry = nearest.poll();
+				int id = (int) entry[1];
+				double score = 2 * (0.5 - entry[0] / (double) dimension);
+				long[] bits = Arrays.copyOfRange(codes, id * wordsPerCode, (id + 1) * wordsPerCode);
+				results.addFirst(new SearchResult(score, new ObjectVector(objects[id], new BinaryVector(bits, dimension))));
+			}
+			return results;
+		}
+	}
+
+	private static long binomial(int n, int k) {
+		long result = 1;
+		for (int i = 1; i <= k; i++) {
+			result = result * (n - k + i) / i;
+			// Only compared with the size of the index
+			if (result > Integer.MAX_VALUE)
+				return Long.MAX_VALUE / 2;
+		}
+		return result;
+	}
+}
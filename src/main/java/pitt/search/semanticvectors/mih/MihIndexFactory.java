@@ -0,0 +1,81 @@
+package pitt.search.semanticvectors.mih;
+
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Ensures there is a single {@link MihIndex} in memory for each indexed vector store and number of substrings.
+ * <p>
+ * Indexes are built from the vector store on first use and are not persisted, as building one only takes a read of
+ * the store and a sort of each substring table.
+ */
+public enum MihIndexFactory {
+
+	INSTANCE;
+
+	private static final Logger logger = Logger.getLogger(MihIndexFactory.class.getCanonicalName());
+
+	private final Map<MihConfig, MihIndex> indexes = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the index of the given {@link VectorStoreReaderLucene} vector file for
+	 * {@link FlagConfig#mih_substrings()}, building it if it is not in memory yet.
+	 */
+	public MihIndex getIndex(File vecStoreFile, FlagConfig flagConfig) {
+		return indexes.computeIfAbsent(new MihConfig(vecStoreFile.getAbsolutePath(), flagConfig.mih_substrings()),
+				config -> {
+					VectorStoreReaderLucene vectorStore = null;
+					try {
+						vectorStore = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
+						logger.info("Building multi-index hashing index of " + vecStoreFile + " ...");
+						MihIndex index = MihIndex.build(vectorStore, flagConfig.dimension(), flagConfig.mih_substrings());
+						logger.info("Indexed " + index.size() + " vectors in " + index.getNumSubstrings() + " substring tables");
+						return index;
+					} catch (IOException e) {
+						throw new RuntimeException("Could not init multi-index hashing index for " + vecStoreFile, e);
+					} finally {
+						if (vectorStore != null)
+							vectorStore.close();
+					}
+				});
+	}
+
+	/**
+	 * Drops the indexes of the vector stores under the given path from memory. This should be called once
+	 * a vector store is deleted or recreated, because otherwise searches keep using the outdated index.
+	 */
+	public void clearIndexesForIndex(File indexHome) {
+		indexes.keySet().removeIf(config -> config.fileName.startsWith(indexHome.getAbsolutePath()));
+	}
+
+	private static class MihConfig {
+		final String fileName;
+		final int numSubstrings;
+
+		MihConfig(String fileName, int numSubstrings) {
+			this.fileName = fileName;
+			this.numSubstrings = numSubstrings;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			MihConfig that = (MihConfig) o;
+			return numSubstrings == that.numSubstrings &&
+					Objects.equals(fileName, that.fileName);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fileName, numSubstrings);
+		}
+	}
+}
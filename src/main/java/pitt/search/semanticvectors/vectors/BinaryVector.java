@@ -851,9 +851,8 @@ public class BinaryVector implements Vector {
     long bitArray[] = new long[(dimension / 64)];
 
     for (int i = 0; i < dimension / 64; ++i) {
-        bitArray[i] = byteBuffer.getLong();
-        logger.severe("Couldn't read binary vector from lucene output stream.");
-      }
+      bitArray[i] = byteBuffer.getLong();
+    }
     this.bitSet = new FixedBitSet(bitArray, dimension);
     this.isSparse = true;
   }
@@ -938,6 +937,23 @@ public class BinaryVector implements Vector {
     bitSet = new FixedBitSet(newCoordinates, getDimension());
   }
 
+  /**
+   * Creates an elemental vector with the given bits, as returned by {@link #getBits()}. The array is
+   * used directly, not copied.
+   */
+  public BinaryVector(long[] bits, int dimension) {
+    this(dimension);
+    this.bitSet = new FixedBitSet(bits, dimension);
+  }
+
+  /**
+   * Returns the words of the bit set compared by {@link #measureOverlap}, without tallying votes.
+   * The array is shared with this vector, not copied.
+   */
+  public long[] getBits() {
+    return bitSet.getBits();
+  }
+
   // Available for testing and copying.
   protected BinaryVector(FixedBitSet inSet) {
     this.dimension = (int) inSet.length();
@@ -860,8 +860,11 @@ public class ComplexVector implements Vector {
     this.opMode = Mode.CARTESIAN;
   }
 
-  //Available for testing and copying.
-  protected ComplexVector(short[] phaseAngles) {
+  /**
+   * Creates a vector in {@link Mode#POLAR_DENSE} mode with the given phase angles, which are used
+   * directly, not copied. Available for testing and copying.
+   */
+  public ComplexVector(short[] phaseAngles) {
     this.dimension = phaseAngles.length;
     this.phaseAngles = phaseAngles;
     this.opMode = Mode.POLAR_DENSE;
@@ -0,0 +1,135 @@
+package pitt.search.semanticvectors;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.vectors.Vector;
+
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExpandedVectorStoreTest {
+
+	private static Set<String> getObjects(VectorStore store) {
+		Set<String> objects = new HashSet<>();
+		Enumeration<ObjectVector> allVectors = store.getAllVectors();
+		while (allVectors.hasMoreElements()) {
+			assertTrue(objects.add(allVectors.nextElement().getObject().toString()));
+		}
+		return objects;
+	}
+
+	@Test
+	public void testPairsAndTriplesAreEnumerated() {
+		for (String flags : new String[] {"-vectortype binary -dimension 64", "-vectortype complex -dimension 16"}) {
+			FlagConfig flagConfig = FlagConfig.parseFlagsFromString(flags);
+			int directions = flags.contains("complex") ? 2 : 1;
+			for (int n = 0; n < 7; n++) {
+				VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, n, new Random(n));
+				VectorStore pairs = new ExpandedVectorStore(store, flagConfig, false);
+				VectorStore triples = new ExpandedVectorStore(store, flagConfig, true);
+				int numPairs = directions * n * (n - 1) / 2;
+				int numTriples = directions * n * (n - 1) * Math.max(n - 2, 0) / 6;
+				assertEquals(n + numPairs, getObjects(pairs).size());
+				assertEquals(n + numPairs, pairs.getNumVectors());
+				assertEquals(n + numPairs + numTriples, getObjects(triples).size());
+				assertEquals(n + numPairs + numTriples, triples.getNumVectors());
+			}
+		}
+	}
+
+	@Test
+	public void testProductsAreComputedOnDemand() {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString("-vectortype binary -dimension 256");
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 5, new Random(0));
+		ExpandedVectorStore expanded = new ExpandedVectorStore(store, flagConfig, true);
+
+		Enumeration<ObjectVector> allVectors = expanded.getAllVectors();
+		while (allVectors.hasMoreElements()) {
+			ObjectVector objectVector = allVectors.nextElement();
+			String[] parts = objectVector.getObject().toString().split(":");
+			Vector expected;
+			if (parts.length == 1) {
+				expected = store.getVector(parts[0]);
+			} else if (parts.length == 2) {
+				expected = store.getVector(parts[1]).copy();
+				expected.release(store.getVector(parts[0]));
+			} else {
+				expected = store.getVector(parts[0]).copy();
+				expected.release(store.getVector(parts[1]));
+				expected.release(store.getVector(parts[2]));
+			}
+			assertEquals(1, expected.measureOverlap(objectVector.getVector()), 1e-9);
+			assertEquals(1, expected.measureOverlap(expanded.getVector(objectVector.getObject())), 1e-9);
+		}
+		assertNull(expanded.getVector("vector0:missing"));
+		// Binary triples are only taken in the order of the store
+		allVectors = expanded.getAllVectors();
+		String a = allVectors.nextElement().getObject().toString();
+		String b = allVectors.nextElement().getObject().toString();
+		String c = allVectors.nextElement().getObject().toString();
+		assertTrue(expanded.containsVector(a + ":" + b + ":" + c));
+		assertNull(expanded.getVector(c + ":" + b + ":" + a));
+	}
+
+	@Test
+	public void testObjectsWithColons() {
+		for (String flags : new String[] {"-vectortype binary -dimension 256", "-vectortype complex -dimension 16"}) {
+			FlagConfig flagConfig = FlagConfig.parseFlagsFromString(flags);
+			VectorStoreRAM randomStore = MyTestUtils.createRandomStore(flagConfig, 4, new Random(2));
+			VectorStoreRAM store = new VectorStoreRAM(flagConfig);
+			String[] names = {"a:1", "b", "c:2:3", "http://d"};
+			for (int i = 0; i < names.length; i++) {
+				store.putVector(names[i], randomStore.getVector("vector" + i));
+			}
+			ExpandedVectorStore expanded = new ExpandedVectorStore(store, flagConfig, true);
+
+			Enumeration<ObjectVector> allVectors = expanded.getAllVectors();
+			int numVectors = 0;
+			while (allVectors.hasMoreElements()) {
+				ObjectVector objectVector = allVectors.nextElement();
+				Vector vector = expanded.getVector(objectVector.getObject());
+				assertNotNull(objectVector.getObject().toString(), vector);
+				assertEquals(1, objectVector.getVector().measureOverlap(vector), 1e-6);
+				numVectors++;
+			}
+			assertEquals(expanded.getNumVectors(), numVectors);
+			assertNull(expanded.getVector("a:b"));
+			assertNull(expanded.getVector("a:1:2:3"));
+		}
+	}
+
+	@Test
+	public void testSearchesFindProducts() throws Exception {
+		String flags = "-vectortype binary -dimension 512 -expandsearchspace3";
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(flags);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 30, new Random(1));
+		// A triple from the middle of the space
+		ExpandedVectorStore expanded = new ExpandedVectorStore(store, flagConfig, true);
+		Enumeration<ObjectVector> allVectors = expanded.getAllVectors();
+		ObjectVector target = null;
+		for (int i = 0; i < 2000; i++) {
+			target = allVectors.nextElement();
+		}
+		assertEquals(3, target.getObject().toString().split(":").length);
+		Vector query = target.getVector();
+
+		List<SearchResult> results = new VectorSearcher.VectorSearcherCosine(store, store, null, flagConfig, query)
+				.getNearestNeighbors(5);
+		assertEquals(target.getObject(), results.get(0).getObjectVector().getObject());
+		assertEquals(1, results.get(0).getScore(), 1e-9);
+
+		FlagConfig parallelConfig = FlagConfig.parseFlagsFromString(flags + " -parallelsearch -numthreads 4");
+		List<SearchResult> parallelResults = new VectorSearcher.VectorSearcherCosine(
+				store, store, null, parallelConfig, query).getNearestNeighbors(5);
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals(results.get(i).getScore(), parallelResults.get(i).getScore(), 1e-9);
+		}
+	}
+}
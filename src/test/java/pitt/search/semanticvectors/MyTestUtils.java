@@ -33,6 +33,18 @@
 
 package pitt.search.semanticvectors;
 
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
 import static org.junit.Assert.assertEquals;
 
 public class MyTestUtils {
@@ -43,4 +55,54 @@ public class MyTestUtils {
       assertEquals(expecteds[i], actuals[i], TOL);
     }
   }
+
+  /**
+   * Returns a store of random vectors of the type and dimension of the flags, named "vector0", "vector1", ...
+   */
+  public static VectorStoreRAM createRandomStore(FlagConfig flagConfig, int numVectors, Random random) {
+    return createStore(flagConfig, numVectors, () -> VectorFactory.generateRandomVector(
+        flagConfig.vectortype(), flagConfig.dimension(), flagConfig.seedlength(), random));
+  }
+
+  /**
+   * Returns a store of the given number of vectors, named "vector0", "vector1", ...
+   */
+  public static VectorStoreRAM createStore(FlagConfig flagConfig, int numVectors, Supplier<Vector> vectors) {
+    VectorStoreRAM store = new VectorStoreRAM(flagConfig);
+    for (int i = 0; i < numVectors; i++) {
+      store.putVector("vector" + i, vectors.get());
+    }
+    return store;
+  }
+
+  /**
+   * Writes the store to "vectors.bin" in a new temporary directory, whose name starts with the prefix, and returns
+   * the file. Indexes of the store are written next to it, so the directory should be removed with
+   * {@link #deleteRecursively} once the test is done.
+   */
+  public static File createTempStore(String prefix, FlagConfig flagConfig, VectorStore store) throws IOException {
+    File homeDir = Files.createTempDirectory(prefix).toFile();
+    File vectorFile = new File(homeDir, "vectors.bin");
+    VectorStoreWriter.writeVectors(vectorFile.getAbsolutePath(), flagConfig, store);
+    return vectorFile;
+  }
+
+  /**
+   * Writes a store of random vectors, as {@link #createRandomStore} returns, like {@link #createTempStore}.
+   */
+  public static File createRandomTempStore(String prefix, FlagConfig flagConfig, int numVectors, Random random)
+      throws IOException {
+    return createTempStore(prefix, flagConfig, createRandomStore(flagConfig, numVectors, random));
+  }
+
+  /**
+   * Deletes the file, or the directory and everything in it. Does nothing if it does not exist.
+   */
+  public static void deleteRecursively(File file) throws IOException {
+    if (!file.exists())
+      return;
+    try (Stream<Path> paths = Files.walk(file.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
 }
@@ -0,0 +1,125 @@
+package pitt.search.semanticvectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pitt.search.semanticvectors.lsh.LSHTuner;
+import pitt.search.semanticvectors.vectors.Vector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class SearchResultCacheTest {
+
+	private static final String FLAGS = "-vectortype real -dimension 32 -seedlength 16 -resultcachesize 2";
+
+	private File vectorFile;
+	private VectorStoreReaderLucene store;
+
+	@Before
+	public void setUp() throws IOException {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		vectorFile = MyTestUtils.createRandomTempStore("resultcache", flagConfig, 200, new Random(0));
+		store = new VectorStoreReaderLucene(vectorFile.getAbsolutePath(), flagConfig);
+		SearchResultCache.INSTANCE.clear();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.close();
+		SearchResultCache.INSTANCE.clear();
+		MyTestUtils.deleteRecursively(vectorFile.getParentFile());
+	}
+
+	private List<SearchResult> search(String flags, String object) throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(flags);
+		Vector query = store.getVector(object);
+		VectorSearcher searcher = new VectorSearcher.VectorSearcherCosine(store, store, null, flagConfig, query);
+		return SearchResultCache.INSTANCE.getNearestNeighbors(searcher, 5);
+	}
+
+	@Test
+	public void testRepeatedSearchesAreCached() throws Exception {
+		List<SearchResult> first = search(FLAGS, "vector1");
+		List<SearchResult> second = search(FLAGS, "vector1");
+		assertEquals(1, SearchResultCache.INSTANCE.getMisses());
+		assertEquals(1, SearchResultCache.INSTANCE.getHits());
+		assertEquals(first.size(), second.size());
+		for (int i = 0; i < first.size(); i++) {
+			assertEquals(first.get(i).getScore(), second.get(i).getScore(), 0);
+			assertEquals(first.get(i).getObjectVector().getObject(), second.get(i).getObjectVector().getObject());
+			assertNotSame(first.get(i), second.get(i));
+		}
+
+		// Other queries and flags are searched again
+		search(FLAGS, "vector2");
+		search(FLAGS + " -ivf_nprobe 4", "vector1");
+		search(FLAGS + " -stdev", "vector1");
+		search(FLAGS + " -hnsw_m 8", "vector1");
+		search(FLAGS + " -hnsw_efconstruction 50", "vector1");
+		assertEquals(6, SearchResultCache.INSTANCE.getMisses());
+	}
+
+	@Test
+	public void testCachedVectorsAreCopies() throws Exception {
+		List<SearchResult> first = search(FLAGS, "vector1");
+		Vector vector = first.get(0).getObjectVector().getVector();
+		Vector original = vector.copy();
+		// Changing the vectors of results changes neither the cached results nor the store
+		vector.superpose(store.getVector("vector2"), 1, null);
+		List<SearchResult> second = search(FLAGS, "vector1");
+		assertEquals(1, SearchResultCache.INSTANCE.getHits());
+		assertEquals(1, original.measureOverlap(second.get(0).getObjectVector().getVector()), 1e-6);
+		assertNotSame(second.get(0).getObjectVector().getVector(), search(FLAGS, "vector1").get(0).getObjectVector().getVector());
+	}
+
+	@Test
+	public void testTunedSettingsAreSearchedAgain() throws Exception {
+		search(FLAGS, "vector1");
+		File tunedFile = LSHTuner.getTunedFile(vectorFile, FlagConfig.parseFlagsFromString(FLAGS));
+		assertTrue(tunedFile.getParentFile().mkdir());
+		Files.write(tunedFile.toPath(), new byte[] {1});
+		search(FLAGS, "vector1");
+		assertEquals(2, SearchResultCache.INSTANCE.getMisses());
+	}
+
+	@Test
+	public void testRewrittenStoresAreSearchedAgain() throws Exception {
+		search(FLAGS, "vector1");
+		assertTrue(vectorFile.setLastModified(vectorFile.lastModified() + 2000));
+		search(FLAGS, "vector1");
+		assertEquals(2, SearchResultCache.INSTANCE.getMisses());
+		assertEquals(0, SearchResultCache.INSTANCE.getHits());
+	}
+
+	@Test
+	public void testCacheIsBounded() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			search(FLAGS, "vector" + i);
+		}
+		assertEquals(2, SearchResultCache.INSTANCE.size());
+		// The least recently used results were dropped
+		search(FLAGS, "vector4");
+		search(FLAGS, "vector0");
+		assertEquals(1, SearchResultCache.INSTANCE.getHits());
+
+		SearchResultCache.INSTANCE.clear();
+		search(FLAGS + " -resultcachemb 0", "vector0");
+		assertEquals(0, SearchResultCache.INSTANCE.size());
+		assertEquals(0, SearchResultCache.INSTANCE.getSizeInBytes());
+	}
+
+	@Test
+	public void testCacheIsDisabledByDefault() throws Exception {
+		search("-vectortype real -dimension 32", "vector1");
+		search("-vectortype real -dimension 32", "vector1");
+		assertEquals(0, SearchResultCache.INSTANCE.getHits() + SearchResultCache.INSTANCE.getMisses());
+	}
+}
@@ -0,0 +1,86 @@
+package pitt.search.semanticvectors;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchResultHeapTest {
+
+	@Test
+	public void testKeepsBestScoresInOrder() {
+		Random random = new Random(0);
+		List<Double> allScores = new ArrayList<>();
+		SearchResultHeap heap = new SearchResultHeap(10);
+		for (int i = 0; i < 1000; i++) {
+			double score = random.nextDouble();
+			allScores.add(score);
+			heap.offer(score, new ObjectVector("object" + i, null));
+		}
+		Collections.sort(allScores, Collections.reverseOrder());
+
+		List<SearchResult> results = heap.drainSorted();
+		assertEquals(10, results.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(allScores.get(i), results.get(i).getScore(), 0);
+		}
+		assertEquals(0, heap.size());
+	}
+
+	@Test
+	public void testTiesKeepArrivalOrder() {
+		SearchResultHeap heap = new SearchResultHeap(3);
+		heap.offer(0.5, new ObjectVector("first", null));
+		heap.offer(0.5, new ObjectVector("second", null));
+		heap.offer(0.9, new ObjectVector("best", null));
+		assertTrue(heap.isFull());
+		assertFalse(heap.offer(0.5, new ObjectVector("third", null)));
+		assertEquals(0.5, heap.minScore(), 0);
+
+		List<SearchResult> results = heap.drainSorted();
+		assertEquals("best", results.get(0).getObjectVector().getObject());
+		assertEquals("first", results.get(1).getObjectVector().getObject());
+		assertEquals("second", results.get(2).getObjectVector().getObject());
+	}
+
+	@Test
+	public void testUnboundedKeepsEverything() {
+		SearchResultHeap heap = SearchResultHeap.unbounded();
+		for (int i = 0; i < 5000; i++) {
+			heap.offer(i % 100, new ObjectVector("object" + i, null));
+		}
+		assertFalse(heap.isFull());
+
+		List<SearchResult> results = heap.drainSorted();
+		assertEquals(5000, results.size());
+		for (int i = 1; i < results.size(); i++) {
+			assertTrue(results.get(i - 1).getScore() >= results.get(i).getScore());
+		}
+	}
+
+	@Test
+	public void testMergeAndReuse() {
+		SearchResultHeap first = new SearchResultHeap(2);
+		SearchResultHeap second = new SearchResultHeap(2);
+		first.offer(0.1, new ObjectVector("a", null));
+		first.offer(0.4, new ObjectVector("b", null));
+		second.offer(0.3, new ObjectVector("c", null));
+		second.offer(0.2, new ObjectVector("d", null));
+
+		first.addAll(second);
+		List<SearchResult> results = first.drainSorted();
+		assertEquals("b", results.get(0).getObjectVector().getObject());
+		assertEquals("c", results.get(1).getObjectVector().getObject());
+
+		second.reset();
+		assertEquals(0, second.size());
+		second.offer(1, new ObjectVector("e", null));
+		assertEquals("e", second.drainSorted().get(0).getObjectVector().getObject());
+	}
+}
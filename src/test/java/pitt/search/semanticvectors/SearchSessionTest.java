@@ -0,0 +1,160 @@
+package pitt.search.semanticvectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pitt.search.semanticvectors.Search.SearchType;
+import pitt.search.semanticvectors.lsh.LSHStoreFactory;
+import pitt.search.semanticvectors.lsh.PersistedLSHStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SearchSessionTest {
+
+	private File vectorFile;
+	private String flags;
+
+	@Before
+	public void setUp() throws IOException {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString("-vectortype real -dimension 32 -seedlength 16");
+		vectorFile = MyTestUtils.createRandomTempStore("searchsession", flagConfig, 300, new Random(0));
+		flags = "-vectortype real -dimension 32 -numsearchresults 5 -queryvectorfile " + vectorFile.getAbsolutePath();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		MyTestUtils.deleteRecursively(vectorFile.getParentFile());
+	}
+
+	private static List<String> getObjects(List<SearchResult> results) {
+		List<String> objects = new ArrayList<>();
+		for (SearchResult result : results) {
+			objects.add(result.getObjectVector().getObject().toString());
+		}
+		return objects;
+	}
+
+	@Test
+	public void testSearchesMatchRunSearch() throws IOException {
+		try (SearchSession session = new SearchSession(FlagConfig.parseFlagsFromString(flags))) {
+			for (int i = 0; i < 10; i++) {
+				List<SearchResult> results = session.search("vector" + i);
+				assertEquals(5, results.size());
+				assertEquals("vector" + i, results.get(0).getObjectVector().getObject());
+				List<SearchResult> expected = Search.runSearch(FlagConfig.parseFlagsFromString(flags + " vector" + i));
+				assertEquals(getObjects(expected), getObjects(results));
+			}
+
+			// Other search types and numbers of results use the same stores
+			assertEquals(3, session.search(SearchType.MAXSIM, 3, null, "vector1", "vector2").size());
+			// Terms are lower-cased, on a copy
+			String[] terms = {"VECTOR3"};
+			assertEquals("vector3", session.search(terms).get(0).getObjectVector().getObject());
+			assertEquals("VECTOR3", terms[0]);
+		}
+	}
+
+	@Test
+	public void testPackedSessionsMatchSingleSearches() throws IOException {
+		String packedFlags = flags + " -packsearchvectors";
+		try (SearchSession session = new SearchSession(FlagConfig.parseFlagsFromString(packedFlags))) {
+			for (int i = 0; i < 5; i++) {
+				// Single searches do not pack the store, but find the same results
+				List<SearchResult> expected = Search.runSearch(FlagConfig.parseFlagsFromString(packedFlags + " vector" + i));
+				assertEquals(getObjects(expected), getObjects(session.search("vector" + i)));
+			}
+		}
+	}
+
+	@Test
+	public void testSingleSearchesBuildLshStoresFirst() throws IOException {
+		String lshFlags = flags + " -lsh_hashes_num 8 -lsh_max_bits_diff 1";
+		try {
+			List<SearchResult> results = Search.runSearch(FlagConfig.parseFlagsFromString(lshFlags + " vector1"));
+			assertEquals("vector1", results.get(0).getObjectVector().getObject());
+			// The store was built by the search rather than in the background, which the exit of the JVM would stop
+			FlagConfig flagConfig = FlagConfig.parseFlagsFromString(lshFlags);
+			assertTrue(new PersistedLSHStore(vectorFile, flagConfig).isPersisted());
+			assertNull(LSHStoreFactory.INSTANCE.getBuild(vectorFile, flagConfig));
+		} finally {
+			LSHStoreFactory.INSTANCE.clearStoresForIndex(vectorFile.getParentFile());
+		}
+	}
+
+	@Test
+	public void testConcurrentSearches() throws Exception {
+		try (SearchSession session = new SearchSession(FlagConfig.parseFlagsFromString(flags))) {
+			List<List<String>> expected = new ArrayList<>();
+			for (int i = 0; i < 40; i++) {
+				expected.add(getObjects(session.search("vector" + i)));
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			try {
+				List<Future<List<String>>> futures = new ArrayList<>();
+				for (int i = 0; i < 40; i++) {
+					String term = "vector" + i;
+					futures.add(executor.submit(() -> getObjects(session.search(term))));
+				}
+				for (int i = 0; i < 40; i++) {
+					assertEquals(expected.get(i), futures.get(i).get());
+				}
+			} finally {
+				executor.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testClosedSessionsCannotSearch() throws IOException {
+		SearchSession session = new SearchSession(FlagConfig.parseFlagsFromString(flags));
+		session.search("vector1");
+		session.close();
+		assertTrue(session.isClosed());
+		try {
+			session.search("vector1");
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("closed"));
+		}
+		// Closing again does nothing
+		session.close();
+	}
+
+	@Test
+	public void testPermutationCacheIsOnlyReadForPermutationSearches() throws IOException {
+		String cacheFlags = flags + " -permutationcachefile missing.bin";
+		// Other search types do not need the cache
+		assertEquals("vector1", Search.runSearch(FlagConfig.parseFlagsFromString(cacheFlags + " vector1"))
+				.get(0).getObjectVector().getObject());
+		try (SearchSession session = new SearchSession(FlagConfig.parseFlagsFromString(cacheFlags))) {
+			assertEquals(5, session.search("vector1").size());
+			try {
+				session.search(SearchType.PERMUTATION, 5, null, "vector1");
+				fail();
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage().contains("missing.bin"));
+			}
+			// The session can still be used
+			assertEquals(5, session.search("vector2").size());
+		}
+	}
+
+	// VectorStoreReaderLucene wraps the failure to open the file
+	@Test(expected = RuntimeException.class)
+	public void testMissingStoresFailToOpen() throws IOException {
+		new SearchSession(FlagConfig.parseFlagsFromString(flags.replace(vectorFile.getAbsolutePath(), "missing.bin")));
+	}
+}
@@ -0,0 +1,187 @@
+package pitt.search.semanticvectors;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VectorSearcherTest {
+
+	private static final double TOL = 0.000001;
+
+	private void assertSameResults(List<SearchResult> expected, List<SearchResult> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), TOL);
+		}
+	}
+
+	private void testParallelMatchesSerial(VectorType vectorType, int dimension) {
+		FlagConfig serialConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", vectorType.toString(), "-dimension", Integer.toString(dimension), "-seedlength", "20"});
+		FlagConfig parallelConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", vectorType.toString(), "-dimension", Integer.toString(dimension), "-seedlength", "20",
+				"-parallelsearch", "-numthreads", "3"});
+
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(serialConfig, 5000, random);
+		Vector query = VectorFactory.generateRandomVector(vectorType, dimension, serialConfig.seedlength(), random);
+
+		List<SearchResult> serial = new VectorSearcher.VectorSearcherPlain(store, query.copy(), serialConfig)
+				.getNearestNeighbors(25);
+		List<SearchResult> parallel = new VectorSearcher.VectorSearcherPlain(store, query.copy(), parallelConfig)
+				.getNearestNeighbors(25);
+
+		assertEquals(25, serial.size());
+		assertSameResults(serial, parallel);
+	}
+
+	@Test
+	public void testParallelSearchMatchesSerialReal() {
+		testParallelMatchesSerial(VectorType.REAL, 100);
+	}
+
+	@Test
+	public void testParallelSearchMatchesSerialBinary() {
+		testParallelMatchesSerial(VectorType.BINARY, 512);
+	}
+
+	@Test
+	public void testParallelSearchMatchesSerialComplex() {
+		testParallelMatchesSerial(VectorType.COMPLEX, 100);
+	}
+
+	@Test
+	public void testParallelSearchOnSmallStore() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-dimension", "50", "-parallelsearch", "-numthreads", "4"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 3, random);
+		Vector query = store.getVector("vector1");
+
+		List<SearchResult> results = new VectorSearcher.VectorSearcherPlain(store, query, flagConfig)
+				.getNearestNeighbors(10);
+		assertEquals(3, results.size());
+		assertEquals("vector1", results.get(0).getObjectVector().getObject());
+	}
+
+	@Test
+	public void testBatchSearchMatchesSingleSearches() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-dimension", "100"});
+		FlagConfig parallelConfig = FlagConfig.getFlagConfig(new String[] {
+				"-dimension", "100", "-parallelsearch", "-numthreads", "3"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 3000, random);
+		VectorStoreRAM otherStore = MyTestUtils.createRandomStore(flagConfig, 100, random);
+
+		List<VectorSearcher> searchers = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Vector query = VectorFactory.generateRandomVector(
+					flagConfig.vectortype(), flagConfig.dimension(), flagConfig.seedlength(), random);
+			VectorStore searchStore = i % 3 == 0 ? otherStore : store;
+			searchers.add(new VectorSearcher.VectorSearcherPlain(searchStore, query, flagConfig));
+		}
+
+		for (FlagConfig batchConfig : new FlagConfig[] {flagConfig, parallelConfig}) {
+			List<VectorSearcher> batchSearchers = new ArrayList<>();
+			for (VectorSearcher searcher : searchers) {
+				Vector query = ((VectorSearcher.VectorSearcherPlain) searcher).queryVector.copy();
+				batchSearchers.add(new VectorSearcher.VectorSearcherPlain(searcher.searchVecStore, query, batchConfig));
+			}
+			List<LinkedList<SearchResult>> batchResults = VectorSearcher.getNearestNeighbors(batchSearchers, 20);
+			assertEquals(searchers.size(), batchResults.size());
+			for (int i = 0; i < searchers.size(); i++) {
+				assertSameResults(searchers.get(i).getNearestNeighbors(20), batchResults.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testStdevResultsHaveRawScoresAboveMinimum() {
+		// Complex scores are continuous, so no raw score is exactly the minimum
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "complex", "-dimension", "100", "-searchresultsminscore", "0.2"});
+		FlagConfig stdevConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "complex", "-dimension", "100", "-searchresultsminscore", "0.2", "-stdev"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 2000, random);
+		Vector query = store.getVector("vector0");
+
+		List<SearchResult> raw = new VectorSearcher.VectorSearcherPlain(store, query.copy(), flagConfig)
+				.getNearestNeighbors(100);
+		List<SearchResult> stdev = new VectorSearcher.VectorSearcherPlain(store, query.copy(), stdevConfig)
+				.getNearestNeighbors(100);
+		assertTrue(raw.size() < 100);
+		assertEquals(raw.size(), stdev.size());
+		for (int i = 0; i < raw.size(); i++) {
+			assertEquals(raw.get(i).getObjectVector().getObject(), stdev.get(i).getObjectVector().getObject());
+			assertTrue(stdev.get(i).getScore() > 0.2);
+		}
+	}
+
+	@Test
+	public void testStreamedThresholdResultsMatchSortedResults() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-dimension", "50", "-seedlength", "10"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 2000, random);
+		VectorSearcher searcher = new VectorSearcher.VectorSearcherPlain(store, store.getVector("vector5"), flagConfig);
+
+		LinkedList<SearchResult> sorted = searcher.getAllAboveThreshold(0.1f);
+		List<SearchResult> streamed = new ArrayList<>();
+		searcher.getAllAboveThreshold(0.1f, streamed::add);
+		assertEquals(sorted.size(), streamed.size());
+		streamed.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+		assertSameResults(sorted, streamed);
+	}
+
+	@Test
+	public void testSpilledThresholdResultsAreSorted() throws IOException {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-dimension", "50", "-seedlength", "10", "-thresholdspilllimit", "100"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 2000, random);
+		VectorSearcher searcher = new VectorSearcher.VectorSearcherPlain(store, store.getVector("vector5"), flagConfig);
+
+		LinkedList<SearchResult> expected = searcher.getAllAboveThreshold(-1f);
+		try (SpillingSearchResultSorter sorter = searcher.getAllAboveThresholdSorted(-1f)) {
+			assertEquals(19, sorter.getNumSpilledRuns());
+			List<SearchResult> actual = new ArrayList<>();
+			sorter.forEachRemaining(actual::add);
+			assertSameResults(expected, actual);
+			// The vectors survive being spilled
+			for (int i = 0; i < 10; i++) {
+				Vector vector = store.getVector(actual.get(i).getObjectVector().getObject());
+				assertEquals(1, vector.measureOverlap(actual.get(i).getObjectVector().getVector()), TOL);
+			}
+		}
+	}
+
+	@Test
+	public void testIteratedThresholdResultsAreScoredLazily() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-dimension", "50", "-seedlength", "10"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 100, random);
+		int[] scored = new int[1];
+		VectorSearcher searcher = new VectorSearcher.VectorSearcherPlain(store, store.getVector("vector0"), flagConfig) {
+			@Override
+			public double getScore(Vector testVector) {
+				scored[0]++;
+				return super.getScore(testVector);
+			}
+		};
+		Iterator<SearchResult> results = searcher.iterateAllAboveThreshold(-1f);
+		assertTrue(results.hasNext());
+		results.next();
+		assertEquals(1, scored[0]);
+	}
+}
@@ -0,0 +1,79 @@
+package pitt.search.semanticvectors;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.vectors.BinaryVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VectorStorePackedBinaryTest {
+
+	@Test
+	public void testOverlapMatchesMeasureOverlap() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "binary", "-dimension", "256"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 50, random);
+		store.putVector("zero", VectorFactory.createZeroVector(VectorType.BINARY, 256));
+		VectorStorePackedBinary packed = VectorStorePackedBinary.createFromVectorStore(store, flagConfig);
+		Vector query = VectorFactory.generateRandomVector(VectorType.BINARY, 256, 128, random);
+		PackedVectorStore.RowScorer scorer = packed.getScorer(query);
+
+		assertEquals(51, packed.getNumVectors());
+		for (int row = 0; row < packed.getNumVectors(); row++) {
+			Vector vector = store.getVector(packed.getObject(row));
+			assertEquals(query.measureOverlap(vector), scorer.score(row), 0);
+		}
+		assertNull(packed.getScorer(VectorFactory.createZeroVector(VectorType.BINARY, 128)));
+	}
+
+	@Test
+	public void testSearchMatchesUnpackedStore() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "binary", "-dimension", "512"});
+		FlagConfig parallelConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "binary", "-dimension", "512", "-parallelsearch", "-numthreads", "3"});
+		Random random = new Random(1);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 5000, random);
+		VectorStorePackedBinary packed = VectorStorePackedBinary.createFromVectorStore(store, flagConfig);
+		Vector query = VectorFactory.generateRandomVector(VectorType.BINARY, 512, 256, random);
+
+		List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(store, query.copy(), flagConfig)
+				.getNearestNeighbors(20);
+		for (FlagConfig searchConfig : new FlagConfig[] {flagConfig, parallelConfig}) {
+			List<SearchResult> actual = new VectorSearcher.VectorSearcherPlain(packed, query.copy(), searchConfig)
+					.getNearestNeighbors(20);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testReadFromFile() throws IOException {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "binary", "-dimension", "128"});
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 30, new Random(2));
+		File tmp = Files.createTempFile("packed", ".bin").toFile();
+		try {
+			VectorStoreWriter.writeVectors(tmp.getAbsolutePath(), flagConfig, store);
+			VectorStorePackedBinary packed = VectorStorePackedBinary.readFromFile(flagConfig, tmp.getAbsolutePath());
+			assertEquals(30, packed.getNumVectors());
+			assertTrue(packed.containsVector("vector7"));
+			assertArrayEquals(((BinaryVector) store.getVector("vector7")).getBits(),
+					((BinaryVector) packed.getVector("vector7")).getBits());
+		} finally {
+			tmp.delete();
+			new File(tmp.getAbsolutePath() + ".map").delete();
+		}
+	}
+}
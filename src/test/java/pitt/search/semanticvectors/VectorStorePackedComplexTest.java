@@ -0,0 +1,88 @@
+package pitt.search.semanticvectors;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.vectors.ComplexVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VectorStorePackedComplexTest {
+
+	@Test
+	public void testOverlapMatchesMeasureOverlap() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "complex", "-dimension", "200", "-seedlength", "20"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 50, random);
+		store.putVector("zero", VectorFactory.createZeroVector(VectorType.COMPLEX, 200));
+		VectorStorePackedComplex packed = VectorStorePackedComplex.createFromVectorStore(store, flagConfig);
+
+		// A sparse query, and a dense one.
+		Vector sparseQuery = VectorFactory.generateRandomVector(VectorType.COMPLEX, 200, 20, random);
+		Vector denseQuery = store.getVector("vector3").copy();
+		denseQuery.superpose(store.getVector("vector4"), 1, null);
+		denseQuery.normalize();
+		for (Vector query : new Vector[] {sparseQuery, denseQuery}) {
+			PackedVectorStore.RowScorer scorer = packed.getScorer(query);
+			for (int row = 0; row < packed.getNumVectors(); row++) {
+				Vector vector = store.getVector(packed.getObject(row)).copy();
+				assertEquals(query.copy().measureOverlap(vector), scorer.score(row), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testScoringLeavesQueryUnchanged() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "complex", "-dimension", "100", "-seedlength", "10"});
+		Random random = new Random(1);
+		VectorStorePackedComplex packed = VectorStorePackedComplex.createFromVectorStore(
+				MyTestUtils.createRandomStore(flagConfig, 10, random), flagConfig);
+		ComplexVector query = (ComplexVector) VectorFactory.generateRandomVector(VectorType.COMPLEX, 100, 10, random);
+		String before = query.writeToString();
+
+		packed.getScorer(query).score(0);
+		assertEquals(before, query.writeToString());
+		assertNull(packed.getScorer(VectorFactory.createZeroVector(VectorType.COMPLEX, 50)));
+	}
+
+	@Test
+	public void testSearchMatchesUnpackedStore() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "complex", "-dimension", "100"});
+		FlagConfig parallelConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "complex", "-dimension", "100", "-parallelsearch", "-numthreads", "3"});
+		Random random = new Random(2);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 5000, random);
+		VectorStorePackedComplex packed = VectorStorePackedComplex.createFromVectorStore(store, flagConfig);
+		Vector query = VectorFactory.generateRandomVector(VectorType.COMPLEX, 100, 10, random);
+
+		List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(store, query.copy(), flagConfig)
+				.getNearestNeighbors(20);
+		for (FlagConfig searchConfig : new FlagConfig[] {flagConfig, parallelConfig}) {
+			List<SearchResult> actual = new VectorSearcher.VectorSearcherPlain(packed, query.copy(), searchConfig)
+					.getNearestNeighbors(20);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testCopiesHoldSamePhaseAngles() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "complex", "-dimension", "64"});
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 5, new Random(3));
+		VectorStorePackedComplex packed = VectorStorePackedComplex.createFromVectorStore(store, flagConfig);
+
+		ComplexVector expected = (ComplexVector) store.getVector("vector2").copy();
+		expected.toDensePolar();
+		assertArrayEquals(expected.getPhaseAngles(), ((ComplexVector) packed.getVector("vector2")).getPhaseAngles());
+	}
+}
@@ -0,0 +1,105 @@
+package pitt.search.semanticvectors;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VectorStorePackedRealTest {
+
+	private static final double TOL = 0.00001;
+
+	@Test
+	public void testPackedStoreHoldsSameVectors() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-dimension", "50", "-seedlength", "10"});
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 100, new Random(0));
+		VectorStorePackedReal packed = VectorStorePackedReal.createFromVectorStore(store, flagConfig);
+
+		assertEquals(100, packed.getNumVectors());
+		assertTrue(packed.containsVector("vector42"));
+		assertFalse(packed.containsVector("vector100"));
+		assertNull(packed.getVector("vector100"));
+		float[] expected = ((RealVector) store.getVector("vector42")).getCoordinates();
+		RealVector vector = (RealVector) packed.getVector("vector42");
+		assertArrayEquals(expected, vector.getCoordinates(), 0);
+
+		// Vectors handed out are copies.
+		vector.normalize();
+		assertArrayEquals(expected, ((RealVector) packed.getVector("vector42")).getCoordinates(), 0);
+	}
+
+	@Test
+	public void testCosineMatchesMeasureOverlap() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-dimension", "64"});
+		Random random = new Random(1);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 10, random);
+		store.putVector("zero", VectorFactory.createZeroVector(VectorType.REAL, 64));
+		VectorStorePackedReal packed = VectorStorePackedReal.createFromVectorStore(store, flagConfig);
+		RealVector query = (RealVector) VectorFactory.generateRandomVector(VectorType.REAL, 64, 10, random);
+		float[] coordinates = query.getCoordinates();
+		double queryNorm = VectorStorePackedReal.norm(coordinates, 0, coordinates.length);
+
+		for (int row = 0; row < packed.getNumVectors(); row++) {
+			Vector vector = store.getVector(packed.getObject(row));
+			assertEquals(query.measureOverlap(vector), packed.cosine(row, coordinates, queryNorm), TOL);
+		}
+	}
+
+	@Test
+	public void testSearchMatchesUnpackedStore() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-dimension", "100"});
+		FlagConfig parallelConfig = FlagConfig.getFlagConfig(new String[] {
+				"-dimension", "100", "-parallelsearch", "-numthreads", "3"});
+		Random random = new Random(2);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 5000, random);
+		VectorStorePackedReal packed = VectorStorePackedReal.createFromVectorStore(store, flagConfig);
+		Vector query = VectorFactory.generateRandomVector(VectorType.REAL, 100, 10, random);
+
+		List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(store, query.copy(), flagConfig)
+				.getNearestNeighbors(20);
+		for (FlagConfig searchConfig : new FlagConfig[] {flagConfig, parallelConfig}) {
+			List<SearchResult> actual = new VectorSearcher.VectorSearcherPlain(packed, query.copy(), searchConfig)
+					.getNearestNeighbors(20);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), TOL);
+			}
+		}
+	}
+
+	@Test
+	public void testReadFromFile() throws IOException {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-dimension", "20"});
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 30, new Random(3));
+		File tmp = Files.createTempFile("packed", ".bin").toFile();
+		try {
+			VectorStoreWriter.writeVectors(tmp.getAbsolutePath(), flagConfig, store);
+			VectorStorePackedReal packed = VectorStorePackedReal.readFromFile(flagConfig, tmp.getAbsolutePath());
+			assertEquals(30, packed.getNumVectors());
+			assertArrayEquals(((RealVector) store.getVector("vector7")).getCoordinates(),
+					((RealVector) packed.getVector("vector7")).getCoordinates(), 0);
+		} finally {
+			tmp.delete();
+			new File(tmp.getAbsolutePath() + ".map").delete();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsOtherVectorTypes() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "binary", "-dimension", "64"});
+		VectorStorePackedReal.createFromVectorStore(new VectorStoreRAM(flagConfig), flagConfig);
+	}
+}
@@ -0,0 +1,95 @@
+package pitt.search.semanticvectors;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VectorStoreProductQuantizedTest {
+
+	/**
+	 * Returns a store of real vectors scattered around 20 random centres.
+	 */
+	private VectorStoreRAM createClusteredStore(FlagConfig flagConfig, int numVectors, Random random) {
+		int dimension = flagConfig.dimension();
+		float[][] centres = new float[20][dimension];
+		for (float[] centre : centres) {
+			for (int i = 0; i < dimension; i++) centre[i] = (float) random.nextGaussian();
+		}
+		VectorStoreRAM store = new VectorStoreRAM(flagConfig);
+		for (int v = 0; v < numVectors; v++) {
+			float[] coordinates = new float[dimension];
+			for (int i = 0; i < dimension; i++) {
+				coordinates[i] = centres[v % centres.length][i] + 0.5f * (float) random.nextGaussian();
+			}
+			store.putVector("vector" + v, new RealVector(coordinates));
+		}
+		return store;
+	}
+
+	@Test
+	public void testScoresApproximateMeasureOverlap() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "real", "-dimension", "64", "-pq_subspaces", "8"});
+		Random random = new Random(0);
+		VectorStoreRAM store = createClusteredStore(flagConfig, 1000, random);
+		VectorStoreProductQuantized quantized = VectorStoreProductQuantized.createFromVectorStore(store, flagConfig);
+		assertEquals(1000, quantized.getNumVectors());
+		assertEquals(8, quantized.getNumSubspaces());
+
+		Vector query = store.getVector("vector3").copy();
+		PackedVectorStore.RowScorer scorer = quantized.getScorer(query);
+		double totalError = 0;
+		for (int row = 0; row < quantized.getNumVectors(); row++) {
+			Vector vector = store.getVector(quantized.getObject(row));
+			totalError += Math.abs(query.measureOverlap(vector) - scorer.score(row));
+			assertEquals(scorer.score(row), query.measureOverlap(quantized.getObjectVector(row).getVector()), 1e-4);
+		}
+		assertTrue("Mean error " + totalError / 1000, totalError / 1000 < 0.05);
+	}
+
+	@Test
+	public void testWrittenStoreRerankingRecoversExactScores() throws Exception {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "real", "-dimension", "64", "-pq_subspaces", "16", "-rerankcandidates", "100"});
+		Random random = new Random(1);
+		VectorStoreRAM store = createClusteredStore(flagConfig, 2000, random);
+		File source = Files.createTempFile("productquantized", ".bin").toFile();
+		File quantizedFile = Files.createTempFile("productquantized", ".pq").toFile();
+		try {
+			VectorStoreWriter.writeVectors(source.getAbsolutePath(), flagConfig, store);
+			VectorStoreReaderLucene reader = new VectorStoreReaderLucene(source.getAbsolutePath(), flagConfig);
+			assertEquals(2000, VectorStoreProductQuantized.writeProductQuantized(reader, quantizedFile, flagConfig));
+			CompressedVectorStore quantized = CompressedVectorStore.readFromFile(flagConfig, quantizedFile.getAbsolutePath());
+			assertTrue(quantized instanceof VectorStoreProductQuantized);
+
+			assertArrayEquals(((RealVector) store.getVector("vector7")).getCoordinates(),
+					((RealVector) quantized.readSourceVector(reader, "vector7").getVector()).getCoordinates(), 0);
+
+			for (int q = 0; q < 5; q++) {
+				Vector query = store.getVector("vector" + (q * 101)).copy();
+				List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(store, query, flagConfig)
+						.getNearestNeighbors(10);
+				List<SearchResult> actual = new VectorSearcher.VectorSearcherCompressed(
+						store, quantized, reader, null, flagConfig, query).getNearestNeighbors(10);
+				assertEquals(expected.size(), actual.size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 1e-6);
+				}
+			}
+			reader.close();
+		} finally {
+			source.delete();
+			new File(source.getAbsolutePath() + ".map").delete();
+			quantizedFile.delete();
+		}
+	}
+}
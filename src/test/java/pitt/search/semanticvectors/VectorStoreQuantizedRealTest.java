@@ -0,0 +1,81 @@
+package pitt.search.semanticvectors;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VectorStoreQuantizedRealTest {
+
+	private static RealVector randomDenseVector(int dimension, Random random) {
+		float[] coordinates = new float[dimension];
+		for (int i = 0; i < dimension; i++) {
+			coordinates[i] = (float) random.nextGaussian();
+		}
+		return new RealVector(coordinates);
+	}
+
+	@Test
+	public void testCosineApproximatesMeasureOverlap() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "real", "-dimension", "200"});
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createStore(flagConfig, 100, () -> randomDenseVector(flagConfig.dimension(), random));
+		VectorStoreQuantizedReal quantized = VectorStoreQuantizedReal.createFromVectorStore(store, flagConfig);
+		Vector query = randomDenseVector(200, random);
+		PackedVectorStore.RowScorer scorer = quantized.getScorer(query);
+
+		assertEquals(100, quantized.getNumVectors());
+		for (int row = 0; row < quantized.getNumVectors(); row++) {
+			Vector vector = store.getVector(quantized.getObject(row));
+			assertEquals(query.measureOverlap(vector), scorer.score(row), 0.01);
+			assertEquals(1.0, vector.measureOverlap(quantized.getVector(quantized.getObject(row))), 0.001);
+		}
+	}
+
+	@Test
+	public void testRerankingRecoversExactScores() throws Exception {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "real", "-dimension", "100", "-rerankcandidates", "50"});
+		Random random = new Random(1);
+		VectorStoreRAM store = MyTestUtils.createStore(flagConfig, 2000, () -> randomDenseVector(flagConfig.dimension(), random));
+		File source = Files.createTempFile("quantized", ".bin").toFile();
+		File quantizedFile = Files.createTempFile("quantized", ".qbin").toFile();
+		try {
+			VectorStoreWriter.writeVectors(source.getAbsolutePath(), flagConfig, store);
+			VectorStoreReaderLucene reader = new VectorStoreReaderLucene(source.getAbsolutePath(), flagConfig);
+			assertEquals(2000, VectorStoreQuantizedReal.writeQuantized(reader, quantizedFile, flagConfig));
+			VectorStoreQuantizedReal quantized = VectorStoreQuantizedReal.readFromFile(flagConfig, quantizedFile.getAbsolutePath());
+
+			assertArrayEquals(((RealVector) store.getVector("vector7")).getCoordinates(),
+					((RealVector) quantized.readSourceVector(reader, "vector7").getVector()).getCoordinates(), 0);
+
+			Vector query = randomDenseVector(100, random);
+			List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(store, query, flagConfig)
+					.getNearestNeighbors(10);
+			List<SearchResult> actual = new VectorSearcher.VectorSearcherCompressed(
+					store, quantized, reader, null, flagConfig, query).getNearestNeighbors(10);
+			List<SearchResult> approximate = new VectorSearcher.VectorSearcherCompressed(
+					store, quantized, null, null, flagConfig, query).getNearestNeighbors(10);
+			reader.close();
+
+			assertEquals(expected.size(), actual.size());
+			assertEquals(expected.size(), approximate.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 1e-6);
+				assertTrue(Math.abs(expected.get(i).getScore() - approximate.get(i).getScore()) < 0.02);
+			}
+		} finally {
+			source.delete();
+			new File(source.getAbsolutePath() + ".map").delete();
+			quantizedFile.delete();
+		}
+	}
+}
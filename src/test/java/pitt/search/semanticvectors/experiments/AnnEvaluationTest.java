@@ -0,0 +1,92 @@
+package pitt.search.semanticvectors.experiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.hnsw.HnswIndexFactory;
+import pitt.search.semanticvectors.ivf.IvfStore;
+import pitt.search.semanticvectors.ivf.IvfStoreFactory;
+import pitt.search.semanticvectors.lsh.LSHStoreFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnnEvaluationTest {
+
+	private static final String FLAGS = "-vectortype real -dimension 64 -seedlength 32 -numsearchresults 10";
+
+	private File homeDir;
+	private File vectorFile;
+
+	@Before
+	public void setUp() throws IOException {
+		homeDir = Files.createTempDirectory("annevaluation").toFile();
+		vectorFile = new File(homeDir, "vectors.bin");
+		AnnEvaluation.writeRandomStore(vectorFile, FlagConfig.parseFlagsFromString(FLAGS), 1000, 0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		LSHStoreFactory.INSTANCE.clearStoresForIndex(homeDir);
+		IvfStoreFactory.INSTANCE.clearStoresForIndex(homeDir);
+		HnswIndexFactory.INSTANCE.clearIndexesForIndex(homeDir);
+		MyTestUtils.deleteRecursively(homeDir);
+	}
+
+	private AnnEvaluation.Report evaluate(String flags) throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(flags);
+		VectorStoreReaderLucene store = new VectorStoreReaderLucene(vectorFile.getAbsolutePath(), flagConfig);
+		try {
+			return AnnEvaluation.evaluate(store, flagConfig, 20, 0);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testExactScanHasFullRecall() throws Exception {
+		AnnEvaluation.Report report = evaluate(FLAGS);
+		assertEquals(20, report.numQueries);
+		assertEquals(1.0, report.recall, 1e-9);
+		assertEquals(1000, report.meanCandidates, 1e-9);
+	}
+
+	@Test
+	public void testLSHScansFewerCandidates() throws Exception {
+		AnnEvaluation.Report report = evaluate(FLAGS + " -lsh_hashes_num 10 -lsh_max_bits_diff 1 -lsh_tables 2");
+		// Each query is a vector of the store, which finds itself.
+		assertTrue("Recall " + report.recall, report.recall >= 0.1 && report.recall <= 1);
+		assertTrue("Candidates " + report.meanCandidates, report.meanCandidates > 0 && report.meanCandidates < 1000);
+		assertTrue(report.toString().contains("Recall@10"));
+	}
+
+	@Test
+	public void testIndexesAreBuiltBeforeQueries() throws Exception {
+		FlagConfig hnswConfig = FlagConfig.parseFlagsFromString(FLAGS + " -annindex hnsw");
+		FlagConfig ivfConfig = FlagConfig.parseFlagsFromString(FLAGS + " -annindex ivf -ivf_cells 8");
+		VectorStoreReaderLucene store = new VectorStoreReaderLucene(vectorFile.getAbsolutePath(), hnswConfig);
+		try {
+			AnnEvaluation.prepareIndex(store, hnswConfig);
+			assertTrue(HnswIndexFactory.getIndexFile(vectorFile, hnswConfig.hnsw_m(), hnswConfig.hnsw_efconstruction()).exists());
+			AnnEvaluation.prepareIndex(store, ivfConfig);
+			assertTrue(new File(new File(homeDir, "ivf"), "vectors.bin" + IvfStore.CELLS_SUFFIX + 8).exists());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		long[] nanos = {1000000, 2000000, 3000000, 4000000};
+		assertEquals(2.0, AnnEvaluation.Report.percentileMillis(nanos, 50), 1e-9);
+		assertEquals(4.0, AnnEvaluation.Report.percentileMillis(nanos, 99), 1e-9);
+		assertEquals(1.0, AnnEvaluation.Report.percentileMillis(nanos, 0), 1e-9);
+	}
+}
@@ -0,0 +1,170 @@
+package pitt.search.semanticvectors.hnsw;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorSearcher;
+import pitt.search.semanticvectors.VectorStore;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.VectorStoreWriter;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+import pitt.search.semanticvectors.vectors.VectorType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HnswIndexTest {
+
+	/**
+	 * Returns the fraction of results scoring at least as well as the exact {@code numResults}th
+	 * neighbour, over a few random queries. Scores rather than objects are compared, as random sparse
+	 * vectors often tie.
+	 */
+	private double recall(VectorStoreRAM store, HnswIndex index, FlagConfig flagConfig, int numResults, Random random) {
+		int found = 0;
+		int total = 0;
+		for (int q = 0; q < 10; q++) {
+			Vector query = VectorFactory.generateRandomVector(
+					flagConfig.vectortype(), flagConfig.dimension(), flagConfig.seedlength(), random);
+			List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(store, query.copy(), flagConfig)
+					.getNearestNeighbors(numResults);
+			double threshold = expected.get(numResults - 1).getScore() - 1e-9;
+			List<SearchResult> actual = index.search(query, numResults, 100);
+			assertEquals(numResults, actual.size());
+			for (int i = 0; i < actual.size(); i++) {
+				if (i > 0) assertTrue(actual.get(i - 1).getScore() >= actual.get(i).getScore());
+				if (actual.get(i).getScore() >= threshold) ++found;
+			}
+			total += numResults;
+		}
+		return found / (double) total;
+	}
+
+	@Test
+	public void testRecallForEachVectorType() {
+		for (String vectorType : new String[] {"real", "binary", "complex"}) {
+			FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+					"-vectortype", vectorType, "-dimension", "64", "-seedlength", "32"});
+			Random random = new Random(0);
+			VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 2000, random);
+			HnswIndex index = HnswIndex.build(store, 16, 100, 0);
+			assertEquals(2000, index.size());
+			double recall = recall(store, index, flagConfig, 10, random);
+			assertTrue(vectorType + " recall " + recall, recall >= 0.9);
+		}
+	}
+
+	@Test
+	public void testPersistedIndexSearchesLikeBuiltIndex() throws IOException {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "real", "-dimension", "32"});
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 500, new Random(1));
+		File tmp = Files.createTempFile("hnsw", ".bin").toFile();
+		File indexFile = HnswIndexFactory.getIndexFile(tmp, 8, 50);
+		try {
+			VectorStoreWriter.writeVectors(tmp.getAbsolutePath(), flagConfig, store);
+			HnswIndex built = HnswIndex.build(store, 8, 50, 0);
+			built.writeToFile(indexFile);
+			VectorStoreReaderLucene reader = new VectorStoreReaderLucene(tmp.getAbsolutePath(), flagConfig);
+			HnswIndex read = HnswIndex.readFromFile(indexFile, reader);
+			reader.close();
+			assertEquals(built.size(), read.size());
+
+			Vector query = VectorFactory.generateRandomVector(VectorType.REAL, 32, 10, new Random(2));
+			List<SearchResult> expected = built.search(query, 10, 20);
+			List<SearchResult> actual = read.search(query, 10, 20);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).getObjectVector().getObject(), actual.get(i).getObjectVector().getObject());
+				assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 1e-6);
+			}
+		} finally {
+			tmp.delete();
+			new File(tmp.getAbsolutePath() + ".map").delete();
+			indexFile.delete();
+		}
+	}
+
+	@Test
+	public void testResultsAreCopies() {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "real", "-dimension", "32"});
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 200, new Random(4));
+		HnswIndex index = HnswIndex.build(store, 8, 50, 0);
+		Vector query = store.getVector("vector5");
+		List<SearchResult> first = index.search(query, 5, 20);
+		for (SearchResult result : first) {
+			result.getObjectVector().getVector().superpose(query, -1, null);
+		}
+		List<SearchResult> second = index.search(query, 5, 20);
+		for (int i = 0; i < first.size(); i++) {
+			assertEquals(first.get(i).getScore(), second.get(i).getScore(), 1e-9);
+		}
+	}
+
+	@Test
+	public void testDuplicateObjectsAreRejected() throws IOException {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype", "real", "-dimension", "32"});
+		Random random = new Random(5);
+		List<ObjectVector> objectVectors = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			objectVectors.add(new ObjectVector("vector" + (i % 19),
+					VectorFactory.generateRandomVector(VectorType.REAL, 32, 10, random)));
+		}
+		VectorStore store = new VectorStore() {
+			public Vector getVector(Object object) { return null; }
+			public boolean containsVector(Object object) { return false; }
+			public Enumeration<ObjectVector> getAllVectors() { return Collections.enumeration(objectVectors); }
+			public int getNumVectors() { return objectVectors.size(); }
+		};
+		File indexFile = Files.createTempFile("hnsw", ".hnsw").toFile();
+		try {
+			HnswIndex.build(store, 8, 50, 0).writeToFile(indexFile);
+			HnswIndex.readFromFile(indexFile, store);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("vector0"));
+		} finally {
+			indexFile.delete();
+		}
+	}
+
+	@Test
+	public void testHnswSearcherMatchesExactSearch() throws Exception {
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "binary", "-dimension", "128", "-annindex", "hnsw", "-hnsw_m", "8",
+				"-hnsw_efconstruction", "100", "-hnsw_efsearch", "100"});
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 1000, new Random(3));
+		File tmp = Files.createTempFile("hnsw", ".bin").toFile();
+		File indexFile = HnswIndexFactory.getIndexFile(tmp, 8, 100);
+		try {
+			VectorStoreWriter.writeVectors(tmp.getAbsolutePath(), flagConfig, store);
+			Vector query = store.getVector("vector42").copy();
+			VectorStoreReaderLucene reader = new VectorStoreReaderLucene(tmp.getAbsolutePath(), flagConfig);
+			List<SearchResult> results = new VectorSearcher.VectorSearcherHnsw(
+					store, reader, null, flagConfig, query).getNearestNeighbors(5);
+			reader.close();
+			assertEquals(5, results.size());
+			assertEquals("vector42", results.get(0).getObjectVector().getObject());
+			assertEquals(1.0, results.get(0).getScore(), 1e-9);
+			assertTrue(indexFile.exists());
+		} finally {
+			HnswIndexFactory.INSTANCE.clearIndexesForIndex(tmp);
+			tmp.delete();
+			new File(tmp.getAbsolutePath() + ".map").delete();
+			indexFile.delete();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package pitt.search.semanticvectors.ivf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pitt.search.semanticvectors.ClusterResults;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorSearcher;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class IvfStoreTest {
+
+	private static final int NUM_CLUSTERS = 20;
+	private static final int CLUSTER_SIZE = 50;
+
+	private File homeDir;
+	private File vecStoreFile;
+	private FlagConfig flagConfig;
+	private VectorStoreRAM store;
+
+	/**
+	 * Writes a store of real vectors scattered around {@link #NUM_CLUSTERS} random centres.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		flagConfig = FlagConfig.getFlagConfig(new String[] {
+				"-vectortype", "real", "-dimension", "64", "-annindex", "ivf", "-ivf_cells", "16", "-ivf_nprobe", "4"});
+		Random random = new Random(0);
+		store = new VectorStoreRAM(flagConfig);
+		for (int c = 0; c < NUM_CLUSTERS; c++) {
+			float[] centre = new float[64];
+			for (int i = 0; i < 64; i++) centre[i] = (float) random.nextGaussian();
+			for (int v = 0; v < CLUSTER_SIZE; v++) {
+				float[] coordinates = new float[64];
+				for (int i = 0; i < 64; i++) coordinates[i] = centre[i] + 0.3f * (float) random.nextGaussian();
+				store.putVector("vector" + (c * CLUSTER_SIZE + v), new RealVector(coordinates));
+			}
+		}
+		vecStoreFile = MyTestUtils.createTempStore("ivf", flagConfig, store);
+		homeDir = vecStoreFile.getParentFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		IvfStoreFactory.INSTANCE.clearStoresForIndex(homeDir);
+		MyTestUtils.deleteRecursively(homeDir);
+	}
+
+	@Test
+	public void testKMeansClusterIsReproducible() {
+		ObjectVector[] vectors = new ObjectVector[store.getNumVectors()];
+		Enumeration<ObjectVector> vecEnum = store.getAllVectors();
+		for (int i = 0; vecEnum.hasMoreElements(); i++) vectors[i] = vecEnum.nextElement();
+
+		ClusterResults.Clusters first = ClusterResults.kMeansCluster(vectors, NUM_CLUSTERS, 100, new Random(1), flagConfig);
+		ClusterResults.Clusters second = ClusterResults.kMeansCluster(vectors, NUM_CLUSTERS, 100, new Random(1), flagConfig);
+		assertArrayEquals(first.clusterMappings, second.clusterMappings);
+		for (Vector centroid : first.centroids) {
+			assertTrue(!centroid.isZeroVector());
+		}
+	}
+
+	@Test
+	public void testSearchScansFewCellsWithGoodRecall() throws Exception {
+		IvfStoreFactory.Handle handle = IvfStoreFactory.INSTANCE.acquire(vecStoreFile, flagConfig);
+		IvfStore ivfStore = handle.getStore();
+		assertEquals(16, ivfStore.getNumCells());
+
+		int found = 0;
+		for (int q = 0; q < 10; q++) {
+			Vector query = store.getVector("vector" + (q * 97)).copy();
+			int candidates = 0;
+			for (Enumeration<ObjectVector> vecs = ivfStore.getSimilar(query); vecs.hasMoreElements(); vecs.nextElement())
+				candidates++;
+			assertTrue("Scanned " + candidates + " vectors", candidates < store.getNumVectors() / 2);
+
+			VectorStoreReaderLucene reader = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
+			List<SearchResult> actual = new VectorSearcher.VectorSearcherIvf(store, reader, null, flagConfig, query)
+					.getNearestNeighbors(10);
+			reader.close();
+			List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(store, query.copy(), flagConfig)
+					.getNearestNeighbors(10);
+			assertEquals("vector" + (q * 97), actual.get(0).getObjectVector().getObject());
+			for (SearchResult result : actual) {
+				if (result.getScore() >= expected.get(9).getScore() - 1e-6) found++;
+			}
+		}
+		assertTrue("Recall " + found / 100.0, found >= 90);
+		handle.close();
+	}
+
+	@Test
+	public void testClearedStoresStayOpenWhileAcquired() throws IOException {
+		Vector query = store.getVector("vector123");
+		IvfStoreFactory.Handle handle = IvfStoreFactory.INSTANCE.acquire(vecStoreFile, flagConfig);
+		Enumeration<ObjectVector> vecs = handle.getStore().getSimilar(query);
+		IvfStoreFactory.INSTANCE.clearStoresForIndex(homeDir);
+
+		// The cleared store can still be read, while new handles get a new store
+		int candidates = 0;
+		for (; vecs.hasMoreElements(); vecs.nextElement())
+			candidates++;
+		assertTrue(candidates > 0);
+		try (IvfStoreFactory.Handle newHandle = IvfStoreFactory.INSTANCE.acquire(vecStoreFile, flagConfig)) {
+			assertNotSame(handle.getStore(), newHandle.getStore());
+		}
+		handle.close();
+		// Closing again does nothing
+		handle.close();
+	}
+
+	@Test
+	public void testPersistedCellsAreReused() throws IOException {
+		IvfStore built = new IvfStore(vecStoreFile, flagConfig);
+		built.initCache();
+		// Retraining would rewrite the centroids, and with them this modification time.
+		File centroidsFile = new File(new File(homeDir, "ivf"), "vectors.bin" + IvfStore.CENTROIDS_SUFFIX + 16 + ".bin");
+		assertTrue(centroidsFile.setLastModified(1000000000000L));
+
+		IvfStore read = new IvfStore(vecStoreFile, flagConfig);
+		read.initCache();
+		assertEquals(1000000000000L, centroidsFile.lastModified());
+		Vector query = store.getVector("vector123");
+		assertEquals(Arrays.toString(built.getNearestCells(query, 4)), Arrays.toString(read.getNearestCells(query, 4)));
+		built.close();
+		read.close();
+	}
+}
@@ -0,0 +1,139 @@
+package pitt.search.semanticvectors.lsh;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorSearcher;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.vectors.CircleLookupTable;
+import pitt.search.semanticvectors.vectors.ComplexVector;
+import pitt.search.semanticvectors.vectors.Vector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestComplexLocalitySensitiveHash {
+
+	private static ComplexVector randomPolarVector(int dimension, Random random) {
+		short[] phaseAngles = new short[dimension];
+		for (int i = 0; i < dimension; i++) {
+			phaseAngles[i] = (short) random.nextInt(CircleLookupTable.PHASE_RESOLUTION);
+		}
+		return new ComplexVector(phaseAngles);
+	}
+
+	/**
+	 * Returns a copy of the vector with each phase angle moved by up to {@code maxShift} steps.
+	 */
+	private static ComplexVector perturb(ComplexVector vector, int maxShift, Random random) {
+		ComplexVector copy = vector.copy();
+		copy.toDensePolar();
+		short[] phaseAngles = copy.getPhaseAngles();
+		for (int i = 0; i < phaseAngles.length; i++) {
+			int shifted = phaseAngles[i] + random.nextInt(2 * maxShift + 1) - maxShift;
+			phaseAngles[i] = (short) Math.floorMod(shifted, CircleLookupTable.PHASE_RESOLUTION);
+		}
+		return new ComplexVector(phaseAngles);
+	}
+
+	@Test
+	public void testSerialization() throws IOException {
+		File tmp = Files.createTempFile("file", "tmp").toFile();
+		FlagConfig config = FlagConfig.parseFlagsFromString("-vectortype complex -dimension 100 -lsh_hashes_num 12 -lsh_max_bits_diff 2");
+		LocalitySensitiveHash lsh = new LocalitySensitiveHash(config);
+
+		lsh.writeToFile(tmp);
+		LocalitySensitiveHash restored = LocalitySensitiveHash.initFromFile(tmp);
+		tmp.delete();
+
+		Random random = new Random(0);
+		for (int i = 0; i < 20; i++) {
+			Vector vector = randomPolarVector(100, random);
+			assertEquals(lsh.getHash(vector), restored.getHash(vector));
+		}
+	}
+
+	@Test
+	public void testHashIsIndependentOfModeAndLeavesModeUnchanged() {
+		FlagConfig config = FlagConfig.parseFlagsFromString("-vectortype complex -dimension 100 -lsh_hashes_num 16");
+		LocalitySensitiveHash lsh = new LocalitySensitiveHash(config);
+
+		ComplexVector polar = randomPolarVector(100, new Random(1));
+		ComplexVector cartesian = polar.copy();
+		cartesian.toCartesian();
+
+		assertEquals(lsh.getHash(cartesian), lsh.getHash(polar));
+		assertTrue(polar.getPhaseAngles() != null);
+	}
+
+	@Test
+	public void testSimilarVectorsHaveSimilarHashes() {
+		FlagConfig config = FlagConfig.parseFlagsFromString("-vectortype complex -dimension 200 -lsh_hashes_num 64");
+		LocalitySensitiveHash lsh = new LocalitySensitiveHash(config);
+		Random random = new Random(2);
+
+		int nearDifference = 0;
+		int farDifference = 0;
+		for (int i = 0; i < 20; i++) {
+			ComplexVector vector = randomPolarVector(200, random);
+			ComplexVector near = perturb(vector, CircleLookupTable.PHASE_RESOLUTION / 16, random);
+			ComplexVector far = randomPolarVector(200, random);
+			nearDifference += Long.bitCount(lsh.getHash(vector) ^ lsh.getHash(near));
+			farDifference += Long.bitCount(lsh.getHash(vector) ^ lsh.getHash(far));
+		}
+		// Random vectors differ in about half the bits.
+		assertTrue("Near vectors differ in " + nearDifference / 20.0 + " bits", nearDifference < farDifference / 4);
+	}
+
+	@Test
+	public void testCalculatingSimilarHashes() {
+		FlagConfig config = FlagConfig.parseFlagsFromString("-vectortype complex -dimension 100 -lsh_hashes_num 10 -lsh_max_bits_diff 2");
+		LocalitySensitiveHash lsh = new LocalitySensitiveHash(config);
+
+		long[] similarHashes = lsh.getSimilarHashes(randomPolarVector(100, new Random(3)));
+		assertEquals(1 + 10 + 45, similarHashes.length);
+	}
+
+	@Test
+	public void testCosineSearcherUsesComplexLSH() throws Exception {
+		FlagConfig config = FlagConfig.parseFlagsFromString("-vectortype complex -dimension 100 -lsh_hashes_num 10 -lsh_max_bits_diff 1 -lsh_tables 2"
+				+ " -lsh_blocking_build");
+		Random random = new Random(4);
+		VectorStoreRAM store = MyTestUtils.createStore(config, 500, () -> randomPolarVector(100, random));
+		File vecStoreFile = MyTestUtils.createTempStore("lsh", config, store);
+		try {
+			VectorStoreReaderLucene reader = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), config);
+			Vector query = perturb((ComplexVector) store.getVector("vector123"), CircleLookupTable.PHASE_RESOLUTION / 32, random);
+
+			List<SearchResult> results = new VectorSearcher.VectorSearcherCosine(store, reader, null, config, query)
+					.getNearestNeighbors(5);
+			reader.close();
+			assertEquals("vector123", results.get(0).getObjectVector().getObject());
+			// The search waited for the LSH tables, whose candidates are a fraction of the store.
+			Set<Object> candidates = new HashSet<>();
+			try (LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, config)) {
+				Enumeration<ObjectVector> similar = handle.getStore().getSimilar(query);
+				while (similar.hasMoreElements()) {
+					candidates.add(similar.nextElement().getObject());
+				}
+			}
+			assertTrue("LSH returned " + candidates.size() + " candidates", candidates.size() < 500);
+			assertTrue(candidates.contains("vector123"));
+		} finally {
+			LSHStoreFactory.INSTANCE.clearStoresForIndex(vecStoreFile.getParentFile());
+			MyTestUtils.deleteRecursively(vecStoreFile.getParentFile());
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package pitt.search.semanticvectors.lsh;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TestInMemoryLSHStore {
+
+	private static InMemoryLSHStore build(File vecStoreFile, String flags) throws IOException {
+		InMemoryLSHStore lshStore = new InMemoryLSHStore(vecStoreFile, FlagConfig.parseFlagsFromString(flags));
+		lshStore.initCache();
+		lshStore.close();
+		return lshStore;
+	}
+
+	private static void assertSameTables(InMemoryLSHStore expected, InMemoryLSHStore actual) {
+		assertEquals(expected.storeHashes.size(), actual.storeHashes.size());
+		for (int table = 0; table < expected.storeHashes.size(); table++) {
+			TreeMap<Long, long[]> expectedTable = expected.storeHashes.get(table);
+			TreeMap<Long, long[]> actualTable = actual.storeHashes.get(table);
+			assertEquals(expectedTable.keySet(), actualTable.keySet());
+			for (Map.Entry<Long, long[]> bucket : expectedTable.entrySet()) {
+				assertArrayEquals(bucket.getValue(), actualTable.get(bucket.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void testParallelBuildIsReproducible() throws IOException {
+		String flags = "-vectortype real -dimension 32 -seedlength 16 -lsh_hashes_num 12 -lsh_tables 3";
+		File vecStoreFile = MyTestUtils.createRandomTempStore(
+				"lsh", FlagConfig.parseFlagsFromString(flags), 1000, new Random(0));
+		try {
+			InMemoryLSHStore serial = build(vecStoreFile, flags + " -numthreads 1");
+			InMemoryLSHStore parallel = build(vecStoreFile, flags + " -numthreads 7");
+			assertSameTables(serial, parallel);
+
+			long numPositions = 0;
+			for (long[] bucket : serial.storeHashes.get(0).values()) {
+				numPositions += bucket.length;
+			}
+			assertEquals(1000, numPositions);
+
+			InMemoryLSHStore reseeded = build(vecStoreFile, flags + " -lsh_seed 1");
+			assertNotEquals(serial.storeHashes.get(0).keySet(), reseeded.storeHashes.get(0).keySet());
+		} finally {
+			MyTestUtils.deleteRecursively(vecStoreFile.getParentFile());
+		}
+	}
+
+	@Test
+	public void testToBuckets() {
+		long[] hashes = {5, 3, 5, -1, 3, 5};
+		long[] positions = {10, 20, 30, 40, 50, 60};
+
+		TreeMap<Long, long[]> buckets = InMemoryLSHStore.toBuckets(hashes, positions);
+		assertEquals(3, buckets.size());
+		assertArrayEquals(new long[] {40}, buckets.get(-1L));
+		assertArrayEquals(new long[] {20, 50}, buckets.get(3L));
+		assertArrayEquals(new long[] {10, 30, 60}, buckets.get(5L));
+	}
+}
@@ -0,0 +1,230 @@
+package pitt.search.semanticvectors.lsh;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestLSHStoreFactory {
+
+	private static final String FLAGS = "-vectortype real -dimension 32 -seedlength 16 -lsh_hashes_num 8 -lsh_max_bits_diff 1";
+
+	private File homeDir;
+	private File vecStoreFile;
+
+	@Before
+	public void setUp() throws IOException {
+		vecStoreFile = MyTestUtils.createRandomTempStore("lsh", FlagConfig.parseFlagsFromString(FLAGS), 500, new Random(0));
+		homeDir = vecStoreFile.getParentFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		LSHStoreFactory.INSTANCE.clearStoresForIndex(homeDir);
+		MyTestUtils.deleteRecursively(homeDir);
+	}
+
+	private static boolean isOpen(LSHStore store) {
+		return ((PersistedLSHStore) store).phms[0].mbb != null;
+	}
+
+	@Test
+	public void testConcurrentRequestsShareOneStore() throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<LSHStoreFactory.Handle>> handles = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			handles.add(executor.submit(() -> {
+				start.await();
+				return LSHStoreFactory.INSTANCE.acquire(vecStoreFile, flagConfig);
+			}));
+		}
+		start.countDown();
+		executor.shutdown();
+
+		LSHStore store = handles.get(0).get().getStore();
+		for (Future<LSHStoreFactory.Handle> handle : handles) {
+			assertSame(store, handle.get().getStore());
+			handle.get().close();
+		}
+	}
+
+	@Test
+	public void testStoresWithoutHandlesAreEvicted() {
+		// Nothing fits in the budget, so every store without handles is closed
+		FlagConfig oneTable = FlagConfig.parseFlagsFromString(FLAGS + " -lsh_cache_mb 0");
+		FlagConfig twoTables = FlagConfig.parseFlagsFromString(FLAGS + " -lsh_cache_mb 0 -lsh_tables 2");
+
+		LSHStoreFactory.Handle first = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, oneTable);
+		LSHStoreFactory.Handle second = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, twoTables);
+		LSHStore secondStore = second.getStore();
+		second.close();
+		assertFalse(isOpen(secondStore));
+		// Stores with handles are never closed
+		assertTrue(isOpen(first.getStore()));
+		LSHStore firstStore = first.getStore();
+		first.close();
+		assertFalse(isOpen(firstStore));
+
+		LSHStoreFactory.Handle again = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, oneTable);
+		assertNotSame(firstStore, again.getStore());
+		assertTrue(isOpen(again.getStore()));
+		again.close();
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testStoresOfGetStoreArePinned() {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS + " -lsh_cache_mb 0");
+		LSHStore store = LSHStoreFactory.INSTANCE.getStore(vecStoreFile, flagConfig);
+		assertSame(store, LSHStoreFactory.INSTANCE.getStore(vecStoreFile, flagConfig));
+		// Nothing fits in the budget, but the pinned store is not evicted
+		LSHStoreFactory.INSTANCE.acquire(vecStoreFile, flagConfig).close();
+		assertTrue(isOpen(store));
+
+		LSHStoreFactory.INSTANCE.releaseStore(vecStoreFile, flagConfig);
+		assertFalse(isOpen(store));
+		// Releasing again does nothing
+		LSHStoreFactory.INSTANCE.releaseStore(vecStoreFile, flagConfig);
+
+		LSHStore again = LSHStoreFactory.INSTANCE.getStore(vecStoreFile, flagConfig);
+		LSHStoreFactory.INSTANCE.clearStoresForIndex(homeDir);
+		assertFalse(isOpen(again));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedStoreIsEvictedFirst() {
+		FlagConfig oneTable = FlagConfig.parseFlagsFromString(FLAGS);
+		FlagConfig twoTables = FlagConfig.parseFlagsFromString(FLAGS + " -lsh_tables 2");
+
+		LSHStore first;
+		LSHStore second;
+		try (LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, oneTable)) {
+			first = handle.getStore();
+		}
+		try (LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, twoTables)) {
+			second = handle.getStore();
+		}
+		try (LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, oneTable)) {
+			assertSame(first, handle.getStore());
+		}
+
+		// Only the most recently used store fits
+		LSHStoreFactory.INSTANCE.evict(first.getSizeInBytes());
+		assertTrue(isOpen(first));
+		assertFalse(isOpen(second));
+	}
+
+	@Test
+	public void testClearedStoresAreClosedWithTheirLastHandle() {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, flagConfig);
+		LSHStore store = handle.getStore();
+
+		LSHStoreFactory.INSTANCE.clearStoresForIndex(homeDir);
+		assertTrue(isOpen(store));
+		handle.close();
+		assertFalse(isOpen(store));
+		// Closing twice does not release another reference
+		handle.close();
+	}
+
+	@Test
+	public void testStoresAreBuiltInTheBackground() throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		// Searches do not wait for the store
+		assertNull(LSHStoreFactory.INSTANCE.tryAcquire(vecStoreFile, flagConfig));
+		LSHStoreFactory.Build build = LSHStoreFactory.INSTANCE.getBuild(vecStoreFile, flagConfig);
+		assertNotNull(build);
+		build.await();
+		assertEquals(1, build.getProgress(), 0);
+		assertTrue(new PersistedLSHStore(vecStoreFile, flagConfig).isPersisted());
+		// The tables were written to temporary files, which were all moved into place
+		for (File file : new File(homeDir, "lsh").listFiles()) {
+			assertFalse(file.getName(), file.getName().endsWith(".tmp"));
+		}
+
+		try (LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.tryAcquire(vecStoreFile, flagConfig)) {
+			assertNotNull(handle);
+			assertTrue(isOpen(handle.getStore()));
+		}
+	}
+
+	@Test
+	public void testCancelledBuildsAreNotPersisted() throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		LSHStoreFactory.Build build = LSHStoreFactory.INSTANCE.build(vecStoreFile, flagConfig, new AtomicBoolean(true));
+		try {
+			build.await();
+			fail();
+		} catch (IOException e) {
+			assertTrue(build.isCancelled());
+		}
+		assertFalse(new PersistedLSHStore(vecStoreFile, flagConfig).isPersisted());
+		// Searches keep scanning rather than restarting the build
+		assertNull(LSHStoreFactory.INSTANCE.tryAcquire(vecStoreFile, flagConfig));
+		assertSame(build, LSHStoreFactory.INSTANCE.getBuild(vecStoreFile, flagConfig));
+
+		// Another build can be started explicitly
+		LSHStoreFactory.INSTANCE.build(vecStoreFile, flagConfig, new AtomicBoolean()).await();
+		assertTrue(new PersistedLSHStore(vecStoreFile, flagConfig).isPersisted());
+	}
+
+	@Test
+	public void testFailedBuildsAreRetriedAfterABackoff() throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		// The tables cannot be written where their directory should be
+		File lshDir = new File(homeDir, "lsh");
+		assertTrue(lshDir.createNewFile());
+		assertNull(LSHStoreFactory.INSTANCE.tryAcquire(vecStoreFile, flagConfig));
+		LSHStoreFactory.Build failed = LSHStoreFactory.INSTANCE.getBuild(vecStoreFile, flagConfig);
+		try {
+			failed.await();
+			fail();
+		} catch (IOException e) {
+			assertFalse(failed.isCancelled());
+			assertNotNull(failed.getError());
+		}
+		assertTrue(lshDir.delete());
+
+		long retryMillis = LSHStoreFactory.INSTANCE.failedBuildRetryMillis;
+		try {
+			// Searches scan until the backoff has passed
+			assertNull(LSHStoreFactory.INSTANCE.tryAcquire(vecStoreFile, flagConfig));
+			assertSame(failed, LSHStoreFactory.INSTANCE.getBuild(vecStoreFile, flagConfig));
+
+			LSHStoreFactory.INSTANCE.failedBuildRetryMillis = 0;
+			assertNull(LSHStoreFactory.INSTANCE.tryAcquire(vecStoreFile, flagConfig));
+			LSHStoreFactory.Build retried = LSHStoreFactory.INSTANCE.getBuild(vecStoreFile, flagConfig);
+			assertNotSame(failed, retried);
+			retried.await();
+			try (LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.tryAcquire(vecStoreFile, flagConfig)) {
+				assertNotNull(handle);
+			}
+		} finally {
+			LSHStoreFactory.INSTANCE.failedBuildRetryMillis = retryMillis;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package pitt.search.semanticvectors.lsh;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorSearcher;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestLSHTuner {
+
+	private static final String FLAGS = "-vectortype real -dimension 32 -numsearchresults 5";
+
+	private File homeDir;
+	private File vecStoreFile;
+
+	@Before
+	public void setUp() throws IOException {
+		// Clusters of close vectors, so that the neighbours of a vector can be found by hashing
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		Random random = new Random(0);
+		VectorStoreRAM store = new VectorStoreRAM(flagConfig);
+		for (int cluster = 0; cluster < 50; cluster++) {
+			Vector centre = VectorFactory.generateRandomVector(flagConfig.vectortype(), 32, 16, random);
+			for (int i = 0; i < 10; i++) {
+				Vector vector = centre.copy();
+				vector.superpose(VectorFactory.generateRandomVector(flagConfig.vectortype(), 32, 16, random), 0.1, null);
+				store.putVector("vector" + cluster + "_" + i, vector);
+			}
+		}
+		vecStoreFile = MyTestUtils.createTempStore("lsh", flagConfig, store);
+		homeDir = vecStoreFile.getParentFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		LSHStoreFactory.INSTANCE.clearStoresForIndex(homeDir);
+		MyTestUtils.deleteRecursively(homeDir);
+	}
+
+	private static LSHTuner.Setting setting(int numHashes, int maxBitsDiff, double recall, double candidateFraction) {
+		LSHTuner.Setting setting = new LSHTuner.Setting(numHashes, maxBitsDiff);
+		setting.recall = recall;
+		setting.candidateFraction = candidateFraction;
+		return setting;
+	}
+
+	@Test
+	public void testCheapestSettingMeetingTheTargetIsChosen() {
+		LSHTuner.Setting scan = setting(2, 1, 1, 1);
+		LSHTuner.Setting cheap = setting(8, 1, 0.95, 0.1);
+		LSHTuner.Setting cheaper = setting(12, 0, 0.7, 0.01);
+		List<LSHTuner.Setting> settings = Arrays.asList(scan, cheap, cheaper);
+
+		assertSame(cheap, LSHTuner.choose(settings, 0.9, 1000));
+		assertSame(cheaper, LSHTuner.choose(settings, 0.5, 1000));
+		// No setting meets the target, so the best recall is chosen
+		assertSame(scan, LSHTuner.choose(Arrays.asList(cheap, cheaper, scan), 1.1, 1000));
+	}
+
+	@Test
+	public void testCandidateHashesGrowWithTheStore() {
+		assertEquals(Arrays.asList(2, 4), LSHTuner.getCandidateHashes(2));
+		List<Integer> candidates = LSHTuner.getCandidateHashes(1L << 20);
+		assertEquals(40, (int) candidates.get(candidates.size() - 1));
+		assertTrue(candidates.contains(16));
+	}
+
+	@Test
+	public void testTunedSettingIsUsedBySearches() throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		assertNull(LSHStoreFactory.INSTANCE.getSetting(vecStoreFile, flagConfig));
+
+		VectorStoreReaderLucene store = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
+		try {
+			LSHTuner.Setting tuned = LSHTuner.tune(store, flagConfig, 0.8);
+			assertTrue(tuned.recall >= 0.8);
+			assertTrue(tuned.candidateFraction < 0.5);
+
+			LSHTuner.Setting setting = LSHStoreFactory.INSTANCE.getSetting(vecStoreFile, flagConfig);
+			assertNotNull(setting);
+			assertEquals(tuned.numHashes, setting.numHashes);
+			assertEquals(tuned.maxBitsDiff, setting.maxBitsDiff);
+			// Flags take precedence over the tuned setting
+			FlagConfig explicit = FlagConfig.parseFlagsFromString(FLAGS + " -lsh_hashes_num 4 -lsh_max_bits_diff 4");
+			assertNull(LSHStoreFactory.INSTANCE.getSetting(vecStoreFile, explicit));
+
+			Vector query = store.getVector("vector3_0");
+			List<SearchResult> results = new VectorSearcher.VectorSearcherCosine(
+					store, store, null, flagConfig, query).getNearestNeighbors(5);
+			assertEquals("vector3_0", results.get(0).getObjectVector().getObject());
+			try (LSHStoreFactory.Handle handle = LSHStoreFactory.INSTANCE.acquire(vecStoreFile, flagConfig)) {
+				assertEquals(tuned.numHashes, ((PersistedLSHStore) handle.getStore()).numHashes);
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testTunedFileWrittenByAnotherProcessIsRead() throws IOException {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		assertNull(LSHStoreFactory.INSTANCE.getSetting(vecStoreFile, flagConfig));
+
+		// Written without LSHTuner, so the factory is not told about it
+		File tunedFile = LSHTuner.getTunedFile(vecStoreFile, flagConfig);
+		tunedFile.getParentFile().mkdirs();
+		Files.write(tunedFile.toPath(), "lsh_hashes_num=8\nlsh_max_bits_diff=1\n".getBytes("UTF-8"));
+		LSHTuner.Setting setting = LSHStoreFactory.INSTANCE.getSetting(vecStoreFile, flagConfig);
+		assertNotNull(setting);
+		assertEquals(8, setting.numHashes);
+		assertEquals(1, setting.maxBitsDiff);
+
+		// An unreadable file is ignored, so searches scan the store
+		Files.write(tunedFile.toPath(), "lsh_hashes_num=eight\n".getBytes("UTF-8"));
+		assertNull(LSHStoreFactory.INSTANCE.getSetting(vecStoreFile, flagConfig));
+	}
+}
@@ -2,14 +2,18 @@ package pitt.search.semanticvectors.lsh;
 
 import org.junit.Test;
 import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.vectors.Vector;
 import pitt.search.semanticvectors.vectors.VectorFactory;
 import pitt.search.semanticvectors.vectors.VectorType;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class TestLocalitySensitiveHash {
@@ -35,7 +39,29 @@ public class TestLocalitySensitiveHash {
 		makeSureConfigurationThrows("-lsh_hashes_num 6 -lsh_max_bits_diff 7");
 		makeSureConfigurationThrows("-lsh_hashes_num 6 -lsh_max_bits_diff -1");
 		makeSureConfigurationThrows("-lsh_hashes_num -1 -lsh_max_bits_diff 2");
-		makeSureConfigurationThrows("-lsh_hashes_num 16 -lsh_max_bits_diff 2");
+		makeSureConfigurationThrows("-lsh_hashes_num 65 -lsh_max_bits_diff 2");
+		makeSureConfigurationThrows("-lsh_hashes_num 6 -lsh_max_bits_diff 2 -lsh_tables 0");
+		// More than MAX_SIMILAR_HASHES lookups per table
+		makeSureConfigurationThrows("-lsh_hashes_num 64 -lsh_max_bits_diff 5");
+		makeSureConfigurationThrows("-lsh_hashes_num 30 -lsh_max_bits_diff 20");
+		// Within the bound, or scanning the whole store
+		FlagConfig.parseFlagsFromString("-lsh_hashes_num 64 -lsh_max_bits_diff 4");
+		FlagConfig.parseFlagsFromString("-lsh_hashes_num 20 -lsh_max_bits_diff 19");
+		FlagConfig.parseFlagsFromString("-lsh_hashes_num 64 -lsh_max_bits_diff 64");
+		try {
+			new LocalitySensitiveHash(VectorType.REAL, 32, 64, 10, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains(Integer.toString(LocalitySensitiveHash.MAX_SIMILAR_HASHES)));
+		}
+	}
+
+	@Test
+	public void testCountingSimilarHashes() {
+		assertEquals(1, LocalitySensitiveHash.countSimilarHashes(64, 0));
+		assertEquals(1 + 64 + 2016 + 41664, LocalitySensitiveHash.countSimilarHashes(64, 3));
+		assertEquals(1 << 20, LocalitySensitiveHash.countSimilarHashes(20, 20));
+		assertTrue(LocalitySensitiveHash.countSimilarHashes(64, 64) > LocalitySensitiveHash.MAX_SIMILAR_HASHES);
 	}
 
 	@Test
@@ -46,17 +72,30 @@ public class TestLocalitySensitiveHash {
 		}
 	}
 
+	@Test
+	public void testWideHashes() {
+		testCorrectSimilarHashSize(64, 2);
+
+		FlagConfig config = FlagConfig.parseFlagsFromString("-lsh_hashes_num 64 -lsh_max_bits_diff 0");
+		LocalitySensitiveHash lsh = new LocalitySensitiveHash(config);
+		Vector vector = VectorFactory.generateRandomVector(config.vectortype(), config.dimension(), config.dimension() / 2, new Random(0));
+		// With 64 random hyperplanes the top bits are used too.
+		assertTrue(Long.numberOfLeadingZeros(lsh.getHash(vector)) < Long.SIZE - 15);
+		assertEquals(lsh.getHash(vector), lsh.getSimilarHashes(vector)[0]);
+	}
+
 	private void testCorrectSimilarHashSize(int numHashes, int bitsDiff) {
 		FlagConfig config = FlagConfig.parseFlagsFromString("-lsh_hashes_num " + numHashes + " -lsh_max_bits_diff " + bitsDiff);
 		LocalitySensitiveHash lsh = new LocalitySensitiveHash(config);
 
-		short[] similarHashes = lsh.getSimilarHashes(VectorFactory.createZeroVector(config.vectortype(), config.dimension()));
+		long[] similarHashes = lsh.getSimilarHashes(VectorFactory.createZeroVector(config.vectortype(), config.dimension()));
 
 		int expected = 0;
 		for (int i = 0; i <= bitsDiff; i++) {
 			expected+= combination(numHashes, i);
 		}
 		assertEquals(expected, similarHashes.length);
+		assertEquals(expected, Arrays.stream(similarHashes).distinct().count());
 	}
 
 	private int combination(int n, int k) {
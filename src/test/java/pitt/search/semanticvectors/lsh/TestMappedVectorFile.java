@@ -0,0 +1,116 @@
+package pitt.search.semanticvectors.lsh;
+
+import org.apache.lucene.store.IndexInput;
+import org.junit.Test;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.VectorStoreWriter;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestMappedVectorFile {
+
+	/**
+	 * Writes a store of random vectors and returns the file position of each vector.
+	 */
+	private List<Long> writeStore(File vecStoreFile, FlagConfig flagConfig, VectorStoreRAM store) throws IOException {
+		VectorStoreWriter.writeVectors(vecStoreFile.getAbsolutePath(), flagConfig, store);
+		List<Long> positions = new ArrayList<>();
+		VectorStoreReaderLucene reader = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
+		IndexInput indexInput = reader.getIndexInput();
+		indexInput.seek(0);
+		indexInput.readString();
+		while (indexInput.getFilePointer() < indexInput.length()) {
+			positions.add(indexInput.getFilePointer());
+			indexInput.readString();
+			VectorFactory.createZeroVector(flagConfig.vectortype(), flagConfig.dimension()).readFromLuceneStream(indexInput);
+		}
+		reader.close();
+		return positions;
+	}
+
+	private void testReadsAcrossSegments(String vectorType, int dimension) throws IOException {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString("-vectortype " + vectorType + " -dimension " + dimension);
+		Random random = new Random(0);
+		VectorStoreRAM store = new VectorStoreRAM(flagConfig);
+		for (int i = 0; i < 200; i++) {
+			store.putVector("vector" + i, VectorFactory.generateRandomVector(flagConfig.vectortype(), dimension, dimension / 2, random));
+		}
+		File vecStoreFile = Files.createTempFile("mapped", ".bin").toFile();
+		try {
+			List<Long> positions = writeStore(vecStoreFile, flagConfig, store);
+			// Segments smaller than a vector make many of them cross a segment boundary.
+			MappedVectorFile mapped = new MappedVectorFile(vecStoreFile, 37);
+			for (long position : positions) {
+				ObjectVector objectVector = mapped.readObjectVector(position, flagConfig);
+				assertEquals(1.0, store.getVector(objectVector.getObject()).measureOverlap(objectVector.getVector()), 1e-6);
+			}
+			mapped.close();
+		} finally {
+			vecStoreFile.delete();
+			new File(vecStoreFile.getAbsolutePath() + ".map").delete();
+		}
+	}
+
+	@Test
+	public void testRealVectorsAcrossSegments() throws IOException {
+		testReadsAcrossSegments("real", 50);
+	}
+
+	@Test
+	public void testBinaryVectorsAcrossSegments() throws IOException {
+		testReadsAcrossSegments("binary", 256);
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString("-vectortype real -dimension 32");
+		Random random = new Random(1);
+		VectorStoreRAM store = new VectorStoreRAM(flagConfig);
+		for (int i = 0; i < 500; i++) {
+			store.putVector("vector" + i, VectorFactory.generateRandomVector(flagConfig.vectortype(), 32, 16, random));
+		}
+		File vecStoreFile = Files.createTempFile("mapped", ".bin").toFile();
+		try {
+			List<Long> positions = writeStore(vecStoreFile, flagConfig, store);
+			MappedVectorFile mapped = new MappedVectorFile(vecStoreFile, 1000);
+
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				long seed = t;
+				results.add(executor.submit(() -> {
+					Random threadRandom = new Random(seed);
+					for (int i = 0; i < 5000; i++) {
+						ObjectVector objectVector = mapped.readObjectVector(positions.get(threadRandom.nextInt(positions.size())), flagConfig);
+						if (Math.abs(store.getVector(objectVector.getObject()).measureOverlap(objectVector.getVector()) - 1) > 1e-6)
+							return false;
+					}
+					return true;
+				}));
+			}
+			executor.shutdown();
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+			mapped.close();
+		} finally {
+			vecStoreFile.delete();
+			new File(vecStoreFile.getAbsolutePath() + ".map").delete();
+		}
+	}
+}
@@ -8,9 +8,13 @@ import java.nio.file.Files;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 public class TestPersistedHashMap {
@@ -20,7 +24,7 @@ public class TestPersistedHashMap {
 		File tmp = Files.createTempFile("test", "file").toFile();
 		tmp.deleteOnExit();
 
-		TreeMap<Short, Collection<Long>> controlMap = new TreeMap<>();
+		TreeMap<Long, Collection<Long>> controlMap = new TreeMap<>();
 		PersistedHashMap persistedMap = new PersistedHashMap(tmp);
 
 		Random random = new Random();
@@ -30,14 +34,14 @@ public class TestPersistedHashMap {
 			for (int j = 0; j < random.nextInt(1000); j++) {
 				listLong.add(random.nextLong());
 			}
-			controlMap.put((short) random.nextInt(Short.MAX_VALUE), listLong);
+			controlMap.put(random.nextLong(), listLong);
 		}
 
 		persistedMap.persist(controlMap);
 
 		for (int i = 0; i < 100; i++) {
 			Object[] keys = controlMap.keySet().toArray();
-			short key = (short) keys[random.nextInt(keys.length)];
+			long key = (long) keys[random.nextInt(keys.length)];
 
 			LongIterator iter = persistedMap.get(key);
 			Iterator<Long> controlIter = controlMap.get(key).iterator();
@@ -55,7 +59,7 @@ public class TestPersistedHashMap {
 		File tmp = Files.createTempFile("test", "file").toFile();
 		tmp.delete();
 
-		TreeMap<Short, Collection<Long>> controlMap = new TreeMap<>();
+		TreeMap<Long, Collection<Long>> controlMap = new TreeMap<>();
 		PersistedHashMap persistedMap = new PersistedHashMap(tmp);
 
 		Random random = new Random();
@@ -65,14 +69,14 @@ public class TestPersistedHashMap {
 			for (int j = 0; j < random.nextInt(1000); j++) {
 				listLong.add(random.nextLong());
 			}
-			controlMap.put((short) random.nextInt(Short.MAX_VALUE), listLong);
+			controlMap.put(random.nextLong(), listLong);
 		}
 
 		persistedMap.persist(controlMap);
 
 		for (int i = 0; i < 100; i++) {
 			Object[] keys = controlMap.keySet().toArray();
-			short key = (short) keys[random.nextInt(keys.length)];
+			long key = (long) keys[random.nextInt(keys.length)];
 
 			LongIterator iter = persistedMap.get(key);
 			Iterator<Long> controlIter = controlMap.get(key).iterator();
@@ -85,7 +89,7 @@ public class TestPersistedHashMap {
 		}
 
 		assertEquals(persistedMap.keys().size(), controlMap.keySet().size());
-		for (Short key : persistedMap.keys()) {
+		for (Long key : persistedMap.keys()) {
 			controlMap.keySet().contains(key);
 		}
 	}
@@ -95,7 +99,7 @@ public class TestPersistedHashMap {
 		File tmp = Files.createTempFile("test", "file").toFile();
 		tmp.deleteOnExit();
 
-		TreeMap<Short, Collection<Long>> controlMap = new TreeMap<>();
+		TreeMap<Long, Collection<Long>> controlMap = new TreeMap<>();
 		PersistedHashMap persistedMap = new PersistedHashMap(tmp);
 
 		Random random = new Random();
@@ -105,7 +109,7 @@ public class TestPersistedHashMap {
 			for (int j = 0; j < random.nextInt(1000); j++) {
 				listLong.add(random.nextLong());
 			}
-			controlMap.put((short) random.nextInt(Short.MAX_VALUE), listLong);
+			controlMap.put(random.nextLong(), listLong);
 		}
 
 		persistedMap.persist(controlMap);
@@ -116,7 +120,7 @@ public class TestPersistedHashMap {
 
 		for (int i = 0; i < 100; i++) {
 			Object[] keys = controlMap.keySet().toArray();
-			short key = (short) keys[random.nextInt(keys.length)];
+			long key = (long) keys[random.nextInt(keys.length)];
 
 			LongIterator iter = persistedMap.get(key);
 			Iterator<Long> controlIter = controlMap.get(key).iterator();
@@ -129,12 +133,114 @@ public class TestPersistedHashMap {
 		}
 	}
 
+	@Test
+	public void testConcurrentReads() throws Exception {
+		File tmp = Files.createTempFile("test", "file").toFile();
+		tmp.deleteOnExit();
+
+		TreeMap<Long, Collection<Long>> controlMap = new TreeMap<>();
+		PersistedHashMap persistedMap = new PersistedHashMap(tmp);
+
+		Random random = new Random(0);
+		for (int i = 0; i < 1000; i++) {
+			List<Long> listLong = new LinkedList<>();
+			for (int j = 0; j < random.nextInt(100); j++) {
+				listLong.add(random.nextLong());
+			}
+			controlMap.put(random.nextLong(), listLong);
+		}
+		persistedMap.persist(controlMap);
+		Long[] keys = controlMap.keySet().toArray(new Long[0]);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			long seed = t;
+			results.add(executor.submit(() -> {
+				Random threadRandom = new Random(seed);
+				for (int i = 0; i < 10000; i++) {
+					long key = keys[threadRandom.nextInt(keys.length)];
+					LongIterator iter = persistedMap.get(key);
+					for (Long expected : controlMap.get(key)) {
+						if (!iter.hasNext() || iter.next() != expected)
+							return false;
+					}
+					if (iter.hasNext())
+						return false;
+				}
+				return true;
+			}));
+		}
+		executor.shutdown();
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get());
+		}
+
+		LongIterator missing = persistedMap.get(Long.MIN_VALUE);
+		assertFalse(controlMap.containsKey(Long.MIN_VALUE) || missing.hasNext());
+		persistedMap.close();
+	}
+
+	private static List<Long> values(PersistedHashMap map, long key) {
+		List<Long> values = new ArrayList<>();
+		LongIterator iter = map.get(key);
+		while (iter.hasNext()) {
+			values.add(iter.next());
+		}
+		return values;
+	}
+
+	@Test
+	public void testUpdatesAreLoggedAndCompacted() throws IOException {
+		File tmp = Files.createTempFile("test", "file").toFile();
+		tmp.delete();
+		File log = new File(tmp.getPath() + PersistedHashMap.LOG_SUFFIX);
+
+		TreeMap<Long, Collection<Long>> controlMap = new TreeMap<>();
+		controlMap.put(1L, Arrays.asList(10L, 11L));
+		controlMap.put(2L, Arrays.asList(20L));
+		PersistedHashMap persistedMap = new PersistedHashMap(tmp);
+		persistedMap.persist(controlMap);
+
+		persistedMap.add(1L, 12L);
+		persistedMap.remove(1L, 10L);
+		persistedMap.remove(2L, 20L);
+		persistedMap.add(3L, 30L);
+		persistedMap.add(3L, 31L);
+		persistedMap.remove(3L, 31L);
+		assertEquals(Arrays.asList(11L, 12L), values(persistedMap, 1L));
+		assertEquals(Arrays.asList(1L, 3L), persistedMap.keys());
+		persistedMap.close();
+
+		// The changes are replayed from the log
+		persistedMap = new PersistedHashMap(tmp);
+		persistedMap.init();
+		assertEquals(6, persistedMap.getNumChanges());
+		assertEquals(Arrays.asList(11L, 12L), values(persistedMap, 1L));
+		assertEquals(Collections.emptyList(), values(persistedMap, 2L));
+		assertEquals(Arrays.asList(30L), values(persistedMap, 3L));
+
+		persistedMap.compact();
+		assertFalse(log.exists());
+		assertEquals(0, persistedMap.getNumChanges());
+		assertEquals(3, persistedMap.getNumPersistedValues());
+		assertEquals(Arrays.asList(1L, 3L), persistedMap.keys());
+		persistedMap.close();
+
+		persistedMap = new PersistedHashMap(tmp);
+		persistedMap.init();
+		assertEquals(Arrays.asList(11L, 12L), values(persistedMap, 1L));
+		assertEquals(Arrays.asList(30L), values(persistedMap, 3L));
+		persistedMap.close();
+		tmp.delete();
+	}
+
 	@Test
 	public void perfTest() throws IOException {
 		File tmp = Files.createTempFile("test", "file").toFile();
 		tmp.deleteOnExit();
 
-		TreeMap<Short, Collection<Long>> controlMap = new TreeMap<>();
+		TreeMap<Long, Collection<Long>> controlMap = new TreeMap<>();
 		PersistedHashMap persistedMap = new PersistedHashMap(tmp);
 
 		Random random = new Random();
@@ -144,7 +250,7 @@ public class TestPersistedHashMap {
 			for (int j = 0; j < random.nextInt(10000); j++) {
 				listLong.add(random.nextLong());
 			}
-			controlMap.put((short) random.nextInt(Short.MAX_VALUE), listLong);
+			controlMap.put(random.nextLong(), listLong);
 		}
 
 		persistedMap.persist(controlMap);
@@ -152,7 +258,7 @@ public class TestPersistedHashMap {
 		Instant start = Instant.now();
 		for (int i = 0; i < 10000; i++) {
 			Object[] keys = controlMap.keySet().toArray();
-			short key = (short) keys[random.nextInt(keys.length)];
+			long key = (long) keys[random.nextInt(keys.length)];
 
 			Iterator<Long> controlIter = controlMap.get(key).iterator();
 
@@ -167,7 +273,7 @@ public class TestPersistedHashMap {
 		start = Instant.now();
 		for (int i = 0; i < 10000; i++) {
 			Object[] keys = controlMap.keySet().toArray();
-			short key = (short) keys[random.nextInt(keys.length)];
+			long key = (long) keys[random.nextInt(keys.length)];
 
 			LongIterator controlIter = persistedMap.get(key);
 
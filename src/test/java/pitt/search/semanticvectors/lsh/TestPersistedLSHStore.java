@@ -0,0 +1,163 @@
+package pitt.search.semanticvectors.lsh;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.apache.lucene.store.IndexInput;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.VectorStoreWriter;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPersistedLSHStore {
+
+	private static final int NUM_VECTORS = 2000;
+
+	private File homeDir;
+	private File vecStoreFile;
+	private FlagConfig flagConfig;
+	private VectorStoreRAM store;
+
+	@Before
+	public void setUp() throws IOException {
+		flagConfig = FlagConfig.parseFlagsFromString(
+				"-vectortype real -dimension 64 -seedlength 32 -lsh_hashes_num 24 -lsh_max_bits_diff 1 -lsh_tables 4");
+		store = MyTestUtils.createRandomStore(flagConfig, NUM_VECTORS, new Random(0));
+		vecStoreFile = MyTestUtils.createTempStore("lsh", flagConfig, store);
+		homeDir = vecStoreFile.getParentFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		MyTestUtils.deleteRecursively(homeDir);
+	}
+
+	private List<Object> getCandidates(LSHStore lshStore, Vector query) throws IOException {
+		List<Object> candidates = new ArrayList<>();
+		Enumeration<ObjectVector> similar = lshStore.getSimilar(query);
+		while (similar.hasMoreElements()) {
+			candidates.add(similar.nextElement().getObject());
+		}
+		return candidates;
+	}
+
+	/**
+	 * Appends the vectors of a second store to the vector store file, as a pipeline adding new vectors would, and
+	 * returns the length of the file before.
+	 */
+	private long appendVectors(VectorStoreRAM newVectors) throws IOException {
+		File newFile = new File(homeDir, "new.bin");
+		VectorStoreWriter.writeVectors(newFile.getAbsolutePath(), flagConfig, newVectors);
+		VectorStoreReaderLucene reader = new VectorStoreReaderLucene(newFile.getAbsolutePath(), flagConfig);
+		IndexInput indexInput = reader.getIndexInput();
+		indexInput.seek(0);
+		indexInput.readString();
+		int headerLength = (int) indexInput.getFilePointer();
+		reader.close();
+
+		byte[] bytes = Files.readAllBytes(newFile.toPath());
+		long oldLength = vecStoreFile.length();
+		Files.write(vecStoreFile.toPath(), Arrays.copyOfRange(bytes, headerLength, bytes.length), StandardOpenOption.APPEND);
+		return oldLength;
+	}
+
+	private long findPosition(String object) throws IOException {
+		VectorStoreReaderLucene reader = new VectorStoreReaderLucene(vecStoreFile.getAbsolutePath(), flagConfig);
+		try {
+			IndexInput indexInput = reader.getIndexInput();
+			indexInput.seek(0);
+			indexInput.readString();
+			while (indexInput.getFilePointer() < indexInput.length()) {
+				long position = indexInput.getFilePointer();
+				if (indexInput.readString().equals(object))
+					return position;
+				indexInput.seek(indexInput.getFilePointer() + VectorFactory.getLuceneByteSize(flagConfig.vectortype(), flagConfig.dimension()));
+			}
+			throw new IllegalArgumentException("No vector for " + object);
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testUpdatesArePersisted() throws IOException {
+		PersistedLSHStore lshStore = new PersistedLSHStore(vecStoreFile, flagConfig);
+		lshStore.initCache();
+
+		Random random = new Random(1);
+		VectorStoreRAM newVectors = new VectorStoreRAM(flagConfig);
+		for (int i = 0; i < 20; i++) {
+			newVectors.putVector("new" + i, VectorFactory.generateRandomVector(flagConfig.vectortype(), 64, 32, random));
+		}
+		long oldLength = appendVectors(newVectors);
+		assertEquals(20, lshStore.addAppended(oldLength));
+
+		// The first of the new vectors replaces vector7
+		Vector removed = store.getVector("vector7");
+		lshStore.replace(findPosition("vector7"), removed, oldLength, newVectors.getVector("new0"));
+		lshStore.close();
+
+		PersistedLSHStore reopened = new PersistedLSHStore(vecStoreFile, flagConfig);
+		reopened.initCache();
+		for (int i = 0; i < 20; i++) {
+			assertTrue(getCandidates(reopened, newVectors.getVector("new" + i)).contains("new" + i));
+		}
+		assertFalse(getCandidates(reopened, removed).contains("vector7"));
+
+		reopened.compact();
+		assertEquals(0, reopened.phms[0].getNumChanges());
+		assertTrue(getCandidates(reopened, newVectors.getVector("new5")).contains("new5"));
+		assertFalse(getCandidates(reopened, removed).contains("vector7"));
+		reopened.close();
+	}
+
+	@Test
+	public void testWideMultiTableCandidates() throws IOException {
+		PersistedLSHStore lshStore = new PersistedLSHStore(vecStoreFile, flagConfig);
+		lshStore.initCache();
+		assertEquals(4, lshStore.phms.length);
+
+		for (int q = 0; q < 10; q++) {
+			Object object = "vector" + (q * 137);
+			List<Object> candidates = getCandidates(lshStore, store.getVector(object));
+			Set<Object> unique = new HashSet<>(candidates);
+			assertEquals("Duplicate candidates", candidates.size(), unique.size());
+			assertTrue(unique.contains(object));
+			assertTrue("Found " + candidates.size() + " candidates", candidates.size() < NUM_VECTORS / 10);
+		}
+		lshStore.close();
+	}
+
+	@Test
+	public void testTablesAreReused() throws IOException {
+		PersistedLSHStore built = new PersistedLSHStore(vecStoreFile, flagConfig);
+		built.initCache();
+		PersistedLSHStore read = new PersistedLSHStore(vecStoreFile, flagConfig);
+		read.initCache();
+
+		Vector query = store.getVector("vector42");
+		assertEquals(getCandidates(built, query), getCandidates(read, query));
+		built.close();
+		read.close();
+	}
+}
@@ -0,0 +1,118 @@
+package pitt.search.semanticvectors.mih;
+
+import org.junit.Test;
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.MyTestUtils;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorSearcher;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.VectorStoreReaderLucene;
+import pitt.search.semanticvectors.VectorStoreWriter;
+import pitt.search.semanticvectors.vectors.BinaryVector;
+import pitt.search.semanticvectors.vectors.Vector;
+import pitt.search.semanticvectors.vectors.VectorFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MihIndexTest {
+
+	private static final String FLAGS = "-vectortype binary -dimension 256 -annindex mih";
+
+	/**
+	 * Returns a copy of the vector with the given number of random bits flipped.
+	 */
+	private BinaryVector flipBits(Vector vector, int numFlips, Random random) {
+		long[] bits = ((BinaryVector) vector).getBits().clone();
+		for (int flip = 0; flip < numFlips; flip++) {
+			int bit = random.nextInt(vector.getDimension());
+			bits[bit / Long.SIZE] ^= 1L << (bit % Long.SIZE);
+		}
+		return new BinaryVector(bits, vector.getDimension());
+	}
+
+	@Test
+	public void testResultsAreThoseOfAnExhaustiveSearch() {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		Random random = new Random(0);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 2000, random);
+		for (int numSubstrings : new int[] {0, 4, 16, 256}) {
+			MihIndex index = MihIndex.build(store, flagConfig.dimension(), numSubstrings);
+			assertEquals(2000, index.size());
+			for (int q = 0; q < 10; q++) {
+				Vector query = q % 2 == 0
+						? VectorFactory.generateRandomVector(flagConfig.vectortype(), flagConfig.dimension(), flagConfig.seedlength(), random)
+						: flipBits(store.getVector("vector" + q), 20, random);
+				List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(store, query.copy(), flagConfig)
+						.getNearestNeighbors(10);
+				List<SearchResult> actual = index.search(query, 10);
+				assertEquals(expected.size(), actual.size());
+				// Scores rather than objects are compared, as codes at the same distance tie
+				for (int i = 0; i < actual.size(); i++) {
+					assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testNearDuplicatesAreFoundWithoutScanning() {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		Random random = new Random(1);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 4000, random);
+		MihIndex index = MihIndex.build(store, flagConfig.dimension(), 0);
+		assertEquals(MihIndex.getDefaultNumSubstrings(256, 4000), index.getNumSubstrings());
+
+		for (int q = 0; q < 10; q++) {
+			Vector query = flipBits(store.getVector("vector" + q), 3, random);
+			List<SearchResult> results = index.search(query, 1);
+			assertEquals("vector" + q, results.get(0).getObjectVector().getObject());
+			int candidates = index.countCandidates(query, 1);
+			assertTrue("Compared " + candidates + " codes", candidates < 100);
+		}
+	}
+
+	@Test
+	public void testSearcherUsesTheIndexOfLuceneStores() throws Exception {
+		FlagConfig flagConfig = FlagConfig.parseFlagsFromString(FLAGS);
+		Random random = new Random(2);
+		VectorStoreRAM store = MyTestUtils.createRandomStore(flagConfig, 500, random);
+		File tmp = Files.createTempFile("mih", ".bin").toFile();
+		try {
+			VectorStoreWriter.writeVectors(tmp.getAbsolutePath(), flagConfig, store);
+			VectorStoreReaderLucene reader = new VectorStoreReaderLucene(tmp.getAbsolutePath(), flagConfig);
+			try {
+				Vector query = flipBits(store.getVector("vector7"), 10, random);
+				List<SearchResult> expected = new VectorSearcher.VectorSearcherPlain(reader, query.copy(), flagConfig)
+						.getNearestNeighbors(5);
+				List<SearchResult> actual = new VectorSearcher.VectorSearcherMih(reader, reader, null, flagConfig, query)
+						.getNearestNeighbors(5);
+				assertEquals("vector7", actual.get(0).getObjectVector().getObject());
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 1e-9);
+				}
+			} finally {
+				reader.close();
+			}
+		} finally {
+			MihIndexFactory.INSTANCE.clearIndexesForIndex(tmp);
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	@Test
+	public void testOnlyBinaryVectorsCanBeIndexed() {
+		try {
+			FlagConfig.parseFlagsFromString("-vectortype real -annindex mih");
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("mih"));
+		}
+	}
+}